@@ -0,0 +1,87 @@
+package io.sesam.cifs.service;
+
+import com.hierynomus.msdtyp.FileTime;
+import com.hierynomus.msfscc.fileinformation.FileIdBothDirectoryInformation;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.springframework.util.ReflectionUtils;
+
+/**
+ * Builds service components and synthetic SMB data for benchmarks without Spring context or file server
+ *
+ * @author Timur Samkharadze
+ */
+final class BenchmarkFixtures {
+
+    private BenchmarkFixtures() {
+    }
+
+    static CifsConfig config() {
+        CifsConfig config = new CifsConfig();
+        config.setTransferBufferSize(65536);
+        return config;
+    }
+
+    static CifsClient cifsClient(CifsConfig config) {
+        SmbMetrics metrics = new SmbMetrics();
+        inject(metrics, "registry", new SimpleMeterRegistry());
+        CifsClient client = new CifsClient();
+        inject(client, "config", config);
+        inject(client, "metrics", metrics);
+        return client;
+    }
+
+    /**
+     * @return directory entries as decoded from SMB2 QUERY_DIRECTORY response
+     */
+    static List<FileIdBothDirectoryInformation> directoryEntries(int count) throws ReflectiveOperationException {
+        Constructor<FileIdBothDirectoryInformation> constructor = FileIdBothDirectoryInformation.class
+                .getDeclaredConstructor(long.class, long.class, String.class, FileTime.class, FileTime.class,
+                        FileTime.class, FileTime.class, long.class, long.class, long.class, long.class,
+                        String.class, byte[].class);
+        constructor.setAccessible(true);
+        Random random = new Random(42);
+        long now = FileTime.now().getWindowsTimeStamp();
+        List<FileIdBothDirectoryInformation> entries = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            FileTime time = new FileTime(now - random.nextInt(Integer.MAX_VALUE));
+            long size = random.nextInt(10 * 1024 * 1024);
+            long attributes = i % 10 == 0 ? 0x10 : 0x20;
+            entries.add(constructor.newInstance(i, 0, String.format("IDOC_%08d_ORDERS05.xml", i), time, time,
+                    time, time, size, size, attributes, 0, "", new byte[8]));
+        }
+        return entries;
+    }
+
+    /**
+     * @return synthetic ORDERS05 IDoc with given number of item segments
+     */
+    static byte[] idoc(int items) {
+        StringBuilder xml = new StringBuilder(512 + items * 400);
+        xml.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?><ORDERS05><IDOC BEGIN=\"1\">")
+                .append("<EDI_DC40 SEGMENT=\"1\"><TABNAM>EDI_DC40</TABNAM><MANDT>100</MANDT>")
+                .append("<DOCNUM>0000000012345678</DOCNUM><IDOCTYP>ORDERS05</IDOCTYP><MESTYP>ORDERS</MESTYP>")
+                .append("</EDI_DC40><E1EDK01 SEGMENT=\"1\"><CURCY>NOK</CURCY><BSART>NB</BSART></E1EDK01>");
+        for (int i = 1; i <= items; i++) {
+            xml.append("<E1EDP01 SEGMENT=\"1\"><POSEX>").append(String.format("%06d", i * 10))
+                    .append("</POSEX><MENGE>").append(i % 7 + 1).append(".000</MENGE><MENEE>EA</MENEE>")
+                    .append("<E1EDP19 SEGMENT=\"1\"><QUALF>002</QUALF><IDTNR>MAT-").append(i)
+                    .append("</IDTNR><KTEXT>Material &amp; description ").append(i).append("</KTEXT></E1EDP19>")
+                    .append("<E1EDP26 SEGMENT=\"1\"><QUALF>003</QUALF><BETRG>").append(i * 12.5)
+                    .append("</BETRG></E1EDP26></E1EDP01>");
+        }
+        xml.append("</IDOC></ORDERS05>");
+        return xml.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    static void inject(Object target, String name, Object value) {
+        Field field = ReflectionUtils.findField(target.getClass(), name);
+        ReflectionUtils.makeAccessible(field);
+        ReflectionUtils.setField(field, target, value);
+    }
+}
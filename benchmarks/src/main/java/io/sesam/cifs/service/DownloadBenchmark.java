@@ -0,0 +1,58 @@
+package io.sesam.cifs.service;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.io.output.NullOutputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Download path of /get from file handle to response stream with in-memory file standing in for SMB reads, measures
+ * service overhead per file size; allocation rate is reported by gc profiler
+ *
+ * @author Timur Samkharadze
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx1g")
+public class DownloadBenchmark {
+
+    @Param({"65536", "1048576", "67108864"})
+    private int fileSize;
+
+    private CifsClient cifsClient;
+
+    private int readSize;
+
+    private FileSource file;
+
+    @Setup
+    public void setUp() {
+        CifsConfig config = BenchmarkFixtures.config();
+        cifsClient = BenchmarkFixtures.cifsClient(config);
+        readSize = config.getTransferBufferSize();
+        byte[] content = new byte[fileSize];
+        new Random(42).nextBytes(content);
+        file = new InMemoryFileSource(content);
+    }
+
+    @Benchmark
+    public long transferFile() throws IOException {
+        // buffer is allocated per request by /get
+        return cifsClient.transferFile("bench", file, readSize, 0, fileSize, NullOutputStream.NULL_OUTPUT_STREAM,
+                new byte[Math.min(fileSize, readSize)]);
+    }
+}
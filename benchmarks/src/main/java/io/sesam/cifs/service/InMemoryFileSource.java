@@ -0,0 +1,25 @@
+package io.sesam.cifs.service;
+
+/**
+ * In-process stand-in of SMB file serving positional reads from byte array
+ *
+ * @author Timur Samkharadze
+ */
+class InMemoryFileSource implements FileSource {
+
+    private final byte[] content;
+
+    InMemoryFileSource(byte[] content) {
+        this.content = content;
+    }
+
+    @Override
+    public int read(byte[] buffer, long fileOffset, int bufferOffset, int length) {
+        if (fileOffset >= content.length) {
+            return -1;
+        }
+        int count = (int) Math.min(length, content.length - fileOffset);
+        System.arraycopy(content, (int) fileOffset, buffer, bufferOffset, count);
+        return count;
+    }
+}
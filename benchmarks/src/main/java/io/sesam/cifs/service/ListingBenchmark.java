@@ -0,0 +1,66 @@
+package io.sesam.cifs.service;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.hierynomus.msfscc.fileinformation.FileIdBothDirectoryInformation;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.io.output.NullOutputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Cost of turning SMB directory entries into {@link FileOrDirectoryInfo} and of writing them as /list response
+ *
+ * @author Timur Samkharadze
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class ListingBenchmark {
+
+    @Param({"10000", "100000", "1000000"})
+    private int entries;
+
+    private List<FileIdBothDirectoryInformation> listing;
+
+    private ObjectMapper objectMapper;
+
+    @Setup
+    public void setUp() throws ReflectiveOperationException {
+        listing = BenchmarkFixtures.directoryEntries(entries);
+        objectMapper = new ObjectMapper();
+    }
+
+    @Benchmark
+    public void mapEntries(Blackhole blackhole) {
+        for (FileIdBothDirectoryInformation sub : listing) {
+            blackhole.consume(CifsClient.toFileOrDirectoryInfo(sub));
+        }
+    }
+
+    @Benchmark
+    public void mapAndWriteJson() throws IOException {
+        try ( JsonGenerator gen = objectMapper.getFactory().createGenerator(NullOutputStream.NULL_OUTPUT_STREAM)) {
+            gen.writeStartArray();
+            for (FileIdBothDirectoryInformation sub : listing) {
+                objectMapper.writeValue(gen, CifsClient.toFileOrDirectoryInfo(sub));
+            }
+            gen.writeEndArray();
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package io.sesam.cifs.service;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.io.output.NullWriter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * XML to JSON conversion of IDocs of different sizes as done by /loadandtransform, in memory for small files and
+ * streamed for large ones
+ *
+ * @author Timur Samkharadze
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class XmlTransformBenchmark {
+
+    /**
+     * number of item segments, roughly 2 KB, 40 KB and 4 MB documents
+     */
+    @Param({"5", "100", "10000"})
+    private int items;
+
+    private byte[] idoc;
+
+    private XmlToJsonConverter converter;
+
+    @Setup
+    public void setUp() {
+        idoc = BenchmarkFixtures.idoc(items);
+        converter = new XmlToJsonConverter();
+    }
+
+    @Benchmark
+    public String convertInMemory() throws IOException {
+        return converter.convert(idoc, "ORDERS05");
+    }
+
+    @Benchmark
+    public void convertStreaming() throws IOException {
+        converter.convert(() -> new ByteArrayInputStream(idoc), "ORDERS05", NullWriter.NULL_WRITER);
+    }
+}
@@ -0,0 +1,64 @@
+package io.sesam.cifs.controller;
+
+import io.sesam.cifs.service.CifsConfig;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import javax.servlet.DispatcherType;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.web.servlet.FilterRegistrationBean;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.web.context.request.NativeWebRequest;
+import org.springframework.web.context.request.async.CallableProcessingInterceptor;
+import org.springframework.web.servlet.config.annotation.AsyncSupportConfigurer;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
+
+/**
+ * Asynchronous request execution.
+ * <p>
+ * Content of download, archive and transform responses is transferred on bounded executor of CIFS_ASYNC_THREADS
+ * threads, so slow SMB transfers don't hold servlet container threads needed by listings and other short requests.
+ * Queue of executor is not bounded itself, number of admitted requests is limited by {@link ConcurrencyLimitFilter}.
+ * Resources of response bodies cancelled before they ran are released once their request is completed.
+ *
+ * @author Timur Samkharadze
+ */
+@Configuration
+public class AsyncExecutionConfig implements WebMvcConfigurer {
+
+    @Autowired
+    private CifsConfig config;
+
+    @Bean
+    public ThreadPoolTaskExecutor transferExecutor() {
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(Math.max(1, config.getAsyncThreads()));
+        executor.setMaxPoolSize(Math.max(1, config.getAsyncThreads()));
+        executor.setThreadNamePrefix("smb-transfer-");
+        executor.setDaemon(true);
+        return executor;
+    }
+
+    /**
+     * Compression filter must also see async dispatch following asynchronous transfer to finish compressed body
+     */
+    @Bean
+    public FilterRegistrationBean<CompressionFilter> compressionFilterRegistration(CompressionFilter filter) {
+        FilterRegistrationBean<CompressionFilter> registration = new FilterRegistrationBean<>(filter);
+        registration.setDispatcherTypes(DispatcherType.REQUEST, DispatcherType.ASYNC);
+        return registration;
+    }
+
+    @Override
+    public void configureAsyncSupport(AsyncSupportConfigurer configurer) {
+        configurer.setTaskExecutor(transferExecutor());
+        configurer.setDefaultTimeout(TimeUnit.SECONDS.toMillis(Math.max(0, config.getAsyncTimeoutSeconds())));
+        configurer.registerCallableInterceptors(new CallableProcessingInterceptor() {
+            @Override
+            public <T> void afterCompletion(NativeWebRequest request, Callable<T> task) {
+                PendingTransfer.releaseUnclaimed(request);
+            }
+        });
+    }
+}
@@ -0,0 +1,114 @@
+package io.sesam.cifs.controller;
+
+import io.sesam.cifs.service.SmbSessionPool;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+/**
+ * Routing of share endpoints to one of several configured backends.
+ * <p>
+ * With CIFS_BACKENDS set share endpoints are addressed as /{endpoint}/{backend}/{share}/**, request is passed on as
+ * /{endpoint}/{backend}:{share}/** so handlers work with share name qualified by backend name. Requests to unknown
+ * backend are answered with 404. Without CIFS_BACKENDS requests are passed on unchanged.
+ *
+ * @author Timur Samkharadze
+ */
+@Component
+@Order(Ordered.HIGHEST_PRECEDENCE + 50)
+public class BackendRoutingFilter extends OncePerRequestFilter {
+
+    private static final Set<String> SHARE_ENDPOINTS = new HashSet<>(Arrays.asList(
+            "list", "get", "put", "changes", "walk", "watch", "move", "copy", "archive", "loadandtransform",
+            "delete", "stat", "hash"));
+
+    @Autowired
+    private SmbSessionPool sessionPool;
+
+    @Override
+    protected boolean shouldNotFilter(HttpServletRequest request) {
+        if (!sessionPool.isMultiBackend()) {
+            return true;
+        }
+        String path = request.getRequestURI().substring(request.getContextPath().length());
+        int end = path.indexOf('/', 1);
+        return end < 0 || !SHARE_ENDPOINTS.contains(path.substring(1, end));
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain chain)
+            throws ServletException, IOException {
+        String contextPath = request.getContextPath();
+        String path = request.getRequestURI().substring(contextPath.length());
+        int backendStart = path.indexOf('/', 1) + 1;
+        int backendEnd = path.indexOf('/', backendStart);
+        if (backendEnd < 0 || backendEnd == path.length() - 1) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND,
+                    "request path must start with /{endpoint}/{backend}/{share}");
+            return;
+        }
+        String backend = path.substring(backendStart, backendEnd);
+        if (!sessionPool.getBackendNames().contains(backend)) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND, String.format("unknown backend %s", backend));
+            return;
+        }
+        chain.doFilter(new RoutedRequest(request, contextPath + qualify(path), qualify(request.getServletPath())),
+                response);
+    }
+
+    /**
+     * @return path with separator of backend and share names instead of slash between them
+     */
+    private static String qualify(String path) {
+        int backendEnd = path.indexOf('/', path.indexOf('/', 1) + 1);
+        if (backendEnd < 0) {
+            return path;
+        }
+        return path.substring(0, backendEnd) + SmbSessionPool.BACKEND_SEPARATOR + path.substring(backendEnd + 1);
+    }
+
+    /**
+     * Request with rewritten path
+     */
+    private static class RoutedRequest extends HttpServletRequestWrapper {
+
+        private final String requestUri;
+
+        private final String servletPath;
+
+        RoutedRequest(HttpServletRequest request, String requestUri, String servletPath) {
+            super(request);
+            this.requestUri = requestUri;
+            this.servletPath = servletPath;
+        }
+
+        @Override
+        public String getRequestURI() {
+            return requestUri;
+        }
+
+        @Override
+        public String getServletPath() {
+            return servletPath;
+        }
+
+        @Override
+        public StringBuffer getRequestURL() {
+            StringBuffer url = super.getRequestURL();
+            String original = ((HttpServletRequest) getRequest()).getRequestURI();
+            url.setLength(url.length() - original.length());
+            return url.append(requestUri);
+        }
+    }
+}
@@ -1,34 +1,71 @@
 package io.sesam.cifs.controller;
 
-import com.hierynomus.smbj.session.Session;
-import com.hierynomus.smbj.share.DiskShare;
-import org.json.XML;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.hierynomus.msdtyp.FileTime;
+import com.hierynomus.msfscc.FileAttributes;
+import com.hierynomus.msfscc.fileinformation.FileAllInformation;
+import com.hierynomus.protocol.commons.EnumWithValue;
+import com.hierynomus.smbj.share.File;
+import io.sesam.cifs.service.ArchiveRequestEntity;
+import io.sesam.cifs.service.BatchFileOperations;
+import io.sesam.cifs.service.ChangeBatch;
+import io.sesam.cifs.service.ChangeEvent;
+import io.sesam.cifs.service.CifsConfig;
 import io.sesam.cifs.service.CifsClient;
+import io.sesam.cifs.service.ContentHasher;
+import io.sesam.cifs.service.DirectoryListing;
+import io.sesam.cifs.service.FileContentCache;
+import io.sesam.cifs.service.FileOperationEntity;
+import io.sesam.cifs.service.FileOperationResult;
 import io.sesam.cifs.service.FileOrDirectoryInfo;
+import io.sesam.cifs.service.FilePathResult;
+import io.sesam.cifs.service.ListingCache;
+import io.sesam.cifs.service.MemoryBudget;
+import io.sesam.cifs.service.PooledShare;
 import io.sesam.cifs.service.SesamFileRequestEntity;
-import java.io.FileInputStream;
+import io.sesam.cifs.service.ShareArchiver;
+import io.sesam.cifs.service.ShareWatcher;
+import io.sesam.cifs.service.SmbMetrics;
+import io.sesam.cifs.service.SmbSessionPool;
+import io.sesam.cifs.service.TransformProfiles;
+import io.sesam.cifs.service.TreeWalker;
+import io.sesam.cifs.service.XmlTransformPipeline;
+import java.io.BufferedOutputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
-import java.nio.file.Files;
-import java.nio.file.Path;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import org.apache.commons.io.FileUtils;
-import org.apache.commons.io.IOUtils;
-import org.json.JSONObject;
+import org.apache.commons.io.FilenameUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpRange;
+import org.springframework.http.MediaType;
 import org.springframework.util.AntPathMatcher;
+import org.springframework.util.MimeTypeUtils;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.ServletWebRequest;
 import org.springframework.web.servlet.HandlerMapping;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+import org.springframework.web.util.WebUtils;
 
 /**
  * Provides funcitons to work with CIFS shares
@@ -38,9 +75,64 @@ import org.springframework.web.servlet.HandlerMapping;
 @RestController
 public class CifsController {
 
+    @Autowired
+    CifsConfig config;
+
     @Autowired
     CifsClient cifsClient;
 
+    @Autowired
+    XmlTransformPipeline xmlTransformPipeline;
+
+    @Autowired
+    DirectoryListing directoryListing;
+
+    @Autowired
+    ListingCache listingCache;
+
+    @Autowired
+    FileContentCache fileContentCache;
+
+    @Autowired
+    TreeWalker treeWalker;
+
+    @Autowired
+    ShareWatcher shareWatcher;
+
+    @Autowired
+    ShareArchiver shareArchiver;
+
+    @Autowired
+    BatchFileOperations batchFileOperations;
+
+    @Autowired
+    ContentHasher contentHasher;
+
+    @Autowired
+    SmbMetrics metrics;
+
+    @Autowired
+    CompressionFilter compressionFilter;
+
+    @Autowired
+    ObjectMapper objectMapper;
+
+    @Autowired
+    TransformProfiles transformProfiles;
+
+    @Autowired
+    MemoryBudget memoryBudget;
+
+    private static final String CONTINUATION_TOKEN_HEADER = "X-Continuation-Token";
+
+    private static final String NEXT_SINCE_HEADER = "X-Next-Since";
+
+    private static final String EVENT_STREAM_CONTENT_TYPE = "text/event-stream";
+
+    private static final String RETRY_AFTER_SECONDS = "1";
+
+    private static final String SENDFILE_SUPPORT_ATTRIBUTE = "org.apache.tomcat.sendfile.support";
+
     private static final Logger LOG = LoggerFactory.getLogger(CifsController.class);
 
     public CifsController() {
@@ -60,144 +152,907 @@ public class CifsController {
      * Must ends with directory and will throw an error in case of file-name provided.
      * <p>
      * /list/go/ will list content of shared folder "go" * /list/go/Csv2Json content of subfolder Csv2Json etc
+     * <p>
+     * Entries are written as they are enumerated. With limit only one page is returned and token to request next page
+     * is sent in X-Continuation-Token header. Entries are written as JSON array (default), newline delimited JSON
+     * (format=ndjson or Accept: application/x-ndjson) or array of Sesam entities (format=sesam).
      *
      * @param shareName name of share
-     * @param sortByField optional sorting key
+     * @param sortByField optional sorting key, "changetime" (default) or anything else to keep server order
+     * @param limit optional max number of entries to return
+     * @param continuation optional token returned with previous page
+     * @param format optional output format, "json", "ndjson" or "sesam"
+     * @param fields optional comma separated names of entry fields to return, all by default
      * @param request servlet request object
-     * @return share content
+     * @param response streamed share content
      * @throws IOException if any IO errors occur
      */
     @RequestMapping(value = {"/list/{share}/**"}, method = {RequestMethod.GET})
-    public List<FileOrDirectoryInfo> listShareContent(
+    public void listShareContent(
             @PathVariable("share") String shareName,
             @RequestParam(name = "sortbyfield", defaultValue = "changetime") String sortByField,
-            HttpServletRequest request) throws IOException {
+            @RequestParam(name = "limit", defaultValue = "0") int limit,
+            @RequestParam(name = "continuation", required = false) String continuation,
+            @RequestParam(name = "format", required = false) String format,
+            @RequestParam(name = "fields", required = false) String fields,
+            HttpServletRequest request, HttpServletResponse response) throws IOException {
 
         String path = getSharePathFromRequestPath(request);
-        LOG.debug("serving request to path {} on share", path, shareName);
-        List<FileOrDirectoryInfo> resultList = this.cifsClient.listShareContent(shareName, path);
+        LOG.debug("serving request to path {} on share {}", path, shareName);
+        ListingResponseSink sink = null;
+        try {
+            sink = createListingSink(request, response, CONTINUATION_TOKEN_HEADER, false, format, fields, path,
+                    ListingResponseSink.Format.JSON);
+            try ( ContentHasher.HashingSink hashing = hashingSink(sink, shareName, path)) {
+                directoryListing.list(shareName, path, "changetime".equals(sortByField), limit, continuation,
+                        hashing != null ? hashing : sink);
+                if (hashing != null) {
+                    hashing.drain();
+                }
+            }
+        } catch (IllegalArgumentException exc) {
+            if (sink == null || !sink.isStarted()) {
+                response.sendError(HttpServletResponse.SC_BAD_REQUEST, exc.getMessage());
+                return;
+            }
+            throw exc;
+        }
+        sink.finish();
+    }
 
-        switch (sortByField) {
-            case "changetime":
-                try {
-                    resultList.sort((obj1, obj2) -> {
-                        return Long.compare(obj1.getChangeTimeWindowsTs(), obj2.getChangeTimeWindowsTs());
-                    });
-                } catch(IllegalArgumentException ex){
-                    LOG.error("Couldn't sort list due to", ex);
+    /**
+     * Endpoint to list only share content changed after given point, sorted by change time and name.
+     * <p>
+     * since is windows timestamp (as in changeTimeWindowsTs) or "timestamp:name" value returned earlier. Each entry
+     * carries its own position in "_updated" so Sesam pipes can persist it as since value, position of last returned
+     * entry is also sent in X-Next-Since header. Output formats and field selection are the same as of /list.
+     *
+     * @param shareName name of share
+     * @param since optional position to list changes after
+     * @param limit optional max number of entries to return
+     * @param format optional output format, "json", "ndjson" or "sesam"
+     * @param fields optional comma separated names of entry fields to return, all by default
+     * @param request servlet request object
+     * @param response streamed changed share content
+     * @throws IOException if any IO errors occur
+     */
+    @RequestMapping(value = {"/changes/{share}/**"}, method = {RequestMethod.GET})
+    public void listChanges(
+            @PathVariable("share") String shareName,
+            @RequestParam(name = "since", required = false) String since,
+            @RequestParam(name = "limit", defaultValue = "0") int limit,
+            @RequestParam(name = "format", required = false) String format,
+            @RequestParam(name = "fields", required = false) String fields,
+            HttpServletRequest request, HttpServletResponse response) throws IOException {
+
+        String path = getSharePathFromRequestPath(request);
+        LOG.debug("serving changes since {} in path {} on share {}", since, path, shareName);
+        ListingResponseSink sink = null;
+        try {
+            sink = createListingSink(request, response, NEXT_SINCE_HEADER, true, format, fields, path,
+                    ListingResponseSink.Format.JSON);
+            try ( ContentHasher.HashingSink hashing = hashingSink(sink, shareName, path)) {
+                directoryListing.listChanges(shareName, path, since, limit, hashing != null ? hashing : sink);
+                if (hashing != null) {
+                    hashing.drain();
+                }
+            }
+        } catch (IllegalArgumentException exc) {
+            if (sink == null || !sink.isStarted()) {
+                response.sendError(HttpServletResponse.SC_BAD_REQUEST, exc.getMessage());
+                return;
+            }
+            throw exc;
+        }
+        sink.finish();
+    }
+
+    /**
+     * Endpoint to list whole directory tree under given path.
+     * <p>
+     * Subdirectories are listed in parallel, so entries come in no particular order. Entries are written as newline
+     * delimited JSON objects as soon as they are found, each carries its path relative to share root. Output formats
+     * and field selection are the same as of /list.
+     *
+     * @param shareName name of share
+     * @param depth optional max depth to descend to, 1 lists only given directory, 0 (default) for no limit
+     * @param glob optional glob pattern to filter entries, matched against name or, if it contains '/', against path
+     * relative to requested directory
+     * @param format optional output format, "ndjson" (default), "json" or "sesam"
+     * @param fields optional comma separated names of entry fields to return, all by default
+     * @param request servlet request object
+     * @param response streamed tree content
+     * @throws IOException if any IO errors occur
+     */
+    @RequestMapping(value = {"/walk/{share}/**"}, method = {RequestMethod.GET})
+    public void walkShareContent(
+            @PathVariable("share") String shareName,
+            @RequestParam(name = "depth", defaultValue = "0") int depth,
+            @RequestParam(name = "glob", required = false) String glob,
+            @RequestParam(name = "format", required = false) String format,
+            @RequestParam(name = "fields", required = false) String fields,
+            HttpServletRequest request, HttpServletResponse response) throws IOException {
+
+        String path = getSharePathFromRequestPath(request);
+        LOG.debug("walking tree under path {} on share {}", path, shareName);
+        ListingResponseSink sink = null;
+        try {
+            ListingResponseSink walkSink = createListingSink(request, response, null, false, format, fields, path,
+                    ListingResponseSink.Format.NDJSON);
+            sink = walkSink;
+            try ( ContentHasher.HashingSink hashing = hashingSink(walkSink, shareName, path)) {
+                DirectoryListing.ListingSink target = hashing != null ? hashing : walkSink;
+                treeWalker.walk(shareName, path, depth, glob, entry -> {
+                    if (!walkSink.isStarted()) {
+                        target.start(null);
+                    }
+                    target.entry(entry);
+                    return true;
+                });
+                if (!walkSink.isStarted()) {
+                    walkSink.start(null);
+                }
+                if (hashing != null) {
+                    hashing.drain();
                 }
+            }
+        } catch (IllegalArgumentException exc) {
+            if (sink == null || !sink.isStarted()) {
+                response.sendError(HttpServletResponse.SC_BAD_REQUEST, exc.getMessage());
+                return;
+            }
+            throw exc;
+        }
+        sink.finish();
+    }
+
+    /**
+     * @return sink adding content hashes to entries passed to given sink if hash field is requested, otherwise null
+     */
+    private ContentHasher.HashingSink hashingSink(ListingResponseSink sink, String shareName, String path)
+            throws IOException {
+        if (!sink.isHashRequested()) {
+            return null;
+        }
+        return contentHasher.hashingSink(sink, shareName, path, contentHasher.algorithm(null), false);
+    }
+
+    private ListingResponseSink createListingSink(HttpServletRequest request, HttpServletResponse response,
+            String tokenHeader, boolean withUpdated, String format, String fields, String path,
+            ListingResponseSink.Format defaultFormat) {
+        return new ListingResponseSink(response, objectMapper.getFactory(), tokenHeader, withUpdated,
+                ListingResponseSink.Format.of(format, request.getHeader(HttpHeaders.ACCEPT), defaultFormat), fields,
+                path);
+    }
 
-                break;
+    /**
+     * Endpoint to get changes of directory pushed by file server instead of polling /list.
+     * <p>
+     * First request starts watching directory. Without since value only changes from now on are returned, with cursor
+     * returned earlier request waits up to timeout seconds for changes after it (long-poll). If cursor is too old or
+     * service was restarted response has "resync": true and client should list directory once. Clients accepting
+     * text/event-stream get server-sent events stream instead, Last-Event-ID header is used as since value. Stream is
+     * ended after CIFS_WATCH_STREAM_MAX_SECONDS so that servlet thread isn't held forever, client reconnects then.
+     * Nonexistent directory is answered with 404.
+     *
+     * @param shareName name of share
+     * @param since optional cursor returned with previous changes
+     * @param timeout optional max time in seconds to wait for changes
+     * @param limit optional max number of events to return at once
+     * @param request servlet request object
+     * @param response changes of directory
+     * @throws IOException if any IO errors occur
+     */
+    @RequestMapping(value = {"/watch/{share}/**"}, method = {RequestMethod.GET})
+    public void watchShareContent(
+            @PathVariable("share") String shareName,
+            @RequestParam(name = "since", required = false) String since,
+            @RequestParam(name = "timeout", defaultValue = "30") int timeout,
+            @RequestParam(name = "limit", defaultValue = "1000") int limit,
+            HttpServletRequest request, HttpServletResponse response) throws IOException {
+
+        String path = getSharePathFromRequestPath(request);
+        String accept = request.getHeader(HttpHeaders.ACCEPT);
+        boolean eventStream = accept != null && accept.contains(EVENT_STREAM_CONTENT_TYPE);
+        String cursor = since;
+        if (eventStream && cursor == null) {
+            cursor = request.getHeader("Last-Event-ID");
+        }
+        LOG.debug("serving watch since {} of path {} on share {}", cursor, path, shareName);
+        ChangeBatch batch;
+        try {
+            batch = shareWatcher.poll(shareName, path, cursor, eventStream ? 0 : timeout, limit);
+        } catch (IllegalStateException exc) {
+            response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, exc.getMessage());
+            return;
+        } catch (FileNotFoundException exc) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND, exc.getMessage());
+            return;
+        }
+        if (!eventStream) {
+            response.setContentType(MediaType.APPLICATION_JSON_UTF8_VALUE);
+            objectMapper.writeValue(response.getOutputStream(), batch);
+            return;
+        }
+
+        response.setContentType(EVENT_STREAM_CONTENT_TYPE);
+        response.setCharacterEncoding("utf-8");
+        response.setHeader(HttpHeaders.CACHE_CONTROL, "no-cache");
+        PrintWriter writer = response.getWriter();
+        long streamEnd = System.nanoTime() + TimeUnit.SECONDS.toNanos(config.getWatchStreamMaxSeconds());
+        while (!writer.checkError()) {
+            if (batch.isResync()) {
+                writer.print("id: " + batch.getCursor() + "\nevent: resync\ndata: {}\n\n");
+            }
+            for (ChangeEvent event : batch.getEvents()) {
+                writer.print("id: " + event.getCursor() + "\nevent: change\ndata: "
+                        + objectMapper.writeValueAsString(event) + "\n\n");
+            }
+            if (batch.getEvents().isEmpty() && !batch.isResync()) {
+                writer.print("id: " + batch.getCursor() + "\n: keep-alive\n\n");
+            }
+            writer.flush();
+            long remaining = TimeUnit.NANOSECONDS.toSeconds(streamEnd - System.nanoTime());
+            if (remaining <= 0) {
+                LOG.debug("ending watch stream of path {} on share {}", path, shareName);
+                return;
+            }
+            batch = shareWatcher.poll(shareName, path, batch.getCursor(), (int) Math.min(timeout, remaining), limit);
         }
-        return resultList;
+        LOG.debug("watch client of path {} on share {} disconnected", path, shareName);
     }
 
     /**
      * Endpoint to download file from given share and path
+     * <p>
+     * Supports conditional requests and single or multiple byte ranges (Range/If-Range headers) to resume interrupted
+     * transfers or fetch parts of file in parallel. ETag and Last-Modified are derived from file change time. Files
+     * found in local file cache are sent from it, zero-copy if servlet container supports sendfile. Content read from
+     * share is transferred on transfer executor, its transfer buffer is reserved from memory budget before share is
+     * borrowed and request is rejected with 503 if budget has no room for it in time. Request is also rejected with 503
+     * if share has no free pooled connection within CIFS_DOWNLOAD_BORROW_WAIT_MILLIS, so servlet container thread waits
+     * only briefly for one.
      *
      * @param shareName share name
      * @param request HttpServletRequest object
      * @param response stream file content
+     * @return file content transfer or null if response is already sent
      * @throws IOException
      */
     @RequestMapping(value = {"/get/{share}/**"}, method = {RequestMethod.GET})
-    public void getFile(
+    public StreamingResponseBody getFile(
             @PathVariable("share") String shareName,
             HttpServletRequest request, HttpServletResponse response) throws IOException {
 
         String pathToFile = getSharePathFromRequestPath(request);
-        LOG.debug("serving request to path {} on share", pathToFile, shareName);
-        Path downloadFile;
-        try ( Session smbSession = cifsClient.getSession();  DiskShare smbShare = (DiskShare) smbSession.connectShare(shareName)) {
-
-            downloadFile = cifsClient.downloadFile(smbShare, pathToFile);
-            LOG.debug("downloaded file {} of size {}", downloadFile.toAbsolutePath(),
-                    FileUtils.byteCountToDisplaySize(
-                            FileUtils.sizeOf(downloadFile.toFile())));
-            try ( InputStream fileIo = Files.newInputStream(downloadFile)) {
-                response.addHeader("Content-disposition", "attachment;filename=" + downloadFile.getFileName());
+        LOG.debug("serving request to path {} on share {}", pathToFile, shareName);
+        int bufferSize = cifsClient.downloadBufferSize();
+        try {
+            memoryBudget.reserve("download", bufferSize);
+        } catch (MemoryBudget.RejectedException exc) {
+            rejectOverBudget(response, exc);
+            return null;
+        }
+        PooledShare pooledShare = null;
+        File sharedFile = null;
+        boolean handedOver = false;
+        try {
+            pooledShare = cifsClient.tryBorrowShare(shareName);
+            if (pooledShare == null) {
+                LOG.debug("rejected download from share {} without free connection", shareName);
+                response.setHeader(HttpHeaders.RETRY_AFTER, RETRY_AFTER_SECONDS);
+                response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+                        String.format("no free connection to share %s", shareName));
+                return null;
+            }
+            sharedFile = cifsClient.openFile(pooledShare.getShare(), pathToFile);
+            FileAllInformation fileInfo = sharedFile.getFileInformation();
+            long fileSize = fileInfo.getStandardInformation().getEndOfFile();
+            FileTime changeTime = fileInfo.getBasicInformation().getChangeTime();
+            String etag = String.format("\"%x-%x\"", changeTime.getWindowsTimeStamp(), fileSize);
+            long lastModified = changeTime.toEpochMillis();
+
+            if (new ServletWebRequest(request, response).checkNotModified(etag, lastModified)) {
+                return null;
+            }
+            response.addHeader("Content-disposition", "attachment;filename=" + FilenameUtils.getName(pathToFile));
+            response.setHeader(HttpHeaders.ACCEPT_RANGES, "bytes");
+
+            PartialContent partial = null;
+            List<HttpRange> ranges = getRequestedRanges(request, etag, lastModified);
+            if (!ranges.isEmpty()) {
+                partial = PartialContent.prepare(fileSize, ranges, response);
+                if (partial == null) {
+                    return null;
+                }
+            } else {
                 response.setContentType("application/octet-stream");
+                response.setContentLengthLong(fileSize);
+            }
+
+            FileContentCache.Entry cached = fileContentCache.get(shareName, pathToFile,
+                    changeTime.getWindowsTimeStamp(), fileSize);
+            if (cached != null) {
+                // sent right away, servlet container can send file with sendfile only before handler returns
+                try {
+                    sendCachedFile(shareName, cached, fileSize, partial, request, response);
+                } finally {
+                    cached.close();
+                }
+                return null;
+            }
+
+            PooledShare borrowed = pooledShare;
+            File opened = sharedFile;
+            PartialContent requested = partial;
+            PendingTransfer transfer = PendingTransfer.register(request, () -> {
+                try {
+                    opened.close();
+                } finally {
+                    borrowed.close();
+                    memoryBudget.release("download", bufferSize);
+                }
+            });
+            handedOver = true;
+            return stream(response, out -> {
+                if (!transfer.claim()) {
+                    return;
+                }
+                try ( PooledShare share = borrowed) {
+                    // reserved above, allocated for this request only so it doesn't outlive it
+                    byte[] buffer = new byte[(int) Math.max(1, Math.min(bufferSize, fileSize))];
+                    long sentBytes;
+                    try ( File file = opened) {
+                        if (requested != null) {
+                            requested.write((offset, length, target) -> cifsClient.transferFile(file, offset, length,
+                                    target, buffer), out);
+                            return;
+                        }
+                        sentBytes = transferFile(shareName, pathToFile, file, changeTime, fileSize, out, buffer);
+                    }
+                    if (sentBytes == fileSize) {
+                        completeBody(response, out);
+                        cifsClient.deleteAfterDownload(shareName, share.getShare(), pathToFile);
+                    } else {
+                        LOG.warn("file {} changed during download, sent {} of {} bytes", pathToFile, sentBytes,
+                                fileSize);
+                    }
+                } finally {
+                    memoryBudget.release("download", bufferSize);
+                }
+            });
+        } catch (FileNotFoundException exc) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND, exc.getMessage());
+            return null;
+        } finally {
+            if (!handedOver) {
+                try {
+                    if (sharedFile != null) {
+                        sharedFile.close();
+                    }
+                } finally {
+                    if (pooledShare != null) {
+                        pooledShare.close();
+                    }
+                    memoryBudget.release("download", bufferSize);
+                }
+            }
+        }
+    }
+
+    /**
+     * Utility function to send whole file from share, filling local file cache on the way
+     *
+     * @return number of sent bytes
+     */
+    private long transferFile(String shareName, String pathToFile, File sharedFile, FileTime changeTime,
+            long fileSize, OutputStream out, byte[] buffer) throws IOException {
+        long sentBytes;
+        try ( FileContentCache.Fill fill = fileContentCache.startFill(shareName, pathToFile,
+                changeTime.getWindowsTimeStamp(), fileSize)) {
+            sentBytes = cifsClient.transferFile(sharedFile, 0, fileSize, fill == null ? out : fill.tee(out), buffer);
+            out.flush();
+            if (fill != null && sentBytes == fileSize) {
+                fill.commit();
+            }
+        }
+        metrics.countBytes("sent", shareName, sentBytes);
+        LOG.debug("sent response with file {} of size {}", pathToFile, FileUtils.byteCountToDisplaySize(sentBytes));
+        return sentBytes;
+    }
+
+    /**
+     * Endpoint to upload file to given share and path
+     * <p>
+     * Request body is streamed to share without buffering, existing file is replaced atomically once whole body is
+     * written. Write buffers are reserved from memory budget first, request is rejected with 503 if budget has no room
+     * for them in time.
+     *
+     * @param shareName share name
+     * @param request HttpServletRequest object with file content as body
+     * @param response uploaded file path and size
+     * @throws IOException if any IO errors occur
+     */
+    @RequestMapping(value = {"/put/{share}/**"}, method = {RequestMethod.PUT})
+    public void putFile(
+            @PathVariable("share") String shareName,
+            HttpServletRequest request, HttpServletResponse response) throws IOException {
+
+        String pathToFile = getSharePathFromRequestPath(request);
+        LOG.debug("receiving upload to path {} on share {}", pathToFile, shareName);
+        long written;
+        long bufferSize = cifsClient.uploadBufferSize();
+        try {
+            memoryBudget.reserve("upload", bufferSize);
+        } catch (MemoryBudget.RejectedException exc) {
+            rejectOverBudget(response, exc);
+            return;
+        }
+        try {
+            written = cifsClient.uploadFile(shareName, pathToFile, request.getInputStream());
+        } catch (IllegalArgumentException exc) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, exc.getMessage());
+            return;
+        } finally {
+            memoryBudget.release("upload", bufferSize);
+        }
+        LOG.debug("stored file {} of size {}", pathToFile, FileUtils.byteCountToDisplaySize(written));
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("path", pathToFile);
+        result.put("size", written);
+        response.setStatus(HttpServletResponse.SC_CREATED);
+        response.setContentType(MediaType.APPLICATION_JSON_UTF8_VALUE);
+        objectMapper.writeValue(response.getOutputStream(), result);
+    }
 
-                IOUtils.copy(fileIo, response.getOutputStream());
+    /**
+     * Endpoint to move batch of files. Within the same share files are renamed, to other shares on the same server
+     * they are copied and deleted
+     *
+     * @param operations list of source, destination and optional destinationShare and overwrite flag
+     * @param shareName share with source files
+     * @return outcome of every move in request order
+     * @throws IOException if share can't be connected
+     */
+    @RequestMapping(value = {"/move/{share}"}, method = {RequestMethod.POST})
+    public List<FileOperationResult> moveFiles(
+            @RequestBody List<FileOperationEntity> operations, @PathVariable("share") String shareName)
+            throws IOException {
+        LOG.debug("moving {} files on share {}", operations.size(), shareName);
+        return cifsClient.transferFiles(shareName, operations, true);
+    }
+
+    /**
+     * Endpoint to copy batch of files, server-side copy is used if file server supports it
+     *
+     * @param operations list of source, destination and optional destinationShare and overwrite flag
+     * @param shareName share with source files
+     * @return outcome of every copy in request order
+     * @throws IOException if share can't be connected
+     */
+    @RequestMapping(value = {"/copy/{share}"}, method = {RequestMethod.POST})
+    public List<FileOperationResult> copyFiles(
+            @RequestBody List<FileOperationEntity> operations, @PathVariable("share") String shareName)
+            throws IOException {
+        LOG.debug("copying {} files on share {}", operations.size(), shareName);
+        return cifsClient.transferFiles(shareName, operations, false);
+    }
+
+    /**
+     * Endpoint to delete batch of files over single session, missing files are reported with exists=false
+     *
+     * @param paths paths to files relative to share root
+     * @param shareName share with files
+     * @param response servlet response
+     * @return outcome of every delete in request order
+     * @throws IOException if share can't be connected
+     */
+    @RequestMapping(value = {"/delete/{share}"}, method = {RequestMethod.POST})
+    public List<FilePathResult> deleteFiles(
+            @RequestBody List<String> paths, @PathVariable("share") String shareName, HttpServletResponse response)
+            throws IOException {
+        LOG.debug("deleting {} files on share {}", paths.size(), shareName);
+        try {
+            return batchFileOperations.delete(shareName, paths);
+        } catch (IllegalArgumentException exc) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, exc.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Endpoint to get metadata of batch of files or directories over single session
+     *
+     * @param paths paths to files or directories relative to share root
+     * @param shareName share with files
+     * @param response servlet response
+     * @return existence, type, size (end of file) and change and last write times of every path in request order
+     * @throws IOException if share can't be connected
+     */
+    @RequestMapping(value = {"/stat/{share}"}, method = {RequestMethod.POST})
+    public List<FilePathResult> statFiles(
+            @RequestBody List<String> paths, @PathVariable("share") String shareName, HttpServletResponse response)
+            throws IOException {
+        LOG.debug("getting metadata of {} files on share {}", paths.size(), shareName);
+        try {
+            return batchFileOperations.stat(shareName, paths);
+        } catch (IllegalArgumentException exc) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, exc.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Endpoint to get content hash of file or of every file in directory.
+     * <p>
+     * Content is hashed while it is streamed from share, hashes are cached by path, end of file size and change time
+     * so unchanged files are not read again. Files of directory are hashed concurrently and written as listing entries
+     * in the same formats as of /list.
+     *
+     * @param shareName name of share
+     * @param algorithm optional digest algorithm, CIFS_HASH_ALGORITHM by default
+     * @param format optional output format for directory, "json", "ndjson" or "sesam"
+     * @param request servlet request object
+     * @param response hash of file or hashes of files in directory
+     * @throws IOException if any IO errors occur
+     */
+    @RequestMapping(value = {"/hash/{share}/**"}, method = {RequestMethod.GET})
+    public void hashContent(
+            @PathVariable("share") String shareName,
+            @RequestParam(name = "algorithm", required = false) String algorithm,
+            @RequestParam(name = "format", required = false) String format,
+            HttpServletRequest request, HttpServletResponse response) throws IOException {
+
+        String path = getSharePathFromRequestPath(request);
+        LOG.debug("hashing content of path {} on share {}", path, shareName);
+        ListingResponseSink sink = null;
+        try {
+            String digestAlgorithm = contentHasher.algorithm(algorithm);
+            FileAllInformation info;
+            try ( PooledShare pooledShare = cifsClient.borrowShare(shareName)) {
+                info = cifsClient.getFileInformation(pooledShare.getShare(), path);
+            }
+            if (info == null) {
+                response.sendError(HttpServletResponse.SC_NOT_FOUND,
+                        String.format("%s doesn't exist on remote share", path));
+                return;
+            }
+            if (!EnumWithValue.EnumUtils.isSet(info.getBasicInformation().getFileAttributes(),
+                    FileAttributes.FILE_ATTRIBUTE_DIRECTORY)) {
+                FileOrDirectoryInfo hashed = contentHasher.hash(shareName, path, digestAlgorithm);
+                response.setContentType(MediaType.APPLICATION_JSON_UTF8_VALUE);
+                objectMapper.writeValue(response.getOutputStream(), hashed);
+                return;
+            }
+            sink = createListingSink(request, response, null, false, format,
+                    "name,size,endOfFile,changeTimeWindowsTs,hash", path, ListingResponseSink.Format.JSON);
+            try ( ContentHasher.HashingSink hashing = contentHasher.hashingSink(sink, shareName, path,
+                    digestAlgorithm, true)) {
+                directoryListing.list(shareName, path, false, 0, null, hashing);
+                hashing.drain();
+            }
+        } catch (FileNotFoundException exc) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND, exc.getMessage());
+            return;
+        } catch (IllegalArgumentException exc) {
+            if (sink == null || !sink.isStarted()) {
+                response.sendError(HttpServletResponse.SC_BAD_REQUEST, exc.getMessage());
+                return;
+            }
+            throw exc;
+        }
+        sink.finish();
+    }
+
+    /**
+     * Endpoint to download many files as single ZIP or TAR archive, entries are named by file path relative to share
+     * root and written in request order
+     *
+     * @param archiveRequest list of paths and/or glob pattern matched under path
+     * @param shareName share with files
+     * @param format archive format, zip (default) or tar
+     * @param response streamed archive
+     * @return archive transfer or null if request is invalid
+     * @throws IOException if glob walk fails
+     */
+    @RequestMapping(value = {"/archive/{share}"}, method = {RequestMethod.POST})
+    public StreamingResponseBody archiveFiles(
+            @RequestBody ArchiveRequestEntity archiveRequest, @PathVariable("share") String shareName,
+            @RequestParam(value = "format", defaultValue = "zip") String format,
+            HttpServletResponse response) throws IOException {
+
+        ShareArchiver.Format archiveFormat;
+        List<String> paths;
+        try {
+            archiveFormat = ShareArchiver.Format.valueOf(format.toUpperCase(Locale.ROOT));
+            paths = shareArchiver.resolvePaths(shareName, archiveRequest);
+        } catch (IllegalArgumentException exc) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, exc.getMessage());
+            return null;
+        }
+        LOG.debug("archiving {} files from share {} as {}", paths.size(), shareName, archiveFormat);
+        response.setContentType(archiveFormat.getContentType());
+        response.addHeader("Content-disposition",
+                "attachment;filename=" + shareName.replace(SmbSessionPool.BACKEND_SEPARATOR, '-') + "."
+                + archiveFormat.getExtension());
+        return stream(response, out -> {
+            OutputStream buffered = new BufferedOutputStream(out);
+            List<String> archived = shareArchiver.archive(shareName, paths, archiveFormat, buffered);
+            completeBody(response, buffered);
+            cifsClient.deleteAfterDownload(shareName, archived);
+        });
+    }
+
+    /**
+     * Utility function to get byte ranges requested by client, Range header is ignored if If-Range validator doesn't
+     * match current file version
+     *
+     * @param request
+     * @param etag current file ETag
+     * @param lastModified current file modification time
+     * @return requested ranges or empty list if whole file must be sent
+     */
+    static List<HttpRange> getRequestedRanges(HttpServletRequest request, String etag, long lastModified) {
+        String rangeHeader = request.getHeader(HttpHeaders.RANGE);
+        if (rangeHeader == null) {
+            return Collections.emptyList();
+        }
+        String ifRange = request.getHeader(HttpHeaders.IF_RANGE);
+        if (ifRange != null && !ifRange.equals(etag)) {
+            long ifRangeDate = -1;
+            try {
+                ifRangeDate = request.getDateHeader(HttpHeaders.IF_RANGE);
+            } catch (IllegalArgumentException exc) {
+                // neither matching ETag nor date
+            }
+            if (ifRangeDate == -1 || lastModified / 1000 != ifRangeDate / 1000) {
+                return Collections.emptyList();
+            }
+        }
+        try {
+            return HttpRange.parseRanges(rangeHeader);
+        } catch (IllegalArgumentException exc) {
+            LOG.debug("ignoring invalid range header {}", rangeHeader);
+            return Collections.emptyList();
+        }
+    }
+
+    /**
+     * Utility function to send whole locally cached file or its requested ranges, lets servlet container send it with
+     * sendfile if supported
+     *
+     * @param shareName share name
+     * @param cached cached file content, pinned for sendfile if it is used
+     * @param fileSize file size
+     * @param partial requested ranges or null if whole file is sent
+     * @param request
+     * @param response
+     * @throws IOException
+     */
+    private void sendCachedFile(String shareName, FileContentCache.Entry cached, long fileSize, PartialContent partial,
+            HttpServletRequest request, HttpServletResponse response) throws IOException {
+        long start = 0;
+        long length = fileSize;
+        if (partial != null) {
+            long[] single = partial.getSingleRange();
+            if (single == null) {
+                partial.write(cached::transfer, response.getOutputStream());
                 response.flushBuffer();
-                LOG.debug("sent response with file {}", downloadFile.getFileName());
-            } catch (java.lang.OutOfMemoryError exc) {
-                long heapSize = Runtime.getRuntime().totalMemory();
-                long heapMaxSize = Runtime.getRuntime().maxMemory();
-                long heapFreeSize = Runtime.getRuntime().freeMemory();
-                LOG.error("Out of memory occured", exc);
-                LOG.warn("current heap size: {}", heapSize);
-                LOG.warn("max heap size: {}", heapMaxSize);
-                LOG.warn("free memory: {}", heapFreeSize);
-            } finally {
-                if (Files.exists(downloadFile)) {
-                    LOG.debug("delete file {}", downloadFile.getFileName());
-                    Files.delete(downloadFile);
+                return;
+            }
+            start = single[0];
+            length = single[1] - single[0] + 1;
+        }
+        if (Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORT_ATTRIBUTE))) {
+            cached.pinForSendfile();
+            request.setAttribute("org.apache.tomcat.sendfile.filename", cached.getPath().toAbsolutePath().toString());
+            request.setAttribute("org.apache.tomcat.sendfile.start", start);
+            request.setAttribute("org.apache.tomcat.sendfile.end", start + length);
+        } else {
+            length = cached.transfer(start, length, response.getOutputStream());
+            response.flushBuffer();
+        }
+        if (partial == null) {
+            metrics.countBytes("sent", shareName, length);
+        }
+        LOG.debug("sent response with cached file {} of size {}", cached.getPath(),
+                FileUtils.byteCountToDisplaySize(length));
+    }
+
+    /**
+     * Utility function to transfer response body on transfer executor, releasing servlet container thread, or right
+     * away if asynchronous execution is disabled
+     *
+     * @param response
+     * @param body response body writer
+     * @return body to be written by Spring MVC or null if it's already written
+     * @throws IOException
+     */
+    private StreamingResponseBody stream(HttpServletResponse response, StreamingResponseBody body)
+            throws IOException {
+        if (config.isAsyncEnabled()) {
+            return body;
+        }
+        OutputStream out = response.getOutputStream();
+        body.writeTo(out);
+        out.flush();
+        return null;
+    }
+
+    /**
+     * Flush and complete response body, finishing compressed stream, so that source files can be deleted only once
+     * whole body reached the client connection
+     *
+     * @throws IOException if body couldn't be completed, source files must be kept then
+     */
+    private static void completeBody(HttpServletResponse response, OutputStream out) throws IOException {
+        out.flush();
+        CompressingResponse compressing = WebUtils.getNativeResponse(response, CompressingResponse.class);
+        if (compressing != null) {
+            compressing.finish();
+        }
+        response.flushBuffer();
+    }
+
+    /**
+     * Reject request which couldn't reserve memory budget in time, client should retry later
+     */
+    private static void rejectOverBudget(HttpServletResponse response, MemoryBudget.RejectedException exc)
+            throws IOException {
+        LOG.debug("rejected request over memory budget: {}", exc.getMessage());
+        response.setHeader(HttpHeaders.RETRY_AFTER, RETRY_AFTER_SECONDS);
+        response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, exc.getMessage());
+    }
+
+    /**
+     * Requested byte ranges of file sent as partial content, multiple ranges are sent as multipart/byteranges
+     */
+    static class PartialContent {
+
+        private final long[][] bounds;
+
+        private final long fileSize;
+
+        private final String boundary;
+
+        private PartialContent(long[][] bounds, long fileSize, String boundary) {
+            this.bounds = bounds;
+            this.fileSize = fileSize;
+            this.boundary = boundary;
+        }
+
+        /**
+         * Set status and headers of partial content response
+         *
+         * @param fileSize file size
+         * @param ranges requested ranges
+         * @param response
+         * @return ranges to send or null if they can't be satisfied and error is already sent
+         * @throws IOException
+         */
+        static PartialContent prepare(long fileSize, List<HttpRange> ranges, HttpServletResponse response)
+                throws IOException {
+            long[][] bounds = new long[ranges.size()][];
+            try {
+                for (int i = 0; i < ranges.size(); i++) {
+                    HttpRange range = ranges.get(i);
+                    bounds[i] = new long[]{range.getRangeStart(fileSize), range.getRangeEnd(fileSize)};
+                    if (bounds[i][0] > bounds[i][1]) {
+                        throw new IllegalArgumentException("range starts past end of file");
+                    }
                 }
+            } catch (IllegalArgumentException exc) {
+                response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes */" + fileSize);
+                response.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+                return null;
             }
+            response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+            if (bounds.length == 1) {
+                long start = bounds[0][0];
+                long end = bounds[0][1];
+                response.setContentType("application/octet-stream");
+                response.setHeader(HttpHeaders.CONTENT_RANGE, String.format("bytes %d-%d/%d", start, end, fileSize));
+                response.setContentLengthLong(end - start + 1);
+                return new PartialContent(bounds, fileSize, null);
+            }
+            String boundary = MimeTypeUtils.generateMultipartBoundaryString();
+            response.setContentType("multipart/byteranges; boundary=" + boundary);
+            return new PartialContent(bounds, fileSize, boundary);
         }
-        if (Files.exists(downloadFile.getParent())
-                && Files.isDirectory(downloadFile.getParent())
-                && downloadFile.getParent().toFile().list().length > 0) {
-            throw new RuntimeException("temporary file storage is not empty after request");
+
+        /**
+         * @return first and last byte of single requested range or null if multiple ranges are requested
+         */
+        long[] getSingleRange() {
+            return boundary == null ? bounds[0] : null;
         }
 
+        void write(RangeSource source, OutputStream out) throws IOException {
+            if (boundary == null) {
+                source.transfer(bounds[0][0], bounds[0][1] - bounds[0][0] + 1, out);
+            } else {
+                for (long[] bound : bounds) {
+                    out.write(String.format("\r\n--%s\r\nContent-Type: application/octet-stream\r\n"
+                            + "Content-Range: bytes %d-%d/%d\r\n\r\n", boundary, bound[0], bound[1], fileSize)
+                            .getBytes(StandardCharsets.US_ASCII));
+                    source.transfer(bound[0], bound[1] - bound[0] + 1, out);
+                }
+                out.write(String.format("\r\n--%s--\r\n", boundary).getBytes(StandardCharsets.US_ASCII));
+            }
+            out.flush();
+        }
+    }
+
+    /**
+     * Source of file data for download responses
+     */
+    interface RangeSource {
+
+        long transfer(long offset, long length, OutputStream out) throws IOException;
     }
 
     /**
      * Endpoint to download XML iDoc's and convert them into JSON and return back as JSON array Uses as a HTTP transform
      * in Sesam appliance
+     * <p>
+     * Files are fetched and converted concurrently, output array keeps request order. Files with "profile" are
+     * converted by named transform profile from CIFS_TRANSFORM_PROFILES.
      *
      * @param fileList list of json entities from sesam
      * @param response streamed json data
      * @param shareName SMB share where iDocs are stored
+     * @return json data transfer
      * @throws IOException
      */
     @RequestMapping(value = {"/loadandtransform/{share}"}, method = {RequestMethod.POST})
-    public void transformXmlToJson(
+    public StreamingResponseBody transformXmlToJson(
             @RequestBody List<SesamFileRequestEntity> fileList,
             HttpServletResponse response, @PathVariable("share") String shareName) throws IOException {
 
+        try {
+            for (SesamFileRequestEntity file : fileList) {
+                transformProfiles.get(file.getProfile());
+            }
+        } catch (IllegalArgumentException exc) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, exc.getMessage());
+            return null;
+        }
         response.setContentType("application/json");
         response.setCharacterEncoding("utf-8");
-        PrintWriter writer = response.getWriter();
-        writer.print('[');
+        return stream(response, out -> {
+            Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+            writer.write('[');
 
-        boolean isFirst = true;
-        try ( Session smbSession = cifsClient.getSession();  DiskShare smbShare = (DiskShare) smbSession.connectShare(shareName)) {
-
-            for (SesamFileRequestEntity sharedFile : fileList) {
-                if (!isFirst) {
-                    writer.print(",");
-                }
-                isFirst = false;
-
-                Path downloadFile = cifsClient.downloadFile(smbShare,
-                        String.format("%s%s", sharedFile.getPath(), sharedFile.getFileName()));
-
-                LOG.debug("downloaded file {} of size {}", downloadFile.toAbsolutePath(),
-                        FileUtils.byteCountToDisplaySize(
-                                FileUtils.sizeOf(downloadFile.toFile())));
-
-                byte[] xmlData;
-                try ( FileInputStream xmlInputStream = new FileInputStream(downloadFile.toFile())) {
-                    xmlData = new byte[(int) downloadFile.toFile().length()];
-                    xmlInputStream.read(xmlData);
-                }
+            List<String> written = xmlTransformPipeline.transform(shareName, fileList, writer);
+            writer.write(']');
+            writer.flush();
+            completeBody(response, out);
+            cifsClient.deleteAfterDownload(shareName, written);
+        });
+    }
 
-                if (Files.exists(downloadFile)) {
-                    LOG.debug("delete file {}", downloadFile.getFileName());
-                    Files.delete(downloadFile);
-                }
+    /**
+     * Endpoint to get cache statistics
+     *
+     * @return hit/miss counters per cache
+     */
+    @RequestMapping(value = {"/cache/stats"}, method = {RequestMethod.GET})
+    public Map<String, Map<String, Long>> getCacheStats() {
+        Map<String, Map<String, Long>> stats = new LinkedHashMap<>();
+        stats.put("listing", listingCache.getStats());
+        stats.put("file", fileContentCache.getStats());
+        stats.put("hash", contentHasher.getStats());
+        return stats;
+    }
 
-                JSONObject xmlJSONObj = XML.toJSONObject(new String(xmlData, "utf-8"));
-                LOG.debug(String.format("parsed JSON content from file %s", downloadFile.getFileName().toString()));
-                xmlJSONObj.append("source_file_name", downloadFile.getFileName().toString());
-                xmlJSONObj.getJSONObject(sharedFile.getXmlRoot()).write(writer);
-            }
-        }
-        writer.print(']');
-        writer.flush();
+    /**
+     * Endpoint to get response compression statistics
+     *
+     * @return number of compressed responses, bytes before and after compression, saved percentage and CPU time
+     */
+    @RequestMapping(value = {"/compression/stats"}, method = {RequestMethod.GET})
+    public Map<String, Long> getCompressionStats() {
+        return compressionFilter.getStats();
     }
 
     /**
@@ -0,0 +1,379 @@
+package io.sesam.cifs.controller;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.Locale;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+import org.springframework.http.HttpHeaders;
+
+/**
+ * Response wrapper deciding whether to gzip body once it grows over threshold.
+ * <p>
+ * Body is held back until threshold is reached, smaller bodies, non-200 responses and already compressed content types
+ * are sent unchanged. Flushes don't flush deflater so frequent flushing by JSON writers doesn't hurt compression.
+ *
+ * @author Timur Samkharadze
+ */
+class CompressingResponse extends HttpServletResponseWrapper {
+
+    private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+    private final CompressionFilter filter;
+
+    private final String uri;
+
+    private final int threshold;
+
+    private final byte[] pending;
+
+    private int pendingLength;
+
+    private long contentLength = -1;
+
+    private Mode mode = Mode.UNDECIDED;
+
+    private GzipStream gzip;
+
+    private ServletOutputStream stream;
+
+    private PrintWriter writer;
+
+    private enum Mode {
+        UNDECIDED, PLAIN, COMPRESSED
+    }
+
+    CompressingResponse(HttpServletResponse response, CompressionFilter filter, String uri, int threshold) {
+        super(response);
+        this.filter = filter;
+        this.uri = uri;
+        this.threshold = Math.max(0, threshold);
+        this.pending = new byte[this.threshold];
+    }
+
+    @Override
+    public void setContentLength(int len) {
+        setContentLengthLong(len);
+    }
+
+    @Override
+    public void setContentLengthLong(long len) {
+        if (mode == Mode.PLAIN) {
+            super.setContentLengthLong(len);
+        } else {
+            contentLength = len;
+        }
+    }
+
+    @Override
+    public void setHeader(String name, String value) {
+        if (HttpHeaders.CONTENT_LENGTH.equalsIgnoreCase(name) && mode != Mode.PLAIN) {
+            contentLength = value == null ? -1 : Long.parseLong(value);
+            return;
+        }
+        super.setHeader(name, value);
+    }
+
+    @Override
+    public ServletOutputStream getOutputStream() throws IOException {
+        if (writer != null) {
+            throw new IllegalStateException("getWriter() has already been called");
+        }
+        if (stream == null) {
+            stream = new Stream();
+        }
+        return stream;
+    }
+
+    @Override
+    public PrintWriter getWriter() throws IOException {
+        if (writer == null) {
+            if (stream != null) {
+                throw new IllegalStateException("getOutputStream() has already been called");
+            }
+            stream = new Stream();
+            writer = new PrintWriter(new OutputStreamWriter(stream, getCharacterEncoding()));
+        }
+        return writer;
+    }
+
+    @Override
+    public void flushBuffer() throws IOException {
+        if (writer != null) {
+            writer.flush();
+        }
+        if (mode == Mode.COMPRESSED) {
+            gzip.flush();
+        } else if (mode == Mode.PLAIN) {
+            super.flushBuffer();
+        }
+    }
+
+    @Override
+    public void sendError(int sc, String msg) throws IOException {
+        mode = Mode.PLAIN;
+        super.sendError(sc, msg);
+    }
+
+    @Override
+    public void sendError(int sc) throws IOException {
+        mode = Mode.PLAIN;
+        super.sendError(sc);
+    }
+
+    @Override
+    public void reset() {
+        super.reset();
+        if (mode != Mode.COMPRESSED) {
+            mode = Mode.UNDECIDED;
+            pendingLength = 0;
+            contentLength = -1;
+        }
+    }
+
+    @Override
+    public void resetBuffer() {
+        super.resetBuffer();
+        if (mode == Mode.UNDECIDED) {
+            pendingLength = 0;
+        }
+    }
+
+    /**
+     * complete response, sends held back body or finishes compressed stream
+     */
+    void finish() throws IOException {
+        if (writer != null) {
+            writer.flush();
+        }
+        if (mode == Mode.UNDECIDED) {
+            if (pendingLength == 0) {
+                // body is sent by container itself (sendfile) or there is none
+                if (contentLength >= 0) {
+                    super.setContentLengthLong(contentLength);
+                }
+                return;
+            }
+            contentLength = pendingLength;
+            startPlain();
+        } else if (mode == Mode.COMPRESSED) {
+            gzip.finish();
+        }
+    }
+
+    /**
+     * release resources of response which failed to complete
+     */
+    void abort() {
+        if (gzip != null) {
+            gzip.abort();
+        }
+    }
+
+    private void write(byte[] b, int off, int len) throws IOException {
+        if (mode == Mode.UNDECIDED) {
+            if (!shouldCompress()) {
+                startPlain();
+            } else if (pendingLength + len <= threshold) {
+                System.arraycopy(b, off, pending, pendingLength, len);
+                pendingLength += len;
+                return;
+            } else {
+                startCompressed();
+            }
+        }
+        if (mode == Mode.COMPRESSED) {
+            gzip.write(b, off, len);
+        } else {
+            getResponse().getOutputStream().write(b, off, len);
+        }
+    }
+
+    private boolean shouldCompress() {
+        if (getStatus() != HttpServletResponse.SC_OK || (contentLength >= 0 && contentLength <= threshold)) {
+            return false;
+        }
+        String contentType = getContentType();
+        if (contentType == null) {
+            return true;
+        }
+        String type = contentType.toLowerCase(Locale.ROOT);
+        return !(type.startsWith("image/") || type.startsWith("video/") || type.startsWith("audio/")
+                || type.contains("zip") || type.contains("compressed"));
+    }
+
+    private void startPlain() throws IOException {
+        mode = Mode.PLAIN;
+        if (contentLength >= 0) {
+            super.setContentLengthLong(contentLength);
+        }
+        if (pendingLength > 0) {
+            getResponse().getOutputStream().write(pending, 0, pendingLength);
+            pendingLength = 0;
+        }
+    }
+
+    private void startCompressed() throws IOException {
+        mode = Mode.COMPRESSED;
+        super.setHeader(HttpHeaders.CONTENT_ENCODING, "gzip");
+        super.addHeader(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+        String etag = getHeader(HttpHeaders.ETAG);
+        if (etag != null && !etag.startsWith("W/")) {
+            super.setHeader(HttpHeaders.ETAG, "W/" + etag);
+        }
+        gzip = new GzipStream(getResponse().getOutputStream());
+        if (pendingLength > 0) {
+            gzip.write(pending, 0, pendingLength);
+            pendingLength = 0;
+        }
+    }
+
+    /**
+     * Servlet stream routing writes through compression decision
+     */
+    private class Stream extends ServletOutputStream {
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            CompressingResponse.this.write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (mode == Mode.COMPRESSED) {
+                gzip.flush();
+            } else if (mode == Mode.PLAIN) {
+                getResponse().getOutputStream().flush();
+            }
+        }
+
+        /**
+         * Readiness of container stream, compressed bytes are written to it as soon as deflater produces them
+         */
+        @Override
+        public boolean isReady() {
+            try {
+                return getResponse().getOutputStream().isReady();
+            } catch (IOException exc) {
+                return false;
+            }
+        }
+
+        @Override
+        public void setWriteListener(WriteListener writeListener) {
+            try {
+                getResponse().getOutputStream().setWriteListener(writeListener);
+            } catch (IOException exc) {
+                throw new IllegalStateException("couldn't get servlet output stream", exc);
+            }
+        }
+    }
+
+    /**
+     * GZIP stream over pooled deflater
+     */
+    private class GzipStream extends DeflaterOutputStream {
+
+        private final CRC32 crc = new CRC32();
+
+        private final CountingStream counter;
+
+        private long bytesIn;
+
+        private long cpuNanos;
+
+        private boolean finished;
+
+        GzipStream(OutputStream out) throws IOException {
+            this(new CountingStream(out));
+        }
+
+        private GzipStream(CountingStream counter) throws IOException {
+            super(counter, filter.borrowDeflater(), 8192);
+            this.counter = counter;
+            counter.write(GZIP_HEADER);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            long start = CompressionFilter.cpuTime();
+            super.write(b, off, len);
+            crc.update(b, off, len);
+            bytesIn += len;
+            cpuNanos += CompressionFilter.cpuTime() - start;
+        }
+
+        @Override
+        public void finish() throws IOException {
+            if (finished) {
+                return;
+            }
+            finished = true;
+            try {
+                long start = CompressionFilter.cpuTime();
+                super.finish();
+                cpuNanos += CompressionFilter.cpuTime() - start;
+                writeInt((int) crc.getValue());
+                writeInt((int) bytesIn);
+                counter.flush();
+                filter.record(uri, bytesIn, counter.count, cpuNanos);
+            } finally {
+                filter.releaseDeflater(def);
+            }
+        }
+
+        void abort() {
+            if (!finished) {
+                finished = true;
+                filter.releaseDeflater(def);
+            }
+        }
+
+        private void writeInt(int value) throws IOException {
+            counter.write(value & 0xff);
+            counter.write((value >> 8) & 0xff);
+            counter.write((value >> 16) & 0xff);
+            counter.write((value >> 24) & 0xff);
+        }
+    }
+
+    private static class CountingStream extends OutputStream {
+
+        private final OutputStream out;
+
+        private long count;
+
+        CountingStream(OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+    }
+}
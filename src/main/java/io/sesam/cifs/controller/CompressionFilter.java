@@ -0,0 +1,190 @@
+package io.sesam.cifs.controller;
+
+import io.sesam.cifs.service.CifsConfig;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+import javax.annotation.PostConstruct;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.apache.commons.io.FilenameUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+import org.springframework.web.util.WebUtils;
+
+/**
+ * Negotiated gzip compression of /get, /list, /changes, /walk and /loadandtransform responses.
+ * <p>
+ * Response is compressed only if client accepts gzip and body grows over CIFS_COMPRESSION_MIN_BYTES. Range requests and
+ * downloads of already compressed file types are sent as is. Deflaters are pooled and reused across requests. Body of
+ * asynchronously transferred response is finished in async dispatch following the transfer.
+ *
+ * @author Timur Samkharadze
+ */
+@Component
+public class CompressionFilter extends OncePerRequestFilter {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CompressionFilter.class);
+
+    private static final String[] COMPRESSED_PATHS = {"/get/", "/list/", "/changes/", "/walk/", "/loadandtransform/"};
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    @Autowired
+    private CifsConfig config;
+
+    private Set<String> skipExtensions;
+
+    private final Deque<Deflater> deflaters = new ConcurrentLinkedDeque<>();
+
+    private final AtomicInteger idleDeflaters = new AtomicInteger();
+
+    private final AtomicLong compressedResponses = new AtomicLong();
+
+    private final AtomicLong bytesIn = new AtomicLong();
+
+    private final AtomicLong bytesOut = new AtomicLong();
+
+    private final AtomicLong cpuNanos = new AtomicLong();
+
+    @PostConstruct
+    public void initFilter() {
+        this.skipExtensions = new HashSet<>(Arrays.asList(
+                config.getCompressionSkipExtensions().toLowerCase(Locale.ROOT).split("\\s*,\\s*")));
+    }
+
+    @Override
+    protected boolean shouldNotFilter(HttpServletRequest request) {
+        if (!config.isCompressionEnabled() || request.getHeader(HttpHeaders.RANGE) != null
+                || !acceptsGzip(request.getHeader(HttpHeaders.ACCEPT_ENCODING))) {
+            return true;
+        }
+        String path = request.getRequestURI().substring(request.getContextPath().length());
+        for (String prefix : COMPRESSED_PATHS) {
+            if (path.startsWith(prefix)) {
+                return prefix.equals("/get/") && skipExtensions.contains(
+                        FilenameUtils.getExtension(path).toLowerCase(Locale.ROOT));
+            }
+        }
+        return true;
+    }
+
+    @Override
+    protected boolean shouldNotFilterAsyncDispatch() {
+        return false;
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain chain)
+            throws ServletException, IOException {
+        // async dispatch gets response wrapped by initial dispatch
+        CompressingResponse compressing = WebUtils.getNativeResponse(response, CompressingResponse.class);
+        boolean asyncDispatch = compressing != null;
+        if (!asyncDispatch) {
+            compressing = new CompressingResponse(response, this, request.getRequestURI(),
+                    config.getCompressionMinBytes());
+        }
+        boolean completed = false;
+        try {
+            chain.doFilter(request, asyncDispatch ? response : compressing);
+            completed = true;
+        } finally {
+            if (!completed) {
+                compressing.abort();
+            }
+        }
+        if (!isAsyncStarted(request)) {
+            compressing.finish();
+        }
+    }
+
+    /**
+     * @return compression statistics, ratio is percentage of original size saved
+     */
+    public Map<String, Long> getStats() {
+        Map<String, Long> stats = new LinkedHashMap<>();
+        long in = bytesIn.get();
+        long out = bytesOut.get();
+        stats.put("responses", compressedResponses.get());
+        stats.put("bytesIn", in);
+        stats.put("bytesOut", out);
+        stats.put("savedPercent", in == 0 ? 0 : Math.round((in - out) * 100.0 / in));
+        stats.put("cpuMillis", cpuNanos.get() / 1000000);
+        return stats;
+    }
+
+    Deflater borrowDeflater() {
+        Deflater deflater = deflaters.pollFirst();
+        if (deflater == null) {
+            return new Deflater(config.getCompressionLevel(), true);
+        }
+        idleDeflaters.decrementAndGet();
+        return deflater;
+    }
+
+    void releaseDeflater(Deflater deflater) {
+        deflater.reset();
+        if (idleDeflaters.incrementAndGet() > Runtime.getRuntime().availableProcessors() * 2) {
+            idleDeflaters.decrementAndGet();
+            deflater.end();
+            return;
+        }
+        deflaters.offerFirst(deflater);
+    }
+
+    static long cpuTime() {
+        return THREADS.isCurrentThreadCpuTimeSupported() ? THREADS.getCurrentThreadCpuTime() : System.nanoTime();
+    }
+
+    void record(String uri, long in, long out, long nanos) {
+        compressedResponses.incrementAndGet();
+        bytesIn.addAndGet(in);
+        bytesOut.addAndGet(out);
+        cpuNanos.addAndGet(nanos);
+        LOG.debug("compressed response of {} from {} to {} bytes ({}%) using {} ms of CPU", uri, in, out,
+                in == 0 ? 0 : Math.round(out * 100.0 / in), nanos / 1000000.0);
+    }
+
+    /**
+     * @return true if Accept-Encoding header allows gzip
+     */
+    private static boolean acceptsGzip(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        for (String coding : acceptEncoding.split(",")) {
+            String[] parts = coding.trim().split("\\s*;\\s*");
+            if (!parts[0].equalsIgnoreCase("gzip") && !parts[0].equals("*")) {
+                continue;
+            }
+            for (int i = 1; i < parts.length; i++) {
+                if (parts[i].startsWith("q=")) {
+                    try {
+                        return Double.parseDouble(parts[i].substring(2)) > 0;
+                    } catch (NumberFormatException exc) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,272 @@
+package io.sesam.cifs.controller;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.sesam.cifs.service.CifsConfig;
+import io.sesam.cifs.service.SmbSessionPool;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.annotation.PostConstruct;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+/**
+ * Admission control of share endpoints.
+ * <p>
+ * Every group of endpoints has its own limit of concurrent requests per backend, requests over it are rejected with
+ * 429 Too Many Requests. Requests transferred asynchronously are rejected with 503 Service Unavailable while more than
+ * CIFS_ASYNC_MAX_QUEUED transfers wait for executor thread or their backend has CIFS_ASYNC_MAX_PER_BACKEND transfers
+ * in flight, so slow file server can't take executor threads of others. Both responses carry Retry-After header.
+ * Permit of asynchronous request is held until its response is completed.
+ *
+ * @author Timur Samkharadze
+ */
+@Component
+@Order(Ordered.HIGHEST_PRECEDENCE + 100)
+public class ConcurrencyLimitFilter extends OncePerRequestFilter {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ConcurrencyLimitFilter.class);
+
+    private static final String RETRY_AFTER_SECONDS = "1";
+
+    @Autowired
+    private CifsConfig config;
+
+    @Autowired
+    private ThreadPoolTaskExecutor transferExecutor;
+
+    @Autowired
+    private MeterRegistry registry;
+
+    @Autowired
+    private SmbSessionPool sessionPool;
+
+    private final Map<String, String> groups = new LinkedHashMap<>();
+
+    private final Map<String, Limit> limits = new HashMap<>();
+
+    @PostConstruct
+    public void initFilter() {
+        groups.put("/get/", "download");
+        groups.put("/archive/", "download");
+        groups.put("/hash/", "download");
+        groups.put("/loadandtransform/", "transform");
+        groups.put("/list/", "listing");
+        groups.put("/changes/", "listing");
+        groups.put("/walk/", "listing");
+        groups.put("/stat/", "listing");
+        groups.put("/put/", "upload");
+        groups.put("/move/", "upload");
+        groups.put("/copy/", "upload");
+        groups.put("/delete/", "upload");
+        groups.put("/watch/", "watch");
+        int backendCount = sessionPool.getBackendNames().size();
+        int maxTransfers = config.getAsyncMaxPerBackend() > 0 ? config.getAsyncMaxPerBackend()
+                : backendCount > 1 ? Math.max(1, config.getAsyncThreads() / backendCount) : 0;
+        for (String backend : sessionPool.getBackendNames()) {
+            Semaphore transfers = config.isAsyncEnabled() && maxTransfers > 0 ? new Semaphore(maxTransfers) : null;
+            addLimit(new Limit("download", backend, config.getMaxConcurrentDownloads(), true, transfers));
+            addLimit(new Limit("transform", backend, config.getMaxConcurrentTransforms(), true, transfers));
+            addLimit(new Limit("listing", backend, config.getMaxConcurrentListings(), false, null));
+            addLimit(new Limit("upload", backend, config.getMaxConcurrentUploads(), false, null));
+            addLimit(new Limit("watch", backend, config.getMaxConcurrentWatches(), false, null));
+        }
+    }
+
+    private void addLimit(Limit limit) {
+        limits.put(limit.name + '/' + limit.backend, limit);
+    }
+
+    @Override
+    protected boolean shouldNotFilter(HttpServletRequest request) {
+        return getLimit(request) == null;
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain chain)
+            throws ServletException, IOException {
+        Limit limit = getLimit(request);
+        if (limit.async && config.isAsyncEnabled()
+                && transferExecutor.getThreadPoolExecutor().getQueue().size() >= config.getAsyncMaxQueued()) {
+            reject(limit, response, HttpStatus.SERVICE_UNAVAILABLE, "too many transfers are waiting for executor");
+            return;
+        }
+        if (limit.permits != null && !limit.permits.tryAcquire()) {
+            reject(limit, response, HttpStatus.TOO_MANY_REQUESTS,
+                    "too many concurrent " + limit.name + " requests");
+            return;
+        }
+        if (limit.transfers != null && !limit.transfers.tryAcquire()) {
+            if (limit.permits != null) {
+                limit.permits.release();
+            }
+            reject(limit, response, HttpStatus.SERVICE_UNAVAILABLE,
+                    "too many transfers from backend " + limit.backend);
+            return;
+        }
+        limit.active.incrementAndGet();
+        boolean released = true;
+        try {
+            chain.doFilter(request, response);
+            if (isAsyncStarted(request)) {
+                request.getAsyncContext().addListener(new ReleasingListener(limit));
+                released = false;
+            }
+        } finally {
+            if (released) {
+                limit.release();
+            }
+        }
+    }
+
+    /**
+     * @return limit of endpoint group and backend of request or null if request isn't limited
+     */
+    private Limit getLimit(HttpServletRequest request) {
+        String path = request.getRequestURI().substring(request.getContextPath().length());
+        for (Map.Entry<String, String> entry : groups.entrySet()) {
+            if (path.startsWith(entry.getKey())) {
+                return limits.get(entry.getValue() + '/' + getBackend(path.substring(entry.getKey().length())));
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param sharePath request path after endpoint, starting with share name qualified by backend if there are
+     * several backends
+     */
+    private String getBackend(String sharePath) {
+        if (!sessionPool.isMultiBackend()) {
+            return sessionPool.getBackendNames().iterator().next();
+        }
+        int separator = sharePath.indexOf(SmbSessionPool.BACKEND_SEPARATOR);
+        return separator < 0 ? null : sharePath.substring(0, separator);
+    }
+
+    private void reject(Limit limit, HttpServletResponse response, HttpStatus status, String message)
+            throws IOException {
+        limit.rejected(status).increment();
+        LOG.debug("rejected {} request with {}: {}", limit.name, status.value(), message);
+        response.setHeader(HttpHeaders.RETRY_AFTER, RETRY_AFTER_SECONDS);
+        response.sendError(status.value(), message);
+    }
+
+    /**
+     * Concurrency limit of group of endpoints on one backend
+     */
+    private class Limit {
+
+        private final String name;
+
+        private final String backend;
+
+        private final Semaphore permits;
+
+        private final boolean async;
+
+        private final Semaphore transfers;
+
+        private final AtomicInteger active = new AtomicInteger();
+
+        private final Map<HttpStatus, Counter> rejections = new LinkedHashMap<>();
+
+        /**
+         * @param transfers asynchronous transfers of backend shared by its asynchronous endpoint groups, null if they
+         * aren't limited
+         */
+        Limit(String name, String backend, int maxConcurrent, boolean async, Semaphore transfers) {
+            this.name = name;
+            this.backend = backend;
+            this.permits = maxConcurrent > 0 ? new Semaphore(maxConcurrent) : null;
+            this.async = async;
+            this.transfers = async ? transfers : null;
+            Gauge.builder("cifs.requests.active", active, AtomicInteger::get)
+                    .description("Requests being served per endpoint group")
+                    .tag("endpoint", name)
+                    .tag("backend", backend)
+                    .register(registry);
+            HttpStatus[] statuses = async
+                    ? new HttpStatus[]{HttpStatus.TOO_MANY_REQUESTS, HttpStatus.SERVICE_UNAVAILABLE}
+                    : new HttpStatus[]{HttpStatus.TOO_MANY_REQUESTS};
+            for (HttpStatus status : statuses) {
+                rejections.put(status, Counter.builder("cifs.requests.rejected")
+                        .description("Requests rejected by admission control")
+                        .tag("endpoint", name)
+                        .tag("backend", backend)
+                        .tag("status", Integer.toString(status.value()))
+                        .register(registry));
+            }
+        }
+
+        Counter rejected(HttpStatus status) {
+            return rejections.get(status);
+        }
+
+        void release() {
+            active.decrementAndGet();
+            if (permits != null) {
+                permits.release();
+            }
+            if (transfers != null) {
+                transfers.release();
+            }
+        }
+    }
+
+    /**
+     * Releases permit of asynchronous request once its response is completed
+     */
+    private static class ReleasingListener implements AsyncListener {
+
+        private final Limit limit;
+
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        ReleasingListener(Limit limit) {
+            this.limit = limit;
+        }
+
+        @Override
+        public void onComplete(AsyncEvent event) {
+            if (released.compareAndSet(false, true)) {
+                limit.release();
+            }
+        }
+
+        @Override
+        public void onTimeout(AsyncEvent event) {
+            // response is completed after timeout is handled
+        }
+
+        @Override
+        public void onError(AsyncEvent event) {
+            // response is completed after error is handled
+        }
+
+        @Override
+        public void onStartAsync(AsyncEvent event) {
+            event.getAsyncContext().addListener(this);
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package io.sesam.cifs.controller;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import io.sesam.cifs.service.DirectoryListing;
+import io.sesam.cifs.service.FileOrDirectoryInfo;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.Locale;
+import java.util.Set;
+import javax.servlet.http.HttpServletResponse;
+import org.springframework.http.MediaType;
+
+/**
+ * Listing sink writing directory entries to response while they are listed.
+ * <p>
+ * Entries are written field by field straight to JSON generator as JSON array, newline delimited JSON or JSON array of
+ * Sesam entities with "_id", "_updated" and "_deleted" properties. Only requested fields are written and formatted.
+ *
+ * @author Timur Samkharadze
+ */
+class ListingResponseSink implements DirectoryListing.ListingSink {
+
+    static final String NDJSON_CONTENT_TYPE = "application/x-ndjson";
+
+    /**
+     * Output format of listing
+     */
+    enum Format {
+        JSON, NDJSON, SESAM;
+
+        /**
+         * @param format requested format or null to choose by Accept header
+         * @param accept Accept header of request
+         * @param defaultFormat format used if none is requested
+         * @return output format
+         */
+        static Format of(String format, String accept, Format defaultFormat) {
+            if (format != null && !format.isEmpty()) {
+                try {
+                    return valueOf(format.toUpperCase(Locale.ROOT));
+                } catch (IllegalArgumentException exc) {
+                    throw new IllegalArgumentException(String.format("unknown format '%s'", format), exc);
+                }
+            }
+            if (accept != null && accept.contains(NDJSON_CONTENT_TYPE)) {
+                return NDJSON;
+            }
+            return defaultFormat;
+        }
+    }
+
+    /**
+     * Fields of directory entry
+     */
+    private enum Field {
+        NAME("name"), IS_DIRECTORY("isDirectory"), SIZE("size"), END_OF_FILE("endOfFile"),
+        CHANGE_TIME_WINDOWS_TS("changeTimeWindowsTs"), CHANGE_TIME_STRING("changeTimeString"), PATH("path"),
+        HASH("hash");
+
+        private final String property;
+
+        Field(String property) {
+            this.property = property;
+        }
+
+        static Set<Field> parse(String fields) {
+            if (fields == null || fields.trim().isEmpty()) {
+                return EnumSet.complementOf(EnumSet.of(HASH));
+            }
+            Set<Field> selected = EnumSet.noneOf(Field.class);
+            for (String name : fields.trim().split("\\s*,\\s*")) {
+                selected.add(Arrays.stream(values())
+                        .filter(field -> field.property.equals(name))
+                        .findFirst()
+                        .orElseThrow(() -> new IllegalArgumentException(String.format("unknown field '%s'", name))));
+            }
+            return selected;
+        }
+    }
+
+    private final HttpServletResponse response;
+
+    private final JsonFactory jsonFactory;
+
+    private final String tokenHeader;
+
+    private final boolean withUpdated;
+
+    private final Format format;
+
+    private final Set<Field> selectedFields;
+
+    private final String idPrefix;
+
+    private JsonGenerator generator;
+
+    /**
+     * @param response servlet response
+     * @param jsonFactory factory of JSON generator
+     * @param tokenHeader name of response header to send listing token in
+     * @param withUpdated if entries should have "_updated" property with their change key
+     * @param format output format
+     * @param fields comma separated names of fields to write, all if null or empty
+     * @param directory path of listed directory in share, used to build "_id" of entries without path
+     * @throws IllegalArgumentException if unknown field is requested
+     */
+    ListingResponseSink(HttpServletResponse response, JsonFactory jsonFactory, String tokenHeader,
+            boolean withUpdated, Format format, String fields, String directory) {
+        this.response = response;
+        this.jsonFactory = jsonFactory;
+        this.tokenHeader = tokenHeader;
+        this.withUpdated = withUpdated || format == Format.SESAM;
+        this.format = format;
+        this.selectedFields = Field.parse(fields);
+        String trimmed = directory == null ? "" : directory.replaceAll("^/+|/+$", "");
+        this.idPrefix = trimmed.isEmpty() ? "" : trimmed + "/";
+    }
+
+    @Override
+    public void start(String token) throws IOException {
+        if (token != null && tokenHeader != null) {
+            response.setHeader(tokenHeader, token);
+        }
+        if (format == Format.NDJSON) {
+            response.setContentType(NDJSON_CONTENT_TYPE);
+            response.setCharacterEncoding("utf-8");
+        } else {
+            response.setContentType(MediaType.APPLICATION_JSON_UTF8_VALUE);
+        }
+        generator = jsonFactory.createGenerator(response.getOutputStream());
+        if (format == Format.NDJSON) {
+            generator.setRootValueSeparator(null);
+        } else {
+            generator.writeStartArray();
+        }
+    }
+
+    @Override
+    public void entry(FileOrDirectoryInfo entry) throws IOException {
+        generator.writeStartObject();
+        if (format == Format.SESAM) {
+            generator.writeStringField("_id", entry.getPath() != null ? entry.getPath() : idPrefix + entry.getName());
+            generator.writeBooleanField("_deleted", false);
+        }
+        for (Field field : selectedFields) {
+            switch (field) {
+                case NAME:
+                    generator.writeStringField(field.property, entry.getName());
+                    break;
+                case IS_DIRECTORY:
+                    generator.writeBooleanField(field.property, entry.isIsDirectory());
+                    break;
+                case SIZE:
+                    generator.writeNumberField(field.property, entry.getSize());
+                    break;
+                case END_OF_FILE:
+                    generator.writeNumberField(field.property, entry.getEndOfFile());
+                    break;
+                case CHANGE_TIME_WINDOWS_TS:
+                    generator.writeNumberField(field.property, entry.getChangeTimeWindowsTs());
+                    break;
+                case CHANGE_TIME_STRING:
+                    generator.writeStringField(field.property, entry.getChangeTimeString());
+                    break;
+                case PATH:
+                    if (entry.getPath() != null) {
+                        generator.writeStringField(field.property, entry.getPath());
+                    }
+                    break;
+                case HASH:
+                    if (entry.getHash() != null) {
+                        generator.writeStringField(field.property, entry.getHash());
+                    } else if (entry.getHashError() != null) {
+                        generator.writeStringField("hashError", entry.getHashError());
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+        if (withUpdated) {
+            generator.writeStringField("_updated", DirectoryListing.changeKey(entry));
+        }
+        generator.writeEndObject();
+        if (format == Format.NDJSON) {
+            generator.writeRaw('\n');
+        }
+    }
+
+    /**
+     * @return true if content hash of entries is requested
+     */
+    boolean isHashRequested() {
+        return selectedFields.contains(Field.HASH);
+    }
+
+    boolean isStarted() {
+        return generator != null;
+    }
+
+    void finish() throws IOException {
+        if (format != Format.NDJSON) {
+            generator.writeEndArray();
+        }
+        generator.close();
+    }
+}
@@ -0,0 +1,72 @@
+package io.sesam.cifs.controller;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.servlet.http.HttpServletRequest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.web.context.request.NativeWebRequest;
+import org.springframework.web.context.request.RequestAttributes;
+
+/**
+ * Resources handed over from servlet container thread to response body transferred on transfer executor.
+ * <p>
+ * Body claims them when it starts and releases them itself. Body which never runs, because asynchronous request timed
+ * out or failed while it waited for executor thread, can't release them, so they are released once request is
+ * completed instead, see {@link AsyncExecutionConfig}.
+ *
+ * @author Timur Samkharadze
+ */
+class PendingTransfer {
+
+    private static final Logger LOG = LoggerFactory.getLogger(PendingTransfer.class);
+
+    private static final String ATTRIBUTE = PendingTransfer.class.getName();
+
+    private final AutoCloseable cleanup;
+
+    private final AtomicBoolean claimed = new AtomicBoolean();
+
+    private PendingTransfer(AutoCloseable cleanup) {
+        this.cleanup = cleanup;
+    }
+
+    /**
+     * @param request request whose response body takes over resources
+     * @param cleanup releases resources if body never claims them
+     * @return pending transfer to be claimed by body
+     */
+    static PendingTransfer register(HttpServletRequest request, AutoCloseable cleanup) {
+        PendingTransfer transfer = new PendingTransfer(cleanup);
+        request.setAttribute(ATTRIBUTE, transfer);
+        return transfer;
+    }
+
+    /**
+     * @return true if body may use resources and must release them, false if they are already released
+     */
+    boolean claim() {
+        return claimed.compareAndSet(false, true);
+    }
+
+    /**
+     * Release resources of completed request unless its body claimed them
+     *
+     * @param request completed request
+     */
+    static void releaseUnclaimed(NativeWebRequest request) {
+        Object attribute = request.getAttribute(ATTRIBUTE, RequestAttributes.SCOPE_REQUEST);
+        if (!(attribute instanceof PendingTransfer)) {
+            return;
+        }
+        PendingTransfer transfer = (PendingTransfer) attribute;
+        if (!transfer.claim()) {
+            return;
+        }
+        LOG.debug("releasing resources of response body which never ran");
+        try {
+            transfer.cleanup.close();
+        } catch (Exception exc) {
+            LOG.warn("couldn't release resources of cancelled transfer", exc);
+        }
+    }
+}
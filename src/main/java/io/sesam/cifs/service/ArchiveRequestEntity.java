@@ -0,0 +1,39 @@
+package io.sesam.cifs.service;
+
+import java.util.List;
+
+/**
+ * POJO representing archive request, files are given either as list of paths or as glob pattern matched under path
+ * @author Timur Samkharadze
+ */
+public class ArchiveRequestEntity {
+
+    private List<String> paths;
+    private String path;
+    private String glob;
+
+    public List<String> getPaths() {
+        return paths;
+    }
+
+    public void setPaths(List<String> paths) {
+        this.paths = paths;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public void setPath(String path) {
+        this.path = path;
+    }
+
+    public String getGlob() {
+        return glob;
+    }
+
+    public void setGlob(String glob) {
+        this.glob = glob;
+    }
+
+}
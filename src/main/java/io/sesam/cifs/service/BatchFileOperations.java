@@ -0,0 +1,165 @@
+package io.sesam.cifs.service;
+
+import com.hierynomus.msfscc.FileAttributes;
+import com.hierynomus.msfscc.fileinformation.FileAllInformation;
+import com.hierynomus.protocol.commons.EnumWithValue;
+import com.hierynomus.smbj.share.DiskShare;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/**
+ * Batch delete and metadata lookup of many files.
+ * <p>
+ * All paths of request are processed over single pooled share, requests to file server are sent concurrently from
+ * shared pool of CIFS_BATCH_PARALLELISM threads. Every request keeps at most CIFS_BATCH_PARALLELISM of its paths
+ * queued or running, so large batch doesn't hold up other requests sharing the pool. Missing files are recognized
+ * from status of the operation itself, so no separate existence check is made. Failure of one path doesn't stop the
+ * batch.
+ *
+ * @author Timur Samkharadze
+ */
+@Component
+public class BatchFileOperations {
+
+    private static final Logger LOG = LoggerFactory.getLogger(BatchFileOperations.class);
+
+    @Autowired
+    private CifsConfig config;
+
+    @Autowired
+    private CifsClient cifsClient;
+
+    @Autowired
+    private ListingCache listingCache;
+
+    private ExecutorService batchPool;
+
+    @PostConstruct
+    public void initBatchPool() {
+        AtomicInteger counter = new AtomicInteger();
+        this.batchPool = Executors.newFixedThreadPool(Math.max(1, config.getBatchParallelism()), runnable -> {
+            Thread thread = new Thread(runnable, "file-batch-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        batchPool.shutdownNow();
+    }
+
+    /**
+     * Delete files, paths which don't exist are reported as successful with exists=false
+     *
+     * @param share name of SMB/CIFS share
+     * @param paths paths to files
+     * @return outcome of every path in request order
+     * @throws IOException if share can't be connected
+     */
+    public List<FilePathResult> delete(String share, List<String> paths) throws IOException {
+        return process(share, paths, (connectedShare, path, result) -> {
+            result.setExists(cifsClient.deleteFile(connectedShare, path));
+            if (result.isExists()) {
+                listingCache.invalidate(share, CifsClient.parentPath(path));
+            }
+        });
+    }
+
+    /**
+     * Get metadata of files or directories, size is end of file position
+     *
+     * @param share name of SMB/CIFS share
+     * @param paths paths to files or directories
+     * @return metadata of every path in request order
+     * @throws IOException if share can't be connected
+     */
+    public List<FilePathResult> stat(String share, List<String> paths) throws IOException {
+        return process(share, paths, (connectedShare, path, result) -> {
+            FileAllInformation info = cifsClient.getFileInformation(connectedShare, path);
+            if (info == null) {
+                return;
+            }
+            result.setExists(true);
+            result.setIsDirectory(EnumWithValue.EnumUtils.isSet(info.getBasicInformation().getFileAttributes(),
+                    FileAttributes.FILE_ATTRIBUTE_DIRECTORY));
+            result.setSize(info.getStandardInformation().getEndOfFile());
+            result.setChangeTimeWindowsTs(info.getBasicInformation().getChangeTime().getWindowsTimeStamp());
+            result.setLastWriteTimeWindowsTs(info.getBasicInformation().getLastWriteTime().getWindowsTimeStamp());
+        });
+    }
+
+    private List<FilePathResult> process(String share, List<String> paths, PathOperation operation)
+            throws IOException {
+        if (paths.size() > config.getBatchMaxPaths()) {
+            throw new IllegalArgumentException(String.format("at most %d paths can be processed at once",
+                    config.getBatchMaxPaths()));
+        }
+        List<FilePathResult> results = new ArrayList<>(paths.size());
+        int window = Math.max(1, config.getBatchParallelism());
+        Deque<Future<?>> pending = new ArrayDeque<>(window);
+        try ( PooledShare pooledShare = cifsClient.borrowShare(share)) {
+            DiskShare connectedShare = pooledShare.getShare();
+            try {
+                for (String path : paths) {
+                    FilePathResult result = new FilePathResult();
+                    result.setPath(path);
+                    results.add(result);
+                    if (pending.size() >= window) {
+                        pending.poll().get();
+                    }
+                    pending.add(batchPool.submit(() -> {
+                        try {
+                            if (path == null || path.isEmpty()) {
+                                throw new IllegalArgumentException("path can't be empty");
+                            }
+                            operation.apply(connectedShare, path, result);
+                            result.setSuccess(true);
+                        } catch (IOException | RuntimeException exc) {
+                            LOG.debug("couldn't process {} on share {}", path, share, exc);
+                            result.setError(exc.getMessage());
+                        }
+                    }));
+                }
+                while (!pending.isEmpty()) {
+                    pending.poll().get();
+                }
+            } finally {
+                // tasks not started yet mustn't use share after it is returned to pool
+                for (Future<?> future : pending) {
+                    future.cancel(true);
+                }
+            }
+        } catch (InterruptedException exc) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("batch operation interrupted");
+        } catch (ExecutionException exc) {
+            throw new IOException(exc.getCause());
+        }
+        return results;
+    }
+
+    /**
+     * Operation on single path filling its result
+     */
+    @FunctionalInterface
+    private interface PathOperation {
+
+        void apply(DiskShare connectedShare, String path, FilePathResult result) throws IOException;
+    }
+}
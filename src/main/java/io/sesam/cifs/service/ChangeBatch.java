@@ -0,0 +1,40 @@
+package io.sesam.cifs.service;
+
+import java.util.List;
+
+/**
+ * POJO with changes of watched directory returned to consumer
+ * @author Timur Samkharadze
+ */
+public class ChangeBatch {
+    private String cursor;
+    
+    private boolean resync;
+    
+    private List<ChangeEvent> events;
+
+    public String getCursor() {
+        return cursor;
+    }
+
+    public void setCursor(String cursor) {
+        this.cursor = cursor;
+    }
+
+    public boolean isResync() {
+        return resync;
+    }
+
+    public void setResync(boolean resync) {
+        this.resync = resync;
+    }
+
+    public List<ChangeEvent> getEvents() {
+        return events;
+    }
+
+    public void setEvents(List<ChangeEvent> events) {
+        this.events = events;
+    }
+    
+}
@@ -0,0 +1,71 @@
+package io.sesam.cifs.service;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+
+/**
+ * POJO describing single change of watched directory
+ * @author Timur Samkharadze
+ */
+public class ChangeEvent {
+    @JsonIgnore
+    private long sequence;
+    
+    private String cursor;
+    
+    private String action;
+    
+    private String name;
+    
+    private String path;
+    
+    private long timestamp;
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public void setSequence(long sequence) {
+        this.sequence = sequence;
+    }
+
+    public String getCursor() {
+        return cursor;
+    }
+
+    public void setCursor(String cursor) {
+        this.cursor = cursor;
+    }
+
+    public String getAction() {
+        return action;
+    }
+
+    public void setAction(String action) {
+        this.action = action;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public void setPath(String path) {
+        this.path = path;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public void setTimestamp(long timestamp) {
+        this.timestamp = timestamp;
+    }
+    
+}
@@ -1,30 +1,57 @@
 package io.sesam.cifs.service;
 
 import com.hierynomus.msdtyp.AccessMask;
+import com.hierynomus.mserref.NtStatus;
 import com.hierynomus.msfscc.FileAttributes;
+import com.hierynomus.msfscc.fileinformation.FileAllInformation;
+import com.hierynomus.msfscc.fileinformation.FileBasicInformation;
 import com.hierynomus.msfscc.fileinformation.FileIdBothDirectoryInformation;
+import com.hierynomus.msfscc.fileinformation.FileStandardInformation;
+import com.hierynomus.mssmb2.SMB2CompletionFilter;
 import com.hierynomus.mssmb2.SMB2CreateDisposition;
+import com.hierynomus.mssmb2.SMB2CreateOptions;
+import com.hierynomus.mssmb2.SMB2Packet;
 import com.hierynomus.mssmb2.SMB2ShareAccess;
+import com.hierynomus.mssmb2.SMBApiException;
+import com.hierynomus.mssmb2.messages.SMB2ChangeNotifyRequest;
+import com.hierynomus.mssmb2.messages.SMB2ChangeNotifyResponse;
+import com.hierynomus.mssmb2.messages.SMB2Echo;
+import com.hierynomus.mssmb2.messages.SMB2WriteRequest;
+import com.hierynomus.mssmb2.messages.SMB2WriteResponse;
 import com.hierynomus.protocol.commons.EnumWithValue;
-import com.hierynomus.smbj.SMBClient;
-import com.hierynomus.smbj.auth.AuthenticationContext;
-import com.hierynomus.smbj.common.SMBRuntimeException;
+import com.hierynomus.protocol.commons.buffer.Buffer;
 import com.hierynomus.smbj.connection.Connection;
+import com.hierynomus.smbj.connection.NegotiatedProtocol;
+import com.hierynomus.smbj.io.ArrayByteChunkProvider;
 import com.hierynomus.smbj.session.Session;
+import com.hierynomus.smbj.share.Directory;
 import com.hierynomus.smbj.share.DiskShare;
 import com.hierynomus.smbj.share.File;
+import com.hierynomus.smbj.share.TreeConnect;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.Paths;
-import java.nio.file.StandardCopyOption;
+import java.nio.file.FileAlreadyExistsException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.EnumSet;
+import java.util.HashMap;
 import java.util.List;
-import javax.annotation.PostConstruct;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 
@@ -35,23 +62,37 @@ import org.springframework.stereotype.Component;
 @Component
 public class CifsClient {
 
-    private AuthenticationContext authCt;
+    private static final Logger LOG = LoggerFactory.getLogger(CifsClient.class);
 
     private static final List<String> FILTER_DIRS = Arrays.asList(new String[]{".", ".."});
 
+    /**
+     * largest read size file servers negotiate, upper bound of transfer buffer when it isn't configured
+     */
+    private static final int MAX_NEGOTIATED_READ_SIZE = 8 * 1024 * 1024;
+
+    private static final Set<SMB2CompletionFilter> WATCH_FILTER = EnumSet.of(
+            SMB2CompletionFilter.FILE_NOTIFY_CHANGE_FILE_NAME,
+            SMB2CompletionFilter.FILE_NOTIFY_CHANGE_DIR_NAME,
+            SMB2CompletionFilter.FILE_NOTIFY_CHANGE_SIZE,
+            SMB2CompletionFilter.FILE_NOTIFY_CHANGE_LAST_WRITE);
+
     @Autowired
     private CifsConfig config;
 
-    public CifsClient() {
-    }
+    @Autowired
+    private SmbSessionPool sessionPool;
+
+    @Autowired
+    private SmbMetrics metrics;
 
-    @PostConstruct
-    public void initClient() {
-        this.authCt = new AuthenticationContext(
-                config.getCifsUsername(),
-                config.getPassword().toCharArray(),
-                config.getDomain()
-        );
+    @Autowired
+    private ListingCache listingCache;
+
+    @Autowired
+    private MemoryBudget memoryBudget;
+
+    public CifsClient() {
     }
 
     /**
@@ -62,94 +103,650 @@ public class CifsClient {
      * @throws IOException if any IO exception occurs
      */
     public List<FileOrDirectoryInfo> listShareContent(String share, String path) throws IOException {
-        List<FileOrDirectoryInfo> result = new ArrayList<>(16);
-        try (SMBClient client = new SMBClient(); Connection conn = client.connect(config.getCifsHostname(), config.getPort());
-                Session session = conn.authenticate(this.authCt);
-                DiskShare connectedShare = (DiskShare) session.connectShare(share)) {
+        return sessionPool.withShare(share, connectedShare -> listShareContent(connectedShare, path));
+    }
 
+    /**
+     *
+     * @param connectedShare connected SMB disk share
+     * @param path path to target folder in given share
+     * @return list with share content information
+     * @throws IOException if any IO exception occurs
+     */
+    public List<FileOrDirectoryInfo> listShareContent(DiskShare connectedShare, String path) throws IOException {
+        return metrics.record("list", connectedShare, () -> {
+            List<FileOrDirectoryInfo> result = new ArrayList<>(16);
             List<FileIdBothDirectoryInformation> list = connectedShare.list(path);
             list.stream().filter((FileIdBothDirectoryInformation sub) -> {
                 return !FILTER_DIRS.contains(sub.getFileName());
             }).forEach((FileIdBothDirectoryInformation sub) -> {
-                FileOrDirectoryInfo currentObj = new FileOrDirectoryInfo();
-                currentObj.setName(sub.getFileName());
-                currentObj.setSize(sub.getAllocationSize());
-                currentObj.setChangeTimeWindowsTs(sub.getChangeTime().getWindowsTimeStamp());
-                currentObj.setChangeTimeString(sub.getChangeTime().toString());
-                if (EnumWithValue.EnumUtils.isSet(sub.getFileAttributes(), FileAttributes.FILE_ATTRIBUTE_DIRECTORY)) {
-                    currentObj.setIsDirectory(true);
-                }
-                result.add(currentObj);
+                result.add(toFileOrDirectoryInfo(sub));
             });
+            return result;
+        });
+    }
 
+    /**
+     * Method to enumerate directory content in chunks without materializing whole listing
+     * <p>
+     * Entries are passed to visitor as they are received from server, enumeration stops when visitor returns false
+     *
+     * @param share name of SMB/CIFS share
+     * @param path path to target folder in given share
+     * @param visitor entry consumer, returns false to stop enumeration
+     * @throws IOException if any IO exception occurs
+     */
+    public void listShareContent(String share, String path, ListingVisitor visitor) throws IOException {
+        try ( PooledShare pooledShare = sessionPool.borrowShare(share)) {
+            listShareContent(pooledShare.getShare(), path, visitor);
         }
-        return result;
     }
 
     /**
-     * Method to obtain authenticated SMB session
+     * Method to enumerate directory content in chunks on connected share
+     *
+     * @param connectedShare connected SMB disk share
+     * @param path path to target folder in given share
+     * @param visitor entry consumer, returns false to stop enumeration
+     * @throws IOException if any IO exception occurs
+     */
+    public void listShareContent(DiskShare connectedShare, String path, ListingVisitor visitor) throws IOException {
+        metrics.record("list", connectedShare, () -> {
+            try ( Directory directory = connectedShare.openDirectory(
+                    path,
+                    EnumSet.of(AccessMask.GENERIC_READ),
+                    null,
+                    SMB2ShareAccess.ALL,
+                    SMB2CreateDisposition.FILE_OPEN,
+                    null)) {
+                for (FileIdBothDirectoryInformation sub : directory) {
+                    if (!FILTER_DIRS.contains(sub.getFileName()) && !visitor.visit(toFileOrDirectoryInfo(sub))) {
+                        break;
+                    }
+                }
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Method to get change time of file or directory itself
      *
-     * @return SMB Session object
+     * @param connectedShare connected SMB disk share
+     * @param path path to file or directory
+     * @return change time as windows timestamp
+     */
+    public long getChangeTime(DiskShare connectedShare, String path) {
+        return connectedShare.getFileInformation(path, FileBasicInformation.class).getChangeTime().getWindowsTimeStamp();
+    }
+
+    /**
+     * Method to open directory handle suitable for change notifications
+     *
+     * @param connectedShare connected SMB disk share
+     * @param path path to directory
+     * @return opened directory, must be closed by caller
+     */
+    public Directory openDirectoryForWatch(DiskShare connectedShare, String path) {
+        return connectedShare.openDirectory(
+                path,
+                EnumSet.of(AccessMask.FILE_LIST_DIRECTORY, AccessMask.FILE_READ_ATTRIBUTES),
+                null,
+                SMB2ShareAccess.ALL,
+                SMB2CreateDisposition.FILE_OPEN,
+                null);
+    }
+
+    /**
+     * Method to wait for changes in directory using SMB2 CHANGE_NOTIFY
+     * <p>
+     * Blocks until server reports changes of directory entries or directory handle is closed. While server stays
+     * silent for longer than transact timeout connection is probed with SMB2 ECHO, connection which doesn't answer it
+     * is closed so that next session borrowed from pool reconnects.
+     *
+     * @param directory directory opened with {@link #openDirectoryForWatch(DiskShare, String)}
+     * @return reported changes, empty if handle was closed, or null if server lost track of changes and directory must
+     * be listed again
+     * @throws IOException if any IO exception occurs
+     */
+    public List<SMB2ChangeNotifyResponse.FileNotifyInfo> waitForChanges(Directory directory) throws IOException {
+        TreeConnect treeConnect = directory.getDiskShare().getTreeConnect();
+        Session session = treeConnect.getSession();
+        NegotiatedProtocol protocol = session.getConnection().getNegotiatedProtocol();
+        SMB2ChangeNotifyRequest request = new SMB2ChangeNotifyRequest(protocol.getDialect(), session.getSessionId(),
+                treeConnect.getTreeId(), directory.getFileId(), WATCH_FILTER, protocol.getMaxTransactSize(), false);
+        Connection connection = session.getConnection();
+        long probeMillis = Math.max(1000L, connection.getConfig().getTransactTimeout());
+        SMB2ChangeNotifyResponse response;
+        try {
+            Future<SMB2ChangeNotifyResponse> future = session.send(request);
+            while (true) {
+                try {
+                    response = future.get(probeMillis, TimeUnit.MILLISECONDS);
+                    break;
+                } catch (TimeoutException exc) {
+                    probeConnection(connection, protocol, probeMillis);
+                }
+            }
+        } catch (InterruptedException exc) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for directory changes");
+        } catch (ExecutionException exc) {
+            throw new IOException("couldn't wait for directory changes", exc.getCause());
+        }
+        long status = response.getHeader().getStatusCode();
+        if (status == NtStatus.STATUS_NOTIFY_ENUM_DIR.getValue()) {
+            return null;
+        }
+        if (status == NtStatus.STATUS_NOTIFY_CLEANUP.getValue()) {
+            return Collections.emptyList();
+        }
+        if (!response.isSuccess()) {
+            throw new SMBApiException(response.getHeader(), "CHANGE_NOTIFY failed for " + directory.getFileName());
+        }
+        return response.getFileNotifyInfoList();
+    }
+
+    /**
+     * Check that connection is still alive by sending SMB2 ECHO, force close it if server doesn't answer in time
+     *
+     * @throws IOException if connection is dead
+     */
+    private void probeConnection(Connection connection, NegotiatedProtocol protocol, long timeoutMillis)
+            throws IOException, InterruptedException {
+        try {
+            Future<SMB2Packet> echo = connection.send(new SMB2Echo(protocol.getDialect()));
+            echo.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException | TimeoutException | IOException exc) {
+            LOG.warn("connection to {} doesn't answer echo, closing it", connection.getRemoteHostname(), exc);
+            try {
+                connection.close(true);
+            } catch (IOException closeExc) {
+                LOG.debug("couldn't close dead connection", closeExc);
+            }
+            throw new IOException("connection lost while waiting for directory changes", exc);
+        }
+    }
+
+    /**
+     * Strip leading and trailing separators from path within share
+     *
+     * @param path path in share
+     * @return path without leading and trailing separators, empty for share root
+     */
+    static String trimSlashes(String path) {
+        int start = 0;
+        int end = path.length();
+        while (start < end && (path.charAt(start) == '/' || path.charAt(start) == '\\')) {
+            start++;
+        }
+        while (end > start && (path.charAt(end - 1) == '/' || path.charAt(end - 1) == '\\')) {
+            end--;
+        }
+        return path.substring(start, end);
+    }
+
+    /**
+     * @param path path in share
+     * @return path of parent directory without leading and trailing separators, empty for share root
+     */
+    static String parentPath(String path) {
+        String trimmed = trimSlashes(path).replace('\\', '/');
+        int separator = trimmed.lastIndexOf('/');
+        return separator < 0 ? "" : trimmed.substring(0, separator);
+    }
+
+    /**
+     * Map SMB directory entry to file info object
+     *
+     * @param sub directory entry
+     * @return file info
+     */
+    static FileOrDirectoryInfo toFileOrDirectoryInfo(FileIdBothDirectoryInformation sub) {
+        FileOrDirectoryInfo currentObj = new FileOrDirectoryInfo();
+        currentObj.setName(sub.getFileName());
+        currentObj.setSize(sub.getAllocationSize());
+        currentObj.setEndOfFile(sub.getEndOfFile());
+        currentObj.setChangeTimeWindowsTs(sub.getChangeTime().getWindowsTimeStamp());
+        if (EnumWithValue.EnumUtils.isSet(sub.getFileAttributes(), FileAttributes.FILE_ATTRIBUTE_DIRECTORY)) {
+            currentObj.setIsDirectory(true);
+        }
+        return currentObj;
+    }
+
+    /**
+     * Method to borrow connected share from session pool, must be closed after use to return it back to pool
+     *
+     * @param share name of SMB/CIFS share
+     * @return pooled connected share
      * @throws IOException if any IOException occurs
      */
-    public Session getSession() throws IOException {
-        return new SMBClient().connect(config.getCifsHostname(), config.getPort()).authenticate(this.authCt);
+    public PooledShare borrowShare(String share) throws IOException {
+        return sessionPool.borrowShare(share);
     }
 
     /**
-     * Method to download file from given share
+     * Method to borrow connected share from session pool waiting for free connection only up to
+     * CIFS_DOWNLOAD_BORROW_WAIT_MILLIS
      *
-     * This method will delete source file after downloading if CIFS_DELETE_FILE_AFTER_DOWNLOAD config var is equal true
+     * @param share name of SMB/CIFS share
+     * @return pooled connected share, must be closed after use, or null if pool has no free connection in time
+     * @throws IOException if any IOException occurs
+     */
+    public PooledShare tryBorrowShare(String share) throws IOException {
+        return sessionPool.tryBorrowShare(share, config.getDownloadBorrowWaitMillis());
+    }
+
+    /**
+     * Method to open file on given share for reading
      *
      * @param connectedShare connected SMB disk share
      * @param path path to file
-     * @return Path object to locally downloaded file
-     * @throws IOException
+     * @return opened SMB file, must be closed by caller
+     * @throws FileNotFoundException if file doesn't exist
+     * @throws IOException if any other IO errors occur
      */
-    public Path downloadFile(DiskShare connectedShare, String path) throws IOException {
-
+    public File openFile(DiskShare connectedShare, String path) throws IOException {
         if (path == null || path.isEmpty()) {
             throw new IllegalArgumentException("path can't be empty");
         }
 
-        if (!connectedShare.fileExists(path)) {
-            throw new IOException(String.format("File %s doesn't exist on remote share", path));
+        try {
+            return metrics.record("open", connectedShare, () -> connectedShare.openFile(
+                    path,
+                    EnumSet.of(AccessMask.GENERIC_READ),
+                    null,
+                    SMB2ShareAccess.ALL,
+                    SMB2CreateDisposition.FILE_OPEN,
+                    null
+            ));
+        } catch (SMBApiException exc) {
+            if (isNotFound(exc)) {
+                throw new FileNotFoundException(String.format("File %s doesn't exist on remote share", path));
+            }
+            throw exc;
         }
+    }
 
-        File sharedFile = connectedShare.openFile(
-                path,
-                EnumSet.of(AccessMask.GENERIC_READ),
-                null,
-                SMB2ShareAccess.ALL,
-                SMB2CreateDisposition.FILE_OPEN,
-                null
-        );
-        Path localPath;
-        try ( InputStream shareFileInputStream = sharedFile.getInputStream()) {
-            String tempDir = System.getProperty("java.io.tmpdir");
-            localPath = Paths.get(tempDir, "java-cifs-service", path);
-            Files.createDirectories(localPath.getParent());
-            Files.copy(shareFileInputStream, localPath, StandardCopyOption.REPLACE_EXISTING);
-            sharedFile.close();
+    /**
+     * Method to get metadata of file or directory
+     *
+     * @param connectedShare connected SMB disk share
+     * @param path path to file or directory
+     * @return file information or null if there is no such file or directory
+     * @throws IOException if any IO errors occur
+     */
+    public FileAllInformation getFileInformation(DiskShare connectedShare, String path) throws IOException {
+        return metrics.record("stat", connectedShare, () -> {
+            try {
+                return connectedShare.getFileInformation(path);
+            } catch (SMBApiException exc) {
+                if (isNotFound(exc)) {
+                    return null;
+                }
+                throw exc;
+            }
+        });
+    }
+
+    /**
+     * @param exc error returned by file server
+     * @return true if error means that file or some directory of its path doesn't exist
+     */
+    public static boolean isNotFound(SMBApiException exc) {
+        return exc.getStatus() == NtStatus.STATUS_OBJECT_NAME_NOT_FOUND
+                || exc.getStatus() == NtStatus.STATUS_OBJECT_PATH_NOT_FOUND;
+    }
+
+    /**
+     * Method to get real size (end of file position) of opened file
+     *
+     * @param sharedFile opened SMB file
+     * @return file size in bytes
+     */
+    public long getFileSize(File sharedFile) {
+        return sharedFile.getFileInformation(FileStandardInformation.class).getEndOfFile();
+    }
+
+    /**
+     * Method to stream part of remote file into given output stream without any intermediate storage
+     * <p>
+     * Transfer buffer sized by read size, but not larger than transferred part, is allocated for this transfer only and
+     * reserved from memory budget while it is in use
+     *
+     * @param sharedFile opened SMB file
+     * @param offset position in file to start reading from
+     * @param length number of bytes to transfer
+     * @param out destination stream
+     * @return number of transferred bytes, less than length if end of file reached
+     * @throws MemoryBudget.RejectedException if memory budget has no room for transfer buffer in time
+     * @throws IOException if any IO errors occur
+     */
+    public long transferFile(File sharedFile, long offset, long length, OutputStream out) throws IOException {
+        int bufferSize = (int) Math.max(1, Math.min(readSize(sharedFile), length));
+        memoryBudget.reserve("transfer", bufferSize);
+        try {
+            return transferFile(sharedFile, offset, length, out, new byte[bufferSize]);
+        } finally {
+            memoryBudget.release("transfer", bufferSize);
+        }
+    }
+
+    /**
+     * Method to stream part of remote file into given output stream through buffer owned, and accounted in memory
+     * budget, by caller
+     * <p>
+     * Reads are done directly at file offsets into given buffer, time spent reading from share and writing to output
+     * stream is recorded separately
+     *
+     * @param sharedFile opened SMB file
+     * @param offset position in file to start reading from
+     * @param length number of bytes to transfer
+     * @param out destination stream
+     * @param buffer transfer buffer, single read is at most its length and read size
+     * @return number of transferred bytes, less than length if end of file reached
+     * @throws IOException if any IO errors occur
+     */
+    public long transferFile(File sharedFile, long offset, long length, OutputStream out, byte[] buffer)
+            throws IOException {
+        return transferFile(SmbMetrics.shareName(sharedFile.getDiskShare()), sharedFile::read, readSize(sharedFile),
+                offset, length, out, buffer);
+    }
+
+    /**
+     * Method to stream part of file read from any positional source into given output stream through buffer owned by
+     * caller, time spent reading and writing is recorded under given share
+     *
+     * @param share share name metrics are recorded under
+     * @param source positional reads of opened file
+     * @param readSize max bytes of single read
+     * @param offset position in file to start reading from
+     * @param length number of bytes to transfer
+     * @param out destination stream
+     * @param buffer transfer buffer, single read is at most its length and read size
+     * @return number of transferred bytes, less than length if end of file reached
+     * @throws IOException if any IO errors occur
+     */
+    public long transferFile(String share, FileSource source, int readSize, long offset, long length,
+            OutputStream out, byte[] buffer) throws IOException {
+        int chunkSize = Math.min(buffer.length, readSize);
+        long position = offset;
+        long remaining = length;
+        long readNanos = 0;
+        long writeNanos = 0;
+        try {
+            while (remaining > 0) {
+                long start = System.nanoTime();
+                int bytesRead = source.read(buffer, position, 0, (int) Math.min(chunkSize, remaining));
+                long read = System.nanoTime();
+                readNanos += read - start;
+                if (bytesRead <= 0) {
+                    break;
+                }
+                out.write(buffer, 0, bytesRead);
+                writeNanos += System.nanoTime() - read;
+                position += bytesRead;
+                remaining -= bytesRead;
+            }
+        } catch (IOException | RuntimeException exc) {
+            metrics.countError("read", share, exc);
+            throw exc;
+        } finally {
+            metrics.recordTime("read", share, readNanos);
+            metrics.recordTime("send", share, writeNanos);
+            metrics.countBytes("read", share, position - offset);
+        }
+        return position - offset;
+    }
+
+    /**
+     * Method to read whole remote file into given array
+     *
+     * @param sharedFile opened SMB file
+     * @param data destination array, its length defines number of bytes to read
+     * @throws IOException if end of file reached before array is filled
+     */
+    public void readFile(File sharedFile, byte[] data) throws IOException {
+        String share = SmbMetrics.shareName(sharedFile.getDiskShare());
+        int readSize = readSize(sharedFile);
+        metrics.record("read", share, () -> {
+            int position = 0;
+            while (position < data.length) {
+                int bytesRead = sharedFile.read(data, position, position, Math.min(readSize, data.length - position));
+                if (bytesRead <= 0) {
+                    throw new IOException(String.format("unexpected end of file %s", sharedFile.getFileName()));
+                }
+                position += bytesRead;
+            }
+            return null;
+        });
+        metrics.countBytes("read", share, data.length);
+    }
+
+    /**
+     * Method to delete source file after it was fully downloaded if CIFS_DELETE_FILE_AFTER_DOWNLOAD config var is
+     * equal true
+     *
+     * @param share name of SMB/CIFS share, its cached listing of file directory is invalidated
+     * @param connectedShare connected SMB disk share
+     * @param path path to file
+     * @throws IOException if file can't be deleted
+     */
+    public void deleteAfterDownload(String share, DiskShare connectedShare, String path) throws IOException {
+        if (config.isShouldDeleteFileAfterDownload() && deleteFile(connectedShare, path)) {
+            listingCache.invalidate(share, parentPath(path));
+        }
+    }
+
+    /**
+     * Delete source files after response containing them was completed if CIFS_DELETE_FILE_AFTER_DOWNLOAD config var is
+     * equal true, share is borrowed only if files are to be deleted
+     *
+     * @param share name of SMB/CIFS share
+     * @param paths paths to files
+     * @throws IOException if any file can't be deleted
+     */
+    public void deleteAfterDownload(String share, List<String> paths) throws IOException {
+        if (config.isShouldDeleteFileAfterDownload() && !paths.isEmpty()) {
+            try ( PooledShare pooledShare = borrowShare(share)) {
+                for (String path : paths) {
+                    deleteAfterDownload(share, pooledShare.getShare(), path);
+                }
+            }
         }
-        if (config.isShouldDeleteFileAfterDownload()) {
-            connectedShare.rm(path);
+    }
+
+    /**
+     * Method to upload stream into file on given share
+     * <p>
+     * Content is written into temporary file next to target which is renamed to target (replacing existing file) only
+     * after all data is written, so readers never see partially written file
+     *
+     * @param share name of SMB/CIFS share
+     * @param path path to target file
+     * @param in content to upload
+     * @return number of written bytes
+     * @throws IOException if any IO errors occur
+     */
+    public long uploadFile(String share, String path, InputStream in) throws IOException {
+        if (path == null || path.isEmpty() || path.endsWith("/")) {
+            throw new IllegalArgumentException("path must point to file");
+        }
+        String tempPath = String.format("%s.%s.part", path, UUID.randomUUID());
+        try ( PooledShare pooledShare = sessionPool.borrowShare(share)) {
+            try ( File tempFile = pooledShare.getShare().openFile(
+                    tempPath,
+                    EnumSet.of(AccessMask.GENERIC_WRITE, AccessMask.DELETE),
+                    null,
+                    EnumSet.noneOf(SMB2ShareAccess.class),
+                    SMB2CreateDisposition.FILE_OVERWRITE_IF,
+                    null)) {
+                boolean renamed = false;
+                try {
+                    long written = writeFile(tempFile, in);
+                    tempFile.rename(path.replace('/', '\\'), true);
+                    renamed = true;
+                    listingCache.invalidate(share, parentPath(path));
+                    return written;
+                } finally {
+                    if (!renamed) {
+                        deleteQuietly(tempFile);
+                    }
+                }
+            }
         }
-        return localPath;
+    }
 
+    /**
+     * Method to write stream into opened file keeping several SMB2 WRITE requests in flight
+     * <p>
+     * Stream is read in chunks of CIFS_WRITE_SIZE bytes (limited by server max write size), up to
+     * CIFS_WRITE_PIPELINE_DEPTH writes are sent before waiting for the oldest one
+     *
+     * @param sharedFile file opened for writing
+     * @param in content to write
+     * @return number of written bytes
+     * @throws IOException if any IO errors occur
+     */
+    public long writeFile(File sharedFile, InputStream in) throws IOException {
+        String share = SmbMetrics.shareName(sharedFile.getDiskShare());
+        long written = metrics.record("write", share, () -> pipelineWrites(sharedFile, in));
+        metrics.countBytes("write", share, written);
+        return written;
+    }
+
+    private long pipelineWrites(File sharedFile, InputStream in) throws IOException {
+        TreeConnect treeConnect = sharedFile.getDiskShare().getTreeConnect();
+        Session session = treeConnect.getSession();
+        NegotiatedProtocol protocol = session.getConnection().getNegotiatedProtocol();
+        long writeTimeout = session.getConnection().getConfig().getWriteTimeout();
+        int writeSize = Math.max(1, Math.min(config.getWriteSize(), protocol.getMaxWriteSize()));
+        int depth = Math.max(1, config.getWritePipelineDepth());
+        Deque<PendingWrite> inFlight = new ArrayDeque<>(depth);
+        long offset = 0;
+        while (true) {
+            byte[] buffer = inFlight.size() < depth
+                    ? new byte[writeSize]
+                    : awaitWrite(sharedFile, inFlight.poll(), writeTimeout);
+            int length = IOUtils.read(in, buffer);
+            if (length == 0) {
+                break;
+            }
+            SMB2WriteRequest request = new SMB2WriteRequest(protocol.getDialect(), sharedFile.getFileId(),
+                    session.getSessionId(), treeConnect.getTreeId(),
+                    new ArrayByteChunkProvider(buffer, 0, length, offset), writeSize);
+            Future<SMB2WriteResponse> future = session.send(request);
+            inFlight.add(new PendingWrite(future, buffer, length));
+            offset += length;
+            if (length < writeSize) {
+                break;
+            }
+        }
+        while (!inFlight.isEmpty()) {
+            awaitWrite(sharedFile, inFlight.poll(), writeTimeout);
+        }
+        return offset;
+    }
+
+    /**
+     * Wait for write response
+     *
+     * @return buffer of completed write for reuse
+     */
+    private static byte[] awaitWrite(File sharedFile, PendingWrite write, long timeoutMillis) throws IOException {
+        SMB2WriteResponse response;
+        try {
+            response = write.future.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException exc) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while writing file");
+        } catch (ExecutionException exc) {
+            throw new IOException(String.format("couldn't write file %s", sharedFile.getFileName()), exc.getCause());
+        } catch (TimeoutException exc) {
+            throw new IOException(String.format("timed out writing file %s", sharedFile.getFileName()), exc);
+        }
+        if (!response.isSuccess()) {
+            throw new SMBApiException(response.getHeader(), "Write failed for " + sharedFile.getFileName());
+        }
+        if (response.getBytesWritten() != write.length) {
+            throw new IOException(String.format("short write to file %s: %d of %d bytes", sharedFile.getFileName(),
+                    response.getBytesWritten(), write.length));
+        }
+        return write.buffer;
+    }
+
+    private static void deleteQuietly(File sharedFile) {
+        try {
+            sharedFile.deleteOnClose();
+        } catch (RuntimeException exc) {
+            LOG.warn("couldn't delete incomplete file {}", sharedFile.getFileName(), exc);
+        }
+    }
+
+    /**
+     * @param sharedFile opened SMB file
+     * @return configured size of single read request or, if not configured, largest size negotiated with server and
+     * allowed by read buffer size of SMB client, which is also size of transfer buffer
+     */
+    public int readSize(File sharedFile) {
+        if (config.getTransferBufferSize() > 0) {
+            return config.getTransferBufferSize();
+        }
+        Connection connection = sharedFile.getDiskShare().getTreeConnect().getSession().getConnection();
+        return Math.max(1, Math.min(Math.min(connection.getNegotiatedProtocol().getMaxReadSize(),
+                connection.getConfig().getReadBufferSize()), MAX_NEGOTIATED_READ_SIZE));
+    }
+
+    /**
+     * @return max bytes of transfer buffer held by single download, known before any file is opened
+     */
+    public int downloadBufferSize() {
+        if (config.getTransferBufferSize() > 0) {
+            return config.getTransferBufferSize();
+        }
+        return config.getSmbReadBufferSize() > 0 ? config.getSmbReadBufferSize() : MAX_NEGOTIATED_READ_SIZE;
+    }
+
+    /**
+     * @return max bytes of write buffers held by single upload
+     */
+    public long uploadBufferSize() {
+        return (long) Math.max(1, config.getWriteSize()) * Math.max(1, config.getWritePipelineDepth());
     }
 
     /**
      * Function to delete file at given path
+     * <p>
+     * File is opened with delete on close option and closed right away, missing file is reported by the open itself
+     * instead of separate existence check. Directories are never deleted, even empty ones.
      *
      * @param connectedShare
      * @param path path to resource on share
-     * @throws IOException if any IOException occurs
+     * @return true if file was deleted, false if it didn't exist
+     * @throws IOException if path is a directory or any other IOException occurs
      */
-    public void deleteFile(DiskShare connectedShare, String path) throws IOException {
-        if (connectedShare.fileExists(path)) {
-            connectedShare.rm(path);
-        }
+    public boolean deleteFile(DiskShare connectedShare, String path) throws IOException {
+        return metrics.record("delete", connectedShare, () -> {
+            try {
+                connectedShare.openFile(
+                        path,
+                        EnumSet.of(AccessMask.DELETE),
+                        null,
+                        SMB2ShareAccess.ALL,
+                        SMB2CreateDisposition.FILE_OPEN,
+                        EnumSet.of(SMB2CreateOptions.FILE_NON_DIRECTORY_FILE, SMB2CreateOptions.FILE_DELETE_ON_CLOSE)
+                ).close();
+                return true;
+            } catch (SMBApiException exc) {
+                if (isNotFound(exc)) {
+                    return false;
+                }
+                if (exc.getStatus() == NtStatus.STATUS_FILE_IS_A_DIRECTORY) {
+                    throw new IOException(String.format("%s is a directory", path), exc);
+                }
+                throw exc;
+            }
+        });
     }
 
     /**
@@ -157,48 +754,217 @@ public class CifsClient {
      * @param connectedShare DiskShare object
      * @param path sorce file path
      * @param newPath destination path
+     * @throws IOException if any IO errors occur
      */
-    public void moveFile(DiskShare connectedShare, String path, String newPath) {
-        if (!connectedShare.fileExists(path)) {
-            throw new SMBRuntimeException(String.format("file %s doesn't exist", path));
-        }
+    public void moveFile(DiskShare connectedShare, String path, String newPath) throws IOException {
+        moveFile(connectedShare, path, connectedShare, newPath, true);
+    }
+
+    /**
+     * Method to move file, within the same share file is renamed, otherwise it is copied and source is deleted
+     * <p>
+     * Copy between shares is written under temporary name and source is deleted before it is renamed to destination, so
+     * failure to delete source leaves existing destination untouched. If source was deleted but rename failed, data is
+     * kept under temporary name which is reported in exception message.
+     *
+     * @param sourceShare share with source file
+     * @param path source file path
+     * @param destinationShare share to move file to, may be the same object as sourceShare
+     * @param newPath destination path
+     * @param overwrite if existing destination file should be replaced
+     * @return how file data was moved
+     * @throws IOException if any IO errors occur
+     */
+    public TransferMethod moveFile(DiskShare sourceShare, String path, DiskShare destinationShare, String newPath,
+            boolean overwrite) throws IOException {
+        return metrics.record("move", sourceShare, () -> move(sourceShare, path, destinationShare, newPath, overwrite));
+    }
 
-        File sourceFile = connectedShare.openFile(
+    private TransferMethod move(DiskShare sourceShare, String path, DiskShare destinationShare, String newPath,
+            boolean overwrite) throws IOException {
+        if (sourceShare != destinationShare) {
+            return copy(sourceShare, path, destinationShare, newPath, overwrite, true);
+        }
+        try ( File sourceFile = sourceShare.openFile(
                 path,
-                EnumSet.of(AccessMask.GENERIC_READ),
+                EnumSet.of(AccessMask.DELETE),
                 null,
                 SMB2ShareAccess.ALL,
                 SMB2CreateDisposition.FILE_OPEN,
-                null
-        );
+                null)) {
+            sourceFile.rename(newPath.replace('/', '\\'), overwrite);
+        }
+        return TransferMethod.RENAME;
+    }
 
-        File destinationFile = connectedShare.openFile(
-                path,
-                EnumSet.of(AccessMask.GENERIC_WRITE),
+    /**
+     * Method to copy file, uses server-side copy (FSCTL_SRV_COPYCHUNK) if server supports it and streams file data
+     * through this service otherwise
+     * <p>
+     * Data is copied into temporary file next to destination which is renamed to destination only after all data is
+     * copied and deleted if copy fails, so failed copy never leaves partial destination file
+     *
+     * @param sourceShare share with source file
+     * @param path source file path
+     * @param destinationShare share to copy file to, must be on the same server
+     * @param newPath destination path
+     * @param overwrite if existing destination file should be replaced
+     * @return how file data was copied
+     * @throws IOException if any IO errors occur
+     */
+    public TransferMethod copyFile(DiskShare sourceShare, String path, DiskShare destinationShare, String newPath,
+            boolean overwrite) throws IOException {
+        return metrics.record("copy", sourceShare,
+                () -> copy(sourceShare, path, destinationShare, newPath, overwrite, false));
+    }
+
+    private TransferMethod copy(DiskShare sourceShare, String path, DiskShare destinationShare, String newPath,
+            boolean overwrite, boolean deleteSource) throws IOException {
+        if (!overwrite && destinationShare.fileExists(newPath)) {
+            throw new FileAlreadyExistsException(newPath);
+        }
+        String tempPath = String.format("%s.%s.part", newPath, UUID.randomUUID());
+        try ( File destinationFile = destinationShare.openFile(
+                tempPath,
+                EnumSet.of(AccessMask.GENERIC_READ, AccessMask.GENERIC_WRITE, AccessMask.DELETE),
                 null,
-                SMB2ShareAccess.ALL,
-                SMB2CreateDisposition.FILE_OVERWRITE_IF,
-                null
-        );
+                EnumSet.noneOf(SMB2ShareAccess.class),
+                SMB2CreateDisposition.FILE_CREATE,
+                null)) {
+            // temporary file is kept once it is renamed or holds the only copy of moved file
+            boolean keep = false;
+            try {
+                TransferMethod method;
+                try ( File sourceFile = openFile(sourceShare, path)) {
+                    method = copyData(sourceFile, path, destinationFile);
+                }
+                if (deleteSource) {
+                    sourceShare.rm(path);
+                    keep = true;
+                }
+                try {
+                    destinationFile.rename(newPath.replace('/', '\\'), overwrite);
+                } catch (RuntimeException exc) {
+                    if (deleteSource) {
+                        throw new IOException(String.format("file %s was moved to %s but couldn't be renamed to %s",
+                                path, tempPath, newPath), exc);
+                    }
+                    throw exc;
+                }
+                keep = true;
+                return method;
+            } finally {
+                if (!keep) {
+                    deleteQuietly(destinationFile);
+                }
+            }
+        }
+    }
 
+    private TransferMethod copyData(File sourceFile, String path, File destinationFile) throws IOException {
         try {
-            copyFile(sourceFile, destinationFile);
-            this.deleteFile(connectedShare, path);
-        } catch (IOException ioExc) {
-            throw new SMBRuntimeException(
-                    String.format("couldn't move file %s to %s due to %s", path, newPath, ioExc.getMessage()), ioExc);
+            sourceFile.remoteCopyTo(destinationFile);
+            return TransferMethod.SERVER_SIDE_COPY;
+        } catch (SMBApiException exc) {
+            LOG.debug("server-side copy of {} failed with {}, streaming it", path, exc.getStatus());
+        } catch (Buffer.BufferException exc) {
+            throw new IOException(String.format("couldn't copy file %s", path), exc);
         }
+        try ( InputStream in = sourceFile.getInputStream()) {
+            writeFile(destinationFile, in);
+        }
+        return TransferMethod.STREAM;
     }
 
-    private void copyFile(File source, File destination) throws IOException {
-        byte[] buffer = new byte[65536];
-        try ( InputStream in = source.getInputStream()) {
-            try ( OutputStream out = destination.getOutputStream()) {
-                int bytesRead;
-                while ((bytesRead = in.read(buffer)) != -1) {
-                    out.write(buffer, 0, bytesRead);
+    /**
+     * Method to copy or move batch of files, failure of one file doesn't stop the batch
+     *
+     * @param share name of SMB/CIFS share with source files
+     * @param operations files to copy or move
+     * @param move true to move files, false to copy
+     * @return outcome of every operation in request order
+     * @throws IOException if share can't be connected
+     */
+    public List<FileOperationResult> transferFiles(String share, List<FileOperationEntity> operations, boolean move)
+            throws IOException {
+        List<FileOperationResult> results = new ArrayList<>(operations.size());
+        Map<String, PooledShare> destinationShares = new HashMap<>();
+        try ( PooledShare sourceShare = sessionPool.borrowShare(share)) {
+            for (FileOperationEntity operation : operations) {
+                FileOperationResult result = new FileOperationResult();
+                result.setSource(operation.getSource());
+                result.setDestination(operation.getDestination());
+                try {
+                    if (operation.getSource() == null || operation.getDestination() == null) {
+                        throw new IllegalArgumentException("source and destination are required");
+                    }
+                    String destinationShareName = operation.getDestinationShare() == null ? null
+                            : SmbSessionPool.siblingShare(share, operation.getDestinationShare());
+                    DiskShare destinationShare = sourceShare.getShare();
+                    if (destinationShareName != null && !destinationShareName.equals(share)) {
+                        PooledShare pooled = destinationShares.get(destinationShareName);
+                        if (pooled == null) {
+                            pooled = sessionPool.borrowShare(destinationShareName);
+                            destinationShares.put(destinationShareName, pooled);
+                        }
+                        destinationShare = pooled.getShare();
+                    }
+                    result.setMethod(move
+                            ? moveFile(sourceShare.getShare(), operation.getSource(), destinationShare,
+                                    operation.getDestination(), operation.isOverwrite())
+                            : copyFile(sourceShare.getShare(), operation.getSource(), destinationShare,
+                                    operation.getDestination(), operation.isOverwrite()));
+                    result.setSuccess(true);
+                    listingCache.invalidate(destinationShareName != null ? destinationShareName : share,
+                            parentPath(operation.getDestination()));
+                    if (move) {
+                        listingCache.invalidate(share, parentPath(operation.getSource()));
+                    }
+                } catch (IOException | RuntimeException exc) {
+                    LOG.debug("couldn't {} {} to {}", move ? "move" : "copy", operation.getSource(),
+                            operation.getDestination(), exc);
+                    result.setError(exc.getMessage());
                 }
+                results.add(result);
             }
+        } finally {
+            for (PooledShare pooled : destinationShares.values()) {
+                pooled.close();
+            }
+        }
+        return results;
+    }
+
+    /**
+     * How file data was copied or moved
+     */
+    public enum TransferMethod {
+        /**
+         * file was renamed in place
+         */
+        RENAME,
+        /**
+         * data was copied by file server itself
+         */
+        SERVER_SIDE_COPY,
+        /**
+         * data was read and written back through this service
+         */
+        STREAM
+    }
+
+    private static class PendingWrite {
+
+        private final Future<SMB2WriteResponse> future;
+
+        private final byte[] buffer;
+
+        private final int length;
+
+        PendingWrite(Future<SMB2WriteResponse> future, byte[] buffer, int length) {
+            this.future = future;
+            this.buffer = buffer;
+            this.length = length;
         }
     }
 }
@@ -1,5 +1,11 @@
 package io.sesam.cifs.service;
 
+import com.hierynomus.mssmb2.SMB2Dialect;
+import com.hierynomus.smbj.SmbConfig;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.stereotype.Component;
@@ -26,7 +32,7 @@ public class CifsConfig {
     /**
      * username for authentication
      */
-    @Value("${CIFS_USERNAME}")
+    @Value("${CIFS_USERNAME:}")
     private String cifsUsername;
     /**
      * password for authentication
@@ -43,6 +49,324 @@ public class CifsConfig {
      */
     @Value("${CIFS_DELETE_FILE_AFTER_DOWNLOAD:false}")
     private boolean shouldDeleteFileAfterDownload;
+    /**
+     * size in bytes of buffer used for single read request when reading files from share, 0 to read in as large
+     * requests as negotiated with server allows (limited by CIFS_SMB_READ_BUFFER_SIZE)
+     */
+    @Value("${CIFS_TRANSFER_BUFFER_SIZE:0}")
+    private int transferBufferSize;
+    /**
+     * max number of directory entries sorted in memory, larger listings are sorted using temporary files
+     */
+    @Value("${CIFS_LIST_SORT_BUFFER_ENTRIES:100000}")
+    private int listSortBufferEntries;
+    /**
+     * if directory listings should be cached
+     */
+    @Value("${CIFS_LIST_CACHE_ENABLED:false}")
+    private boolean listCacheEnabled;
+    /**
+     * time in seconds cached listing is served without checking directory on share
+     */
+    @Value("${CIFS_LIST_CACHE_TTL_SECONDS:5}")
+    private int listCacheTtlSeconds;
+    /**
+     * max age in seconds of cached listing, after that directory is re-listed even if its change time is the same
+     */
+    @Value("${CIFS_LIST_CACHE_MAX_AGE_SECONDS:300}")
+    private int listCacheMaxAgeSeconds;
+    /**
+     * max number of cached directories
+     */
+    @Value("${CIFS_LIST_CACHE_MAX_DIRECTORIES:256}")
+    private int listCacheMaxDirectories;
+    /**
+     * directories with more entries are not cached
+     */
+    @Value("${CIFS_LIST_CACHE_MAX_DIRECTORY_ENTRIES:10000}")
+    private int listCacheMaxDirectoryEntries;
+    /**
+     * number of files fetched concurrently by /loadandtransform
+     */
+    @Value("${CIFS_TRANSFORM_CONCURRENCY:4}")
+    private int transformConcurrency;
+    /**
+     * max total size in bytes of fetched but not yet written files per /loadandtransform request
+     */
+    @Value("${CIFS_TRANSFORM_MAX_INFLIGHT_BYTES:67108864}")
+    private long transformMaxInflightBytes;
+    /**
+     * files larger than this are converted straight from share instead of being fetched into memory ahead
+     */
+    @Value("${CIFS_TRANSFORM_IN_MEMORY_MAX_BYTES:8388608}")
+    private long transformInMemoryMaxBytes;
+    /**
+     * max number of connected shares kept in pool per share (and max concurrent borrowers), should be larger than
+     * CIFS_TRANSFORM_CONCURRENCY
+     */
+    @Value("${CIFS_POOL_MAX_PER_SHARE:8}")
+    private int poolMaxPerShare;
+    /**
+     * idle time in seconds after which pooled share connection will be closed
+     */
+    @Value("${CIFS_POOL_IDLE_TIMEOUT_SECONDS:300}")
+    private int poolIdleTimeoutSeconds;
+    /**
+     * max time in seconds to wait for free pooled share connection
+     */
+    @Value("${CIFS_POOL_BORROW_TIMEOUT_SECONDS:30}")
+    private int poolBorrowTimeoutSeconds;
+    /**
+     * interval in seconds between pool health checks and idle eviction runs
+     */
+    @Value("${CIFS_POOL_EVICTION_INTERVAL_SECONDS:60}")
+    private int poolEvictionIntervalSeconds;
+    /**
+     * number of directories listed concurrently by /walk requests (shared by all requests)
+     */
+    @Value("${CIFS_WALK_PARALLELISM:8}")
+    private int walkParallelism;
+    /**
+     * max number of found but not yet written entries per /walk request
+     */
+    @Value("${CIFS_WALK_QUEUE_SIZE:1024}")
+    private int walkQueueSize;
+    /**
+     * comma separated share/path directories watched from startup, other directories are watched while /watch is requested
+     */
+    @Value("${CIFS_WATCH_PATHS:}")
+    private String watchPaths;
+    /**
+     * max number of change events kept per watched directory
+     */
+    @Value("${CIFS_WATCH_JOURNAL_SIZE:10000}")
+    private int watchJournalSize;
+    /**
+     * time in seconds without /watch requests after which on demand directory watch is stopped
+     */
+    @Value("${CIFS_WATCH_IDLE_TIMEOUT_SECONDS:600}")
+    private int watchIdleTimeoutSeconds;
+    /**
+     * max number of concurrently watched directories
+     */
+    @Value("${CIFS_WATCH_MAX_DIRECTORIES:64}")
+    private int watchMaxDirectories;
+    /**
+     * max time in seconds /watch long-poll request waits for changes, also SSE heartbeat interval
+     */
+    @Value("${CIFS_WATCH_POLL_TIMEOUT_SECONDS:30}")
+    private int watchPollTimeoutSeconds;
+    /**
+     * size in bytes of single write request when uploading files, limited by server max write size
+     */
+    @Value("${CIFS_WRITE_SIZE:1048576}")
+    private int writeSize;
+    /**
+     * max number of write requests in flight per upload
+     */
+    @Value("${CIFS_WRITE_PIPELINE_DEPTH:4}")
+    private int writePipelineDepth;
+    /**
+     * local directory for cache of downloaded file content, cache is disabled if not set
+     */
+    @Value("${CIFS_FILE_CACHE_DIR:}")
+    private String fileCacheDir;
+    /**
+     * max total size in bytes of local file cache
+     */
+    @Value("${CIFS_FILE_CACHE_MAX_BYTES:1073741824}")
+    private long fileCacheMaxBytes;
+    /**
+     * larger files are not cached locally
+     */
+    @Value("${CIFS_FILE_CACHE_MAX_FILE_BYTES:104857600}")
+    private long fileCacheMaxFileBytes;
+    /**
+     * if responses should be gzip compressed for clients accepting it
+     */
+    @Value("${CIFS_COMPRESSION_ENABLED:true}")
+    private boolean compressionEnabled;
+    /**
+     * smaller responses are sent uncompressed
+     */
+    @Value("${CIFS_COMPRESSION_MIN_BYTES:2048}")
+    private int compressionMinBytes;
+    /**
+     * deflate compression level from 1 (fastest) to 9 (smallest)
+     */
+    @Value("${CIFS_COMPRESSION_LEVEL:6}")
+    private int compressionLevel;
+    /**
+     * comma separated extensions of already compressed files downloaded with /get uncompressed
+     */
+    @Value("${CIFS_COMPRESSION_SKIP_EXTENSIONS:zip,gz,tgz,bz2,xz,zst,7z,rar,jar,jpg,jpeg,png,gif,webp,mp3,mp4,mov,avi,pdf,docx,xlsx,pptx}")
+    private String compressionSkipExtensions;
+    /**
+     * number of files fetched concurrently by /archive
+     */
+    @Value("${CIFS_ARCHIVE_CONCURRENCY:4}")
+    private int archiveConcurrency;
+    /**
+     * max size of fetched but not yet written files per /archive request
+     */
+    @Value("${CIFS_ARCHIVE_READ_AHEAD_BYTES:67108864}")
+    private long archiveReadAheadBytes;
+    /**
+     * larger files are streamed from share when their turn comes instead of being fetched ahead
+     */
+    @Value("${CIFS_ARCHIVE_IN_MEMORY_MAX_BYTES:8388608}")
+    private long archiveInMemoryMaxBytes;
+    /**
+     * transfer content of /get, /loadandtransform and /archive responses on transfer executor instead of servlet container threads
+     */
+    @Value("${CIFS_ASYNC_ENABLED:true}")
+    private boolean asyncEnabled;
+    /**
+     * number of transfer executor threads
+     */
+    @Value("${CIFS_ASYNC_THREADS:64}")
+    private int asyncThreads;
+    /**
+     * max number of transfers waiting for executor thread, further requests are rejected with 503
+     */
+    @Value("${CIFS_ASYNC_MAX_QUEUED:256}")
+    private int asyncMaxQueued;
+    /**
+     * max duration of asynchronously transferred response, 0 for no limit
+     */
+    @Value("${CIFS_ASYNC_TIMEOUT_SECONDS:3600}")
+    private int asyncTimeoutSeconds;
+    /**
+     * max number of concurrent /get and /archive requests, 0 for no limit
+     */
+    @Value("${CIFS_MAX_CONCURRENT_DOWNLOADS:64}")
+    private int maxConcurrentDownloads;
+    /**
+     * max number of concurrent /loadandtransform requests, 0 for no limit
+     */
+    @Value("${CIFS_MAX_CONCURRENT_TRANSFORMS:16}")
+    private int maxConcurrentTransforms;
+    /**
+     * max number of concurrent /list, /changes and /walk requests, 0 for no limit
+     */
+    @Value("${CIFS_MAX_CONCURRENT_LISTINGS:64}")
+    private int maxConcurrentListings;
+    /**
+     * max number of concurrent /put, /move and /copy requests, 0 for no limit
+     */
+    @Value("${CIFS_MAX_CONCURRENT_UPLOADS:16}")
+    private int maxConcurrentUploads;
+    /**
+     * comma separated names of file servers configured with CIFS_BACKEND_&lt;NAME&gt;_* variables, addressed by name in
+     * request path
+     */
+    @Value("${CIFS_BACKENDS:}")
+    private String backends;
+    /**
+     * max pooled connections and concurrent operations per file server over all shares, 0 for no limit
+     */
+    @Value("${CIFS_POOL_MAX_TOTAL:0}")
+    private int poolMaxTotal;
+    /**
+     * max time to wait for response of file server to single SMB request
+     */
+    @Value("${CIFS_SMB_TIMEOUT_SECONDS:60}")
+    private int smbTimeoutSeconds;
+    /**
+     * max size in bytes of single SMB read request, 0 for max size negotiated with server
+     */
+    @Value("${CIFS_SMB_READ_BUFFER_SIZE:1048576}")
+    private int smbReadBufferSize;
+    /**
+     * max size in bytes of single SMB write request, 0 for max size negotiated with server
+     */
+    @Value("${CIFS_SMB_WRITE_BUFFER_SIZE:1048576}")
+    private int smbWriteBufferSize;
+    /**
+     * max size in bytes of single SMB transact request such as directory listing, 0 for max size negotiated with server
+     */
+    @Value("${CIFS_SMB_TRANSACT_BUFFER_SIZE:1048576}")
+    private int smbTransactBufferSize;
+    /**
+     * max time socket read from file server blocks, 0 for no limit
+     */
+    @Value("${CIFS_SMB_SO_TIMEOUT_SECONDS:0}")
+    private int smbSoTimeoutSeconds;
+    /**
+     * comma separated SMB dialects offered to file server such as SMB_3_0_2,SMB_2_1, all supported dialects if empty
+     */
+    @Value("${CIFS_SMB_DIALECTS:}")
+    private String smbDialects;
+    /**
+     * if SMB messages must be signed
+     */
+    @Value("${CIFS_SMB_SIGNING_REQUIRED:false}")
+    private boolean smbSigningRequired;
+    /**
+     * size in bytes of socket send and receive buffers of connections to file server, 0 for OS default
+     */
+    @Value("${CIFS_SMB_SOCKET_BUFFER_SIZE:0}")
+    private int smbSocketBufferSize;
+    /**
+     * number of files processed concurrently by /delete and /stat, shared by all requests
+     */
+    @Value("${CIFS_BATCH_PARALLELISM:8}")
+    private int batchParallelism;
+    /**
+     * max number of paths in single /delete or /stat request
+     */
+    @Value("${CIFS_BATCH_MAX_PATHS:10000}")
+    private int batchMaxPaths;
+    /**
+     * default algorithm of content hashes, any MessageDigest algorithm such as SHA-256, SHA-1 or MD5
+     */
+    @Value("${CIFS_HASH_ALGORITHM:SHA-256}")
+    private String hashAlgorithm;
+    /**
+     * number of files hashed concurrently, shared by all requests
+     */
+    @Value("${CIFS_HASH_PARALLELISM:4}")
+    private int hashParallelism;
+    /**
+     * max number of cached content hashes
+     */
+    @Value("${CIFS_HASH_CACHE_MAX_ENTRIES:100000}")
+    private int hashCacheMaxEntries;
+    /**
+     * named XML to JSON transform profiles as JSON object of profile name to profile definition
+     */
+    @Value("${CIFS_TRANSFORM_PROFILES:}")
+    private String transformProfiles;
+    /**
+     * max heap bytes reserved by file content buffers of all requests, half of max heap if 0
+     */
+    @Value("${CIFS_MEMORY_BUDGET_BYTES:0}")
+    private long memoryBudgetBytes;
+    /**
+     * max time download or upload waits for memory budget before it is rejected with 503
+     */
+    @Value("${CIFS_MEMORY_BUDGET_WAIT_SECONDS:10}")
+    private int memoryBudgetWaitSeconds;
+    /**
+     * max number of concurrent /watch requests, each holds servlet thread while waiting for changes
+     */
+    @Value("${CIFS_MAX_CONCURRENT_WATCHES:32}")
+    private int maxConcurrentWatches;
+    /**
+     * max duration of /watch event stream, client reconnects with Last-Event-ID after it ends
+     */
+    @Value("${CIFS_WATCH_STREAM_MAX_SECONDS:600}")
+    private int watchStreamMaxSeconds;
+    /**
+     * max number of asynchronous transfers per backend, 0 for async threads divided among backends (no limit with single backend)
+     */
+    @Value("${CIFS_ASYNC_MAX_PER_BACKEND:0}")
+    private int asyncMaxPerBackend;
+    /**
+     * max time in milliseconds /get waits for free pooled connection before it is rejected with 503, kept short because servlet container thread waits
+     */
+    @Value("${CIFS_DOWNLOAD_BORROW_WAIT_MILLIS:2000}")
+    private int downloadBorrowWaitMillis;
 
     public String getCifsHostname() {
         return cifsHostname;
@@ -92,6 +416,543 @@ public class CifsConfig {
         this.domain = domain;
     }
 
+    public int getTransferBufferSize() {
+        return transferBufferSize;
+    }
+
+    public void setTransferBufferSize(int transferBufferSize) {
+        this.transferBufferSize = transferBufferSize;
+    }
+
+    public int getListSortBufferEntries() {
+        return listSortBufferEntries;
+    }
+
+    public void setListSortBufferEntries(int listSortBufferEntries) {
+        this.listSortBufferEntries = listSortBufferEntries;
+    }
+
+    public boolean isListCacheEnabled() {
+        return listCacheEnabled;
+    }
+
+    public void setListCacheEnabled(boolean listCacheEnabled) {
+        this.listCacheEnabled = listCacheEnabled;
+    }
+
+    public int getListCacheTtlSeconds() {
+        return listCacheTtlSeconds;
+    }
+
+    public void setListCacheTtlSeconds(int listCacheTtlSeconds) {
+        this.listCacheTtlSeconds = listCacheTtlSeconds;
+    }
+
+    public int getListCacheMaxAgeSeconds() {
+        return listCacheMaxAgeSeconds;
+    }
+
+    public void setListCacheMaxAgeSeconds(int listCacheMaxAgeSeconds) {
+        this.listCacheMaxAgeSeconds = listCacheMaxAgeSeconds;
+    }
+
+    public int getListCacheMaxDirectories() {
+        return listCacheMaxDirectories;
+    }
+
+    public void setListCacheMaxDirectories(int listCacheMaxDirectories) {
+        this.listCacheMaxDirectories = listCacheMaxDirectories;
+    }
+
+    public int getListCacheMaxDirectoryEntries() {
+        return listCacheMaxDirectoryEntries;
+    }
+
+    public void setListCacheMaxDirectoryEntries(int listCacheMaxDirectoryEntries) {
+        this.listCacheMaxDirectoryEntries = listCacheMaxDirectoryEntries;
+    }
+
+    public int getTransformConcurrency() {
+        return transformConcurrency;
+    }
+
+    public void setTransformConcurrency(int transformConcurrency) {
+        this.transformConcurrency = transformConcurrency;
+    }
+
+    public long getTransformMaxInflightBytes() {
+        return transformMaxInflightBytes;
+    }
+
+    public void setTransformMaxInflightBytes(long transformMaxInflightBytes) {
+        this.transformMaxInflightBytes = transformMaxInflightBytes;
+    }
+
+    public long getTransformInMemoryMaxBytes() {
+        return transformInMemoryMaxBytes;
+    }
+
+    public void setTransformInMemoryMaxBytes(long transformInMemoryMaxBytes) {
+        this.transformInMemoryMaxBytes = transformInMemoryMaxBytes;
+    }
+
+    public int getPoolMaxPerShare() {
+        return poolMaxPerShare;
+    }
+
+    public void setPoolMaxPerShare(int poolMaxPerShare) {
+        this.poolMaxPerShare = poolMaxPerShare;
+    }
+
+    public int getPoolIdleTimeoutSeconds() {
+        return poolIdleTimeoutSeconds;
+    }
+
+    public void setPoolIdleTimeoutSeconds(int poolIdleTimeoutSeconds) {
+        this.poolIdleTimeoutSeconds = poolIdleTimeoutSeconds;
+    }
+
+    public int getPoolBorrowTimeoutSeconds() {
+        return poolBorrowTimeoutSeconds;
+    }
+
+    public void setPoolBorrowTimeoutSeconds(int poolBorrowTimeoutSeconds) {
+        this.poolBorrowTimeoutSeconds = poolBorrowTimeoutSeconds;
+    }
+
+    public int getPoolEvictionIntervalSeconds() {
+        return poolEvictionIntervalSeconds;
+    }
+
+    public void setPoolEvictionIntervalSeconds(int poolEvictionIntervalSeconds) {
+        this.poolEvictionIntervalSeconds = poolEvictionIntervalSeconds;
+    }
+
+    public int getWalkParallelism() {
+        return walkParallelism;
+    }
+
+    public void setWalkParallelism(int walkParallelism) {
+        this.walkParallelism = walkParallelism;
+    }
+
+    public int getWalkQueueSize() {
+        return walkQueueSize;
+    }
+
+    public void setWalkQueueSize(int walkQueueSize) {
+        this.walkQueueSize = walkQueueSize;
+    }
+
+    public String getWatchPaths() {
+        return watchPaths;
+    }
+
+    public void setWatchPaths(String watchPaths) {
+        this.watchPaths = watchPaths;
+    }
+
+    public int getWatchJournalSize() {
+        return watchJournalSize;
+    }
+
+    public void setWatchJournalSize(int watchJournalSize) {
+        this.watchJournalSize = watchJournalSize;
+    }
+
+    public int getWatchIdleTimeoutSeconds() {
+        return watchIdleTimeoutSeconds;
+    }
+
+    public void setWatchIdleTimeoutSeconds(int watchIdleTimeoutSeconds) {
+        this.watchIdleTimeoutSeconds = watchIdleTimeoutSeconds;
+    }
+
+    public int getWatchMaxDirectories() {
+        return watchMaxDirectories;
+    }
+
+    public void setWatchMaxDirectories(int watchMaxDirectories) {
+        this.watchMaxDirectories = watchMaxDirectories;
+    }
+
+    public int getWatchPollTimeoutSeconds() {
+        return watchPollTimeoutSeconds;
+    }
+
+    public void setWatchPollTimeoutSeconds(int watchPollTimeoutSeconds) {
+        this.watchPollTimeoutSeconds = watchPollTimeoutSeconds;
+    }
+
+    public int getWriteSize() {
+        return writeSize;
+    }
+
+    public void setWriteSize(int writeSize) {
+        this.writeSize = writeSize;
+    }
+
+    public int getWritePipelineDepth() {
+        return writePipelineDepth;
+    }
+
+    public void setWritePipelineDepth(int writePipelineDepth) {
+        this.writePipelineDepth = writePipelineDepth;
+    }
+
+    public String getFileCacheDir() {
+        return fileCacheDir;
+    }
+
+    public void setFileCacheDir(String fileCacheDir) {
+        this.fileCacheDir = fileCacheDir;
+    }
+
+    public long getFileCacheMaxBytes() {
+        return fileCacheMaxBytes;
+    }
+
+    public void setFileCacheMaxBytes(long fileCacheMaxBytes) {
+        this.fileCacheMaxBytes = fileCacheMaxBytes;
+    }
+
+    public long getFileCacheMaxFileBytes() {
+        return fileCacheMaxFileBytes;
+    }
+
+    public void setFileCacheMaxFileBytes(long fileCacheMaxFileBytes) {
+        this.fileCacheMaxFileBytes = fileCacheMaxFileBytes;
+    }
+
+    public boolean isCompressionEnabled() {
+        return compressionEnabled;
+    }
+
+    public void setCompressionEnabled(boolean compressionEnabled) {
+        this.compressionEnabled = compressionEnabled;
+    }
+
+    public int getCompressionMinBytes() {
+        return compressionMinBytes;
+    }
+
+    public void setCompressionMinBytes(int compressionMinBytes) {
+        this.compressionMinBytes = compressionMinBytes;
+    }
+
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    public void setCompressionLevel(int compressionLevel) {
+        this.compressionLevel = compressionLevel;
+    }
+
+    public String getCompressionSkipExtensions() {
+        return compressionSkipExtensions;
+    }
+
+    public void setCompressionSkipExtensions(String compressionSkipExtensions) {
+        this.compressionSkipExtensions = compressionSkipExtensions;
+    }
+
+    public int getArchiveConcurrency() {
+        return archiveConcurrency;
+    }
+
+    public void setArchiveConcurrency(int archiveConcurrency) {
+        this.archiveConcurrency = archiveConcurrency;
+    }
+
+    public long getArchiveReadAheadBytes() {
+        return archiveReadAheadBytes;
+    }
+
+    public void setArchiveReadAheadBytes(long archiveReadAheadBytes) {
+        this.archiveReadAheadBytes = archiveReadAheadBytes;
+    }
+
+    public long getArchiveInMemoryMaxBytes() {
+        return archiveInMemoryMaxBytes;
+    }
+
+    public void setArchiveInMemoryMaxBytes(long archiveInMemoryMaxBytes) {
+        this.archiveInMemoryMaxBytes = archiveInMemoryMaxBytes;
+    }
+
+    public boolean isAsyncEnabled() {
+        return asyncEnabled;
+    }
+
+    public void setAsyncEnabled(boolean asyncEnabled) {
+        this.asyncEnabled = asyncEnabled;
+    }
+
+    public int getAsyncThreads() {
+        return asyncThreads;
+    }
+
+    public void setAsyncThreads(int asyncThreads) {
+        this.asyncThreads = asyncThreads;
+    }
+
+    public int getAsyncMaxQueued() {
+        return asyncMaxQueued;
+    }
+
+    public void setAsyncMaxQueued(int asyncMaxQueued) {
+        this.asyncMaxQueued = asyncMaxQueued;
+    }
+
+    public int getAsyncTimeoutSeconds() {
+        return asyncTimeoutSeconds;
+    }
+
+    public void setAsyncTimeoutSeconds(int asyncTimeoutSeconds) {
+        this.asyncTimeoutSeconds = asyncTimeoutSeconds;
+    }
+
+    public int getMaxConcurrentDownloads() {
+        return maxConcurrentDownloads;
+    }
+
+    public void setMaxConcurrentDownloads(int maxConcurrentDownloads) {
+        this.maxConcurrentDownloads = maxConcurrentDownloads;
+    }
+
+    public int getMaxConcurrentTransforms() {
+        return maxConcurrentTransforms;
+    }
+
+    public void setMaxConcurrentTransforms(int maxConcurrentTransforms) {
+        this.maxConcurrentTransforms = maxConcurrentTransforms;
+    }
+
+    public int getMaxConcurrentListings() {
+        return maxConcurrentListings;
+    }
+
+    public void setMaxConcurrentListings(int maxConcurrentListings) {
+        this.maxConcurrentListings = maxConcurrentListings;
+    }
+
+    public int getMaxConcurrentUploads() {
+        return maxConcurrentUploads;
+    }
+
+    public void setMaxConcurrentUploads(int maxConcurrentUploads) {
+        this.maxConcurrentUploads = maxConcurrentUploads;
+    }
+
+    public String getBackends() {
+        return backends;
+    }
+
+    public void setBackends(String backends) {
+        this.backends = backends;
+    }
+
+    public int getPoolMaxTotal() {
+        return poolMaxTotal;
+    }
+
+    public void setPoolMaxTotal(int poolMaxTotal) {
+        this.poolMaxTotal = poolMaxTotal;
+    }
+
+    public int getSmbTimeoutSeconds() {
+        return smbTimeoutSeconds;
+    }
+
+    public void setSmbTimeoutSeconds(int smbTimeoutSeconds) {
+        this.smbTimeoutSeconds = smbTimeoutSeconds;
+    }
+
+    public int getSmbReadBufferSize() {
+        return smbReadBufferSize;
+    }
+
+    public void setSmbReadBufferSize(int smbReadBufferSize) {
+        this.smbReadBufferSize = smbReadBufferSize;
+    }
+
+    public int getSmbWriteBufferSize() {
+        return smbWriteBufferSize;
+    }
+
+    public void setSmbWriteBufferSize(int smbWriteBufferSize) {
+        this.smbWriteBufferSize = smbWriteBufferSize;
+    }
+
+    public int getSmbTransactBufferSize() {
+        return smbTransactBufferSize;
+    }
+
+    public void setSmbTransactBufferSize(int smbTransactBufferSize) {
+        this.smbTransactBufferSize = smbTransactBufferSize;
+    }
+
+    public int getSmbSoTimeoutSeconds() {
+        return smbSoTimeoutSeconds;
+    }
+
+    public void setSmbSoTimeoutSeconds(int smbSoTimeoutSeconds) {
+        this.smbSoTimeoutSeconds = smbSoTimeoutSeconds;
+    }
+
+    public String getSmbDialects() {
+        return smbDialects;
+    }
+
+    public void setSmbDialects(String smbDialects) {
+        this.smbDialects = smbDialects;
+    }
+
+    public boolean isSmbSigningRequired() {
+        return smbSigningRequired;
+    }
+
+    public void setSmbSigningRequired(boolean smbSigningRequired) {
+        this.smbSigningRequired = smbSigningRequired;
+    }
+
+    public int getSmbSocketBufferSize() {
+        return smbSocketBufferSize;
+    }
+
+    public void setSmbSocketBufferSize(int smbSocketBufferSize) {
+        this.smbSocketBufferSize = smbSocketBufferSize;
+    }
+
+    /**
+     * Create SMB client configuration from transport settings
+     *
+     * @param timeoutSeconds max time to wait for connection and response to single SMB request
+     * @return builder which can be further customized
+     */
+    public SmbConfig.Builder smbConfigBuilder(int timeoutSeconds) {
+        long timeoutMillis = TimeUnit.SECONDS.toMillis(Math.max(1, timeoutSeconds));
+        SmbConfig.Builder builder = SmbConfig.builder()
+                .withReadBufferSize(negotiable(smbReadBufferSize))
+                .withWriteBufferSize(negotiable(smbWriteBufferSize))
+                .withTransactBufferSize(negotiable(smbTransactBufferSize))
+                .withTimeout(timeoutMillis, TimeUnit.MILLISECONDS)
+                .withSoTimeout(Math.max(0, smbSoTimeoutSeconds), TimeUnit.SECONDS)
+                .withSigningRequired(smbSigningRequired)
+                .withSocketFactory(new TunedSocketFactory(smbSocketBufferSize, (int) timeoutMillis));
+        if (smbDialects != null && !smbDialects.trim().isEmpty()) {
+            List<SMB2Dialect> dialects = new ArrayList<>();
+            for (String dialect : smbDialects.trim().split("\\s*,\\s*")) {
+                dialects.add(SMB2Dialect.valueOf(dialect.toUpperCase(Locale.ROOT)));
+            }
+            builder.withDialects(dialects);
+        }
+        return builder;
+    }
+
+    /**
+     * @return given buffer size or max int so that size negotiated with server applies if it's 0
+     */
+    private static int negotiable(int bufferSize) {
+        return bufferSize > 0 ? bufferSize : Integer.MAX_VALUE;
+    }
+
+    public int getBatchParallelism() {
+        return batchParallelism;
+    }
+
+    public void setBatchParallelism(int batchParallelism) {
+        this.batchParallelism = batchParallelism;
+    }
+
+    public int getBatchMaxPaths() {
+        return batchMaxPaths;
+    }
+
+    public void setBatchMaxPaths(int batchMaxPaths) {
+        this.batchMaxPaths = batchMaxPaths;
+    }
+
+    public String getHashAlgorithm() {
+        return hashAlgorithm;
+    }
+
+    public void setHashAlgorithm(String hashAlgorithm) {
+        this.hashAlgorithm = hashAlgorithm;
+    }
+
+    public int getHashParallelism() {
+        return hashParallelism;
+    }
+
+    public void setHashParallelism(int hashParallelism) {
+        this.hashParallelism = hashParallelism;
+    }
+
+    public int getHashCacheMaxEntries() {
+        return hashCacheMaxEntries;
+    }
+
+    public void setHashCacheMaxEntries(int hashCacheMaxEntries) {
+        this.hashCacheMaxEntries = hashCacheMaxEntries;
+    }
+
+    public String getTransformProfiles() {
+        return transformProfiles;
+    }
+
+    public void setTransformProfiles(String transformProfiles) {
+        this.transformProfiles = transformProfiles;
+    }
+
+    public long getMemoryBudgetBytes() {
+        return memoryBudgetBytes;
+    }
+
+    public void setMemoryBudgetBytes(long memoryBudgetBytes) {
+        this.memoryBudgetBytes = memoryBudgetBytes;
+    }
+
+    public int getMemoryBudgetWaitSeconds() {
+        return memoryBudgetWaitSeconds;
+    }
+
+    public void setMemoryBudgetWaitSeconds(int memoryBudgetWaitSeconds) {
+        this.memoryBudgetWaitSeconds = memoryBudgetWaitSeconds;
+    }
+
+    public int getMaxConcurrentWatches() {
+        return maxConcurrentWatches;
+    }
+
+    public void setMaxConcurrentWatches(int maxConcurrentWatches) {
+        this.maxConcurrentWatches = maxConcurrentWatches;
+    }
+
+    public int getWatchStreamMaxSeconds() {
+        return watchStreamMaxSeconds;
+    }
+
+    public void setWatchStreamMaxSeconds(int watchStreamMaxSeconds) {
+        this.watchStreamMaxSeconds = watchStreamMaxSeconds;
+    }
+
+    public int getAsyncMaxPerBackend() {
+        return asyncMaxPerBackend;
+    }
+
+    public void setAsyncMaxPerBackend(int asyncMaxPerBackend) {
+        this.asyncMaxPerBackend = asyncMaxPerBackend;
+    }
+
+    public int getDownloadBorrowWaitMillis() {
+        return downloadBorrowWaitMillis;
+    }
+
+    public void setDownloadBorrowWaitMillis(int downloadBorrowWaitMillis) {
+        this.downloadBorrowWaitMillis = downloadBorrowWaitMillis;
+    }
+
     @Override
     public String toString() {
         return "CifsConfig{"
@@ -100,6 +961,12 @@ public class CifsConfig {
                 + ", username=" + cifsUsername
                 + ", password=" + password.replaceAll(".", "*")
                 + ", delete file after download=" + shouldDeleteFileAfterDownload
+                + ", transform concurrency=" + transformConcurrency
+                + ", pool max per share=" + poolMaxPerShare
+                + ", pool idle timeout=" + poolIdleTimeoutSeconds
+                + ", backends=" + backends
+                + ", smb dialects=" + smbDialects
+                + ", smb signing required=" + smbSigningRequired
                 + ", domain=" + domain + '}';
     }
 
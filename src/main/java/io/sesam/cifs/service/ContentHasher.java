@@ -0,0 +1,365 @@
+package io.sesam.cifs.service;
+
+import com.hierynomus.msfscc.fileinformation.FileAllInformation;
+import com.hierynomus.smbj.share.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/**
+ * Content hashes of files computed while streaming them from share.
+ * <p>
+ * Hashes are cached by share, path and algorithm together with end of file size and change time they were computed
+ * for, so unchanged file is never read again and changed file never matches old hash. Least recently used hashes are
+ * evicted when cache holds more than CIFS_HASH_CACHE_MAX_ENTRIES of them. Files of listings are hashed concurrently on
+ * shared pool of CIFS_HASH_PARALLELISM threads, over share borrowed for whole listing so that tasks listing directories
+ * can't starve hashing of pooled connections. Files which couldn't be hashed are passed on with hash error instead.
+ *
+ * @author Timur Samkharadze
+ */
+@Component
+public class ContentHasher {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ContentHasher.class);
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    @Autowired
+    private CifsConfig config;
+
+    @Autowired
+    private CifsClient cifsClient;
+
+    private ExecutorService hashPool;
+
+    private final Map<String, CachedHash> cache = new LinkedHashMap<String, CachedHash>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CachedHash> eldest) {
+            if (size() > config.getHashCacheMaxEntries()) {
+                evictions.incrementAndGet();
+                return true;
+            }
+            return false;
+        }
+    };
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final AtomicLong evictions = new AtomicLong();
+
+    @PostConstruct
+    public void initHasher() {
+        algorithm(null);
+        AtomicInteger counter = new AtomicInteger();
+        this.hashPool = Executors.newFixedThreadPool(Math.max(1, config.getHashParallelism()), runnable -> {
+            Thread thread = new Thread(runnable, "content-hash-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        hashPool.shutdownNow();
+    }
+
+    /**
+     * @param algorithm requested algorithm or null for CIFS_HASH_ALGORITHM
+     * @return canonical name of digest algorithm
+     * @throws IllegalArgumentException if algorithm isn't supported
+     */
+    public String algorithm(String algorithm) {
+        String name = (algorithm == null || algorithm.trim().isEmpty() ? config.getHashAlgorithm() : algorithm)
+                .trim().toUpperCase(Locale.ROOT);
+        try {
+            MessageDigest.getInstance(name);
+        } catch (NoSuchAlgorithmException exc) {
+            throw new IllegalArgumentException(String.format("unsupported hash algorithm '%s'", algorithm), exc);
+        }
+        return name;
+    }
+
+    /**
+     * Hash content of single file
+     *
+     * @param share name of SMB/CIFS share
+     * @param path path to file
+     * @param algorithm canonical algorithm name returned by {@link #algorithm(String)}
+     * @return file metadata with hash of its content
+     * @throws java.io.FileNotFoundException if file doesn't exist
+     * @throws IOException if any other IO errors occur
+     */
+    public FileOrDirectoryInfo hash(String share, String path, String algorithm) throws IOException {
+        try ( PooledShare pooledShare = cifsClient.borrowShare(share);
+                File sharedFile = cifsClient.openFile(pooledShare.getShare(), path)) {
+            FileAllInformation info = sharedFile.getFileInformation();
+            FileOrDirectoryInfo result = new FileOrDirectoryInfo();
+            result.setName(path.substring(path.lastIndexOf('/') + 1));
+            result.setPath(path);
+            result.setSize(info.getStandardInformation().getAllocationSize());
+            result.setEndOfFile(info.getStandardInformation().getEndOfFile());
+            result.setChangeTimeWindowsTs(info.getBasicInformation().getChangeTime().getWindowsTimeStamp());
+            result.setHash(hash(share, path, sharedFile, result.getEndOfFile(), result.getChangeTimeWindowsTs(),
+                    algorithm));
+            return result;
+        }
+    }
+
+    /**
+     * Create listing sink adding content hash to file entries before passing them to given sink. Entries keep their
+     * order, files not found in cache are hashed concurrently.
+     *
+     * @param sink receiver of entries with hashes
+     * @param share name of SMB/CIFS share
+     * @param directory path of listed directory, used for entries without path
+     * @param algorithm canonical algorithm name returned by {@link #algorithm(String)}
+     * @param filesOnly true to drop directory entries
+     * @return hashing sink, must be drained after listing and closed
+     * @throws IOException if share can't be borrowed
+     */
+    public HashingSink hashingSink(DirectoryListing.ListingSink sink, String share, String directory,
+            String algorithm, boolean filesOnly) throws IOException {
+        return new HashingSink(sink, share, directory, algorithm, filesOnly, cifsClient.borrowShare(share));
+    }
+
+    /**
+     * @return cache statistics
+     */
+    public Map<String, Long> getStats() {
+        Map<String, Long> stats = new LinkedHashMap<>();
+        stats.put("hits", hits.get());
+        stats.put("misses", misses.get());
+        stats.put("evictions", evictions.get());
+        synchronized (cache) {
+            stats.put("size", (long) cache.size());
+        }
+        return stats;
+    }
+
+    private String hash(String share, String path, File sharedFile, long endOfFile, long changeTime,
+            String algorithm) throws IOException {
+        String key = key(share, path, algorithm);
+        String cached = cached(key, endOfFile, changeTime);
+        if (cached != null) {
+            return cached;
+        }
+        misses.incrementAndGet();
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException exc) {
+            throw new IllegalArgumentException(exc);
+        }
+        long hashed = cifsClient.transferFile(sharedFile, 0, endOfFile, new OutputStream() {
+            @Override
+            public void write(int b) {
+                digest.update((byte) b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                digest.update(b, off, len);
+            }
+        });
+        if (hashed != endOfFile) {
+            throw new IOException(String.format("file %s changed while it was hashed", path));
+        }
+        String hash = toHex(digest.digest());
+        synchronized (cache) {
+            cache.put(key, new CachedHash(endOfFile, changeTime, hash));
+        }
+        return hash;
+    }
+
+    private String cached(String key, long endOfFile, long changeTime) {
+        CachedHash cached;
+        synchronized (cache) {
+            cached = cache.get(key);
+        }
+        if (cached != null && cached.endOfFile == endOfFile && cached.changeTime == changeTime) {
+            hits.incrementAndGet();
+            return cached.hash;
+        }
+        return null;
+    }
+
+    private static String key(String share, String path, String algorithm) {
+        return algorithm + ':' + share + '/' + path;
+    }
+
+    private static String toHex(byte[] bytes) {
+        char[] hex = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            hex[i * 2] = HEX[(bytes[i] >> 4) & 0xf];
+            hex[i * 2 + 1] = HEX[bytes[i] & 0xf];
+        }
+        return new String(hex);
+    }
+
+    /**
+     * Listing sink adding content hashes to file entries
+     */
+    public class HashingSink implements DirectoryListing.ListingSink, AutoCloseable {
+
+        private final DirectoryListing.ListingSink sink;
+
+        private final String share;
+
+        private final String prefix;
+
+        private final String algorithm;
+
+        private final boolean filesOnly;
+
+        private final int window = Math.max(1, config.getHashParallelism()) * 4;
+
+        private final Deque<Future<FileOrDirectoryInfo>> pending = new ArrayDeque<>();
+
+        private final PooledShare pooledShare;
+
+        HashingSink(DirectoryListing.ListingSink sink, String share, String directory, String algorithm,
+                boolean filesOnly, PooledShare pooledShare) {
+            this.sink = sink;
+            this.pooledShare = pooledShare;
+            this.share = share;
+            String trimmed = CifsClient.trimSlashes(directory == null ? "" : directory);
+            this.prefix = trimmed.isEmpty() ? "" : trimmed + "/";
+            this.algorithm = algorithm;
+            this.filesOnly = filesOnly;
+        }
+
+        @Override
+        public void start(String continuationToken) throws IOException {
+            sink.start(continuationToken);
+        }
+
+        @Override
+        public void entry(FileOrDirectoryInfo entry) throws IOException {
+            if (entry.isIsDirectory()) {
+                if (!filesOnly) {
+                    pending.add(CompletableFuture.completedFuture(entry));
+                }
+            } else {
+                String path = entry.getPath() != null ? entry.getPath() : prefix + entry.getName();
+                String cached = cached(key(share, path, algorithm), entry.getEndOfFile(),
+                        entry.getChangeTimeWindowsTs());
+                if (cached != null) {
+                    pending.add(CompletableFuture.completedFuture(withHash(entry, cached, null)));
+                } else {
+                    pending.add(hashPool.submit(() -> hashEntry(entry, path)));
+                }
+            }
+            while (pending.size() > window) {
+                sink.entry(await(pending.poll()));
+            }
+        }
+
+        /**
+         * Pass all remaining entries to sink
+         *
+         * @throws IOException if any IO errors occur
+         */
+        public void drain() throws IOException {
+            try {
+                while (!pending.isEmpty()) {
+                    sink.entry(await(pending.poll()));
+                }
+            } finally {
+                close();
+            }
+        }
+
+        /**
+         * Cancel files not hashed yet and return borrowed share, listing which failed before sink was drained leaves no
+         * hashing behind
+         */
+        @Override
+        public void close() {
+            Future<FileOrDirectoryInfo> future;
+            while ((future = pending.poll()) != null) {
+                future.cancel(true);
+            }
+            pooledShare.close();
+        }
+
+        /**
+         * @return entry with hash, or with hash error if file couldn't be hashed
+         */
+        private FileOrDirectoryInfo hashEntry(FileOrDirectoryInfo entry, String path) {
+            try ( File sharedFile = cifsClient.openFile(pooledShare.getShare(), path)) {
+                FileAllInformation info = sharedFile.getFileInformation();
+                return withHash(entry, hash(share, path, sharedFile, info.getStandardInformation().getEndOfFile(),
+                        info.getBasicInformation().getChangeTime().getWindowsTimeStamp(), algorithm), null);
+            } catch (IOException | RuntimeException exc) {
+                LOG.warn("couldn't hash {} on share {}: {}", path, share, exc.toString());
+                LOG.debug("hash failure of {}", path, exc);
+                return withHash(entry, null, exc.getMessage() != null ? exc.getMessage() : exc.toString());
+            }
+        }
+
+        private FileOrDirectoryInfo await(Future<FileOrDirectoryInfo> future) throws IOException {
+            try {
+                return future.get();
+            } catch (InterruptedException exc) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while hashing files");
+            } catch (ExecutionException exc) {
+                throw new IOException(exc.getCause());
+            }
+        }
+    }
+
+    /**
+     * @return copy of listing entry with given hash or hash error, entries may be shared by listing cache so they
+     * aren't modified
+     */
+    private static FileOrDirectoryInfo withHash(FileOrDirectoryInfo entry, String hash, String hashError) {
+        FileOrDirectoryInfo copy = new FileOrDirectoryInfo();
+        copy.setName(entry.getName());
+        copy.setIsDirectory(entry.isIsDirectory());
+        copy.setSize(entry.getSize());
+        copy.setEndOfFile(entry.getEndOfFile());
+        copy.setChangeTimeWindowsTs(entry.getChangeTimeWindowsTs());
+        copy.setPath(entry.getPath());
+        copy.setHash(hash);
+        copy.setHashError(hashError);
+        return copy;
+    }
+
+    private static class CachedHash {
+
+        private final long endOfFile;
+
+        private final long changeTime;
+
+        private final String hash;
+
+        CachedHash(long endOfFile, long changeTime, String hash) {
+            this.endOfFile = endOfFile;
+            this.changeTime = changeTime;
+            this.hash = hash;
+        }
+    }
+}
@@ -0,0 +1,307 @@
+package io.sesam.cifs.service;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/**
+ * Streaming and paginated directory listing.
+ * <p>
+ * Without limit entries are streamed as they are enumerated (unsorted) or through bounded external sort (sorted by
+ * change time). With limit only one page is kept in memory: unsorted pages continue at entry offset, sorted pages use
+ * bounded top-K selection of entries after last (change time, name) key of previous page. Entries of small directories
+ * come from {@link ListingCache} when it is enabled, except for change listing whose positions are used as watermarks
+ * and must never miss changes served from stale listing.
+ *
+ * @author Timur Samkharadze
+ */
+@Component
+public class DirectoryListing {
+
+    /**
+     * listing order by change time, ties broken by name
+     */
+    public static final Comparator<FileOrDirectoryInfo> BY_CHANGE_TIME = Comparator
+            .comparingLong(FileOrDirectoryInfo::getChangeTimeWindowsTs)
+            .thenComparing(FileOrDirectoryInfo::getName);
+
+    private static final String OFFSET_TOKEN = "o";
+
+    private static final String KEY_TOKEN = "k";
+
+    @Autowired
+    private CifsClient cifsClient;
+
+    @Autowired
+    private CifsConfig config;
+
+    @Autowired
+    private ListingCache listingCache;
+
+    /**
+     * Receiver of listing output
+     */
+    public interface ListingSink {
+
+        /**
+         * called once before first entry
+         *
+         * @param continuationToken token to request next page or null if there are no more entries
+         * @throws IOException if any IO errors occur
+         */
+        void start(String continuationToken) throws IOException;
+
+        /**
+         * called for each listed entry
+         *
+         * @param entry directory entry
+         * @throws IOException if any IO errors occur
+         */
+        void entry(FileOrDirectoryInfo entry) throws IOException;
+    }
+
+    /**
+     * List directory content into given sink
+     *
+     * @param share name of SMB/CIFS share
+     * @param path path to target folder in given share
+     * @param sortByChangeTime if entries must be sorted by change time
+     * @param limit max number of entries to return, 0 or less for all
+     * @param continuationToken token returned with previous page or null for first page
+     * @param sink listing receiver
+     * @throws IOException if any IO errors occur
+     */
+    public void list(String share, String path, boolean sortByChangeTime, int limit, String continuationToken,
+            ListingSink sink) throws IOException {
+        if (limit <= 0) {
+            if (sortByChangeTime) {
+                listSorted(share, path, sink);
+            } else {
+                sink.start(null);
+                enumerate(share, path, entry -> {
+                    sink.entry(entry);
+                    return true;
+                });
+            }
+        } else if (sortByChangeTime) {
+            listSortedPage(share, path, limit, continuationToken, sink);
+        } else {
+            listPage(share, path, limit, continuationToken, sink);
+        }
+    }
+
+    private void listSorted(String share, String path, ListingSink sink) throws IOException {
+        try ( ExternalListingSorter sorter = new ExternalListingSorter(BY_CHANGE_TIME,
+                config.getListSortBufferEntries())) {
+            enumerate(share, path, entry -> {
+                sorter.add(entry);
+                return true;
+            });
+            sink.start(null);
+            sorter.drainTo(entry -> {
+                sink.entry(entry);
+                return true;
+            });
+        }
+    }
+
+    private void listPage(String share, String path, int limit, String continuationToken, ListingSink sink)
+            throws IOException {
+        long offset = continuationToken == null ? 0 : Long.parseLong(decodeToken(continuationToken, OFFSET_TOKEN, 1)[0]);
+        List<FileOrDirectoryInfo> page = new ArrayList<>(Math.min(limit, 1024));
+        long[] position = {0};
+        boolean[] hasMore = {false};
+        enumerate(share, path, entry -> {
+            if (position[0]++ < offset) {
+                return true;
+            }
+            if (page.size() == limit) {
+                hasMore[0] = true;
+                return false;
+            }
+            page.add(entry);
+            return true;
+        });
+        sink.start(hasMore[0] ? encodeToken(OFFSET_TOKEN, Long.toString(offset + limit)) : null);
+        for (FileOrDirectoryInfo entry : page) {
+            sink.entry(entry);
+        }
+    }
+
+    private void listSortedPage(String share, String path, int limit, String continuationToken, ListingSink sink)
+            throws IOException {
+        long afterTime = Long.MIN_VALUE;
+        String afterName = null;
+        if (continuationToken != null) {
+            String[] key = decodeToken(continuationToken, KEY_TOKEN, 2);
+            afterTime = Long.parseLong(key[0]);
+            afterName = key[1];
+        }
+        List<FileOrDirectoryInfo> page = new ArrayList<>(limit + 1);
+        selectPage(share, path, limit + 1, afterTime, afterName, page, true);
+        String nextToken = null;
+        if (page.size() > limit) {
+            page.remove(limit);
+            FileOrDirectoryInfo last = page.get(limit - 1);
+            nextToken = encodeToken(KEY_TOKEN, Long.toString(last.getChangeTimeWindowsTs()), last.getName());
+        }
+        sink.start(nextToken);
+        for (FileOrDirectoryInfo entry : page) {
+            sink.entry(entry);
+        }
+    }
+
+    /**
+     * List entries changed after given point sorted by change time and name
+     * <p>
+     * Position is either plain windows timestamp (entries with later change time are returned) or "timestamp:name"
+     * key of last entry received before. Sink receives key of last returned entry or given position if nothing
+     * changed, so it can be used as next position.
+     *
+     * @param share name of SMB/CIFS share
+     * @param path path to target folder in given share
+     * @param since position to list changes after, null to list all entries
+     * @param limit max number of entries to return, 0 or less for all
+     * @param sink listing receiver
+     * @throws IOException if any IO errors occur
+     */
+    public void listChanges(String share, String path, String since, int limit, ListingSink sink)
+            throws IOException {
+        long afterTime = Long.MIN_VALUE;
+        String afterName = null;
+        if (since != null && !since.isEmpty()) {
+            String[] position = since.split(":", 2);
+            try {
+                afterTime = Long.parseLong(position[0]);
+            } catch (NumberFormatException exc) {
+                throw new IllegalArgumentException(String.format("invalid since value %s", since), exc);
+            }
+            afterName = position.length > 1 ? position[1] : null;
+        }
+        if (limit > 0) {
+            List<FileOrDirectoryInfo> page = new ArrayList<>(limit);
+            selectPage(share, path, limit, afterTime, afterName, page, false);
+            sink.start(page.isEmpty() ? since : changeKey(page.get(page.size() - 1)));
+            for (FileOrDirectoryInfo entry : page) {
+                sink.entry(entry);
+            }
+            return;
+        }
+        long boundTime = afterTime;
+        String boundName = afterName;
+        FileOrDirectoryInfo[] latest = {null};
+        try ( ExternalListingSorter sorter = new ExternalListingSorter(BY_CHANGE_TIME,
+                config.getListSortBufferEntries())) {
+            cifsClient.listShareContent(share, path, entry -> {
+                if (isAfter(entry, boundTime, boundName)) {
+                    sorter.add(entry);
+                    if (latest[0] == null || BY_CHANGE_TIME.compare(entry, latest[0]) > 0) {
+                        latest[0] = entry;
+                    }
+                }
+                return true;
+            });
+            sink.start(latest[0] == null ? since : changeKey(latest[0]));
+            sorter.drainTo(entry -> {
+                sink.entry(entry);
+                return true;
+            });
+        }
+    }
+
+    /**
+     * @param entry directory entry
+     * @return position of entry in change time order usable as since value
+     */
+    public static String changeKey(FileOrDirectoryInfo entry) {
+        return entry.getChangeTimeWindowsTs() + ":" + entry.getName();
+    }
+
+    /**
+     * Select up to limit first entries in change time order after given key using bounded top-K selection
+     *
+     * @param cached if entries may come from listing cache
+     */
+    private void selectPage(String share, String path, int limit, long afterTime, String afterName,
+            List<FileOrDirectoryInfo> page, boolean cached) throws IOException {
+        PriorityQueue<FileOrDirectoryInfo> topK = new PriorityQueue<>(limit + 1, BY_CHANGE_TIME.reversed());
+        ListingVisitor selector = entry -> {
+            if (!isAfter(entry, afterTime, afterName)) {
+                return true;
+            }
+            if (topK.size() < limit) {
+                topK.add(entry);
+            } else if (BY_CHANGE_TIME.compare(entry, topK.peek()) < 0) {
+                topK.poll();
+                topK.add(entry);
+            }
+            return true;
+        };
+        if (cached) {
+            enumerate(share, path, selector);
+        } else {
+            cifsClient.listShareContent(share, path, selector);
+        }
+        page.addAll(topK);
+        page.sort(BY_CHANGE_TIME);
+    }
+
+    /**
+     * @return true if entry goes after (time, name) key in change time order, null name means after all entries
+     * changed at given time
+     */
+    private static boolean isAfter(FileOrDirectoryInfo entry, long afterTime, String afterName) {
+        if (entry.getChangeTimeWindowsTs() != afterTime) {
+            return entry.getChangeTimeWindowsTs() > afterTime;
+        }
+        return afterName != null && entry.getName().compareTo(afterName) > 0;
+    }
+
+    /**
+     * Pass directory entries to visitor taking them from listing cache when possible
+     */
+    private void enumerate(String share, String path, ListingVisitor visitor) throws IOException {
+        if (listingCache.isEnabled()) {
+            listingCache.enumerate(share, path, visitor);
+        } else {
+            cifsClient.listShareContent(share, path, visitor);
+        }
+    }
+
+    static String encodeToken(String type, String... values) {
+        String token = type + ':' + String.join(":", values);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(token.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @param token continuation token
+     * @param expectedType type of token expected by requested sort order
+     * @param valueCount number of values token of expected type has, last value may contain ':'
+     * @return token values
+     * @throws IllegalArgumentException if token is malformed or of other type
+     */
+    static String[] decodeToken(String token, String expectedType, int valueCount) {
+        String decoded;
+        try {
+            decoded = new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException exc) {
+            throw new IllegalArgumentException("invalid continuation token", exc);
+        }
+        String[] parts = decoded.split(":", valueCount + 1);
+        if (parts.length < 2 || !parts[0].equals(expectedType)) {
+            throw new IllegalArgumentException("continuation token doesn't match requested sort order");
+        }
+        if (parts.length != valueCount + 1) {
+            throw new IllegalArgumentException("invalid continuation token");
+        }
+        String[] values = new String[parts.length - 1];
+        System.arraycopy(parts, 1, values, 0, values.length);
+        return values;
+    }
+}
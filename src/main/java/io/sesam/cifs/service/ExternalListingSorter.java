@@ -0,0 +1,174 @@
+package io.sesam.cifs.service;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sorts directory entries keeping at most given number of them in memory.
+ * <p>
+ * When buffer is full it is sorted and spilled into temporary run file, runs are merged when entries are read back.
+ * Small listings never touch disk.
+ *
+ * @author Timur Samkharadze
+ */
+public class ExternalListingSorter implements Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ExternalListingSorter.class);
+
+    private final Comparator<FileOrDirectoryInfo> comparator;
+
+    private final int maxInMemory;
+
+    private final List<FileOrDirectoryInfo> buffer;
+
+    private final List<Path> runs = new ArrayList<>();
+
+    public ExternalListingSorter(Comparator<FileOrDirectoryInfo> comparator, int maxInMemory) {
+        this.comparator = comparator;
+        this.maxInMemory = Math.max(1, maxInMemory);
+        this.buffer = new ArrayList<>(Math.min(this.maxInMemory, 1024));
+    }
+
+    /**
+     * add entry to sort
+     *
+     * @param entry directory entry
+     * @throws IOException if buffer couldn't be spilled to disk
+     */
+    public void add(FileOrDirectoryInfo entry) throws IOException {
+        buffer.add(entry);
+        if (buffer.size() >= maxInMemory) {
+            spill();
+        }
+    }
+
+    /**
+     * pass all added entries to visitor in sorted order
+     *
+     * @param visitor entry consumer, returns false to stop
+     * @throws IOException if any IO errors occur
+     */
+    public void drainTo(ListingVisitor visitor) throws IOException {
+        if (runs.isEmpty()) {
+            buffer.sort(comparator);
+            for (FileOrDirectoryInfo entry : buffer) {
+                if (!visitor.visit(entry)) {
+                    return;
+                }
+            }
+            return;
+        }
+        spill();
+        List<RunReader> readers = new ArrayList<>(runs.size());
+        PriorityQueue<RunReader> heads = new PriorityQueue<>(runs.size(),
+                (r1, r2) -> comparator.compare(r1.head, r2.head));
+        try {
+            for (Path run : runs) {
+                RunReader reader = new RunReader(run);
+                readers.add(reader);
+                if (reader.advance()) {
+                    heads.add(reader);
+                }
+            }
+            RunReader reader;
+            while ((reader = heads.poll()) != null) {
+                if (!visitor.visit(reader.head)) {
+                    return;
+                }
+                if (reader.advance()) {
+                    heads.add(reader);
+                }
+            }
+        } finally {
+            for (RunReader runReader : readers) {
+                runReader.close();
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        buffer.clear();
+        for (Path run : runs) {
+            try {
+                Files.deleteIfExists(run);
+            } catch (IOException exc) {
+                LOG.warn("couldn't delete sort run {}", run, exc);
+            }
+        }
+        runs.clear();
+    }
+
+    private void spill() throws IOException {
+        if (buffer.isEmpty()) {
+            return;
+        }
+        buffer.sort(comparator);
+        Path run = Files.createTempFile("cifs-listing-", ".run");
+        runs.add(run);
+        try ( DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(run)))) {
+            for (FileOrDirectoryInfo entry : buffer) {
+                out.writeUTF(entry.getName());
+                out.writeBoolean(entry.isIsDirectory());
+                out.writeLong(entry.getSize());
+                out.writeLong(entry.getEndOfFile());
+                out.writeLong(entry.getChangeTimeWindowsTs());
+                out.writeBoolean(entry.getPath() != null);
+                if (entry.getPath() != null) {
+                    out.writeUTF(entry.getPath());
+                }
+            }
+        }
+        LOG.debug("spilled {} listing entries to {}", buffer.size(), run);
+        buffer.clear();
+    }
+
+    private static class RunReader implements Closeable {
+
+        private final DataInputStream in;
+
+        private FileOrDirectoryInfo head;
+
+        RunReader(Path run) throws IOException {
+            this.in = new DataInputStream(new BufferedInputStream(Files.newInputStream(run)));
+        }
+
+        boolean advance() throws IOException {
+            String name;
+            try {
+                name = in.readUTF();
+            } catch (EOFException exc) {
+                head = null;
+                return false;
+            }
+            head = new FileOrDirectoryInfo();
+            head.setName(name);
+            head.setIsDirectory(in.readBoolean());
+            head.setSize(in.readLong());
+            head.setEndOfFile(in.readLong());
+            head.setChangeTimeWindowsTs(in.readLong());
+            if (in.readBoolean()) {
+                head.setPath(in.readUTF());
+            }
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
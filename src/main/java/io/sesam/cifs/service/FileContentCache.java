@@ -0,0 +1,436 @@
+package io.sesam.cifs.service;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.PostConstruct;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/**
+ * Local on-disk cache of file content.
+ * <p>
+ * Entries are keyed by share, path, change time and size of remote file, so changed file never matches old entry.
+ * Cache lives in CIFS_FILE_CACHE_DIR and is disabled when it isn't set or when files are deleted after download. Least
+ * recently used entries are deleted when total size exceeds CIFS_FILE_CACHE_MAX_BYTES, files larger than
+ * CIFS_FILE_CACHE_MAX_FILE_BYTES are not cached. Existing entries are picked up on startup. Entries returned by
+ * {@link #get} are pinned until their reader closes them, eviction skips pinned entries.
+ *
+ * @author Timur Samkharadze
+ */
+@Component
+public class FileContentCache {
+
+    private static final Logger LOG = LoggerFactory.getLogger(FileContentCache.class);
+
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    /**
+     * how long entry handed over to servlet container for sendfile stays pinned, container opens file only after
+     * request handler returns
+     */
+    private static final long SENDFILE_PIN_MILLIS = 60_000;
+
+    @Autowired
+    private CifsConfig config;
+
+    private Path directory;
+
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private final Map<String, Pin> pins = new HashMap<>();
+
+    private long totalBytes;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final AtomicLong evictions = new AtomicLong();
+
+    @PostConstruct
+    public void initCache() throws IOException {
+        String dir = config.getFileCacheDir();
+        if (dir == null || dir.trim().isEmpty()) {
+            return;
+        }
+        this.directory = Paths.get(dir.trim());
+        Files.createDirectories(directory);
+        List<Path> existing = new ArrayList<>();
+        try ( DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+            for (Path file : stream) {
+                if (file.getFileName().toString().endsWith(TEMP_SUFFIX)) {
+                    Files.deleteIfExists(file);
+                } else if (Files.isRegularFile(file)) {
+                    existing.add(file);
+                }
+            }
+        }
+        existing.sort((f1, f2) -> Long.compare(f1.toFile().lastModified(), f2.toFile().lastModified()));
+        synchronized (this) {
+            for (Path file : existing) {
+                long size = Files.size(file);
+                entries.put(file.getFileName().toString(), size);
+                totalBytes += size;
+            }
+            evict();
+        }
+        LOG.info("file cache in {} holds {} entries of {} bytes", directory, entries.size(), totalBytes);
+    }
+
+    /**
+     * @return true if cache is configured and files are not deleted after download
+     */
+    public boolean isEnabled() {
+        return directory != null && !config.isShouldDeleteFileAfterDownload();
+    }
+
+    /**
+     * Look up cached content of given file version
+     *
+     * @param share name of SMB/CIFS share
+     * @param path path to file
+     * @param changeTime change time of remote file as windows timestamp
+     * @param size size of remote file
+     * @return pinned cached content, must be closed after it is read, or null if it isn't cached
+     */
+    public Entry get(String share, String path, long changeTime, long size) {
+        if (!isEnabled()) {
+            return null;
+        }
+        String key = key(share, path, changeTime, size);
+        Path file = directory.resolve(key);
+        synchronized (this) {
+            if (entries.get(key) != null) {
+                if (Files.exists(file)) {
+                    hits.incrementAndGet();
+                    pins.computeIfAbsent(key, k -> new Pin()).readers++;
+                    return new Entry(key, file);
+                }
+                totalBytes -= entries.remove(key);
+                Pin pin = pins.get(key);
+                if (pin != null && pin.readers == 0) {
+                    pins.remove(key);
+                }
+            }
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Start caching content of given file version, content must be written to returned fill which is committed when
+     * all data is written
+     *
+     * @param share name of SMB/CIFS share
+     * @param path path to file
+     * @param changeTime change time of remote file as windows timestamp
+     * @param size size of remote file
+     * @return cache fill or null if file can't be cached
+     */
+    public Fill startFill(String share, String path, long changeTime, long size) {
+        if (!isEnabled() || size > config.getFileCacheMaxFileBytes() || size > config.getFileCacheMaxBytes()) {
+            return null;
+        }
+        try {
+            Path temp = Files.createTempFile(directory, "fill-", TEMP_SUFFIX);
+            return new Fill(key(share, path, changeTime, size), size, temp);
+        } catch (IOException exc) {
+            LOG.warn("couldn't create file cache entry in {}", directory, exc);
+            return null;
+        }
+    }
+
+    /**
+     * Cache already fetched content of given file version
+     *
+     * @param share name of SMB/CIFS share
+     * @param path path to file
+     * @param changeTime change time of remote file as windows timestamp
+     * @param data whole file content
+     */
+    public void put(String share, String path, long changeTime, byte[] data) {
+        try ( Fill fill = startFill(share, path, changeTime, data.length)) {
+            if (fill != null) {
+                fill.write(data, 0, data.length);
+                fill.commit();
+            }
+        }
+    }
+
+    /**
+     * @return cache statistics
+     */
+    public synchronized Map<String, Long> getStats() {
+        Map<String, Long> stats = new LinkedHashMap<>();
+        long hitCount = hits.get();
+        long total = hitCount + misses.get();
+        stats.put("hits", hitCount);
+        stats.put("misses", misses.get());
+        stats.put("hitRatioPercent", total == 0 ? 0 : Math.round(hitCount * 100.0 / total));
+        stats.put("evictions", evictions.get());
+        stats.put("size", (long) entries.size());
+        stats.put("bytes", totalBytes);
+        return stats;
+    }
+
+    private synchronized void add(String key, long size) {
+        Long previous = entries.put(key, size);
+        if (previous != null) {
+            totalBytes -= previous;
+        }
+        totalBytes += size;
+        evict();
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<String, Long>> eldest = entries.entrySet().iterator();
+        long now = System.currentTimeMillis();
+        while (totalBytes > config.getFileCacheMaxBytes() && eldest.hasNext()) {
+            Map.Entry<String, Long> entry = eldest.next();
+            Pin pin = pins.get(entry.getKey());
+            if (pin != null) {
+                if (pin.readers > 0 || pin.until > now) {
+                    continue;
+                }
+                pins.remove(entry.getKey());
+            }
+            eldest.remove();
+            totalBytes -= entry.getValue();
+            evictions.incrementAndGet();
+            deleteQuietly(directory.resolve(entry.getKey()));
+        }
+    }
+
+    private synchronized void unpin(String key, long pinMillis) {
+        Pin pin = pins.get(key);
+        if (pin == null) {
+            return;
+        }
+        pin.readers--;
+        if (pinMillis > 0) {
+            pin.until = Math.max(pin.until, System.currentTimeMillis() + pinMillis);
+        } else if (pin.readers == 0 && pin.until == 0) {
+            pins.remove(key);
+        }
+        evict();
+    }
+
+    private static void deleteQuietly(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException exc) {
+            LOG.warn("couldn't delete file cache entry {}", file, exc);
+        }
+    }
+
+    private static String key(String share, String path, long changeTime, long size) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] hash = digest.digest(String.format("%s\u0000%s\u0000%d\u0000%d", share, path, changeTime, size)
+                    .getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException exc) {
+            throw new IllegalStateException(exc);
+        }
+    }
+
+    /**
+     * Readers of cache entry, entry can't be evicted while any reader holds it or until given time
+     */
+    private static class Pin {
+
+        private int readers;
+
+        private long until;
+    }
+
+    /**
+     * Cached file content pinned against eviction until it is closed
+     */
+    public class Entry implements Closeable {
+
+        private final String key;
+
+        private final Path file;
+
+        private boolean closed;
+
+        private long pinMillis;
+
+        Entry(String key, Path file) {
+            this.key = key;
+            this.file = file;
+        }
+
+        public Path getPath() {
+            return file;
+        }
+
+        /**
+         * Copy part of cached file into given stream using {@link FileChannel#transferTo}
+         *
+         * @param offset position in file to start from
+         * @param length number of bytes to transfer
+         * @param out destination stream
+         * @return number of transferred bytes
+         * @throws IOException if any IO errors occur
+         */
+        public long transfer(long offset, long length, OutputStream out) throws IOException {
+            try ( FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                WritableByteChannel target = Channels.newChannel(out);
+                long position = offset;
+                long end = Math.min(offset + length, channel.size());
+                while (position < end) {
+                    position += channel.transferTo(position, end - position, target);
+                }
+                return position - offset;
+            }
+        }
+
+        public byte[] readAllBytes() throws IOException {
+            return Files.readAllBytes(file);
+        }
+
+        public InputStream newInputStream() throws IOException {
+            return Files.newInputStream(file);
+        }
+
+        /**
+         * Keep entry pinned for a while after it is closed, for servlet container sending it with sendfile
+         */
+        public void pinForSendfile() {
+            this.pinMillis = SENDFILE_PIN_MILLIS;
+        }
+
+        @Override
+        public void close() {
+            if (!closed) {
+                closed = true;
+                unpin(key, pinMillis);
+            }
+        }
+    }
+
+    /**
+     * Cache entry being written, becomes visible only after commit, otherwise it is discarded on close. Write errors
+     * don't propagate to caller, they just make fill uncommittable.
+     */
+    public class Fill implements Closeable {
+
+        private final String key;
+
+        private final long expectedSize;
+
+        private final Path temp;
+
+        private final OutputStream out;
+
+        private long written;
+
+        private boolean failed;
+
+        private boolean committed;
+
+        Fill(String key, long expectedSize, Path temp) throws IOException {
+            this.key = key;
+            this.expectedSize = expectedSize;
+            this.temp = temp;
+            this.out = Files.newOutputStream(temp);
+        }
+
+        /**
+         * @param target stream file content is sent to
+         * @return stream writing to target and to this fill
+         */
+        public OutputStream tee(OutputStream target) {
+            return new OutputStream() {
+                @Override
+                public void write(int b) throws IOException {
+                    write(new byte[]{(byte) b}, 0, 1);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    target.write(b, off, len);
+                    Fill.this.write(b, off, len);
+                }
+
+                @Override
+                public void flush() throws IOException {
+                    target.flush();
+                }
+            };
+        }
+
+        void write(byte[] b, int off, int len) {
+            if (failed) {
+                return;
+            }
+            try {
+                out.write(b, off, len);
+                written += len;
+            } catch (IOException exc) {
+                LOG.warn("couldn't write file cache entry {}", temp, exc);
+                failed = true;
+            }
+        }
+
+        /**
+         * make entry visible if all expected bytes were written
+         */
+        public void commit() {
+            if (failed || written != expectedSize) {
+                return;
+            }
+            try {
+                out.close();
+                Files.move(temp, directory.resolve(key), StandardCopyOption.ATOMIC_MOVE,
+                        StandardCopyOption.REPLACE_EXISTING);
+                committed = true;
+                add(key, written);
+            } catch (IOException exc) {
+                LOG.warn("couldn't commit file cache entry {}", temp, exc);
+            }
+        }
+
+        @Override
+        public void close() {
+            if (committed) {
+                return;
+            }
+            try {
+                out.close();
+            } catch (IOException exc) {
+                LOG.debug("couldn't close file cache entry {}", temp, exc);
+            }
+            deleteQuietly(temp);
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package io.sesam.cifs.service;
+
+/**
+ * POJO representing single file copy/move request
+ * @author Timur Samkharadze
+ */
+public class FileOperationEntity {
+
+    private String source;
+    private String destination;
+    private String destinationShare;
+    private boolean overwrite;
+
+    public String getSource() {
+        return source;
+    }
+
+    public void setSource(String source) {
+        this.source = source;
+    }
+
+    public String getDestination() {
+        return destination;
+    }
+
+    public void setDestination(String destination) {
+        this.destination = destination;
+    }
+
+    public String getDestinationShare() {
+        return destinationShare;
+    }
+
+    public void setDestinationShare(String destinationShare) {
+        this.destinationShare = destinationShare;
+    }
+
+    public boolean isOverwrite() {
+        return overwrite;
+    }
+
+    public void setOverwrite(boolean overwrite) {
+        this.overwrite = overwrite;
+    }
+
+}
@@ -0,0 +1,62 @@
+package io.sesam.cifs.service;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+/**
+ * POJO with outcome of single file copy/move request
+ * @author Timur Samkharadze
+ */
+public class FileOperationResult {
+    private String source;
+    
+    private String destination;
+    
+    private boolean success;
+    
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private CifsClient.TransferMethod method;
+    
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private String error;
+
+    public String getSource() {
+        return source;
+    }
+
+    public void setSource(String source) {
+        this.source = source;
+    }
+
+    public String getDestination() {
+        return destination;
+    }
+
+    public void setDestination(String destination) {
+        this.destination = destination;
+    }
+
+    public boolean isSuccess() {
+        return success;
+    }
+
+    public void setSuccess(boolean success) {
+        this.success = success;
+    }
+
+    public CifsClient.TransferMethod getMethod() {
+        return method;
+    }
+
+    public void setMethod(CifsClient.TransferMethod method) {
+        this.method = method;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    public void setError(String error) {
+        this.error = error;
+    }
+    
+}
@@ -1,5 +1,8 @@
 package io.sesam.cifs.service;
 
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.hierynomus.msdtyp.FileTime;
+
 /**
  * POJO containing basic info about file/directory
  * @author Timur Samkharadze
@@ -11,9 +14,20 @@ public class FileOrDirectoryInfo {
     
     private long size;
     
+    private long endOfFile;
+    
     private long changeTimeWindowsTs;
     
     private String changeTimeString;
+    
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private String path;
+    
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private String hash;
+    
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private String hashError;
 
     public String getName() {
         return name;
@@ -39,6 +53,14 @@ public class FileOrDirectoryInfo {
         this.size = size;
     }
 
+    public long getEndOfFile() {
+        return endOfFile;
+    }
+
+    public void setEndOfFile(long endOfFile) {
+        this.endOfFile = endOfFile;
+    }
+
     public long getChangeTimeWindowsTs() {
         return changeTimeWindowsTs;
     }
@@ -47,12 +69,42 @@ public class FileOrDirectoryInfo {
         this.changeTimeWindowsTs = changeTimeWindowsTs;
     }
 
+    /**
+     * @return change time as text, formatted from windows timestamp on request unless set explicitly
+     */
     public String getChangeTimeString() {
-        return changeTimeString;
+        return changeTimeString != null ? changeTimeString : new FileTime(changeTimeWindowsTs).toString();
     }
 
     public void setChangeTimeString(String changeTimeString) {
         this.changeTimeString = changeTimeString;
     }
+
+    public String getPath() {
+        return path;
+    }
+
+    public void setPath(String path) {
+        this.path = path;
+    }
+
+    public String getHash() {
+        return hash;
+    }
+
+    public void setHash(String hash) {
+        this.hash = hash;
+    }
+
+    /**
+     * @return reason why content hash is missing, null if file was hashed
+     */
+    public String getHashError() {
+        return hashError;
+    }
+
+    public void setHashError(String hashError) {
+        this.hashError = hashError;
+    }
     
 }
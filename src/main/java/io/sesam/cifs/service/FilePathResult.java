@@ -0,0 +1,95 @@
+package io.sesam.cifs.service;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+/**
+ * POJO with outcome of single path of batch delete/stat request
+ * @author Timur Samkharadze
+ */
+public class FilePathResult {
+    private String path;
+    
+    private boolean success;
+    
+    private boolean exists;
+    
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private Boolean isDirectory;
+    
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private Long size;
+    
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private Long changeTimeWindowsTs;
+    
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private Long lastWriteTimeWindowsTs;
+    
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private String error;
+
+    public String getPath() {
+        return path;
+    }
+
+    public void setPath(String path) {
+        this.path = path;
+    }
+
+    public boolean isSuccess() {
+        return success;
+    }
+
+    public void setSuccess(boolean success) {
+        this.success = success;
+    }
+
+    public boolean isExists() {
+        return exists;
+    }
+
+    public void setExists(boolean exists) {
+        this.exists = exists;
+    }
+
+    public Boolean getIsDirectory() {
+        return isDirectory;
+    }
+
+    public void setIsDirectory(Boolean isDirectory) {
+        this.isDirectory = isDirectory;
+    }
+
+    public Long getSize() {
+        return size;
+    }
+
+    public void setSize(Long size) {
+        this.size = size;
+    }
+
+    public Long getChangeTimeWindowsTs() {
+        return changeTimeWindowsTs;
+    }
+
+    public void setChangeTimeWindowsTs(Long changeTimeWindowsTs) {
+        this.changeTimeWindowsTs = changeTimeWindowsTs;
+    }
+
+    public Long getLastWriteTimeWindowsTs() {
+        return lastWriteTimeWindowsTs;
+    }
+
+    public void setLastWriteTimeWindowsTs(Long lastWriteTimeWindowsTs) {
+        this.lastWriteTimeWindowsTs = lastWriteTimeWindowsTs;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    public void setError(String error) {
+        this.error = error;
+    }
+    
+}
@@ -0,0 +1,24 @@
+package io.sesam.cifs.service;
+
+import java.io.IOException;
+
+/**
+ * Positional reads of opened file, implemented by SMB file handles
+ *
+ * @author Timur Samkharadze
+ */
+@FunctionalInterface
+public interface FileSource {
+
+    /**
+     * read bytes at given file offset
+     *
+     * @param buffer destination buffer
+     * @param fileOffset position in file to read from
+     * @param bufferOffset position in buffer to write to
+     * @param length max number of bytes to read
+     * @return number of bytes read, 0 or less at end of file
+     * @throws IOException if any IO errors occur
+     */
+    int read(byte[] buffer, long fileOffset, int bufferOffset, int length) throws IOException;
+}
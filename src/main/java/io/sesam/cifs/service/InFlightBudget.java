@@ -0,0 +1,82 @@
+package io.sesam.cifs.service;
+
+/**
+ * Byte budget shared by files of one request fetched ahead of being written.
+ * <p>
+ * Reservations never wait, so fetch threads shared by all requests are never parked by request whose client reads
+ * slowly: file which doesn't fit right now isn't fetched ahead but streamed when its turn comes. Request stops starting
+ * fetches while its budget is used up and writes files already fetched first. Single file larger than whole budget is
+ * admitted when nothing else is in flight. Bytes multiplied by memory factor are also reserved from process wide
+ * memory budget.
+ *
+ * @author Timur Samkharadze
+ */
+class InFlightBudget {
+
+    private final long maxBytes;
+
+    private final MemoryBudget memoryBudget;
+
+    private final String purpose;
+
+    private final int memoryFactor;
+
+    private long usedBytes;
+
+    private boolean aborted;
+
+    /**
+     * @param maxBytes max bytes in flight
+     * @param memoryBudget process wide memory budget
+     * @param purpose purpose tag of memory reservations
+     * @param memoryFactor heap bytes needed per byte in flight
+     */
+    InFlightBudget(long maxBytes, MemoryBudget memoryBudget, String purpose, int memoryFactor) {
+        this.maxBytes = maxBytes;
+        this.memoryBudget = memoryBudget;
+        this.purpose = purpose;
+        this.memoryFactor = memoryFactor;
+    }
+
+    /**
+     * Reserve given bytes if request and process wide memory budget have room for them right now
+     *
+     * @return false if bytes don't fit or request was aborted, nothing is reserved then
+     */
+    synchronized boolean tryAcquire(long bytes) {
+        if (aborted || (usedBytes > 0 && usedBytes + bytes > maxBytes)) {
+            return false;
+        }
+        if (bytes > 0 && !memoryBudget.tryReserve(purpose, bytes * memoryFactor)) {
+            return false;
+        }
+        usedBytes += bytes;
+        return true;
+    }
+
+    /**
+     * @return true if request may start fetching another file
+     */
+    synchronized boolean hasRoom() {
+        return usedBytes < maxBytes;
+    }
+
+    synchronized void release(long bytes) {
+        if (aborted) {
+            return;
+        }
+        usedBytes -= bytes;
+        memoryBudget.release(purpose, bytes * memoryFactor);
+    }
+
+    /**
+     * Stop granting bytes and release all bytes still held
+     */
+    synchronized void abort() {
+        if (!aborted) {
+            memoryBudget.release(purpose, usedBytes * memoryFactor);
+            usedBytes = 0;
+        }
+        aborted = true;
+    }
+}
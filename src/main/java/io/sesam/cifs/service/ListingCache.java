@@ -0,0 +1,271 @@
+package io.sesam.cifs.service;
+
+import com.hierynomus.smbj.share.DiskShare;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/**
+ * Cache of directory listings keyed by share and path.
+ * <p>
+ * Listing younger than CIFS_LIST_CACHE_TTL_SECONDS is served without contacting file server. Older listing is
+ * revalidated by comparing change time of directory itself and is re-listed only if directory changed or listing is
+ * older than CIFS_LIST_CACHE_MAX_AGE_SECONDS (directory change time doesn't change when existing file is modified).
+ * Concurrent requests for the same directory share single SMB call. Least recently used directories are evicted when
+ * cache holds more than CIFS_LIST_CACHE_MAX_DIRECTORIES of them, directories with more than
+ * CIFS_LIST_CACHE_MAX_DIRECTORY_ENTRIES entries are not cached and are listed straight from share for
+ * CIFS_LIST_CACHE_MAX_AGE_SECONDS. Cache is disabled by default, it may serve listing missing changes made within
+ * CIFS_LIST_CACHE_TTL_SECONDS or modifications of existing files within CIFS_LIST_CACHE_MAX_AGE_SECONDS.
+ *
+ * @author Timur Samkharadze
+ */
+@Component
+public class ListingCache {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ListingCache.class);
+
+    private static final CachedListing NOT_CACHED = new CachedListing(null, 0, 0, 0);
+
+    @Autowired
+    private CifsConfig config;
+
+    @Autowired
+    private CifsClient cifsClient;
+
+    @Autowired
+    private SmbSessionPool sessionPool;
+
+    private final Map<String, CachedListing> cache = new LinkedHashMap<String, CachedListing>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CachedListing> eldest) {
+            if (size() > config.getListCacheMaxDirectories()) {
+                evictions.incrementAndGet();
+                return true;
+            }
+            return false;
+        }
+    };
+
+    private final ConcurrentMap<String, CompletableFuture<CachedListing>> inFlight = new ConcurrentHashMap<>();
+
+    /**
+     * directories found too large to be cached with time until which they aren't tried again
+     */
+    private final ConcurrentMap<String, Long> tooLarge = new ConcurrentHashMap<>();
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong revalidations = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final AtomicLong coalesced = new AtomicLong();
+
+    private final AtomicLong evictions = new AtomicLong();
+
+    public boolean isEnabled() {
+        return config.isListCacheEnabled();
+    }
+
+    /**
+     * Pass directory entries to visitor taking them from cache, loading or revalidating it if needed
+     * <p>
+     * Directory is enumerated only once: entries being loaded are passed to visitor as they arrive. Directory found
+     * too large to be cached is marked as such as soon as it overflows and is listed straight from share afterwards.
+     *
+     * @param share name of SMB/CIFS share
+     * @param path path to target folder in given share
+     * @param visitor receiver of directory entries
+     * @throws IOException if any IO errors occur
+     */
+    public void enumerate(String share, String path, ListingVisitor visitor) throws IOException {
+        String key = key(share, path);
+        CachedListing cached;
+        synchronized (cache) {
+            cached = cache.get(key);
+        }
+        long now = System.currentTimeMillis();
+        if (cached != null && now - cached.validatedAt < TimeUnit.SECONDS.toMillis(config.getListCacheTtlSeconds())) {
+            hits.incrementAndGet();
+            visitAll(cached.entries, visitor);
+            return;
+        }
+        Long retryAt = tooLarge.get(key);
+        if (retryAt != null) {
+            if (now < retryAt) {
+                misses.incrementAndGet();
+                cifsClient.listShareContent(share, path, visitor);
+                return;
+            }
+            tooLarge.remove(key, retryAt);
+        }
+
+        CompletableFuture<CachedListing> loading = new CompletableFuture<>();
+        CompletableFuture<CachedListing> existing = inFlight.putIfAbsent(key, loading);
+        if (existing != null) {
+            coalesced.incrementAndGet();
+            List<FileOrDirectoryInfo> entries = await(existing).entries;
+            if (entries != null) {
+                visitAll(entries, visitor);
+            } else {
+                cifsClient.listShareContent(share, path, visitor);
+            }
+            return;
+        }
+        CachedListing loaded = NOT_CACHED;
+        try {
+            boolean revalidated = false;
+            try ( PooledShare pooledShare = sessionPool.borrowShare(share)) {
+                long dirChangeTime = cifsClient.getChangeTime(pooledShare.getShare(), path);
+                long loadedAt = System.currentTimeMillis();
+                if (cached != null && cached.dirChangeTime == dirChangeTime
+                        && loadedAt - cached.loadedAt < TimeUnit.SECONDS.toMillis(config.getListCacheMaxAgeSeconds())) {
+                    revalidations.incrementAndGet();
+                    revalidated = true;
+                    loaded = new CachedListing(cached.entries, dirChangeTime, cached.loadedAt, loadedAt);
+                } else {
+                    misses.incrementAndGet();
+                    loaded = load(key, pooledShare.getShare(), path, dirChangeTime, loadedAt, visitor);
+                }
+            }
+            synchronized (cache) {
+                if (loaded.entries != null) {
+                    cache.put(key, loaded);
+                } else {
+                    cache.remove(key);
+                }
+            }
+            if (revalidated) {
+                visitAll(loaded.entries, visitor);
+            }
+        } finally {
+            // waiters list directory themselves if it couldn't be loaded
+            loading.complete(loaded);
+            inFlight.remove(key, loading);
+        }
+    }
+
+    /**
+     * Drop cached listing of given directory
+     *
+     * @param share name of SMB/CIFS share
+     * @param path path to folder in given share
+     */
+    public void invalidate(String share, String path) {
+        String key = key(share, path);
+        synchronized (cache) {
+            cache.remove(key);
+        }
+        tooLarge.remove(key);
+    }
+
+    private static String key(String share, String path) {
+        return share + '/' + CifsClient.trimSlashes(path);
+    }
+
+    /**
+     * List directory passing entries to visitor and collecting them for cache, enumeration continues after visitor
+     * stops until listing is complete or directory turns out to be too large
+     */
+    private CachedListing load(String key, DiskShare share, String path, long dirChangeTime, long loadedAt,
+            ListingVisitor visitor) throws IOException {
+        int maxEntries = config.getListCacheMaxDirectoryEntries();
+        List<FileOrDirectoryInfo> entries = new ArrayList<>();
+        boolean[] visiting = {true};
+        boolean[] overflow = {false};
+        cifsClient.listShareContent(share, path, entry -> {
+            if (!overflow[0]) {
+                if (entries.size() < maxEntries) {
+                    entries.add(entry);
+                } else {
+                    overflow[0] = true;
+                    entries.clear();
+                    markTooLarge(key);
+                    LOG.debug("directory {} has more than {} entries and won't be cached", key, maxEntries);
+                }
+            }
+            if (visiting[0]) {
+                visiting[0] = visitor.visit(entry);
+            }
+            return visiting[0] || !overflow[0];
+        });
+        if (overflow[0]) {
+            return NOT_CACHED;
+        }
+        return new CachedListing(Collections.unmodifiableList(entries), dirChangeTime, loadedAt, loadedAt);
+    }
+
+    private void markTooLarge(String key) {
+        if (tooLarge.size() >= config.getListCacheMaxDirectories()) {
+            tooLarge.clear();
+        }
+        tooLarge.put(key, System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(config.getListCacheMaxAgeSeconds()));
+    }
+
+    private static void visitAll(List<FileOrDirectoryInfo> entries, ListingVisitor visitor) throws IOException {
+        for (FileOrDirectoryInfo entry : entries) {
+            if (!visitor.visit(entry)) {
+                return;
+            }
+        }
+    }
+
+    private static CachedListing await(CompletableFuture<CachedListing> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException exc) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for directory listing");
+        } catch (ExecutionException exc) {
+            return NOT_CACHED;
+        }
+    }
+
+    /**
+     * @return cache statistics
+     */
+    public Map<String, Long> getStats() {
+        Map<String, Long> stats = new LinkedHashMap<>();
+        stats.put("hits", hits.get() + revalidations.get());
+        stats.put("misses", misses.get());
+        stats.put("revalidations", revalidations.get());
+        stats.put("coalesced", coalesced.get());
+        stats.put("evictions", evictions.get());
+        synchronized (cache) {
+            stats.put("size", (long) cache.size());
+        }
+        return stats;
+    }
+
+    private static class CachedListing {
+
+        private final List<FileOrDirectoryInfo> entries;
+
+        private final long dirChangeTime;
+
+        private final long loadedAt;
+
+        private final long validatedAt;
+
+        CachedListing(List<FileOrDirectoryInfo> entries, long dirChangeTime, long loadedAt, long validatedAt) {
+            this.entries = entries;
+            this.dirChangeTime = dirChangeTime;
+            this.loadedAt = loadedAt;
+            this.validatedAt = validatedAt;
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package io.sesam.cifs.service;
+
+import java.io.IOException;
+
+/**
+ * Consumer of directory entries enumerated by {@link CifsClient}
+ *
+ * @author Timur Samkharadze
+ */
+@FunctionalInterface
+public interface ListingVisitor {
+
+    /**
+     * process next directory entry
+     *
+     * @param entry directory entry
+     * @return true to continue enumeration, false to stop
+     * @throws IOException if any IO errors occur
+     */
+    boolean visit(FileOrDirectoryInfo entry) throws IOException;
+}
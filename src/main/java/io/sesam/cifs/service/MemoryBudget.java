@@ -0,0 +1,174 @@
+package io.sesam.cifs.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.PostConstruct;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/**
+ * Process wide budget of heap bytes used by file content buffers.
+ * <p>
+ * Downloads and uploads reserve their transfer buffers, transform and archive requests reserve files they fetch ahead
+ * into memory. Reservations are granted in arrival order, waiting ones time out after CIFS_MEMORY_BUDGET_WAIT_SECONDS.
+ * Budget is CIFS_MEMORY_BUDGET_BYTES or half of max heap if it isn't set.
+ * <p>
+ * Meters:
+ * <ul>
+ * <li>cifs.memory.budget - gauge of budget size in bytes</li>
+ * <li>cifs.memory.reserved - gauge of reserved bytes per purpose</li>
+ * <li>cifs.memory.waiting - gauge of reservations waiting for budget</li>
+ * <li>cifs.memory.rejected - counter of reservations not granted per purpose</li>
+ * </ul>
+ *
+ * @author Timur Samkharadze
+ */
+@Component
+public class MemoryBudget {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MemoryBudget.class);
+
+    @Autowired
+    private CifsConfig config;
+
+    @Autowired
+    private MeterRegistry registry;
+
+    private long maxBytes;
+
+    private long reservedBytes;
+
+    private final Deque<Object> waiting = new ArrayDeque<>();
+
+    private final ConcurrentMap<String, AtomicLong> reservedByPurpose = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    public void initBudget() {
+        this.maxBytes = config.getMemoryBudgetBytes() > 0 ? config.getMemoryBudgetBytes()
+                : Runtime.getRuntime().maxMemory() / 2;
+        Gauge.builder("cifs.memory.budget", this, budget -> budget.maxBytes)
+                .baseUnit("bytes")
+                .register(registry);
+        Gauge.builder("cifs.memory.waiting", this, MemoryBudget::getWaiting)
+                .register(registry);
+        LOG.info("memory budget of file buffers is {} bytes", maxBytes);
+    }
+
+    /**
+     * Reserve bytes if budget has room for them right now and nobody is waiting for it
+     *
+     * @param purpose purpose tag of reservation
+     * @param bytes number of bytes
+     * @return true if bytes are reserved and must be released
+     */
+    public synchronized boolean tryReserve(String purpose, long bytes) {
+        if (!waiting.isEmpty() || reservedBytes + bytes > maxBytes) {
+            rejected(purpose).increment();
+            return false;
+        }
+        granted(purpose, bytes);
+        return true;
+    }
+
+    /**
+     * Reserve bytes waiting up to CIFS_MEMORY_BUDGET_WAIT_SECONDS for budget to have room for them
+     *
+     * @param purpose purpose tag of reservation
+     * @param bytes number of bytes
+     * @throws RejectedException if bytes couldn't be reserved in time or are more than whole budget
+     * @throws InterruptedIOException if interrupted while waiting
+     */
+    public synchronized void reserve(String purpose, long bytes) throws IOException {
+        if (bytes > maxBytes) {
+            rejected(purpose).increment();
+            throw new RejectedException(String.format("%d bytes requested for %s exceed memory budget", bytes,
+                    purpose));
+        }
+        Object turn = new Object();
+        waiting.addLast(turn);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(config.getMemoryBudgetWaitSeconds());
+        try {
+            while (waiting.peekFirst() != turn || reservedBytes + bytes > maxBytes) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    rejected(purpose).increment();
+                    throw new RejectedException(String.format("memory budget exhausted, %d bytes for %s not reserved",
+                            bytes, purpose));
+                }
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            }
+            granted(purpose, bytes);
+        } catch (InterruptedException exc) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for memory budget");
+        } finally {
+            waiting.remove(turn);
+            notifyAll();
+        }
+    }
+
+    /**
+     * Release reserved bytes
+     *
+     * @param purpose purpose tag given at reservation
+     * @param bytes number of reserved bytes
+     */
+    public synchronized void release(String purpose, long bytes) {
+        if (bytes <= 0) {
+            return;
+        }
+        reservedBytes -= bytes;
+        reserved(purpose).addAndGet(-bytes);
+        notifyAll();
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public synchronized long getReservedBytes() {
+        return reservedBytes;
+    }
+
+    public synchronized int getWaiting() {
+        return waiting.size();
+    }
+
+    private void granted(String purpose, long bytes) {
+        reservedBytes += bytes;
+        reserved(purpose).addAndGet(bytes);
+    }
+
+    private AtomicLong reserved(String purpose) {
+        return reservedByPurpose.computeIfAbsent(purpose, p -> registry.gauge("cifs.memory.reserved",
+                Tags.of("purpose", p), new AtomicLong()));
+    }
+
+    private Counter rejected(String purpose) {
+        return registry.counter("cifs.memory.rejected", "purpose", purpose);
+    }
+
+    /**
+     * Memory budget has no room for reservation
+     */
+    public static class RejectedException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        RejectedException(String message) {
+            super(message);
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package io.sesam.cifs.service;
+
+import com.hierynomus.smbj.share.DiskShare;
+
+/**
+ * Connected disk share borrowed from {@link SmbSessionPool}.
+ * <p>
+ * Must be closed to return share back to pool, closing doesn't disconnect underlying share.
+ *
+ * @author Timur Samkharadze
+ */
+public class PooledShare implements AutoCloseable {
+
+    private final SmbSessionPool pool;
+
+    private final String key;
+
+    private final DiskShare share;
+
+    private boolean invalid;
+
+    private boolean released;
+
+    PooledShare(SmbSessionPool pool, String key, DiskShare share) {
+        this.pool = pool;
+        this.key = key;
+        this.share = share;
+    }
+
+    public DiskShare getShare() {
+        return share;
+    }
+
+    String getKey() {
+        return key;
+    }
+
+    boolean isInvalid() {
+        return invalid;
+    }
+
+    /**
+     * Mark share as broken, it will be disconnected instead of returning to pool
+     */
+    public void invalidate() {
+        this.invalid = true;
+    }
+
+    @Override
+    public void close() {
+        if (!released) {
+            released = true;
+            pool.release(this);
+        }
+    }
+}
@@ -13,6 +13,8 @@ public class SesamFileRequestEntity {
     
     @JsonProperty("root")
     private String xmlRoot;
+    
+    private String profile;
 
     public String getXmlRoot() {
         return xmlRoot;
@@ -22,6 +24,14 @@ public class SesamFileRequestEntity {
         this.xmlRoot = xmlRoot;
     }
 
+    public String getProfile() {
+        return profile;
+    }
+
+    public void setProfile(String profile) {
+        this.profile = profile;
+    }
+
     public String getFileName() {
         return fileName;
     }
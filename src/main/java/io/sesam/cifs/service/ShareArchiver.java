@@ -0,0 +1,343 @@
+package io.sesam.cifs.service;
+
+import com.hierynomus.msfscc.fileinformation.FileAllInformation;
+import com.hierynomus.smbj.share.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/**
+ * Streams many share files as single ZIP or TAR archive.
+ * <p>
+ * Up to CIFS_ARCHIVE_CONCURRENCY files are fetched concurrently over pooled shares while entries are written in
+ * request order. Total size of fetched but not yet written files is limited by CIFS_ARCHIVE_READ_AHEAD_BYTES, files
+ * larger than CIFS_ARCHIVE_IN_MEMORY_MAX_BYTES or not fitting into process wide memory budget are not fetched ahead but
+ * streamed from share when their turn comes. Nothing is staged on local disk, content of files found in local file
+ * cache is read from it. Source files are deleted by caller once whole archive is sent.
+ *
+ * @author Timur Samkharadze
+ */
+@Component
+public class ShareArchiver {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ShareArchiver.class);
+
+    @Autowired
+    private CifsConfig config;
+
+    @Autowired
+    private CifsClient cifsClient;
+
+    @Autowired
+    private TreeWalker treeWalker;
+
+    @Autowired
+    private FileContentCache fileContentCache;
+
+    @Autowired
+    private MemoryBudget memoryBudget;
+
+    private ExecutorService fetchExecutor;
+
+    /**
+     * Supported archive formats
+     */
+    public enum Format {
+        ZIP("application/zip", "zip"),
+        TAR("application/x-tar", "tar");
+
+        private final String contentType;
+
+        private final String extension;
+
+        Format(String contentType, String extension) {
+            this.contentType = contentType;
+            this.extension = extension;
+        }
+
+        public String getContentType() {
+            return contentType;
+        }
+
+        public String getExtension() {
+            return extension;
+        }
+    }
+
+    @PostConstruct
+    public void initArchiver() {
+        AtomicInteger counter = new AtomicInteger();
+        this.fetchExecutor = Executors.newFixedThreadPool(Math.max(1, config.getArchiveConcurrency()), r -> {
+            Thread thread = new Thread(r, "archive-fetch-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        fetchExecutor.shutdownNow();
+    }
+
+    /**
+     * Resolve files of archive request into list of paths relative to share root
+     *
+     * @param share name of SMB/CIFS share
+     * @param request explicit paths and/or glob pattern matched under request path
+     * @return distinct file paths in request order, followed by files matching glob
+     * @throws IOException if glob walk fails
+     */
+    public List<String> resolvePaths(String share, ArchiveRequestEntity request) throws IOException {
+        boolean hasGlob = request.getGlob() != null && !request.getGlob().isEmpty();
+        if ((request.getPaths() == null || request.getPaths().isEmpty()) && !hasGlob) {
+            throw new IllegalArgumentException("either paths or glob must be given");
+        }
+        Set<String> paths = new LinkedHashSet<>();
+        if (request.getPaths() != null) {
+            for (String path : request.getPaths()) {
+                String trimmed = path == null ? "" : CifsClient.trimSlashes(path);
+                if (!trimmed.isEmpty()) {
+                    paths.add(trimmed);
+                }
+            }
+        }
+        if (hasGlob) {
+            String root = request.getPath() == null ? "" : request.getPath();
+            treeWalker.walk(share, root, 0, request.getGlob(), entry -> {
+                if (!entry.isIsDirectory()) {
+                    paths.add(entry.getPath());
+                }
+                return true;
+            });
+        }
+        return new ArrayList<>(paths);
+    }
+
+    /**
+     * Write given files as archive entries named by their path into given stream, stream isn't closed
+     *
+     * @param share name of SMB/CIFS share
+     * @param paths paths to files relative to share root
+     * @param format archive format
+     * @param out destination stream
+     * @return paths of archived files, to be deleted by {@link CifsClient#deleteAfterDownload(String, List)} only once
+     * response is completed
+     * @throws IOException if any file can't be read or any other IO errors occur
+     */
+    public List<String> archive(String share, List<String> paths, Format format, OutputStream out)
+            throws IOException {
+        EntrySink sink = format == Format.ZIP ? new ZipSink(out) : new TarSink(out);
+        int window = Math.max(1, config.getArchiveConcurrency()) * 2;
+        InFlightBudget budget = new InFlightBudget(config.getArchiveReadAheadBytes(), memoryBudget, "archive", 1);
+        Deque<CompletableFuture<Fetched>> inFlight = new ArrayDeque<>(window);
+        Iterator<String> pending = paths.iterator();
+        List<String> archived = new ArrayList<>(paths.size());
+        try {
+            while (pending.hasNext() || !inFlight.isEmpty()) {
+                while (pending.hasNext() && inFlight.size() < window && (inFlight.isEmpty() || budget.hasRoom())) {
+                    String path = pending.next();
+                    inFlight.addLast(CompletableFuture.supplyAsync(() -> fetch(share, path, budget), fetchExecutor));
+                }
+                Fetched fetched = await(inFlight.peekFirst());
+                inFlight.pollFirst();
+                if (fetched.data != null) {
+                    sink.putEntry(fetched.path, fetched.data.length, fetched.modifiedMillis).write(fetched.data);
+                    sink.closeEntry();
+                    budget.release(fetched.data.length);
+                } else {
+                    streamFromShare(share, fetched.path, sink);
+                }
+                archived.add(fetched.path);
+            }
+            sink.finish();
+            return archived;
+        } finally {
+            for (CompletableFuture<Fetched> future : inFlight) {
+                future.cancel(true);
+            }
+            budget.abort();
+        }
+    }
+
+    private Fetched fetch(String share, String path, InFlightBudget budget) {
+        try ( PooledShare pooledShare = cifsClient.borrowShare(share)) {
+            byte[] data;
+            long modifiedMillis;
+            try ( File sharedFile = cifsClient.openFile(pooledShare.getShare(), path)) {
+                FileAllInformation fileInfo = sharedFile.getFileInformation();
+                long size = fileInfo.getStandardInformation().getEndOfFile();
+                modifiedMillis = fileInfo.getBasicInformation().getLastWriteTime().toEpochMillis();
+                if (size > Math.min(config.getArchiveInMemoryMaxBytes(), Integer.MAX_VALUE - 8)) {
+                    return new Fetched(path, null, modifiedMillis);
+                }
+                if (!budget.tryAcquire(size)) {
+                    LOG.debug("no budget to fetch file {} ahead, it will be streamed", path);
+                    return new Fetched(path, null, modifiedMillis);
+                }
+                FileContentCache.Entry cached = fileContentCache.get(share, path,
+                        fileInfo.getBasicInformation().getChangeTime().getWindowsTimeStamp(), size);
+                if (cached != null) {
+                    try {
+                        data = cached.readAllBytes();
+                    } finally {
+                        cached.close();
+                    }
+                } else {
+                    data = new byte[(int) size];
+                    cifsClient.readFile(sharedFile, data);
+                }
+            }
+            return new Fetched(path, data, modifiedMillis);
+        } catch (IOException exc) {
+            throw new CompletionException(exc);
+        }
+    }
+
+    /**
+     * Write large file as archive entry reading it directly from share without loading it into memory
+     */
+    private void streamFromShare(String share, String path, EntrySink sink) throws IOException {
+        try ( PooledShare pooledShare = cifsClient.borrowShare(share)) {
+            try ( File sharedFile = cifsClient.openFile(pooledShare.getShare(), path)) {
+                FileAllInformation fileInfo = sharedFile.getFileInformation();
+                long size = fileInfo.getStandardInformation().getEndOfFile();
+                OutputStream entry = sink.putEntry(path, size,
+                        fileInfo.getBasicInformation().getLastWriteTime().toEpochMillis());
+                FileContentCache.Entry cached = fileContentCache.get(share, path,
+                        fileInfo.getBasicInformation().getChangeTime().getWindowsTimeStamp(), size);
+                if (cached != null) {
+                    try {
+                        cached.transfer(0, size, entry);
+                    } finally {
+                        cached.close();
+                    }
+                } else {
+                    cifsClient.transferFile(sharedFile, 0, size, entry);
+                }
+                sink.closeEntry();
+            }
+            LOG.debug("streamed file {} into archive", path);
+        }
+    }
+
+    private static Fetched await(CompletableFuture<Fetched> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException exc) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for archived file");
+        } catch (ExecutionException exc) {
+            Throwable cause = exc.getCause() instanceof CompletionException ? exc.getCause().getCause() : exc.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    private static class Fetched {
+
+        private final String path;
+
+        private final byte[] data;
+
+        private final long modifiedMillis;
+
+        Fetched(String path, byte[] data, long modifiedMillis) {
+            this.path = path;
+            this.data = data;
+            this.modifiedMillis = modifiedMillis;
+        }
+    }
+
+    /**
+     * Archive being written
+     */
+    private interface EntrySink {
+
+        OutputStream putEntry(String name, long size, long modifiedMillis) throws IOException;
+
+        void closeEntry() throws IOException;
+
+        void finish() throws IOException;
+    }
+
+    private static class ZipSink implements EntrySink {
+
+        private final ZipOutputStream zip;
+
+        ZipSink(OutputStream out) {
+            this.zip = new ZipOutputStream(out);
+        }
+
+        @Override
+        public OutputStream putEntry(String name, long size, long modifiedMillis) throws IOException {
+            ZipEntry entry = new ZipEntry(name);
+            entry.setTime(modifiedMillis);
+            entry.setSize(size);
+            zip.putNextEntry(entry);
+            return zip;
+        }
+
+        @Override
+        public void closeEntry() throws IOException {
+            zip.closeEntry();
+        }
+
+        @Override
+        public void finish() throws IOException {
+            zip.finish();
+            zip.flush();
+        }
+    }
+
+    private static class TarSink implements EntrySink {
+
+        private final TarOutputStream tar;
+
+        TarSink(OutputStream out) {
+            this.tar = new TarOutputStream(out);
+        }
+
+        @Override
+        public OutputStream putEntry(String name, long size, long modifiedMillis) throws IOException {
+            tar.putEntry(name, size, modifiedMillis);
+            return tar;
+        }
+
+        @Override
+        public void closeEntry() throws IOException {
+            tar.closeEntry();
+        }
+
+        @Override
+        public void finish() throws IOException {
+            tar.finish();
+            tar.flush();
+        }
+    }
+}
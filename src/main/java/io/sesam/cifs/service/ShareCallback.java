@@ -0,0 +1,23 @@
+package io.sesam.cifs.service;
+
+import com.hierynomus.smbj.share.DiskShare;
+import java.io.IOException;
+
+/**
+ * Callback executed with connected disk share borrowed from {@link SmbSessionPool}
+ *
+ * @author Timur Samkharadze
+ * @param <T> result type
+ */
+@FunctionalInterface
+public interface ShareCallback<T> {
+
+    /**
+     * perform operation on connected share
+     *
+     * @param share connected SMB disk share
+     * @return operation result
+     * @throws IOException if any IO errors occur
+     */
+    T doWithShare(DiskShare share) throws IOException;
+}
@@ -0,0 +1,411 @@
+package io.sesam.cifs.service;
+
+import com.hierynomus.msfscc.FileNotifyAction;
+import com.hierynomus.mssmb2.SMBApiException;
+import com.hierynomus.mssmb2.messages.SMB2ChangeNotifyResponse;
+import com.hierynomus.smbj.share.Directory;
+import com.hierynomus.smbj.share.DiskShare;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/**
+ * Watches directories using SMB2 CHANGE_NOTIFY and keeps in-memory journal of their changes.
+ * <p>
+ * Every watched directory has its own thread holding open directory handle and pending CHANGE_NOTIFY request on share
+ * connected in its own session, so watches never disconnect pooled shares.
+ * Reported changes are appended to bounded journal consumers read from with cursor. When notifications are lost
+ * (server buffer overflow or reconnect) directory is listed once and diffed against previous listing, so events are
+ * delivered at least once. Consumers whose cursor is older than journal are told to resync with full listing.
+ * Directories from CIFS_WATCH_PATHS are watched from startup, others are watched on demand until not requested for
+ * CIFS_WATCH_IDLE_TIMEOUT_SECONDS. On demand watch whose directory can't be opened at first is dropped and fails poll
+ * which started it, later failures are retried.
+ *
+ * @author Timur Samkharadze
+ */
+@Component
+public class ShareWatcher {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ShareWatcher.class);
+
+    private static final long RETRY_DELAY_MILLIS = 5000;
+
+    private static final String ACTION_PREFIX = "FILE_ACTION_";
+
+    @Autowired
+    private CifsConfig config;
+
+    @Autowired
+    private CifsClient cifsClient;
+
+    @Autowired
+    private SmbSessionPool sessionPool;
+
+    @Autowired
+    private ListingCache listingCache;
+
+    private final ConcurrentMap<String, DirectoryWatch> watches = new ConcurrentHashMap<>();
+
+    private ScheduledExecutorService reaper;
+
+    @PostConstruct
+    public void initWatcher() {
+        this.reaper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "smb-watch-reaper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long interval = Math.max(1, Math.min(60, config.getWatchIdleTimeoutSeconds()));
+        this.reaper.scheduleWithFixedDelay(this::stopIdle, interval, interval, TimeUnit.SECONDS);
+        String watchPaths = config.getWatchPaths();
+        if (watchPaths == null || watchPaths.trim().isEmpty()) {
+            return;
+        }
+        for (String sharePath : watchPaths.split(",")) {
+            String[] parts = CifsClient.trimSlashes(sharePath.trim()).split("/", 2);
+            getWatch(parts[0], parts.length > 1 ? parts[1] : "", true);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        reaper.shutdownNow();
+        for (DirectoryWatch watch : watches.values()) {
+            watch.stop();
+        }
+        watches.clear();
+    }
+
+    /**
+     * Read changes of directory after given cursor waiting for them if there are none yet, starts watching directory
+     * if it isn't watched
+     *
+     * @param share name of SMB/CIFS share
+     * @param path path to directory in given share
+     * @param cursor cursor returned with previous changes or null to start from now
+     * @param timeoutSeconds max time to wait for changes, limited by CIFS_WATCH_POLL_TIMEOUT_SECONDS
+     * @param limit max number of events to return
+     * @return changes after cursor, resync flag is set if consumer must re-list directory
+     * @throws FileNotFoundException if directory doesn't exist
+     * @throws IOException if directory can't be watched or waiting was interrupted
+     */
+    public ChangeBatch poll(String share, String path, String cursor, int timeoutSeconds, int limit)
+            throws IOException {
+        DirectoryWatch watch = getWatch(share, CifsClient.trimSlashes(path), false);
+        watch.awaitOpened(TimeUnit.SECONDS.toMillis(Math.max(1, config.getSmbTimeoutSeconds())));
+        long timeout = TimeUnit.SECONDS.toMillis(Math.max(0, Math.min(timeoutSeconds,
+                config.getWatchPollTimeoutSeconds())));
+        watch.lastAccess = System.currentTimeMillis();
+        try {
+            return watch.journal.read(cursor, timeout, Math.max(1, limit));
+        } catch (InterruptedException exc) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for directory changes");
+        } finally {
+            watch.lastAccess = System.currentTimeMillis();
+        }
+    }
+
+    private DirectoryWatch getWatch(String share, String path, boolean pinned) {
+        String key = share + '/' + path;
+        DirectoryWatch watch = watches.get(key);
+        if (watch != null) {
+            return watch;
+        }
+        if (watches.size() >= config.getWatchMaxDirectories()) {
+            throw new IllegalStateException(String.format("max number of %d watched directories reached",
+                    config.getWatchMaxDirectories()));
+        }
+        DirectoryWatch created = new DirectoryWatch(share, path, pinned);
+        watch = watches.putIfAbsent(key, created);
+        if (watch != null) {
+            return watch;
+        }
+        created.start();
+        return created;
+    }
+
+    private void stopIdle() {
+        long idleSince = System.currentTimeMillis() - TimeUnit.SECONDS.toMillis(config.getWatchIdleTimeoutSeconds());
+        for (Map.Entry<String, DirectoryWatch> entry : watches.entrySet()) {
+            DirectoryWatch watch = entry.getValue();
+            if (!watch.pinned && watch.lastAccess < idleSince && watches.remove(entry.getKey(), watch)) {
+                LOG.debug("stopping idle watch of {} on share {}", watch.path, watch.share);
+                watch.stop();
+            }
+        }
+    }
+
+    /**
+     * Watch of single directory
+     */
+    private class DirectoryWatch implements Runnable {
+
+        private final String share;
+
+        private final String path;
+
+        private final boolean pinned;
+
+        private final ChangeJournal journal = new ChangeJournal(config.getWatchJournalSize());
+
+        private final Thread thread;
+
+        private volatile long lastAccess = System.currentTimeMillis();
+
+        private volatile boolean running = true;
+
+        private volatile Directory directory;
+
+        /**
+         * completed once directory is opened and listed first time
+         */
+        private final CompletableFuture<Void> opened = new CompletableFuture<>();
+
+        private Map<String, FileOrDirectoryInfo> snapshot;
+
+        DirectoryWatch(String share, String path, boolean pinned) {
+            this.share = share;
+            this.path = path;
+            this.pinned = pinned;
+            this.thread = new Thread(this, "smb-watch-" + share + '/' + path);
+            this.thread.setDaemon(true);
+        }
+
+        void start() {
+            thread.start();
+        }
+
+        void stop() {
+            running = false;
+            Directory current = directory;
+            if (current != null) {
+                current.closeSilently();
+            }
+            thread.interrupt();
+        }
+
+        /**
+         * Wait until directory is opened first time, directory still being opened after timeout is polled as usual
+         *
+         * @throws IOException if directory couldn't be opened and watch was dropped
+         */
+        void awaitOpened(long timeoutMillis) throws IOException {
+            try {
+                opened.get(timeoutMillis, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException exc) {
+                LOG.debug("watch of {} on share {} isn't open yet", path, share);
+            } catch (ExecutionException exc) {
+                throw (IOException) exc.getCause();
+            } catch (InterruptedException exc) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while opening watched directory");
+            }
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                DiskShare connectedShare = null;
+                try {
+                    connectedShare = sessionPool.connectShare(share);
+                    try ( Directory watched = cifsClient.openDirectoryForWatch(connectedShare, path)) {
+                        directory = watched;
+                        resync(connectedShare);
+                        opened.complete(null);
+                        while (running) {
+                            List<SMB2ChangeNotifyResponse.FileNotifyInfo> changes = cifsClient.waitForChanges(watched);
+                            if (!running) {
+                                break;
+                            }
+                            if (changes == null) {
+                                LOG.debug("change notifications of {} on share {} lost, resyncing", path, share);
+                                resync(connectedShare);
+                            } else {
+                                record(changes);
+                            }
+                        }
+                    }
+                } catch (IOException | RuntimeException exc) {
+                    if (!running) {
+                        break;
+                    }
+                    if (!pinned && !opened.isDone()) {
+                        LOG.debug("couldn't open watched directory {} on share {}", path, share, exc);
+                        running = false;
+                        watches.remove(share + '/' + path, this);
+                        opened.completeExceptionally(openFailure(exc));
+                        break;
+                    }
+                    LOG.warn("watch of {} on share {} failed, retrying in {} ms", path, share, RETRY_DELAY_MILLIS,
+                            exc);
+                    try {
+                        Thread.sleep(RETRY_DELAY_MILLIS);
+                    } catch (InterruptedException ie) {
+                        break;
+                    }
+                } finally {
+                    directory = null;
+                    if (connectedShare != null) {
+                        sessionPool.disconnect(connectedShare);
+                    }
+                }
+            }
+        }
+
+        private IOException openFailure(Exception exc) {
+            if (exc instanceof SMBApiException && CifsClient.isNotFound((SMBApiException) exc)) {
+                return new FileNotFoundException(String.format("Directory %s doesn't exist on remote share", path));
+            }
+            if (exc instanceof IOException) {
+                return (IOException) exc;
+            }
+            return new IOException(String.format("couldn't watch directory %s: %s", path, exc.getMessage()), exc);
+        }
+
+        private void record(List<SMB2ChangeNotifyResponse.FileNotifyInfo> changes) {
+            for (SMB2ChangeNotifyResponse.FileNotifyInfo change : changes) {
+                FileNotifyAction action = change.getAction();
+                String actionName = action == null ? "UNKNOWN" : action.name().replace(ACTION_PREFIX, "");
+                journal.append(actionName, change.getFileName().replace('\\', '/'), path);
+            }
+            listingCache.invalidate(share, path);
+        }
+
+        /**
+         * List directory and record differences to previous listing, first listing only becomes base for next diff
+         */
+        private void resync(DiskShare connectedShare) throws IOException {
+            Map<String, FileOrDirectoryInfo> current = new HashMap<>();
+            cifsClient.listShareContent(connectedShare, path, entry -> {
+                current.put(entry.getName(), entry);
+                return true;
+            });
+            Map<String, FileOrDirectoryInfo> previous = snapshot;
+            snapshot = current;
+            if (previous == null) {
+                return;
+            }
+            for (FileOrDirectoryInfo entry : current.values()) {
+                FileOrDirectoryInfo known = previous.get(entry.getName());
+                if (known == null) {
+                    journal.append("ADDED", entry.getName(), path);
+                } else if (known.getChangeTimeWindowsTs() != entry.getChangeTimeWindowsTs()
+                        || known.getSize() != entry.getSize()) {
+                    journal.append("MODIFIED", entry.getName(), path);
+                }
+            }
+            for (String name : previous.keySet()) {
+                if (!current.containsKey(name)) {
+                    journal.append("REMOVED", name, path);
+                }
+            }
+            listingCache.invalidate(share, path);
+        }
+    }
+
+    /**
+     * Bounded journal of directory changes, cursor is "epoch:sequence" where epoch identifies journal instance
+     */
+    static class ChangeJournal {
+
+        private final String epoch = Long.toString(System.currentTimeMillis(), 36);
+
+        private final int capacity;
+
+        private final Deque<ChangeEvent> events = new ArrayDeque<>();
+
+        private long lastSequence;
+
+        ChangeJournal(int capacity) {
+            this.capacity = Math.max(1, capacity);
+        }
+
+        synchronized void append(String action, String name, String dir) {
+            ChangeEvent event = new ChangeEvent();
+            event.setSequence(++lastSequence);
+            event.setCursor(epoch + ':' + lastSequence);
+            event.setAction(action);
+            event.setName(name);
+            event.setPath(dir.isEmpty() ? name : dir + '/' + name);
+            event.setTimestamp(System.currentTimeMillis());
+            events.addLast(event);
+            if (events.size() > capacity) {
+                events.removeFirst();
+            }
+            notifyAll();
+        }
+
+        synchronized ChangeBatch read(String cursor, long timeoutMillis, int limit) throws InterruptedException {
+            ChangeBatch batch = new ChangeBatch();
+            long after = lastSequence;
+            if (cursor != null && !cursor.isEmpty()) {
+                long requested = parseCursor(cursor);
+                long oldest = events.isEmpty() ? lastSequence + 1 : events.peekFirst().getSequence();
+                if (requested < 0 || requested > lastSequence || requested < oldest - 1) {
+                    batch.setResync(true);
+                } else {
+                    after = requested;
+                }
+            }
+            if (!batch.isResync()) {
+                long deadline = System.currentTimeMillis() + timeoutMillis;
+                long remaining = timeoutMillis;
+                while (lastSequence <= after && remaining > 0) {
+                    wait(remaining);
+                    remaining = deadline - System.currentTimeMillis();
+                }
+            }
+            List<ChangeEvent> result = new ArrayList<>();
+            if (lastSequence > after) {
+                for (ChangeEvent event : events) {
+                    if (event.getSequence() > after) {
+                        result.add(event);
+                        if (result.size() == limit) {
+                            break;
+                        }
+                    }
+                }
+            }
+            batch.setEvents(result.isEmpty() ? Collections.emptyList() : result);
+            batch.setCursor(result.isEmpty() ? epoch + ':' + after : result.get(result.size() - 1).getCursor());
+            return batch;
+        }
+
+        /**
+         * @return sequence from cursor or -1 if cursor is malformed or belongs to other journal
+         */
+        private long parseCursor(String cursor) {
+            int separator = cursor.lastIndexOf(':');
+            if (separator < 0 || !cursor.substring(0, separator).equals(epoch)) {
+                return -1;
+            }
+            try {
+                return Long.parseLong(cursor.substring(separator + 1));
+            } catch (NumberFormatException exc) {
+                return -1;
+            }
+        }
+    }
+}
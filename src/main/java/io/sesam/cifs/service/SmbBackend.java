@@ -0,0 +1,146 @@
+package io.sesam.cifs.service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import org.springframework.core.env.Environment;
+
+/**
+ * Connection settings of one named file server.
+ * <p>
+ * Backends are listed in CIFS_BACKENDS, every setting is read from CIFS_BACKEND_&lt;NAME&gt;_&lt;SETTING&gt; variable
+ * and defaults to global setting of the same name, e.g. CIFS_BACKEND_HQ_HOSTNAME or CIFS_BACKEND_HQ_POOL_MAX_PER_SHARE.
+ * Without CIFS_BACKENDS single backend named "default" is built from global settings.
+ *
+ * @author Timur Samkharadze
+ */
+class SmbBackend {
+
+    static final String DEFAULT_NAME = "default";
+
+    private final String name;
+    private final String hostname;
+    private final int port;
+    private final String username;
+    private final String password;
+    private final String domain;
+    private final int poolMaxPerShare;
+    private final int poolMaxTotal;
+    private final int poolBorrowTimeoutSeconds;
+    private final int poolIdleTimeoutSeconds;
+    private final int timeoutSeconds;
+
+    private SmbBackend(String name, Settings settings, CifsConfig config) {
+        this.name = name;
+        this.hostname = settings.get("HOSTNAME", config.getCifsHostname());
+        this.port = settings.getInt("PORT", config.getPort());
+        this.username = settings.get("USERNAME", config.getCifsUsername());
+        this.password = settings.get("PASSWORD", config.getPassword());
+        this.domain = settings.get("DOMAIN", config.getDomain());
+        this.poolMaxPerShare = settings.getInt("POOL_MAX_PER_SHARE", config.getPoolMaxPerShare());
+        this.poolMaxTotal = settings.getInt("POOL_MAX_TOTAL", config.getPoolMaxTotal());
+        this.poolBorrowTimeoutSeconds = settings.getInt("POOL_BORROW_TIMEOUT_SECONDS",
+                config.getPoolBorrowTimeoutSeconds());
+        this.poolIdleTimeoutSeconds = settings.getInt("POOL_IDLE_TIMEOUT_SECONDS", config.getPoolIdleTimeoutSeconds());
+        this.timeoutSeconds = settings.getInt("TIMEOUT_SECONDS", config.getSmbTimeoutSeconds());
+    }
+
+    /**
+     * Build configured backends
+     *
+     * @param config global settings
+     * @param environment source of per backend settings
+     * @return backends in configured order
+     */
+    static List<SmbBackend> fromConfig(CifsConfig config, Environment environment) {
+        List<SmbBackend> backends = new ArrayList<>();
+        String names = config.getBackends() == null ? "" : config.getBackends().trim();
+        if (names.isEmpty()) {
+            backends.add(new SmbBackend(DEFAULT_NAME, (setting, defaultValue) -> defaultValue, config));
+            return backends;
+        }
+        for (String name : names.split("\\s*,\\s*")) {
+            if (!name.matches("[A-Za-z0-9_-]+") || name.equals(DEFAULT_NAME)) {
+                throw new IllegalArgumentException(String.format("invalid backend name '%s'", name));
+            }
+            String prefix = "CIFS_BACKEND_" + name.toUpperCase(Locale.ROOT).replace('-', '_') + "_";
+            SmbBackend backend = new SmbBackend(name,
+                    (setting, defaultValue) -> environment.getProperty(prefix + setting, defaultValue), config);
+            if (backend.hostname == null || backend.hostname.isEmpty() || "null".equals(backend.hostname)) {
+                throw new IllegalArgumentException(String.format("%sHOSTNAME is not set", prefix));
+            }
+            backends.add(backend);
+        }
+        return backends;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getHostname() {
+        return hostname;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public String getPassword() {
+        return password;
+    }
+
+    public String getDomain() {
+        return domain;
+    }
+
+    public int getPoolMaxPerShare() {
+        return poolMaxPerShare;
+    }
+
+    public int getPoolMaxTotal() {
+        return poolMaxTotal;
+    }
+
+    public int getPoolBorrowTimeoutSeconds() {
+        return poolBorrowTimeoutSeconds;
+    }
+
+    public int getPoolIdleTimeoutSeconds() {
+        return poolIdleTimeoutSeconds;
+    }
+
+    public int getTimeoutSeconds() {
+        return timeoutSeconds;
+    }
+
+    @Override
+    public String toString() {
+        return "SmbBackend{"
+                + "name=" + name
+                + ", hostname=" + hostname
+                + ", port=" + port
+                + ", username=" + username
+                + ", domain=" + domain
+                + ", pool max per share=" + poolMaxPerShare
+                + ", pool max total=" + poolMaxTotal
+                + ", timeout=" + timeoutSeconds + '}';
+    }
+
+    /**
+     * Source of backend settings
+     */
+    private interface Settings {
+
+        String get(String setting, String defaultValue);
+
+        default int getInt(String setting, int defaultValue) {
+            String value = get(setting, null);
+            return value == null ? defaultValue : Integer.parseInt(value.trim());
+        }
+    }
+}
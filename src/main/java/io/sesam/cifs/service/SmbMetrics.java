@@ -0,0 +1,173 @@
+package io.sesam.cifs.service;
+
+import com.hierynomus.mssmb2.SMBApiException;
+import com.hierynomus.smbj.share.Share;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/**
+ * Micrometer instrumentation of SMB and transform operations, published by actuator on /actuator/prometheus.
+ * <p>
+ * Meters:
+ * <ul>
+ * <li>cifs.operation - timer with histogram per operation, share and outcome</li>
+ * <li>cifs.operations.active - gauge of operations in progress per operation</li>
+ * <li>cifs.bytes - counter of bytes read from, written to shares and sent to clients per share and direction</li>
+ * <li>cifs.errors - counter of failed operations per operation, share and NT status (exception type if there is no
+ * status)</li>
+ * </ul>
+ * Share tag is share name only for shares which were connected at least once, other names taken from request URLs are
+ * tagged as "unknown" so requests to nonexistent shares can't create unbounded number of meters.
+ *
+ * @author Timur Samkharadze
+ */
+@Component
+public class SmbMetrics {
+
+    /**
+     * share tag value of operations not bound to share such as connect and authenticate
+     */
+    public static final String NO_SHARE = "none";
+
+    /**
+     * share tag value of shares which were never connected
+     */
+    public static final String UNKNOWN_SHARE = "unknown";
+
+    @Autowired
+    private MeterRegistry registry;
+
+    private final Set<String> shareTags = ConcurrentHashMap.newKeySet();
+
+    private final ConcurrentMap<String, AtomicInteger> active = new ConcurrentHashMap<>();
+
+    /**
+     * Execute operation measuring its duration and counting its failure
+     *
+     * @param <T> result type
+     * @param operation operation name
+     * @param share name of share operation works on
+     * @param timed operation to execute
+     * @return operation result
+     * @throws IOException if operation throws it
+     */
+    public <T> T record(String operation, String share, TimedOperation<T> timed) throws IOException {
+        String tag = shareTag(share);
+        AtomicInteger inProgress = active.computeIfAbsent(operation,
+                op -> registry.gauge("cifs.operations.active", Tags.of("operation", op), new AtomicInteger()));
+        inProgress.incrementAndGet();
+        long start = System.nanoTime();
+        String outcome = "success";
+        try {
+            return timed.call();
+        } catch (IOException | RuntimeException exc) {
+            outcome = "error";
+            countError(operation, tag, exc);
+            throw exc;
+        } finally {
+            inProgress.decrementAndGet();
+            timer(operation, "success".equals(outcome) ? shareTag(share) : tag, outcome)
+                    .record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * Execute operation on connected share measuring its duration and counting its failure
+     *
+     * @param <T> result type
+     * @param operation operation name
+     * @param share connected share
+     * @param timed operation to execute
+     * @return operation result
+     * @throws IOException if operation throws it
+     */
+    public <T> T record(String operation, Share share, TimedOperation<T> timed) throws IOException {
+        String name = shareName(share);
+        addShareTag(name);
+        return record(operation, name, timed);
+    }
+
+    /**
+     * Allow share name as share tag value, called once share is connected
+     *
+     * @param share name of share
+     */
+    public void addShareTag(String share) {
+        shareTags.add(share);
+    }
+
+    /**
+     * Record duration of successful operation measured by caller
+     *
+     * @param operation operation name
+     * @param share name of share
+     * @param nanos duration in nanoseconds
+     */
+    public void recordTime(String operation, String share, long nanos) {
+        timer(operation, shareTag(share), "success").record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Count transferred bytes
+     *
+     * @param direction "read", "write" or "sent"
+     * @param share name of share
+     * @param bytes number of bytes
+     */
+    public void countBytes(String direction, String share, long bytes) {
+        if (bytes > 0) {
+            Counter.builder("cifs.bytes")
+                    .baseUnit("bytes")
+                    .tags("direction", direction, "share", shareTag(share))
+                    .register(registry)
+                    .increment(bytes);
+        }
+    }
+
+    /**
+     * Count failed operation, SMB errors are counted by NT status
+     *
+     * @param operation operation name
+     * @param share name of share
+     * @param error failure cause
+     */
+    public void countError(String operation, String share, Throwable error) {
+        String status = error.getClass().getSimpleName();
+        if (error instanceof SMBApiException) {
+            SMBApiException smbError = (SMBApiException) error;
+            status = smbError.getStatus() != null ? smbError.getStatus().name()
+                    : String.format("0x%08x", smbError.getStatusCode());
+        }
+        registry.counter("cifs.errors", "operation", operation, "share", shareTag(share), "status", status)
+                .increment();
+    }
+
+    private String shareTag(String share) {
+        return NO_SHARE.equals(share) || UNKNOWN_SHARE.equals(share) || shareTags.contains(share) ? share
+                : UNKNOWN_SHARE;
+    }
+
+    private Timer timer(String operation, String share, String outcome) {
+        return Timer.builder("cifs.operation")
+                .tags("operation", operation, "share", share, "outcome", outcome)
+                .publishPercentileHistogram()
+                .register(registry);
+    }
+
+    /**
+     * @return name of connected share used as share tag
+     */
+    public static String shareName(Share share) {
+        return share.getSmbPath().getShareName();
+    }
+}
@@ -0,0 +1,528 @@
+package io.sesam.cifs.service;
+
+import com.hierynomus.mssmb2.SMBApiException;
+import com.hierynomus.smbj.SMBClient;
+import com.hierynomus.smbj.auth.AuthenticationContext;
+import com.hierynomus.smbj.common.SMBRuntimeException;
+import com.hierynomus.smbj.connection.Connection;
+import com.hierynomus.smbj.session.Session;
+import com.hierynomus.smbj.share.DiskShare;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+
+/**
+ * Pool of long-lived authenticated SMB sessions and connected disk shares.
+ * <p>
+ * One connection is kept per backend (file server), every pooled share is connected in its own authenticated session
+ * on that connection. smbj returns the same tree connect for the same share name within session, so distinct sessions
+ * are what makes pooled shares independent: disconnecting one, e.g. broken or idle, logs off its own session and
+ * doesn't affect other shares borrowed at that moment. Connected shares are pooled per backend and share name. Pooled shares are checked on borrow and periodically while idle, idle shares are disconnected after
+ * configured timeout. Max number of shares per share name limits number of concurrent operations on that share, max
+ * total number per backend limits operations on that server. Backends don't share clients, sessions, locks or limits,
+ * so slow or unreachable server doesn't hold up others.
+ * <p>
+ * With several backends configured share names are qualified by backend name, e.g. "hq:documents".
+ *
+ * @author Timur Samkharadze
+ */
+@Component
+public class SmbSessionPool {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SmbSessionPool.class);
+
+    @Autowired
+    private CifsConfig config;
+
+    @Autowired
+    private SmbMetrics metrics;
+
+    @Autowired
+    private Environment environment;
+
+    /**
+     * separator of backend name and share name in qualified share name
+     */
+    public static final char BACKEND_SEPARATOR = ':';
+
+    private final Map<String, Backend> backends = new LinkedHashMap<>();
+
+    private boolean multiBackend;
+
+    private final ConcurrentMap<String, SharePool> pools = new ConcurrentHashMap<>();
+
+    private ScheduledExecutorService evictor;
+
+    @PostConstruct
+    public void initPool() {
+        for (SmbBackend settings : SmbBackend.fromConfig(config, environment)) {
+            backends.put(settings.getName(), new Backend(settings));
+            LOG.info("configured SMB backend {}", settings);
+        }
+        this.multiBackend = !backends.containsKey(SmbBackend.DEFAULT_NAME);
+        this.evictor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "smb-pool-evictor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        int interval = Math.max(1, config.getPoolEvictionIntervalSeconds());
+        this.evictor.scheduleWithFixedDelay(this::evictIdle, interval, interval, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        evictor.shutdownNow();
+        for (SharePool pool : pools.values()) {
+            for (IdleShare entry : pool.drain()) {
+                closeQuietly(entry.share);
+            }
+        }
+        for (Backend backend : backends.values()) {
+            backend.close();
+        }
+    }
+
+    /**
+     * @return true if several backends are configured and share names must be qualified by backend name
+     */
+    public boolean isMultiBackend() {
+        return multiBackend;
+    }
+
+    /**
+     * @return names of configured backends
+     */
+    public Set<String> getBackendNames() {
+        return Collections.unmodifiableSet(backends.keySet());
+    }
+
+    /**
+     * Qualify share name by backend of other share, so both are on the same file server
+     *
+     * @param share qualified name of share on file server
+     * @param otherShare name of other share, qualified or not
+     * @return qualified name of other share
+     */
+    public static String siblingShare(String share, String otherShare) {
+        int separator = share.indexOf(BACKEND_SEPARATOR);
+        if (separator < 0 || otherShare.indexOf(BACKEND_SEPARATOR) >= 0) {
+            return otherShare;
+        }
+        return share.substring(0, separator + 1) + otherShare;
+    }
+
+    /**
+     * Borrow connected share from pool, returned object must be closed after use
+     *
+     * @param shareName name of SMB/CIFS share
+     * @return pooled share
+     * @throws IOException if share can't be connected or no free share available in time
+     */
+    public PooledShare borrowShare(String shareName) throws IOException {
+        Backend backend = getBackend(shareName);
+        SharePool pool = pools.computeIfAbsent(shareName, k -> new SharePool(backend, shareName));
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(backend.settings.getPoolBorrowTimeoutSeconds());
+        // per-share permit first, so requests queued for busy share don't hold permits other shares of backend need
+        acquire(pool.permits, deadline, shareName);
+        try {
+            acquire(backend.permits, deadline, shareName);
+        } catch (IOException exc) {
+            pool.permits.release();
+            throw exc;
+        }
+        return lease(backend, pool, shareName);
+    }
+
+    /**
+     * Borrow connected share from pool waiting only given time for free connection instead of borrow timeout,
+     * returned object must be closed after use
+     *
+     * @param shareName name of SMB/CIFS share
+     * @param waitMillis max time to wait for free connection
+     * @return pooled share or null if share or its file server has no free connection in time
+     * @throws IOException if share can't be connected
+     */
+    public PooledShare tryBorrowShare(String shareName, long waitMillis) throws IOException {
+        Backend backend = getBackend(shareName);
+        SharePool pool = pools.computeIfAbsent(shareName, k -> new SharePool(backend, shareName));
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(0, waitMillis));
+        if (!tryAcquire(pool.permits, deadline, shareName)) {
+            return null;
+        }
+        if (!tryAcquire(backend.permits, deadline, shareName)) {
+            pool.permits.release();
+            return null;
+        }
+        return lease(backend, pool, shareName);
+    }
+
+    /**
+     * Take idle share from pool or connect new one, permits of share and backend must already be acquired and are
+     * released if it fails
+     */
+    private PooledShare lease(Backend backend, SharePool pool, String shareName) throws IOException {
+        try {
+            DiskShare share;
+            while ((share = pool.pollIdle()) != null) {
+                if (isHealthy(backend, share)) {
+                    return new PooledShare(this, shareName, share);
+                }
+                LOG.debug("discarding broken pooled connection to share {}", shareName);
+                closeQuietly(share);
+            }
+            share = connect(backend, shareName);
+            LOG.debug("connected new pooled share {}", shareName);
+            return new PooledShare(this, shareName, share);
+        } catch (IOException | RuntimeException exc) {
+            pool.permits.release();
+            backend.release();
+            throw exc;
+        }
+    }
+
+    /**
+     * Execute callback with pooled share, reconnects and retries once if SMB connection is broken
+     *
+     * @param <T> result type
+     * @param shareName name of SMB/CIFS share
+     * @param callback operation to perform
+     * @return result of callback
+     * @throws IOException if any IO errors occur
+     */
+    public <T> T withShare(String shareName, ShareCallback<T> callback) throws IOException {
+        try (PooledShare lease = borrowShare(shareName)) {
+            try {
+                return callback.doWithShare(lease.getShare());
+            } catch (SMBApiException exc) {
+                throw exc;
+            } catch (SMBRuntimeException exc) {
+                LOG.warn("SMB operation on share {} failed, reconnecting", shareName, exc);
+                lease.invalidate();
+            }
+        }
+        try (PooledShare lease = borrowShare(shareName)) {
+            return callback.doWithShare(lease.getShare());
+        }
+    }
+
+    /**
+     * Connect share in its own session outside of pool for long-lived use such as directory watches, it doesn't count
+     * towards pool limits and must be disconnected by caller with {@link #disconnect(DiskShare)}
+     *
+     * @param shareName name of SMB/CIFS share
+     * @return connected share
+     * @throws IOException if share can't be connected
+     */
+    public DiskShare connectShare(String shareName) throws IOException {
+        return connect(getBackend(shareName), shareName);
+    }
+
+    /**
+     * Disconnect share connected by {@link #connectShare(String)} logging off its session
+     *
+     * @param share connected share
+     */
+    public void disconnect(DiskShare share) {
+        closeQuietly(share);
+    }
+
+    void release(PooledShare lease) {
+        SharePool pool = pools.get(lease.getKey());
+        DiskShare share = lease.getShare();
+        try {
+            if (lease.isInvalid() || pool == null || !isHealthy(pool.backend, share)) {
+                closeQuietly(share);
+                if (pool != null) {
+                    pool.backend.resetConnectionIfDisconnected();
+                }
+            } else {
+                pool.offerIdle(share);
+            }
+        } finally {
+            if (pool != null) {
+                pool.permits.release();
+                pool.backend.release();
+            }
+        }
+    }
+
+    private Backend getBackend(String shareName) {
+        if (!multiBackend) {
+            return backends.get(SmbBackend.DEFAULT_NAME);
+        }
+        int separator = shareName.indexOf(BACKEND_SEPARATOR);
+        if (separator < 0) {
+            throw new IllegalArgumentException(String.format("share %s isn't qualified by backend name", shareName));
+        }
+        Backend backend = backends.get(shareName.substring(0, separator));
+        if (backend == null) {
+            throw new IllegalArgumentException(String.format("unknown backend %s", shareName.substring(0, separator)));
+        }
+        return backend;
+    }
+
+    private DiskShare connect(Backend backend, String shareName) throws IOException {
+        Session session = backend.authenticate();
+        String name = multiBackend ? shareName.substring(shareName.indexOf(BACKEND_SEPARATOR) + 1) : shareName;
+        try {
+            return metrics.record("connectShare", shareName, () -> {
+                DiskShare share = (DiskShare) session.connectShare(name);
+                metrics.addShareTag(shareName);
+                metrics.addShareTag(SmbMetrics.shareName(share));
+                return share;
+            });
+        } catch (IOException | RuntimeException exc) {
+            closeSession(session);
+            throw exc;
+        }
+    }
+
+    SMBClient newClient(SmbBackend settings) {
+        return new SMBClient(config.smbConfigBuilder(settings.getTimeoutSeconds()).build());
+    }
+
+    private static void acquire(Semaphore permits, long deadline, String shareName) throws IOException {
+        if (!tryAcquire(permits, deadline, shareName)) {
+            throw new IOException(String.format("timed out waiting for free connection to share %s", shareName));
+        }
+    }
+
+    /**
+     * @return true if permit was acquired before deadline
+     */
+    private static boolean tryAcquire(Semaphore permits, long deadline, String shareName) throws IOException {
+        if (permits == null) {
+            return true;
+        }
+        try {
+            return permits.tryAcquire(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        } catch (InterruptedException exc) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(String.format("interrupted while waiting for share %s", shareName));
+        }
+    }
+
+    private static boolean isHealthy(Backend backend, DiskShare share) {
+        Connection current = backend.connection;
+        return share.isConnected()
+                && current != null
+                && share.getTreeConnect().getSession().getConnection() == current
+                && current.isConnected();
+    }
+
+    /**
+     * Disconnect shares idle for longer than configured timeout and check health of the rest
+     */
+    private void evictIdle() {
+        long now = System.currentTimeMillis();
+        for (SharePool pool : pools.values()) {
+            long idleLimit = TimeUnit.SECONDS.toMillis(pool.backend.settings.getPoolIdleTimeoutSeconds());
+            for (DiskShare share : pool.takeExpired(now - idleLimit)) {
+                LOG.debug("evicting idle connection to share {}", pool.shareName);
+                closeQuietly(share);
+            }
+            for (IdleShare entry : pool.drain()) {
+                if (probe(pool.backend, entry.share)) {
+                    pool.returnIdle(entry);
+                } else {
+                    LOG.debug("evicting broken connection to share {}", pool.shareName);
+                    closeQuietly(entry.share);
+                }
+            }
+        }
+    }
+
+    private static boolean probe(Backend backend, DiskShare share) {
+        if (!isHealthy(backend, share)) {
+            return false;
+        }
+        try {
+            share.folderExists("");
+            return true;
+        } catch (SMBRuntimeException exc) {
+            return false;
+        }
+    }
+
+    /**
+     * Log off session of share, which disconnects share and nothing else
+     */
+    private static void closeQuietly(DiskShare share) {
+        closeSession(share.getTreeConnect().getSession());
+    }
+
+    private static void closeSession(Session session) {
+        try {
+            session.close();
+        } catch (IOException | RuntimeException exc) {
+            LOG.debug("couldn't log off SMB session", exc);
+        }
+    }
+
+    private static void closeConnection(Connection connection) {
+        if (connection == null) {
+            return;
+        }
+        try {
+            connection.close();
+        } catch (IOException | RuntimeException exc) {
+            LOG.debug("couldn't close SMB connection", exc);
+        }
+    }
+
+    /**
+     * Client, connection and total permits of one file server
+     */
+    private class Backend {
+
+        private final SmbBackend settings;
+
+        private final SMBClient client;
+
+        private final AuthenticationContext authCt;
+
+        private final Semaphore permits;
+
+        private volatile Connection connection;
+
+        Backend(SmbBackend settings) {
+            this.settings = settings;
+            this.authCt = new AuthenticationContext(
+                    settings.getUsername(),
+                    settings.getPassword().toCharArray(),
+                    settings.getDomain()
+            );
+            this.client = newClient(settings);
+            this.permits = settings.getPoolMaxTotal() > 0 ? new Semaphore(settings.getPoolMaxTotal(), true) : null;
+        }
+
+        /**
+         * Authenticate new session on connection to file server, connecting it if needed
+         */
+        Session authenticate() throws IOException {
+            Connection conn = getConnection();
+            Session session = metrics.record("authenticate", tag(), () -> conn.authenticate(this.authCt));
+            LOG.debug("authenticated new SMB session to {}", settings.getHostname());
+            return session;
+        }
+
+        private synchronized Connection getConnection() throws IOException {
+            if (connection != null && connection.isConnected()) {
+                return connection;
+            }
+            closeConnection(connection);
+            connection = metrics.record("connect", tag(),
+                    () -> client.connect(settings.getHostname(), settings.getPort()));
+            LOG.debug("connected to SMB server {}", settings.getHostname());
+            return connection;
+        }
+
+        /**
+         * connection isn't bound to share, it's measured per backend if there are several
+         */
+        private String tag() {
+            String tag = multiBackend ? settings.getName() : SmbMetrics.NO_SHARE;
+            metrics.addShareTag(tag);
+            return tag;
+        }
+
+        synchronized void resetConnectionIfDisconnected() {
+            Connection current = this.connection;
+            if (current != null && !current.isConnected()) {
+                closeConnection(current);
+                this.connection = null;
+            }
+        }
+
+        void release() {
+            if (permits != null) {
+                permits.release();
+            }
+        }
+
+        synchronized void close() {
+            closeConnection(connection);
+            connection = null;
+            client.close();
+        }
+    }
+
+    /**
+     * Idle shares and permits of one share name
+     */
+    private static class SharePool {
+
+        private final Backend backend;
+
+        private final String shareName;
+
+        private final Semaphore permits;
+
+        private final Deque<IdleShare> idle = new ArrayDeque<>();
+
+        SharePool(Backend backend, String shareName) {
+            this.backend = backend;
+            this.shareName = shareName;
+            this.permits = new Semaphore(Math.max(1, backend.settings.getPoolMaxPerShare()), true);
+        }
+
+        synchronized DiskShare pollIdle() {
+            IdleShare entry = idle.pollFirst();
+            return entry == null ? null : entry.share;
+        }
+
+        synchronized void offerIdle(DiskShare share) {
+            idle.offerFirst(new IdleShare(share, System.currentTimeMillis()));
+        }
+
+        synchronized List<DiskShare> takeExpired(long idleSince) {
+            List<DiskShare> expired = new ArrayList<>();
+            while (!idle.isEmpty() && idle.peekLast().since < idleSince) {
+                expired.add(idle.pollLast().share);
+            }
+            return expired;
+        }
+
+        synchronized void returnIdle(IdleShare entry) {
+            idle.offerLast(entry);
+        }
+
+        synchronized List<IdleShare> drain() {
+            List<IdleShare> all = new ArrayList<>(idle);
+            idle.clear();
+            return all;
+        }
+    }
+
+    private static class IdleShare {
+
+        private final DiskShare share;
+
+        private final long since;
+
+        IdleShare(DiskShare share, long since) {
+            this.share = share;
+            this.since = since;
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package io.sesam.cifs.service;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Minimal writer of POSIX tar (ustar) archives containing regular files.
+ * <p>
+ * Names which don't fit ustar header, contain non-ASCII characters or files larger than 8 GiB are described by PAX
+ * extended header preceding entry. Entry size must be known before its content is written.
+ *
+ * @author Timur Samkharadze
+ */
+class TarOutputStream extends FilterOutputStream {
+
+    private static final int BLOCK_SIZE = 512;
+
+    private static final long MAX_USTAR_SIZE = 077777777777L;
+
+    private final byte[] header = new byte[BLOCK_SIZE];
+
+    private long entrySize = -1;
+
+    private long entryWritten;
+
+    TarOutputStream(OutputStream out) {
+        super(out);
+    }
+
+    /**
+     * Start new regular file entry, previous entry must be closed
+     *
+     * @param name path of file inside archive
+     * @param size exact size of file content
+     * @param modifiedMillis modification time of file
+     * @throws IOException if any IO errors occur
+     */
+    void putEntry(String name, long size, long modifiedMillis) throws IOException {
+        if (entrySize >= 0) {
+            throw new IllegalStateException("previous tar entry is not closed");
+        }
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        boolean ascii = nameBytes.length == name.length();
+        int split = ascii ? splitName(nameBytes) : -1;
+        if (split < 0 || size > MAX_USTAR_SIZE) {
+            StringBuilder records = new StringBuilder();
+            if (split < 0) {
+                records.append(paxRecord("path", name));
+            }
+            if (size > MAX_USTAR_SIZE) {
+                records.append(paxRecord("size", Long.toString(size)));
+            }
+            byte[] pax = records.toString().getBytes(StandardCharsets.UTF_8);
+            writeHeader(asciiName("PaxHeaders/" + name), null, pax.length, modifiedMillis, (byte) 'x');
+            out.write(pax);
+            pad(pax.length);
+            if (split < 0) {
+                nameBytes = asciiName(name);
+                split = 0;
+            }
+        }
+        long headerSize = Math.min(size, MAX_USTAR_SIZE);
+        if (split > 0) {
+            writeHeader(Arrays.copyOfRange(nameBytes, split + 1, nameBytes.length),
+                    Arrays.copyOfRange(nameBytes, 0, split), headerSize, modifiedMillis, (byte) '0');
+        } else {
+            writeHeader(nameBytes, null, headerSize, modifiedMillis, (byte) '0');
+        }
+        entrySize = size;
+        entryWritten = 0;
+    }
+
+    /**
+     * Complete current entry padding it to block boundary
+     *
+     * @throws IOException if less or more bytes than declared were written
+     */
+    void closeEntry() throws IOException {
+        if (entryWritten != entrySize) {
+            throw new IOException(String.format("tar entry declared %d bytes but %d were written", entrySize,
+                    entryWritten));
+        }
+        pad(entrySize);
+        entrySize = -1;
+    }
+
+    /**
+     * Write end of archive marker without closing underlying stream
+     *
+     * @throws IOException if any IO errors occur
+     */
+    void finish() throws IOException {
+        out.write(new byte[BLOCK_SIZE * 2]);
+        out.flush();
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (entrySize < 0) {
+            throw new IllegalStateException("no tar entry is open");
+        }
+        entryWritten += len;
+        if (entryWritten > entrySize) {
+            throw new IOException(String.format("tar entry declared %d bytes but more were written", entrySize));
+        }
+        out.write(b, off, len);
+    }
+
+    private void writeHeader(byte[] name, byte[] prefix, long size, long modifiedMillis, byte type)
+            throws IOException {
+        Arrays.fill(header, (byte) 0);
+        System.arraycopy(name, 0, header, 0, name.length);
+        octal(0644, 100, 8);
+        octal(0, 108, 8);
+        octal(0, 116, 8);
+        octal(size, 124, 12);
+        octal(Math.max(0, modifiedMillis / 1000), 136, 12);
+        header[156] = type;
+        System.arraycopy("ustar\u000000".getBytes(StandardCharsets.US_ASCII), 0, header, 257, 8);
+        if (prefix != null) {
+            System.arraycopy(prefix, 0, header, 345, prefix.length);
+        }
+        Arrays.fill(header, 148, 156, (byte) ' ');
+        long checksum = 0;
+        for (byte b : header) {
+            checksum += b & 0xff;
+        }
+        octal(checksum, 148, 7);
+        out.write(header);
+    }
+
+    /**
+     * write zero padded octal number terminated by NUL into header field
+     */
+    private void octal(long value, int offset, int length) {
+        String digits = Long.toOctalString(value);
+        int width = length - 1;
+        for (int i = 0; i < width; i++) {
+            int index = i - (width - digits.length());
+            header[offset + i] = (byte) (index < 0 ? '0' : digits.charAt(index));
+        }
+        header[offset + width] = 0;
+    }
+
+    private void pad(long written) throws IOException {
+        int remainder = (int) (written % BLOCK_SIZE);
+        if (remainder > 0) {
+            out.write(new byte[BLOCK_SIZE - remainder]);
+        }
+    }
+
+    /**
+     * @return 0 if name fits name field, index of '/' to split name into prefix and name fields or -1 if it can't be
+     * stored in ustar header
+     */
+    private static int splitName(byte[] name) {
+        if (name.length <= 100) {
+            return 0;
+        }
+        for (int i = Math.min(name.length - 1, 155); i > 0; i--) {
+            if (name[i] == '/' && name.length - i - 1 <= 100) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return ASCII approximation of name for header fields of readers not supporting PAX
+     */
+    private static byte[] asciiName(String name) {
+        byte[] ascii = name.replaceAll("[^\\x20-\\x7e]", "_").getBytes(StandardCharsets.US_ASCII);
+        return ascii.length <= 100 ? ascii : Arrays.copyOfRange(ascii, ascii.length - 100, ascii.length);
+    }
+
+    /**
+     * @return PAX record "length key=value\n" where length counts whole record including itself
+     */
+    private static String paxRecord(String key, String value) {
+        int contentLength = key.getBytes(StandardCharsets.UTF_8).length + value.getBytes(StandardCharsets.UTF_8).length
+                + 3;
+        int length = contentLength + Integer.toString(contentLength).length();
+        if (Integer.toString(length).length() != Integer.toString(contentLength).length()) {
+            length = contentLength + Integer.toString(length).length();
+        }
+        return length + " " + key + "=" + value + "\n";
+    }
+}
@@ -0,0 +1,21 @@
+package io.sesam.cifs.service;
+
+import java.io.IOException;
+
+/**
+ * Operation measured by {@link SmbMetrics}
+ *
+ * @author Timur Samkharadze
+ * @param <T> result type
+ */
+@FunctionalInterface
+public interface TimedOperation<T> {
+
+    /**
+     * perform operation
+     *
+     * @return operation result
+     * @throws IOException if any IO errors occur
+     */
+    T call() throws IOException;
+}
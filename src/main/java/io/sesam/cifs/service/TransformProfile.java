@@ -0,0 +1,659 @@
+package io.sesam.cifs.service;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import org.json.JSONObject;
+import org.json.XML;
+
+/**
+ * Compiled XML to JSON transform profile.
+ * <p>
+ * Profile declares by element path which elements are always JSON arrays, how their values are typed, which elements
+ * are dropped or renamed and which element is projected as resulting object. Paths start with document root element,
+ * segments are separated by '/', '*' matches any element name and attributes are addressed as children of their
+ * element. Values not typed by profile are strings unless defaultType says otherwise. Elements not declared as arrays
+ * are never arrays.
+ * <p>
+ * Document is converted in single pass writing JSON while it is read, elements outside projected root and dropped
+ * elements are skipped without being kept. Repeated elements must follow each other to be streamed, elements listed
+ * in "buffer" are collected in memory first so their repeated children may be interleaved.
+ *
+ * @author Timur Samkharadze
+ */
+public class TransformProfile {
+
+    private static final String CONTENT = "content";
+
+    private static final String WILDCARD = "*";
+
+    private final String name;
+
+    private final List<String> root;
+
+    private final Node rules = new Node();
+
+    private final ValueType defaultType;
+
+    private final String sourceFileNameField;
+
+    private TransformProfile(String name, List<String> root, ValueType defaultType, String sourceFileNameField) {
+        this.name = name;
+        this.root = root;
+        this.defaultType = defaultType;
+        this.sourceFileNameField = sourceFileNameField;
+    }
+
+    /**
+     * Compile profile definition
+     *
+     * @param name profile name
+     * @param definition JSON object with optional "root", "arrays", "types", "defaultType", "drop", "rename",
+     * "buffer" and "sourceFileName" properties
+     * @return compiled profile
+     * @throws IllegalArgumentException if definition is invalid
+     */
+    public static TransformProfile compile(String name, JsonNode definition) {
+        if (definition == null || !definition.isObject()) {
+            throw new IllegalArgumentException(String.format("transform profile %s must be JSON object", name));
+        }
+        List<String> root = definition.hasNonNull("root") ? split(definition.get("root").asText()) : null;
+        ValueType defaultType = definition.hasNonNull("defaultType")
+                ? ValueType.of(definition.get("defaultType").asText()) : ValueType.STRING;
+        String sourceFileName = definition.hasNonNull("sourceFileName")
+                ? definition.get("sourceFileName").asText() : null;
+        TransformProfile profile = new TransformProfile(name, root, defaultType, sourceFileName);
+        for (String path : paths(definition, "arrays")) {
+            profile.rules.at(split(path)).array = true;
+        }
+        for (String path : paths(definition, "drop")) {
+            profile.rules.at(split(path)).drop = true;
+        }
+        for (String path : paths(definition, "buffer")) {
+            profile.rules.at(split(path)).buffer = true;
+        }
+        for (Map.Entry<String, String> rename : properties(definition, "rename").entrySet()) {
+            profile.rules.at(split(rename.getKey())).rename = rename.getValue();
+        }
+        for (Map.Entry<String, String> type : properties(definition, "types").entrySet()) {
+            profile.rules.at(split(type.getKey())).type = ValueType.of(type.getValue());
+        }
+        profile.rules.mergeWildcards();
+        return profile;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Write projected element of document as JSON object
+     *
+     * @param reader XML reader positioned before document root element
+     * @param documentRoot expected name of document root element or null to accept any
+     * @param fileName name of source file
+     * @param gen destination generator
+     * @param buffered true to collect projected element in memory before writing it, which allows interleaved
+     * repeated elements anywhere in it
+     * @throws XMLStreamException if document can't be parsed
+     * @throws IOException if projected element isn't found, value doesn't match its type or repeated elements can't
+     * be streamed
+     */
+    void write(XMLStreamReader reader, String documentRoot, String fileName, JsonGenerator gen, boolean buffered)
+            throws XMLStreamException, IOException {
+        while (reader.hasNext() && reader.next() != XMLStreamConstants.START_ELEMENT) {
+            // skip prolog
+        }
+        List<String> projection = root != null ? root : documentRoot != null ? Arrays.asList(documentRoot) : null;
+        if (!reader.isStartElement() || (documentRoot != null && !reader.getLocalName().equals(documentRoot))
+                || (projection != null && !matches(projection.get(0), reader.getLocalName()))) {
+            throw new IOException(String.format("root element %s not found in XML document",
+                    documentRoot != null ? documentRoot : projection.get(0)));
+        }
+        Node node = rules.child(reader.getLocalName());
+        String path = reader.getLocalName();
+        int depth = 1;
+        while (projection != null && depth < projection.size()) {
+            if (!descend(reader, projection.get(depth))) {
+                throw new IOException(String.format("element %s not found in XML document",
+                        String.join("/", projection)));
+            }
+            node = node == null ? null : node.child(reader.getLocalName());
+            path = path + '/' + reader.getLocalName();
+            depth++;
+        }
+        if (buffered || (node != null && node.buffer)) {
+            Map<String, Object> object = asObject(read(reader, node, path));
+            if (sourceFileNameField != null) {
+                object.put(sourceFileNameField, fileName);
+            }
+            writeValue(object, gen);
+        } else {
+            streamObject(reader, node, path, new StringBuilder(), false, sourceFileNameField, fileName, gen);
+        }
+    }
+
+    /**
+     * Move reader to first child element of current element with given name skipping other children
+     *
+     * @return false if there is no such child
+     */
+    private static boolean descend(XMLStreamReader reader, String name) throws XMLStreamException {
+        while (reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                if (matches(name, reader.getLocalName())) {
+                    return true;
+                }
+                skip(reader);
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Write current element as JSON object while reading it, reader is left at its end element
+     *
+     * @param text text of element read already
+     * @param atChild true if reader is at start of first child element, its attributes are written otherwise
+     */
+    private void streamObject(XMLStreamReader reader, Node node, String path, StringBuilder text, boolean atChild,
+            String fileNameField, String fileName, JsonGenerator gen) throws XMLStreamException, IOException {
+        gen.writeStartObject();
+        Set<String> written = new HashSet<>();
+        if (!atChild) {
+            writeAttributes(reader, node, path, written, gen);
+        }
+        String openArray = null;
+        int event = atChild ? XMLStreamConstants.START_ELEMENT : reader.next();
+        while (true) {
+            switch (event) {
+                case XMLStreamConstants.START_ELEMENT:
+                    String childName = reader.getLocalName();
+                    Node child = node == null ? null : node.child(childName);
+                    if (child != null && child.drop) {
+                        skip(reader);
+                        break;
+                    }
+                    String key = child != null && child.rename != null ? child.rename : childName;
+                    String childPath = path + '/' + childName;
+                    boolean array = child != null && child.array;
+                    if (!array || !key.equals(openArray)) {
+                        openArray = closeArray(openArray, gen);
+                        if (!written.add(key)) {
+                            if (!array) {
+                                throw notDeclaredArray(childPath);
+                            }
+                            throw new NonContiguousException(String.format("element %s is repeated after other"
+                                    + " elements, declare its parent in buffer of transform profile %s", childPath,
+                                    name));
+                        }
+                        gen.writeFieldName(key);
+                        if (array) {
+                            gen.writeStartArray();
+                            openArray = key;
+                        }
+                    }
+                    streamElement(reader, child, childPath, gen);
+                    break;
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.SPACE:
+                case XMLStreamConstants.CDATA:
+                    text.append(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+                    break;
+                case XMLStreamConstants.END_ELEMENT:
+                    closeArray(openArray, gen);
+                    writeText(text.toString().trim(), node, path, written, gen);
+                    if (fileNameField != null) {
+                        gen.writeStringField(fileNameField, fileName);
+                    }
+                    gen.writeEndObject();
+                    return;
+                default:
+                    break;
+            }
+            if (!reader.hasNext()) {
+                throw new XMLStreamException("unexpected end of XML document");
+            }
+            event = reader.next();
+        }
+    }
+
+    /**
+     * Write value of current element, leaf elements become typed values and other elements objects
+     */
+    private void streamElement(XMLStreamReader reader, Node node, String path, JsonGenerator gen)
+            throws XMLStreamException, IOException {
+        if (node != null && node.buffer) {
+            writeValue(read(reader, node, path), gen);
+            return;
+        }
+        StringBuilder text = new StringBuilder();
+        if (reader.getAttributeCount() > 0) {
+            streamObject(reader, node, path, text, false, null, null, gen);
+            return;
+        }
+        // element without attributes is object only if it has child elements, look ahead past leading text
+        while (reader.hasNext()) {
+            switch (reader.next()) {
+                case XMLStreamConstants.START_ELEMENT:
+                    streamObject(reader, node, path, text, true, null, null, gen);
+                    return;
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.SPACE:
+                case XMLStreamConstants.CDATA:
+                    text.append(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+                    break;
+                case XMLStreamConstants.END_ELEMENT:
+                    writeValue(typed(text.toString().trim(), node, path), gen);
+                    return;
+                default:
+                    break;
+            }
+        }
+        throw new XMLStreamException("unexpected end of XML document");
+    }
+
+    private void writeAttributes(XMLStreamReader reader, Node node, String path, Set<String> written,
+            JsonGenerator gen) throws IOException {
+        for (int i = 0; i < reader.getAttributeCount(); i++) {
+            String attribute = attributeName(reader, i);
+            Node child = node == null ? null : node.child(attribute);
+            if (child != null && child.drop) {
+                continue;
+            }
+            String key = child != null && child.rename != null ? child.rename : attribute;
+            written.add(key);
+            gen.writeFieldName(key);
+            Object value = typed(reader.getAttributeValue(i).trim(), child, path + '/' + attribute);
+            if (child != null && child.array) {
+                gen.writeStartArray();
+                writeValue(value, gen);
+                gen.writeEndArray();
+            } else {
+                writeValue(value, gen);
+            }
+        }
+    }
+
+    /**
+     * Write text of element with attributes or child elements as "content" property
+     */
+    private void writeText(String content, Node node, String path, Set<String> written, JsonGenerator gen)
+            throws IOException {
+        Node child = node == null ? null : node.child(CONTENT);
+        if (content.isEmpty() || (child != null && child.drop)) {
+            return;
+        }
+        String key = child != null && child.rename != null ? child.rename : CONTENT;
+        if (!written.add(key)) {
+            throw new NonContiguousException(String.format(
+                    "element %s has both text and %s property, declare it in buffer of transform profile %s", path,
+                    key, name));
+        }
+        gen.writeFieldName(key);
+        writeValue(typed(content, child, path + '/' + CONTENT), gen);
+    }
+
+    private static String closeArray(String openArray, JsonGenerator gen) throws IOException {
+        if (openArray != null) {
+            gen.writeEndArray();
+        }
+        return null;
+    }
+
+    /**
+     * Read current element into memory applying profile, repeated elements declared as arrays are accumulated into
+     * arrays wherever they occur
+     *
+     * @throws IOException if element not declared as array is repeated, same as when it is streamed
+     */
+    private Object read(XMLStreamReader reader, Node node, String path) throws XMLStreamException, IOException {
+        Map<String, Object> object = new LinkedHashMap<>();
+        Set<String> arrays = new HashSet<>();
+        for (int i = 0; i < reader.getAttributeCount(); i++) {
+            String attribute = attributeName(reader, i);
+            Node child = node == null ? null : node.child(attribute);
+            if (child == null || !child.drop) {
+                accumulate(object, arrays, child, attribute, path + '/' + attribute,
+                        typed(reader.getAttributeValue(i).trim(), child, path + '/' + attribute));
+            }
+        }
+        StringBuilder text = new StringBuilder();
+        while (reader.hasNext()) {
+            switch (reader.next()) {
+                case XMLStreamConstants.START_ELEMENT:
+                    String childName = reader.getLocalName();
+                    Node child = node == null ? null : node.child(childName);
+                    if (child != null && child.drop) {
+                        skip(reader);
+                    } else {
+                        String childPath = path + '/' + childName;
+                        accumulate(object, arrays, child, childName, childPath, read(reader, child, childPath));
+                    }
+                    break;
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.SPACE:
+                case XMLStreamConstants.CDATA:
+                    text.append(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+                    break;
+                case XMLStreamConstants.END_ELEMENT:
+                    String content = text.toString().trim();
+                    if (object.isEmpty()) {
+                        return typed(content, node, path);
+                    }
+                    Node contentNode = node == null ? null : node.child(CONTENT);
+                    if (!content.isEmpty() && (contentNode == null || !contentNode.drop)) {
+                        accumulate(object, arrays, contentNode, CONTENT, path + '/' + CONTENT,
+                                typed(content, contentNode, path + '/' + CONTENT));
+                    }
+                    return object;
+                default:
+                    break;
+            }
+        }
+        throw new XMLStreamException("unexpected end of XML document");
+    }
+
+    @SuppressWarnings("unchecked")
+    private void accumulate(Map<String, Object> object, Set<String> arrays, Node node, String name, String path,
+            Object value) throws IOException {
+        String key = node != null && node.rename != null ? node.rename : name;
+        Object current = object.get(key);
+        if (current == null && !object.containsKey(key)) {
+            if (node != null && node.array) {
+                List<Object> array = new ArrayList<>(1);
+                array.add(value);
+                object.put(key, array);
+                arrays.add(key);
+            } else {
+                object.put(key, value);
+            }
+        } else if (arrays.contains(key)) {
+            ((List<Object>) current).add(value);
+        } else {
+            throw notDeclaredArray(path);
+        }
+    }
+
+    private IOException notDeclaredArray(String path) {
+        return new IOException(String.format(
+                "element %s is repeated but not declared in arrays of transform profile %s", path, name));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> asObject(Object value) {
+        if (value instanceof Map) {
+            return (Map<String, Object>) value;
+        }
+        Map<String, Object> object = new LinkedHashMap<>();
+        if (value != null && !"".equals(value)) {
+            object.put(CONTENT, value);
+        }
+        return object;
+    }
+
+    /**
+     * @return text converted to type declared for element, untyped elements use default type of profile
+     */
+    private Object typed(String text, Node node, String path) throws IOException {
+        ValueType type = node != null && node.type != null ? node.type : defaultType;
+        try {
+            return type.convert(text);
+        } catch (IllegalArgumentException exc) {
+            throw new IOException(String.format("value '%s' of %s is not %s", text, path,
+                    type.name().toLowerCase(Locale.ROOT)), exc);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void writeValue(Object value, JsonGenerator gen) throws IOException {
+        if (value instanceof Map) {
+            gen.writeStartObject();
+            for (Map.Entry<String, Object> entry : ((Map<String, Object>) value).entrySet()) {
+                gen.writeFieldName(entry.getKey());
+                writeValue(entry.getValue(), gen);
+            }
+            gen.writeEndObject();
+        } else if (value instanceof List) {
+            gen.writeStartArray();
+            for (Object item : (List<Object>) value) {
+                writeValue(item, gen);
+            }
+            gen.writeEndArray();
+        } else if (value instanceof BigDecimal) {
+            gen.writeNumber((BigDecimal) value);
+        } else if (value instanceof BigInteger) {
+            gen.writeNumber((BigInteger) value);
+        } else if (value instanceof Number) {
+            gen.writeNumber(JSONObject.numberToString((Number) value));
+        } else if (value instanceof Boolean) {
+            gen.writeBoolean((Boolean) value);
+        } else if (value == null || JSONObject.NULL.equals(value)) {
+            gen.writeNull();
+        } else {
+            gen.writeString(value.toString());
+        }
+    }
+
+    /**
+     * Skip current element with all its content
+     */
+    private static void skip(XMLStreamReader reader) throws XMLStreamException {
+        int depth = 1;
+        while (depth > 0 && reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                depth++;
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            }
+        }
+    }
+
+    private static boolean matches(String segment, String elementName) {
+        return WILDCARD.equals(segment) || segment.equals(elementName);
+    }
+
+    private static String attributeName(XMLStreamReader reader, int index) {
+        String prefix = reader.getAttributePrefix(index);
+        String localName = reader.getAttributeLocalName(index);
+        return prefix == null || prefix.isEmpty() ? localName : prefix + ':' + localName;
+    }
+
+    private static List<String> split(String path) {
+        String trimmed = path == null ? "" : path.trim().replaceAll("^/+|/+$", "");
+        if (trimmed.isEmpty()) {
+            throw new IllegalArgumentException("transform profile path can't be empty");
+        }
+        return Arrays.asList(trimmed.split("/"));
+    }
+
+    private static List<String> paths(JsonNode definition, String property) {
+        List<String> paths = new ArrayList<>();
+        JsonNode value = definition.get(property);
+        if (value == null || value.isNull()) {
+            return paths;
+        }
+        if (!value.isArray()) {
+            throw new IllegalArgumentException(String.format("%s of transform profile must be array of paths",
+                    property));
+        }
+        for (JsonNode path : value) {
+            paths.add(path.asText());
+        }
+        return paths;
+    }
+
+    private static Map<String, String> properties(JsonNode definition, String property) {
+        Map<String, String> properties = new LinkedHashMap<>();
+        JsonNode value = definition.get(property);
+        if (value == null || value.isNull()) {
+            return properties;
+        }
+        if (!value.isObject()) {
+            throw new IllegalArgumentException(String.format("%s of transform profile must be object", property));
+        }
+        Iterator<Map.Entry<String, JsonNode>> fields = value.fields();
+        while (fields.hasNext()) {
+            Map.Entry<String, JsonNode> field = fields.next();
+            properties.put(field.getKey(), field.getValue().asText());
+        }
+        return properties;
+    }
+
+    /**
+     * Type of element value
+     */
+    enum ValueType {
+        STRING {
+            @Override
+            Object convert(String text) {
+                return text;
+            }
+        },
+        NUMBER {
+            @Override
+            Object convert(String text) {
+                return text.isEmpty() ? null : new BigDecimal(signed(text));
+            }
+        },
+        INTEGER {
+            @Override
+            Object convert(String text) {
+                return text.isEmpty() ? null : new BigInteger(signed(text));
+            }
+        },
+        BOOLEAN {
+            @Override
+            Object convert(String text) {
+                switch (text.toLowerCase(Locale.ROOT)) {
+                    case "true":
+                    case "x":
+                    case "1":
+                        return Boolean.TRUE;
+                    case "false":
+                    case "0":
+                    case "":
+                        return Boolean.FALSE;
+                    default:
+                        throw new IllegalArgumentException(text);
+                }
+            }
+        },
+        /**
+         * value is guessed as by org.json
+         */
+        AUTO {
+            @Override
+            Object convert(String text) {
+                return XML.stringToValue(text);
+            }
+        };
+
+        abstract Object convert(String text);
+
+        static ValueType of(String type) {
+            try {
+                return valueOf(type.trim().toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException exc) {
+                throw new IllegalArgumentException(String.format("unknown value type '%s'", type), exc);
+            }
+        }
+
+        /**
+         * @return number with trailing sign (as written by SAP) moved to front
+         */
+        private static String signed(String text) {
+            return text.endsWith("-") ? "-" + text.substring(0, text.length() - 1).trim() : text;
+        }
+    }
+
+    /**
+     * Rules of element path, children are keyed by element or attribute name
+     */
+    private static class Node {
+
+        private final Map<String, Node> children = new HashMap<>();
+
+        private boolean array;
+
+        private boolean drop;
+
+        private boolean buffer;
+
+        private String rename;
+
+        private ValueType type;
+
+        Node at(List<String> path) {
+            Node node = this;
+            for (String segment : path) {
+                node = node.children.computeIfAbsent(segment, k -> new Node());
+            }
+            return node;
+        }
+
+        /**
+         * Apply rules of '*' children to their named siblings, so named path never hides wildcard rules
+         */
+        void mergeWildcards() {
+            Node wildcard = children.get(WILDCARD);
+            if (wildcard != null) {
+                for (Map.Entry<String, Node> child : children.entrySet()) {
+                    if (!WILDCARD.equals(child.getKey())) {
+                        child.getValue().inherit(wildcard);
+                    }
+                }
+            }
+            for (Node child : children.values()) {
+                child.mergeWildcards();
+            }
+        }
+
+        private void inherit(Node other) {
+            array |= other.array;
+            drop |= other.drop;
+            buffer |= other.buffer;
+            rename = rename != null ? rename : other.rename;
+            type = type != null ? type : other.type;
+            for (Map.Entry<String, Node> child : other.children.entrySet()) {
+                children.computeIfAbsent(child.getKey(), k -> new Node()).inherit(child.getValue());
+            }
+        }
+
+        Node child(String name) {
+            Node child = children.get(name);
+            return child != null ? child : children.get(WILDCARD);
+        }
+    }
+
+    /**
+     * Document can't be converted in single pass with profile as it is
+     */
+    static class NonContiguousException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        NonContiguousException(String message) {
+            super(message);
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package io.sesam.cifs.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import javax.annotation.PostConstruct;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/**
+ * Named XML to JSON transform profiles configured in CIFS_TRANSFORM_PROFILES, compiled once at startup.
+ *
+ * @author Timur Samkharadze
+ */
+@Component
+public class TransformProfiles {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TransformProfiles.class);
+
+    @Autowired
+    private CifsConfig config;
+
+    private Map<String, TransformProfile> profiles = Collections.emptyMap();
+
+    @PostConstruct
+    public void compileProfiles() throws IOException {
+        String definitions = config.getTransformProfiles();
+        if (definitions == null || definitions.trim().isEmpty()) {
+            return;
+        }
+        JsonNode root = new ObjectMapper().readTree(definitions);
+        if (root == null || !root.isObject()) {
+            throw new IllegalArgumentException("CIFS_TRANSFORM_PROFILES must be JSON object");
+        }
+        Map<String, TransformProfile> compiled = new HashMap<>();
+        Iterator<Map.Entry<String, JsonNode>> fields = root.fields();
+        while (fields.hasNext()) {
+            Map.Entry<String, JsonNode> field = fields.next();
+            compiled.put(field.getKey(), TransformProfile.compile(field.getKey(), field.getValue()));
+        }
+        this.profiles = compiled;
+        LOG.info("compiled transform profiles {}", compiled.keySet());
+    }
+
+    /**
+     * @param name profile name or null
+     * @return compiled profile or null if no name is given
+     * @throws IllegalArgumentException if profile isn't configured
+     */
+    public TransformProfile get(String name) {
+        if (name == null || name.isEmpty()) {
+            return null;
+        }
+        TransformProfile profile = profiles.get(name);
+        if (profile == null) {
+            throw new IllegalArgumentException(String.format("unknown transform profile '%s'", name));
+        }
+        return profile;
+    }
+}
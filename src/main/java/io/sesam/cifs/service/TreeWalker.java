@@ -0,0 +1,254 @@
+package io.sesam.cifs.service;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.FileSystems;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/**
+ * Recursive directory tree walk with parallel subdirectory enumeration.
+ * <p>
+ * Every directory is listed by separate task on shared fork-join pool of CIFS_WALK_PARALLELISM threads, each task
+ * borrows its own pooled share. Tasks never wait for caller: found entries are collected into external sorter, which
+ * spills to temporary file beyond its share of CIFS_WALK_QUEUE_SIZE, and the finished listing is handed over to caller
+ * thread. Caller thread schedules directories, at most CIFS_WALK_PARALLELISM of them at once, and writes one listing
+ * before it takes next one, so slow consumer throttles its own walk without holding pool threads or pooled
+ * connections.
+ *
+ * @author Timur Samkharadze
+ */
+@Component
+public class TreeWalker {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TreeWalker.class);
+
+    private static final Comparator<FileOrDirectoryInfo> BY_NAME = Comparator.comparing(FileOrDirectoryInfo::getName);
+
+    @Autowired
+    private CifsConfig config;
+
+    @Autowired
+    private CifsClient cifsClient;
+
+    private ForkJoinPool walkPool;
+
+    @PostConstruct
+    public void initWalker() {
+        AtomicInteger counter = new AtomicInteger();
+        this.walkPool = new ForkJoinPool(Math.max(1, config.getWalkParallelism()), pool -> {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            thread.setName("tree-walk-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }, null, true);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        walkPool.shutdownNow();
+    }
+
+    /**
+     * Walk directory tree passing every matching entry to visitor, entries carry path relative to share root
+     *
+     * @param share name of SMB/CIFS share
+     * @param path path to root folder of walk
+     * @param maxDepth max depth to descend to, 1 lists only given directory, 0 or less for no limit
+     * @param glob optional glob pattern, matched against entry name or, if pattern contains '/', against path relative
+     * to walk root
+     * @param visitor entry consumer called on caller thread, returns false to stop walk
+     * @throws IOException if any IO errors occur
+     */
+    public void walk(String share, String path, int maxDepth, String glob, ListingVisitor visitor)
+            throws IOException {
+        String root = CifsClient.trimSlashes(path);
+        Walk walk = new Walk(share, root, maxDepth <= 0 ? Integer.MAX_VALUE : maxDepth, glob);
+        int parallelism = Math.max(1, config.getWalkParallelism());
+        walk.waiting.push(new Dir(root, 1));
+        try {
+            int running = 0;
+            while (true) {
+                while (running < parallelism && !walk.waiting.isEmpty()) {
+                    walk.submit(walk.waiting.pop());
+                    running++;
+                }
+                if (running == 0) {
+                    return;
+                }
+                Listed listed;
+                try {
+                    listed = walk.results.take();
+                } catch (InterruptedException exc) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("interrupted while walking directory tree");
+                }
+                running--;
+                if (listed.error instanceof IOException) {
+                    throw (IOException) listed.error;
+                }
+                if (listed.error instanceof RuntimeException) {
+                    throw (RuntimeException) listed.error;
+                }
+                if (listed.error != null) {
+                    throw (Error) listed.error;
+                }
+                // depth first keeps only siblings of current path waiting instead of whole tree level
+                for (int i = listed.subDirs.size() - 1; i >= 0; i--) {
+                    walk.waiting.push(listed.subDirs.get(i));
+                }
+                boolean[] stopped = new boolean[1];
+                try {
+                    listed.entries.drainTo(entry -> {
+                        stopped[0] = !visitor.visit(entry);
+                        return !stopped[0];
+                    });
+                } finally {
+                    listed.entries.close();
+                }
+                if (stopped[0]) {
+                    return;
+                }
+            }
+        } finally {
+            walk.cancel();
+        }
+    }
+
+    private static class Dir {
+
+        private final String path;
+
+        private final int depth;
+
+        Dir(String path, int depth) {
+            this.path = path;
+            this.depth = depth;
+        }
+    }
+
+    /**
+     * Result of one directory listing task
+     */
+    private static class Listed {
+
+        private final List<Dir> subDirs = new ArrayList<>();
+
+        private final ExternalListingSorter entries;
+
+        private Throwable error;
+
+        Listed(ExternalListingSorter entries) {
+            this.entries = entries;
+        }
+    }
+
+    /**
+     * State of one walk request, waiting directories are touched only by caller thread
+     */
+    private class Walk {
+
+        private final String share;
+
+        private final String root;
+
+        private final int maxDepth;
+
+        private final PathMatcher matcher;
+
+        private final boolean matchPath;
+
+        private final int maxInMemory = Math.max(1,
+                config.getWalkQueueSize() / Math.max(1, config.getWalkParallelism()));
+
+        private final Deque<Dir> waiting = new ArrayDeque<>();
+
+        private final BlockingQueue<Listed> results = new LinkedBlockingQueue<>();
+
+        private volatile boolean cancelled;
+
+        Walk(String share, String root, int maxDepth, String glob) {
+            this.share = share;
+            this.root = root;
+            this.maxDepth = maxDepth;
+            this.matcher = glob == null || glob.isEmpty() ? null : FileSystems.getDefault().getPathMatcher("glob:" + glob);
+            this.matchPath = glob != null && glob.contains("/");
+        }
+
+        void submit(Dir dir) {
+            walkPool.execute(() -> {
+                Listed listed = new Listed(new ExternalListingSorter(BY_NAME, maxInMemory));
+                try {
+                    if (!cancelled) {
+                        listDirectory(dir, listed);
+                    }
+                } catch (IOException | RuntimeException | Error exc) {
+                    listed.error = exc;
+                    LOG.debug("couldn't walk directory {} on share {}", dir.path, share, exc);
+                } finally {
+                    deliver(listed);
+                }
+            });
+        }
+
+        private void listDirectory(Dir dir, Listed listed) throws IOException {
+            cifsClient.listShareContent(share, dir.path, entry -> {
+                String entryPath = dir.path.isEmpty() ? entry.getName() : dir.path + '/' + entry.getName();
+                entry.setPath(entryPath);
+                if (entry.isIsDirectory() && dir.depth < maxDepth) {
+                    listed.subDirs.add(new Dir(entryPath, dir.depth + 1));
+                }
+                if (matches(entry, entryPath)) {
+                    listed.entries.add(entry);
+                }
+                return !cancelled;
+            });
+        }
+
+        private boolean matches(FileOrDirectoryInfo entry, String entryPath) {
+            if (matcher == null) {
+                return true;
+            }
+            if (!matchPath) {
+                return matcher.matches(Paths.get(entry.getName()));
+            }
+            String relative = root.isEmpty() ? entryPath : entryPath.substring(root.length() + 1);
+            return matcher.matches(Paths.get(relative));
+        }
+
+        /**
+         * hand listing over to caller thread, listings finished after walk is over are dropped with their spill files
+         */
+        private synchronized void deliver(Listed listed) {
+            if (cancelled) {
+                listed.entries.close();
+            } else {
+                results.add(listed);
+            }
+        }
+
+        private synchronized void cancel() {
+            cancelled = true;
+            Listed listed;
+            while ((listed = results.poll()) != null) {
+                listed.entries.close();
+            }
+        }
+    }
+}
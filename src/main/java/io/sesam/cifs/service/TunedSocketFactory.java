@@ -0,0 +1,77 @@
+package io.sesam.cifs.service;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import javax.net.SocketFactory;
+
+/**
+ * Factory of sockets to file server with configured buffer sizes and connect timeout.
+ * <p>
+ * Socket send and receive buffers are set before connecting so TCP window scaling can take them into account, Nagle's
+ * algorithm is disabled as SMB requests are written as whole messages.
+ *
+ * @author Timur Samkharadze
+ */
+class TunedSocketFactory extends SocketFactory {
+
+    private final int bufferSize;
+
+    private final int connectTimeoutMillis;
+
+    /**
+     * @param bufferSize size of socket send and receive buffers, OS default if 0
+     * @param connectTimeoutMillis max time to wait for connection to be established
+     */
+    TunedSocketFactory(int bufferSize, int connectTimeoutMillis) {
+        this.bufferSize = bufferSize;
+        this.connectTimeoutMillis = connectTimeoutMillis;
+    }
+
+    @Override
+    public Socket createSocket() throws IOException {
+        Socket socket = new Socket();
+        if (bufferSize > 0) {
+            socket.setReceiveBufferSize(bufferSize);
+            socket.setSendBufferSize(bufferSize);
+        }
+        socket.setTcpNoDelay(true);
+        return socket;
+    }
+
+    @Override
+    public Socket createSocket(String host, int port) throws IOException {
+        return connect(new InetSocketAddress(host, port), null);
+    }
+
+    @Override
+    public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+        return connect(new InetSocketAddress(host, port), new InetSocketAddress(localHost, localPort));
+    }
+
+    @Override
+    public Socket createSocket(InetAddress host, int port) throws IOException {
+        return connect(new InetSocketAddress(host, port), null);
+    }
+
+    @Override
+    public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort)
+            throws IOException {
+        return connect(new InetSocketAddress(address, port), new InetSocketAddress(localAddress, localPort));
+    }
+
+    private Socket connect(InetSocketAddress remote, InetSocketAddress local) throws IOException {
+        Socket socket = createSocket();
+        try {
+            if (local != null) {
+                socket.bind(local);
+            }
+            socket.connect(remote, connectTimeoutMillis);
+            return socket;
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,513 @@
+package io.sesam.cifs.service;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import org.json.JSONObject;
+import org.json.XML;
+import org.springframework.stereotype.Component;
+
+/**
+ * Streaming XML to JSON converter producing same element, attribute and array mapping as
+ * {@link XML#toJSONObject(java.lang.String)} without building document tree in memory.
+ * <p>
+ * org.json turns repeated sibling elements into arrays, which can't be known before siblings are read. Converter
+ * therefore reads document twice: first pass only records which elements have child elements and which child names
+ * repeat, second pass writes JSON straight to generator. Leaf elements and rare elements with interleaved repeated
+ * children are collected in memory before writing, everything else is streamed.
+ * <p>
+ * Structure kept between passes grows with document: two bits per element plus set of repeated child names per
+ * element which has them, so it is a small fraction of document size but not constant. Source must return the same
+ * content both times it is opened, documents on share are therefore spooled to local file first.
+ *
+ * @author Timur Samkharadze
+ */
+@Component
+public class XmlToJsonConverter {
+
+    private static final String CONTENT = "content";
+
+    private static final String REPORT_CDATA = "http://java.sun.com/xml/stream/properties/report-cdata-event";
+
+    private final XMLInputFactory xmlInputFactory;
+
+    private final JsonFactory jsonFactory;
+
+    public XmlToJsonConverter() {
+        this.xmlInputFactory = XMLInputFactory.newInstance();
+        this.xmlInputFactory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, false);
+        this.xmlInputFactory.setProperty(XMLInputFactory.IS_COALESCING, false);
+        this.xmlInputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        this.xmlInputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        if (this.xmlInputFactory.isPropertySupported(REPORT_CDATA)) {
+            this.xmlInputFactory.setProperty(REPORT_CDATA, true);
+        }
+        this.jsonFactory = new JsonFactory();
+        this.jsonFactory.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+    }
+
+    /**
+     * Source of XML document which can be opened more than once
+     */
+    @FunctionalInterface
+    public interface XmlSource {
+
+        InputStream open() throws IOException;
+    }
+
+    /**
+     * Convert XML document and write JSON object of given root element to writer
+     *
+     * @param source XML document source, opened twice and must return the same content both times
+     * @param root name of document root element
+     * @param writer destination writer, not closed by this method
+     * @throws IOException if document can't be read or parsed or has different root element
+     */
+    public void convert(XmlSource source, String root, Writer writer) throws IOException {
+        Structure structure;
+        try ( InputStream in = source.open()) {
+            structure = scan(in);
+        }
+        try ( InputStream in = source.open();  JsonGenerator gen = jsonFactory.createGenerator(writer)) {
+            XMLStreamReader reader = xmlInputFactory.createXMLStreamReader(in);
+            try {
+                writeRoot(reader, root, structure, gen);
+            } finally {
+                reader.close();
+            }
+        } catch (XMLStreamException exc) {
+            throw new IOException(String.format("couldn't parse XML: %s", exc.getMessage()), exc);
+        }
+    }
+
+    /**
+     * Convert XML document held in memory and return JSON object of given root element
+     *
+     * @param data XML document
+     * @param root name of document root element
+     * @return JSON string
+     * @throws IOException if document can't be parsed or has different root element
+     */
+    public String convert(byte[] data, String root) throws IOException {
+        StringWriter writer = new StringWriter(data.length);
+        convert(() -> new ByteArrayInputStream(data), root, writer);
+        return writer.toString();
+    }
+
+    /**
+     * Convert XML document in single pass as described by transform profile and write resulting JSON object to writer
+     *
+     * @param source XML document source, opened once
+     * @param root expected name of document root element or null to accept any
+     * @param profile compiled transform profile
+     * @param fileName name of source file
+     * @param writer destination writer, not closed by this method
+     * @throws IOException if document can't be read or parsed or doesn't match profile
+     */
+    public void convert(XmlSource source, String root, TransformProfile profile, String fileName, Writer writer)
+            throws IOException {
+        convert(source, root, profile, fileName, writer, false);
+    }
+
+    /**
+     * Convert XML document held in memory as described by transform profile, documents with interleaved repeated
+     * elements are converted again collecting projected element in memory
+     *
+     * @param data XML document
+     * @param root expected name of document root element or null to accept any
+     * @param profile compiled transform profile
+     * @param fileName name of source file
+     * @return JSON string
+     * @throws IOException if document can't be parsed or doesn't match profile
+     */
+    public String convert(byte[] data, String root, TransformProfile profile, String fileName) throws IOException {
+        StringWriter writer = new StringWriter(data.length);
+        try {
+            convert(() -> new ByteArrayInputStream(data), root, profile, fileName, writer, false);
+        } catch (TransformProfile.NonContiguousException exc) {
+            writer = new StringWriter(data.length);
+            convert(() -> new ByteArrayInputStream(data), root, profile, fileName, writer, true);
+        }
+        return writer.toString();
+    }
+
+    private void convert(XmlSource source, String root, TransformProfile profile, String fileName, Writer writer,
+            boolean buffered) throws IOException {
+        try ( InputStream in = source.open();  JsonGenerator gen = jsonFactory.createGenerator(writer)) {
+            XMLStreamReader reader = xmlInputFactory.createXMLStreamReader(in);
+            try {
+                profile.write(reader, root, fileName, gen, buffered);
+            } finally {
+                reader.close();
+            }
+        } catch (XMLStreamException exc) {
+            throw new IOException(String.format("couldn't parse XML: %s", exc.getMessage()), exc);
+        }
+    }
+
+    private Structure scan(InputStream in) throws IOException {
+        Structure structure = new Structure();
+        Deque<Scope> stack = new ArrayDeque<>();
+        int ordinal = 0;
+        try {
+            XMLStreamReader reader = xmlInputFactory.createXMLStreamReader(in);
+            try {
+                while (reader.hasNext()) {
+                    int event = reader.next();
+                    Scope scope = stack.peek();
+                    switch (event) {
+                        case XMLStreamConstants.START_ELEMENT:
+                            if (scope != null) {
+                                scope.flushText(structure);
+                                structure.hasChildren.set(scope.ordinal);
+                                scope.addKey(reader.getLocalName(), structure);
+                            }
+                            Scope child = new Scope(ordinal++);
+                            for (int i = 0; i < reader.getAttributeCount(); i++) {
+                                child.keys.add(attributeName(reader, i));
+                            }
+                            stack.push(child);
+                            break;
+                        case XMLStreamConstants.CHARACTERS:
+                        case XMLStreamConstants.SPACE:
+                            if (scope != null && !scope.textPending) {
+                                scope.textPending = hasContent(reader);
+                            }
+                            break;
+                        case XMLStreamConstants.CDATA:
+                            if (scope != null) {
+                                scope.flushText(structure);
+                                if (reader.getTextLength() > 0) {
+                                    scope.addKey(CONTENT, structure);
+                                }
+                            }
+                            break;
+                        case XMLStreamConstants.COMMENT:
+                        case XMLStreamConstants.PROCESSING_INSTRUCTION:
+                            if (scope != null) {
+                                scope.flushText(structure);
+                            }
+                            break;
+                        case XMLStreamConstants.END_ELEMENT:
+                            scope.flushText(structure);
+                            stack.pop();
+                            break;
+                        default:
+                            break;
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (XMLStreamException exc) {
+            throw new IOException(String.format("couldn't parse XML: %s", exc.getMessage()), exc);
+        }
+        return structure;
+    }
+
+    private void writeRoot(XMLStreamReader reader, String root, Structure structure, JsonGenerator gen)
+            throws XMLStreamException, IOException {
+        while (reader.hasNext() && reader.next() != XMLStreamConstants.START_ELEMENT) {
+            // skip prolog
+        }
+        if (!reader.isStartElement() || !reader.getLocalName().equals(root)) {
+            throw new IOException(String.format("root element %s not found in XML document", root));
+        }
+        Counter counter = new Counter();
+        if (isStreamable(structure, counter.value)) {
+            streamElement(reader, structure, counter, gen);
+            return;
+        }
+        Object value = readElement(reader, counter);
+        if (!(value instanceof Map)) {
+            throw new IOException(String.format("root element %s is not an object", root));
+        }
+        writeValue(value, gen);
+    }
+
+    private static boolean isStreamable(Structure structure, int ordinal) {
+        return structure.hasChildren.get(ordinal) && !structure.needsBuffer.get(ordinal);
+    }
+
+    /**
+     * Write element having child elements as JSON object while reading it
+     */
+    private void streamElement(XMLStreamReader reader, Structure structure, Counter counter, JsonGenerator gen)
+            throws XMLStreamException, IOException {
+        int ordinal = counter.value++;
+        Set<String> repeated = structure.repeatedKeys.getOrDefault(ordinal, Collections.emptySet());
+        gen.writeStartObject();
+        for (int i = 0; i < reader.getAttributeCount(); i++) {
+            gen.writeFieldName(attributeName(reader, i));
+            writeValue(XML.stringToValue(reader.getAttributeValue(i)), gen);
+        }
+        StringBuilder text = new StringBuilder();
+        String openArray = null;
+        while (reader.hasNext()) {
+            switch (reader.next()) {
+                case XMLStreamConstants.START_ELEMENT:
+                    openArray = writeText(text, repeated, openArray, gen);
+                    openArray = writeKey(reader.getLocalName(), repeated, openArray, gen);
+                    if (isStreamable(structure, counter.value)) {
+                        streamElement(reader, structure, counter, gen);
+                    } else {
+                        Object value = readElement(reader, counter);
+                        if (openArray == null && value instanceof List) {
+                            gen.writeStartArray();
+                            writeValue(value, gen);
+                            gen.writeEndArray();
+                        } else {
+                            writeValue(value, gen);
+                        }
+                    }
+                    break;
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.SPACE:
+                    text.append(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+                    break;
+                case XMLStreamConstants.CDATA:
+                    openArray = writeText(text, repeated, openArray, gen);
+                    if (reader.getTextLength() > 0) {
+                        openArray = writeKey(CONTENT, repeated, openArray, gen);
+                        gen.writeString(reader.getText());
+                    }
+                    break;
+                case XMLStreamConstants.COMMENT:
+                case XMLStreamConstants.PROCESSING_INSTRUCTION:
+                    openArray = writeText(text, repeated, openArray, gen);
+                    break;
+                case XMLStreamConstants.END_ELEMENT:
+                    openArray = writeText(text, repeated, openArray, gen);
+                    if (openArray != null) {
+                        gen.writeEndArray();
+                    }
+                    gen.writeEndObject();
+                    return;
+                default:
+                    break;
+            }
+        }
+    }
+
+    private static String writeText(StringBuilder text, Set<String> repeated, String openArray, JsonGenerator gen)
+            throws IOException {
+        String content = text.toString().trim();
+        text.setLength(0);
+        if (content.isEmpty()) {
+            return openArray;
+        }
+        String array = writeKey(CONTENT, repeated, openArray, gen);
+        writeValue(XML.stringToValue(content), gen);
+        return array;
+    }
+
+    /**
+     * Write field name unless it continues currently open array of repeated elements
+     *
+     * @return name of open array after writing key
+     */
+    private static String writeKey(String key, Set<String> repeated, String openArray, JsonGenerator gen)
+            throws IOException {
+        if (openArray != null) {
+            if (openArray.equals(key)) {
+                return openArray;
+            }
+            gen.writeEndArray();
+        }
+        gen.writeFieldName(key);
+        if (repeated.contains(key)) {
+            gen.writeStartArray();
+            return key;
+        }
+        return null;
+    }
+
+    /**
+     * Read element into memory exactly as org.json does, returns value to be accumulated by parent element
+     */
+    private Object readElement(XMLStreamReader reader, Counter counter) throws XMLStreamException {
+        counter.value++;
+        Map<String, Object> object = new LinkedHashMap<>();
+        for (int i = 0; i < reader.getAttributeCount(); i++) {
+            accumulate(object, attributeName(reader, i), XML.stringToValue(reader.getAttributeValue(i)));
+        }
+        StringBuilder text = new StringBuilder();
+        while (reader.hasNext()) {
+            switch (reader.next()) {
+                case XMLStreamConstants.START_ELEMENT:
+                    accumulateText(object, text);
+                    String name = reader.getLocalName();
+                    accumulate(object, name, readElement(reader, counter));
+                    break;
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.SPACE:
+                    text.append(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+                    break;
+                case XMLStreamConstants.CDATA:
+                    accumulateText(object, text);
+                    if (reader.getTextLength() > 0) {
+                        accumulate(object, CONTENT, reader.getText());
+                    }
+                    break;
+                case XMLStreamConstants.COMMENT:
+                case XMLStreamConstants.PROCESSING_INSTRUCTION:
+                    accumulateText(object, text);
+                    break;
+                case XMLStreamConstants.END_ELEMENT:
+                    accumulateText(object, text);
+                    if (object.isEmpty()) {
+                        return "";
+                    }
+                    if (object.size() == 1 && object.containsKey(CONTENT)) {
+                        return object.get(CONTENT);
+                    }
+                    return object;
+                default:
+                    break;
+            }
+        }
+        throw new XMLStreamException("unexpected end of XML document");
+    }
+
+    private static void accumulateText(Map<String, Object> object, StringBuilder text) {
+        String content = text.toString().trim();
+        text.setLength(0);
+        if (!content.isEmpty()) {
+            accumulate(object, CONTENT, XML.stringToValue(content));
+        }
+    }
+
+    /**
+     * Same semantics as {@link JSONObject#accumulate(java.lang.String, java.lang.Object)}, lists represent JSON arrays
+     */
+    @SuppressWarnings("unchecked")
+    private static void accumulate(Map<String, Object> object, String key, Object value) {
+        Object current = object.get(key);
+        if (current == null) {
+            if (value instanceof List) {
+                List<Object> array = new ArrayList<>(1);
+                array.add(value);
+                object.put(key, array);
+            } else {
+                object.put(key, value);
+            }
+        } else if (current instanceof List) {
+            ((List<Object>) current).add(value);
+        } else {
+            List<Object> array = new ArrayList<>(2);
+            array.add(current);
+            array.add(value);
+            object.put(key, array);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void writeValue(Object value, JsonGenerator gen) throws IOException {
+        if (value instanceof Map) {
+            gen.writeStartObject();
+            for (Map.Entry<String, Object> entry : ((Map<String, Object>) value).entrySet()) {
+                gen.writeFieldName(entry.getKey());
+                writeValue(entry.getValue(), gen);
+            }
+            gen.writeEndObject();
+        } else if (value instanceof List) {
+            gen.writeStartArray();
+            for (Object item : (List<Object>) value) {
+                writeValue(item, gen);
+            }
+            gen.writeEndArray();
+        } else if (value instanceof Number) {
+            gen.writeNumber(JSONObject.numberToString((Number) value));
+        } else if (value instanceof Boolean) {
+            gen.writeBoolean((Boolean) value);
+        } else if (value == null || JSONObject.NULL.equals(value)) {
+            gen.writeNull();
+        } else {
+            gen.writeString(value.toString());
+        }
+    }
+
+    private static String attributeName(XMLStreamReader reader, int index) {
+        String prefix = reader.getAttributePrefix(index);
+        String localName = reader.getAttributeLocalName(index);
+        return prefix == null || prefix.isEmpty() ? localName : prefix + ':' + localName;
+    }
+
+    private static boolean hasContent(XMLStreamReader reader) {
+        char[] chars = reader.getTextCharacters();
+        int end = reader.getTextStart() + reader.getTextLength();
+        for (int i = reader.getTextStart(); i < end; i++) {
+            if (chars[i] > ' ') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Document shape collected by first pass, indexed by element position in document order
+     */
+    private static class Structure {
+
+        private final BitSet hasChildren = new BitSet();
+
+        private final BitSet needsBuffer = new BitSet();
+
+        private final Map<Integer, Set<String>> repeatedKeys = new HashMap<>();
+    }
+
+    private static class Scope {
+
+        private final int ordinal;
+
+        private final Set<String> keys = new HashSet<>();
+
+        private String lastKey;
+
+        private boolean textPending;
+
+        Scope(int ordinal) {
+            this.ordinal = ordinal;
+        }
+
+        void flushText(Structure structure) {
+            if (textPending) {
+                textPending = false;
+                addKey(CONTENT, structure);
+            }
+        }
+
+        void addKey(String key, Structure structure) {
+            if (key.equals(lastKey)) {
+                structure.repeatedKeys.computeIfAbsent(ordinal, k -> new HashSet<>(2)).add(key);
+            } else if (!keys.add(key)) {
+                structure.needsBuffer.set(ordinal);
+            }
+            lastKey = key;
+        }
+    }
+
+    private static class Counter {
+
+        private int value;
+    }
+}
@@ -0,0 +1,319 @@
+package io.sesam.cifs.service;
+
+import com.hierynomus.msfscc.fileinformation.FileAllInformation;
+import com.hierynomus.smbj.share.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/**
+ * Bounded ordered pipeline to fetch XML files from share and convert them into JSON.
+ * <p>
+ * Up to CIFS_TRANSFORM_CONCURRENCY files are fetched concurrently over pooled shares while already fetched files are
+ * converted on separate worker pool. Results are written in request order. Total size of fetched but not yet written
+ * files is limited by CIFS_TRANSFORM_MAX_INFLIGHT_BYTES, request doesn't start more fetches while it's used up. Fetch
+ * threads never wait for request budget: files larger than CIFS_TRANSFORM_IN_MEMORY_MAX_BYTES or not fitting into
+ * request or process wide memory budget are not fetched ahead but converted when their turn comes, straight from share
+ * input stream if transform profile reads them in single pass, otherwise from local temporary copy so that share is
+ * read only once and both passes of {@link XmlToJsonConverter} see the same content. Content of files found in local
+ * file cache is read from it. Source files are deleted by caller once whole response is sent.
+ *
+ * @author Timur Samkharadze
+ */
+@Component
+public class XmlTransformPipeline {
+
+    private static final Logger LOG = LoggerFactory.getLogger(XmlTransformPipeline.class);
+
+    /**
+     * fetched file and its JSON string are in memory together, JSON is about as long as XML with two bytes per char
+     */
+    private static final int TRANSFORM_MEMORY_FACTOR = 3;
+
+    @Autowired
+    private CifsConfig config;
+
+    @Autowired
+    private CifsClient cifsClient;
+
+    @Autowired
+    private XmlToJsonConverter converter;
+
+    @Autowired
+    private TransformProfiles transformProfiles;
+
+    @Autowired
+    private FileContentCache fileContentCache;
+
+    @Autowired
+    private MemoryBudget memoryBudget;
+
+    @Autowired
+    private SmbMetrics metrics;
+
+    private ExecutorService fetchExecutor;
+
+    private ExecutorService convertExecutor;
+
+    @PostConstruct
+    public void initPipeline() {
+        this.fetchExecutor = Executors.newFixedThreadPool(Math.max(1, config.getTransformConcurrency()),
+                namedThreadFactory("xml-fetch"));
+        this.convertExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(),
+                namedThreadFactory("xml-convert"));
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        fetchExecutor.shutdownNow();
+        convertExecutor.shutdownNow();
+    }
+
+    /**
+     * Fetch and convert given files and write resulting JSON objects separated by comma to given writer in request
+     * order
+     *
+     * @param shareName SMB share where files are stored
+     * @param fileList files to transform
+     * @param writer destination writer
+     * @return paths of written files, to be deleted by {@link CifsClient#deleteAfterDownload(String, List)} only once
+     * response is completed
+     * @throws IOException if any IO errors occur
+     */
+    public List<String> transform(String shareName, List<SesamFileRequestEntity> fileList, Writer writer)
+            throws IOException {
+        int window = Math.max(1, config.getTransformConcurrency()) * 2;
+        InFlightBudget budget = new InFlightBudget(config.getTransformMaxInflightBytes(), memoryBudget, "transform",
+                TRANSFORM_MEMORY_FACTOR);
+        Deque<CompletableFuture<Converted>> inFlight = new ArrayDeque<>(window);
+        Iterator<SesamFileRequestEntity> pending = fileList.iterator();
+        List<String> written = new ArrayList<>(fileList.size());
+        boolean isFirst = true;
+        try {
+            while (pending.hasNext() || !inFlight.isEmpty()) {
+                while (pending.hasNext() && inFlight.size() < window && (inFlight.isEmpty() || budget.hasRoom())) {
+                    SesamFileRequestEntity request = pending.next();
+                    inFlight.addLast(CompletableFuture
+                            .supplyAsync(() -> fetch(shareName, request, budget), fetchExecutor)
+                            .thenApplyAsync(fetched -> convert(shareName, request, fetched), convertExecutor));
+                }
+                Converted result = await(inFlight.peekFirst());
+                inFlight.pollFirst();
+                if (!isFirst) {
+                    writer.write(',');
+                }
+                isFirst = false;
+                if (result.json != null) {
+                    writer.write(result.json);
+                    budget.release(result.reservedBytes);
+                } else {
+                    convertFromShare(shareName, result.request, writer);
+                }
+                written.add(filePath(result.request));
+            }
+            return written;
+        } finally {
+            for (CompletableFuture<Converted> future : inFlight) {
+                future.cancel(true);
+            }
+            budget.abort();
+        }
+    }
+
+    private Fetched fetch(String shareName, SesamFileRequestEntity request, InFlightBudget budget) {
+        String path = filePath(request);
+        try ( PooledShare pooledShare = cifsClient.borrowShare(shareName)) {
+            byte[] xmlData;
+            try ( File sharedFile = cifsClient.openFile(pooledShare.getShare(), path)) {
+                FileAllInformation fileInfo = sharedFile.getFileInformation();
+                long size = fileInfo.getStandardInformation().getEndOfFile();
+                long changeTime = fileInfo.getBasicInformation().getChangeTime().getWindowsTimeStamp();
+                if (size > Math.min(config.getTransformInMemoryMaxBytes(), Integer.MAX_VALUE - 8)) {
+                    return new Fetched(null);
+                }
+                if (!budget.tryAcquire(size)) {
+                    LOG.debug("no budget to fetch file {} ahead, it will be streamed", path);
+                    return new Fetched(null);
+                }
+                FileContentCache.Entry cached = fileContentCache.get(shareName, path, changeTime, size);
+                if (cached != null) {
+                    try {
+                        xmlData = cached.readAllBytes();
+                    } finally {
+                        cached.close();
+                    }
+                } else {
+                    xmlData = new byte[(int) size];
+                    cifsClient.readFile(sharedFile, xmlData);
+                    fileContentCache.put(shareName, path, changeTime, xmlData);
+                }
+            }
+            LOG.debug("downloaded file {} of size {}", path, FileUtils.byteCountToDisplaySize(xmlData.length));
+            return new Fetched(xmlData);
+        } catch (IOException exc) {
+            throw new CompletionException(exc);
+        }
+    }
+
+    private Converted convert(String shareName, SesamFileRequestEntity request, Fetched fetched) {
+        if (fetched.data == null) {
+            return new Converted(request, null, 0);
+        }
+        try {
+            TransformProfile profile = transformProfiles.get(request.getProfile());
+            String json = metrics.record("parse", shareName, () -> profile != null
+                    ? converter.convert(fetched.data, request.getXmlRoot(), profile, request.getFileName())
+                    : converter.convert(fetched.data, request.getXmlRoot()));
+            LOG.debug("parsed JSON content from file {}", request.getFileName());
+            return new Converted(request, json, fetched.data.length);
+        } catch (IOException exc) {
+            throw new CompletionException(exc);
+        }
+    }
+
+    /**
+     * Convert large file reading it directly from share without loading it into memory
+     */
+    private void convertFromShare(String shareName, SesamFileRequestEntity request, Writer writer) throws IOException {
+        String path = filePath(request);
+        TransformProfile profile = transformProfiles.get(request.getProfile());
+        try ( PooledShare pooledShare = cifsClient.borrowShare(shareName)) {
+            try ( File sharedFile = cifsClient.openFile(pooledShare.getShare(), path)) {
+                FileAllInformation fileInfo = sharedFile.getFileInformation();
+                long changeTime = fileInfo.getBasicInformation().getChangeTime().getWindowsTimeStamp();
+                long size = fileInfo.getStandardInformation().getEndOfFile();
+                FileContentCache.Entry cached = fileContentCache.get(shareName, path, changeTime, size);
+                Path spool = null;
+                try {
+                    XmlToJsonConverter.XmlSource source;
+                    if (cached != null) {
+                        source = cached::newInputStream;
+                    } else if (profile != null) {
+                        source = sharedFile::getInputStream;
+                    } else {
+                        spool = spool(sharedFile, path, changeTime, size);
+                        Path copy = spool;
+                        source = () -> Files.newInputStream(copy);
+                    }
+                    metrics.record("parse", shareName, () -> {
+                        if (profile != null) {
+                            converter.convert(source, request.getXmlRoot(), profile, request.getFileName(), writer);
+                        } else {
+                            converter.convert(source, request.getXmlRoot(), writer);
+                        }
+                        return null;
+                    });
+                } finally {
+                    if (cached != null) {
+                        cached.close();
+                    }
+                    if (spool != null) {
+                        Files.deleteIfExists(spool);
+                    }
+                }
+            }
+            LOG.debug("streamed JSON content from file {}", path);
+        }
+    }
+
+    /**
+     * Copy file from share to local temporary file, converter reads it twice
+     *
+     * @return temporary file, must be deleted by caller
+     * @throws IOException if file can't be read or changed while it was copied
+     */
+    private Path spool(File sharedFile, String path, long changeTime, long size) throws IOException {
+        Path spool = Files.createTempFile("cifs-transform-", ".xml");
+        try {
+            long copied;
+            try ( OutputStream out = Files.newOutputStream(spool)) {
+                copied = cifsClient.transferFile(sharedFile, 0, size, out);
+            }
+            if (copied != size || sharedFile.getFileInformation().getBasicInformation().getChangeTime()
+                    .getWindowsTimeStamp() != changeTime) {
+                throw new IOException(String.format("file %s changed while it was read", path));
+            }
+            return spool;
+        } catch (IOException | RuntimeException exc) {
+            Files.deleteIfExists(spool);
+            throw exc;
+        }
+    }
+
+    private static String filePath(SesamFileRequestEntity request) {
+        return String.format("%s%s", request.getPath(), request.getFileName());
+    }
+
+    private static Converted await(CompletableFuture<Converted> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException exc) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for transformed file");
+        } catch (ExecutionException exc) {
+            Throwable cause = exc.getCause() instanceof CompletionException ? exc.getCause().getCause() : exc.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    private static ThreadFactory namedThreadFactory(String prefix) {
+        AtomicInteger counter = new AtomicInteger();
+        return r -> {
+            Thread thread = new Thread(r, prefix + "-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    private static class Fetched {
+
+        private final byte[] data;
+
+        Fetched(byte[] data) {
+            this.data = data;
+        }
+    }
+
+    private static class Converted {
+
+        private final SesamFileRequestEntity request;
+
+        private final String json;
+
+        private final long reservedBytes;
+
+        Converted(SesamFileRequestEntity request, String json, long reservedBytes) {
+            this.request = request;
+            this.json = json;
+            this.reservedBytes = reservedBytes;
+        }
+    }
+}
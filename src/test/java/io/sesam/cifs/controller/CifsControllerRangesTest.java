@@ -0,0 +1,132 @@
+package io.sesam.cifs.controller;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import javax.servlet.http.HttpServletResponse;
+import org.junit.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpRange;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+/**
+ * Parsing of Range/If-Range headers and partial content responses of file downloads
+ *
+ * @author Timur Samkharadze
+ */
+public class CifsControllerRangesTest {
+
+    private static final String ETAG = "\"1c54f0a2b3-3e8\"";
+
+    private static final long LAST_MODIFIED = 1565605530000L;
+
+    private static final byte[] FILE = new byte[1000];
+
+    static {
+        for (int i = 0; i < FILE.length; i++) {
+            FILE[i] = (byte) i;
+        }
+    }
+
+    @Test
+    public void sendsWholeFileWithoutRangeHeader() {
+        assertTrue(ranges(null, null).isEmpty());
+    }
+
+    @Test
+    public void ignoresInvalidRangeHeader() {
+        assertTrue(ranges("lines=1-2", null).isEmpty());
+        assertTrue(ranges("bytes=abc", null).isEmpty());
+    }
+
+    @Test
+    public void honoursRangeIfRangeMatchesEtagOrDate() {
+        assertEquals(1, ranges("bytes=0-99", ETAG).size());
+        assertEquals(1, ranges("bytes=0-99", "Mon, 12 Aug 2019 10:25:30 GMT").size());
+    }
+
+    @Test
+    public void ignoresRangeIfRangeDoesNotMatch() {
+        assertTrue(ranges("bytes=0-99", "\"other\"").isEmpty());
+        assertTrue(ranges("bytes=0-99", "Mon, 12 Aug 2019 10:25:31 GMT").isEmpty());
+    }
+
+    @Test
+    public void sendsSingleRange() throws IOException {
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        CifsController.PartialContent partial = CifsController.PartialContent.prepare(FILE.length,
+                ranges("bytes=100-199", null), response);
+        assertNotNull(partial);
+        assertEquals(HttpServletResponse.SC_PARTIAL_CONTENT, response.getStatus());
+        assertEquals("bytes 100-199/1000", response.getHeader(HttpHeaders.CONTENT_RANGE));
+        assertEquals(100, response.getContentLengthLong());
+        assertArrayEquals(new long[]{100, 199}, partial.getSingleRange());
+        assertArrayEquals(Arrays.copyOfRange(FILE, 100, 200), write(partial));
+    }
+
+    @Test
+    public void resolvesSuffixAndOpenEndedRanges() throws IOException {
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        assertArrayEquals(new long[]{900, 999}, CifsController.PartialContent.prepare(FILE.length,
+                ranges("bytes=-100", null), response).getSingleRange());
+        assertArrayEquals(new long[]{990, 999}, CifsController.PartialContent.prepare(FILE.length,
+                ranges("bytes=990-", null), response).getSingleRange());
+        assertArrayEquals(new long[]{990, 999}, CifsController.PartialContent.prepare(FILE.length,
+                ranges("bytes=990-5000", null), response).getSingleRange());
+    }
+
+    @Test
+    public void sendsMultipleRangesAsMultipart() throws IOException {
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        CifsController.PartialContent partial = CifsController.PartialContent.prepare(FILE.length,
+                ranges("bytes=0-1,998-999", null), response);
+        assertNotNull(partial);
+        assertNull(partial.getSingleRange());
+        String contentType = response.getContentType();
+        assertTrue(contentType.startsWith("multipart/byteranges; boundary="));
+        String boundary = contentType.substring(contentType.indexOf('=') + 1);
+        String expected = String.format("\r\n--%1$s\r\nContent-Type: application/octet-stream\r\n"
+                + "Content-Range: bytes 0-1/1000\r\n\r\n\u0000\u0001"
+                + "\r\n--%1$s\r\nContent-Type: application/octet-stream\r\n"
+                + "Content-Range: bytes 998-999/1000\r\n\r\næç"
+                + "\r\n--%1$s--\r\n", boundary);
+        assertEquals(expected, new String(write(partial), StandardCharsets.ISO_8859_1));
+    }
+
+    @Test
+    public void rejectsUnsatisfiableRange() throws IOException {
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        assertNull(CifsController.PartialContent.prepare(FILE.length, ranges("bytes=1000-1099", null), response));
+        assertEquals(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE, response.getStatus());
+        assertEquals("bytes */1000", response.getHeader(HttpHeaders.CONTENT_RANGE));
+    }
+
+    private static List<HttpRange> ranges(String range, String ifRange) {
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/get/share/file.xml");
+        if (range != null) {
+            request.addHeader(HttpHeaders.RANGE, range);
+        }
+        if (ifRange != null) {
+            request.addHeader(HttpHeaders.IF_RANGE, ifRange);
+        }
+        return CifsController.getRequestedRanges(request, ETAG, LAST_MODIFIED);
+    }
+
+    private static byte[] write(CifsController.PartialContent partial) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        partial.write((offset, length, target) -> {
+            target.write(FILE, (int) offset, (int) length);
+            return length;
+        }, out);
+        return out.toByteArray();
+    }
+}
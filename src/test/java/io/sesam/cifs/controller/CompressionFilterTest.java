@@ -0,0 +1,116 @@
+package io.sesam.cifs.controller;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import io.sesam.cifs.service.CifsConfig;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletResponse;
+import org.apache.commons.io.IOUtils;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.web.util.WebUtils;
+
+/**
+ * Compression threshold, ETag weakening and early completion of compressed responses
+ *
+ * @author Timur Samkharadze
+ */
+public class CompressionFilterTest {
+
+    private final CompressionFilter filter = new CompressionFilter();
+
+    @Before
+    public void setUp() {
+        CifsConfig config = new CifsConfig();
+        config.setPassword("secret");
+        config.setCompressionEnabled(true);
+        config.setCompressionMinBytes(100);
+        config.setCompressionLevel(6);
+        config.setCompressionSkipExtensions("zip,png");
+        ReflectionTestUtils.setField(filter, "config", config);
+        filter.initFilter();
+    }
+
+    @Test
+    public void sendsBodyUnderThresholdUnchanged() throws ServletException, IOException {
+        byte[] body = body(100);
+        MockHttpServletResponse response = serve("/list/docs", body, false);
+        assertNull(response.getHeader(HttpHeaders.CONTENT_ENCODING));
+        assertEquals("\"v1\"", response.getHeader(HttpHeaders.ETAG));
+        assertArrayEquals(body, response.getContentAsByteArray());
+    }
+
+    @Test
+    public void compressesBodyOverThresholdAndWeakensEtag() throws ServletException, IOException {
+        byte[] body = body(5000);
+        MockHttpServletResponse response = serve("/list/docs", body, false);
+        assertEquals("gzip", response.getHeader(HttpHeaders.CONTENT_ENCODING));
+        assertEquals(HttpHeaders.ACCEPT_ENCODING, response.getHeader(HttpHeaders.VARY));
+        assertEquals("W/\"v1\"", response.getHeader(HttpHeaders.ETAG));
+        assertArrayEquals(body, gunzip(response.getContentAsByteArray()));
+    }
+
+    @Test
+    public void completesCompressedBodyOnceWhenHandlerFinishesItEarly() throws ServletException, IOException {
+        byte[] body = body(5000);
+        MockHttpServletResponse response = serve("/loadandtransform/docs", body, true);
+        assertArrayEquals(body, gunzip(response.getContentAsByteArray()));
+        assertArrayEquals(serve("/loadandtransform/docs", body, false).getContentAsByteArray(),
+                response.getContentAsByteArray());
+    }
+
+    @Test
+    public void skipsRangeRequestsAndCompressedFiles() throws ServletException, IOException {
+        byte[] body = body(5000);
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/get/docs/a.xml");
+        request.addHeader(HttpHeaders.ACCEPT_ENCODING, "gzip");
+        request.addHeader(HttpHeaders.RANGE, "bytes=0-10");
+        assertNull(serve(request, body, false).getHeader(HttpHeaders.CONTENT_ENCODING));
+        assertNull(serve("/get/docs/a.png", body, false).getHeader(HttpHeaders.CONTENT_ENCODING));
+    }
+
+    private MockHttpServletResponse serve(String uri, byte[] body, boolean finishEarly)
+            throws ServletException, IOException {
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", uri);
+        request.addHeader(HttpHeaders.ACCEPT_ENCODING, "gzip, deflate");
+        return serve(request, body, finishEarly);
+    }
+
+    private MockHttpServletResponse serve(MockHttpServletRequest request, byte[] body, boolean finishEarly)
+            throws ServletException, IOException {
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        FilterChain chain = (req, res) -> {
+            HttpServletResponse http = (HttpServletResponse) res;
+            http.setHeader(HttpHeaders.ETAG, "\"v1\"");
+            http.getOutputStream().write(body);
+            if (finishEarly) {
+                WebUtils.getNativeResponse(http, CompressingResponse.class).finish();
+            }
+        };
+        filter.doFilter(request, response, chain);
+        return response;
+    }
+
+    private static byte[] body(int length) {
+        byte[] body = new byte[length];
+        Arrays.fill(body, (byte) 'a');
+        return body;
+    }
+
+    private static byte[] gunzip(byte[] compressed) throws IOException {
+        try ( GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed))) {
+            return IOUtils.toByteArray(in);
+        }
+    }
+}
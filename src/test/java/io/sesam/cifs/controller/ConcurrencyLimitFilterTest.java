@@ -0,0 +1,115 @@
+package io.sesam.cifs.controller;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.sesam.cifs.service.CifsConfig;
+import io.sesam.cifs.service.SmbSessionPool;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.web.context.request.async.StandardServletAsyncWebRequest;
+import org.springframework.web.context.request.async.WebAsyncUtils;
+
+/**
+ * Admission control of endpoint groups, permits of asynchronous requests are held until response is completed
+ *
+ * @author Timur Samkharadze
+ */
+public class ConcurrencyLimitFilterTest {
+
+    private final ConcurrencyLimitFilter filter = new ConcurrencyLimitFilter();
+
+    private final ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+
+    @Before
+    public void setUp() {
+        CifsConfig config = new CifsConfig();
+        config.setPassword("secret");
+        config.setMaxConcurrentDownloads(1);
+        config.setAsyncEnabled(true);
+        config.setAsyncThreads(4);
+        config.setAsyncMaxQueued(16);
+        executor.initialize();
+        SmbSessionPool sessionPool = mock(SmbSessionPool.class);
+        when(sessionPool.getBackendNames()).thenReturn(Collections.singleton("default"));
+        ReflectionTestUtils.setField(filter, "config", config);
+        ReflectionTestUtils.setField(filter, "transferExecutor", executor);
+        ReflectionTestUtils.setField(filter, "registry", new SimpleMeterRegistry());
+        ReflectionTestUtils.setField(filter, "sessionPool", sessionPool);
+        filter.initFilter();
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdown();
+    }
+
+    @Test
+    public void rejectsRequestOverLimitOfItsGroup() throws ServletException, IOException {
+        MockHttpServletResponse[] nested = new MockHttpServletResponse[2];
+        MockHttpServletResponse first = filter("/get/docs/a.xml", (request, response) -> {
+            nested[0] = filter("/get/docs/b.xml", (req, resp) -> {
+            });
+            nested[1] = filter("/list/docs/", (req, resp) -> {
+            });
+        });
+        assertEquals(HttpServletResponse.SC_OK, first.getStatus());
+        assertEquals(429, nested[0].getStatus());
+        assertEquals("1", nested[0].getHeader(HttpHeaders.RETRY_AFTER));
+        assertEquals(HttpServletResponse.SC_OK, nested[1].getStatus());
+        assertEquals(HttpServletResponse.SC_OK, filter("/get/docs/b.xml", (req, resp) -> {
+        }).getStatus());
+    }
+
+    @Test
+    public void holdsPermitOfAsyncRequestUntilCompleted() throws ServletException, IOException {
+        MockHttpServletRequest request = request("/get/docs/a.xml");
+        request.setAsyncSupported(true);
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        filter.doFilter(request, response, (req, resp) -> {
+            StandardServletAsyncWebRequest asyncRequest = new StandardServletAsyncWebRequest(
+                    (HttpServletRequest) req, (HttpServletResponse) resp);
+            WebAsyncUtils.getAsyncManager(req).setAsyncWebRequest(asyncRequest);
+            asyncRequest.startAsync();
+        });
+        AtomicBoolean called = new AtomicBoolean();
+        assertEquals(429, filter("/get/docs/b.xml", (req, resp) -> called.set(true)).getStatus());
+        request.getAsyncContext().complete();
+        assertEquals(HttpServletResponse.SC_OK, filter("/get/docs/b.xml", (req, resp) -> called.set(true))
+                .getStatus());
+        assertTrue(called.get());
+    }
+
+    @Test
+    public void doesNotLimitOtherEndpoints() throws ServletException, IOException {
+        AtomicBoolean called = new AtomicBoolean();
+        filter("/actuator/health", (req, resp) -> called.set(true));
+        assertTrue(called.get());
+    }
+
+    private MockHttpServletResponse filter(String uri, FilterChain chain) throws ServletException, IOException {
+        MockHttpServletResponse response = new MockHttpServletResponse();
+        filter.doFilter(request(uri), response, chain);
+        return response;
+    }
+
+    private static MockHttpServletRequest request(String uri) {
+        return new MockHttpServletRequest("GET", uri);
+    }
+}
@@ -0,0 +1,45 @@
+package io.sesam.cifs.controller;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.web.context.request.ServletWebRequest;
+
+/**
+ * Resources of response body are released exactly once, by body or by completed request
+ *
+ * @author Timur Samkharadze
+ */
+public class PendingTransferTest {
+
+    private final MockHttpServletRequest request = new MockHttpServletRequest("GET", "/get/docs/a.xml");
+
+    private final AtomicInteger released = new AtomicInteger();
+
+    @Test
+    public void leavesClaimedResourcesToBody() {
+        PendingTransfer transfer = PendingTransfer.register(request, released::incrementAndGet);
+        assertTrue(transfer.claim());
+        PendingTransfer.releaseUnclaimed(new ServletWebRequest(request));
+        assertEquals(0, released.get());
+    }
+
+    @Test
+    public void releasesResourcesOfBodyWhichNeverRan() {
+        PendingTransfer transfer = PendingTransfer.register(request, released::incrementAndGet);
+        PendingTransfer.releaseUnclaimed(new ServletWebRequest(request));
+        PendingTransfer.releaseUnclaimed(new ServletWebRequest(request));
+        assertEquals(1, released.get());
+        assertFalse(transfer.claim());
+    }
+
+    @Test
+    public void ignoresRequestWithoutTransfer() {
+        PendingTransfer.releaseUnclaimed(new ServletWebRequest(request));
+        assertEquals(0, released.get());
+    }
+}
@@ -0,0 +1,102 @@
+package io.sesam.cifs.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.hierynomus.smbj.share.DiskShare;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+/**
+ * Per path outcomes of batch delete in request order
+ *
+ * @author Timur Samkharadze
+ */
+public class BatchFileOperationsTest {
+
+    private final CifsClient cifsClient = mock(CifsClient.class);
+
+    private final SmbSessionPool sessionPool = mock(SmbSessionPool.class);
+
+    private final ListingCache listingCache = mock(ListingCache.class);
+
+    private final DiskShare diskShare = mock(DiskShare.class);
+
+    private final BatchFileOperations batch = new BatchFileOperations();
+
+    @Before
+    public void setUp() throws IOException {
+        CifsConfig config = new CifsConfig();
+        config.setPassword("secret");
+        config.setBatchParallelism(2);
+        config.setBatchMaxPaths(4);
+        ReflectionTestUtils.setField(batch, "config", config);
+        ReflectionTestUtils.setField(batch, "cifsClient", cifsClient);
+        ReflectionTestUtils.setField(batch, "listingCache", listingCache);
+        batch.initBatchPool();
+        when(cifsClient.borrowShare("docs")).thenReturn(new PooledShare(sessionPool, "docs", diskShare));
+    }
+
+    @After
+    public void tearDown() {
+        batch.shutdown();
+    }
+
+    @Test
+    public void reportsEveryPathWithoutStoppingOnFailure() throws IOException {
+        when(cifsClient.deleteFile(diskShare, "in/a.xml")).thenReturn(true);
+        when(cifsClient.deleteFile(diskShare, "in/missing.xml")).thenReturn(false);
+        when(cifsClient.deleteFile(diskShare, "in/dir")).thenThrow(new IOException("in/dir is a directory"));
+        when(cifsClient.deleteFile(diskShare, "in/b.xml")).thenReturn(true);
+
+        List<FilePathResult> results = batch.delete("docs",
+                Arrays.asList("in/a.xml", "in/missing.xml", "in/dir", "in/b.xml"));
+
+        assertEquals("in/a.xml", results.get(0).getPath());
+        assertTrue(results.get(0).isSuccess());
+        assertTrue(results.get(0).isExists());
+        assertTrue(results.get(1).isSuccess());
+        assertFalse(results.get(1).isExists());
+        assertFalse(results.get(2).isSuccess());
+        assertEquals("in/dir is a directory", results.get(2).getError());
+        assertTrue(results.get(3).isSuccess());
+        assertNull(results.get(3).getError());
+        verify(listingCache, times(2)).invalidate("docs", "in");
+    }
+
+    @Test
+    public void rejectsEmptyPathAndTooLargeBatch() throws IOException {
+        List<FilePathResult> results = batch.delete("docs", Arrays.asList(""));
+        assertFalse(results.get(0).isSuccess());
+        verify(cifsClient, never()).deleteFile(diskShare, "");
+        try {
+            batch.delete("docs", Arrays.asList("a", "b", "c", "d", "e"));
+            fail("batch over max paths must be rejected");
+        } catch (IllegalArgumentException exc) {
+            verify(cifsClient, never()).deleteFile(diskShare, "a");
+        }
+    }
+
+    @Test
+    public void statsMissingPathAsNotExisting() throws IOException {
+        when(cifsClient.getFileInformation(diskShare, "in/missing.xml")).thenReturn(null);
+        FilePathResult result = batch.stat("docs", Arrays.asList("in/missing.xml")).get(0);
+        assertTrue(result.isSuccess());
+        assertFalse(result.isExists());
+        verify(listingCache, never()).invalidate(anyString(), anyString());
+    }
+}
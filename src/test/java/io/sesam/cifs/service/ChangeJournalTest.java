@@ -0,0 +1,88 @@
+package io.sesam.cifs.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Cursors and resync of directory change journal
+ *
+ * @author Timur Samkharadze
+ */
+public class ChangeJournalTest {
+
+    private final ShareWatcher.ChangeJournal journal = new ShareWatcher.ChangeJournal(3);
+
+    @Test
+    public void startsFromNowWithoutCursor() throws InterruptedException {
+        journal.append("ADDED", "a.xml", "in");
+        ChangeBatch batch = journal.read(null, 0, 10);
+        assertFalse(batch.isResync());
+        assertTrue(batch.getEvents().isEmpty());
+        assertTrue(batch.getCursor().endsWith(":1"));
+    }
+
+    @Test
+    public void returnsEventsAfterCursor() throws InterruptedException {
+        String cursor = journal.read(null, 0, 10).getCursor();
+        journal.append("ADDED", "a.xml", "in");
+        journal.append("MODIFIED", "a.xml", "in");
+        ChangeBatch batch = journal.read(cursor, 0, 10);
+        assertEquals(2, batch.getEvents().size());
+        assertEquals("in/a.xml", batch.getEvents().get(0).getPath());
+        assertEquals("MODIFIED", batch.getEvents().get(1).getAction());
+        assertEquals(batch.getEvents().get(1).getCursor(), batch.getCursor());
+        assertTrue(journal.read(batch.getCursor(), 0, 10).getEvents().isEmpty());
+    }
+
+    @Test
+    public void limitsEventsAndContinuesFromLastReturned() throws InterruptedException {
+        String cursor = journal.read(null, 0, 10).getCursor();
+        journal.append("ADDED", "a.xml", "");
+        journal.append("ADDED", "b.xml", "");
+        ChangeBatch first = journal.read(cursor, 0, 1);
+        assertEquals("a.xml", first.getEvents().get(0).getPath());
+        ChangeBatch second = journal.read(first.getCursor(), 0, 1);
+        assertEquals("b.xml", second.getEvents().get(0).getPath());
+    }
+
+    @Test
+    public void requestsResyncOfCursorOlderThanJournal() throws InterruptedException {
+        String cursor = journal.read(null, 0, 10).getCursor();
+        for (int i = 0; i < 4; i++) {
+            journal.append("ADDED", i + ".xml", "");
+        }
+        ChangeBatch batch = journal.read(cursor, 0, 10);
+        assertTrue(batch.isResync());
+        assertTrue(batch.getEvents().isEmpty());
+        assertTrue(batch.getCursor().endsWith(":4"));
+    }
+
+    @Test
+    public void requestsResyncOfForeignOrMalformedCursor() throws InterruptedException {
+        assertTrue(journal.read("other:0", 0, 10).isResync());
+        assertTrue(journal.read("garbage", 0, 10).isResync());
+        String cursor = journal.read(null, 0, 10).getCursor();
+        assertTrue(journal.read(cursor.substring(0, cursor.indexOf(':') + 1) + 5, 0, 10).isResync());
+    }
+
+    @Test
+    public void waitsForChangesAfterCursor() throws InterruptedException {
+        String cursor = journal.read(null, 0, 10).getCursor();
+        Thread writer = new Thread(() -> {
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException exc) {
+                return;
+            }
+            journal.append("REMOVED", "a.xml", "");
+        });
+        writer.start();
+        ChangeBatch batch = journal.read(cursor, 5000, 10);
+        writer.join();
+        assertEquals(1, batch.getEvents().size());
+        assertEquals("REMOVED", batch.getEvents().get(0).getAction());
+    }
+}
@@ -0,0 +1,91 @@
+package io.sesam.cifs.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.hierynomus.mssmb2.SMBApiException;
+import com.hierynomus.smbj.common.SmbPath;
+import com.hierynomus.smbj.share.DiskShare;
+import com.hierynomus.smbj.share.File;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.io.IOException;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+/**
+ * Moves between shares never lose source or existing destination
+ *
+ * @author Timur Samkharadze
+ */
+public class CifsClientMoveTest {
+
+    private final DiskShare sourceShare = mock(DiskShare.class);
+
+    private final DiskShare destinationShare = mock(DiskShare.class);
+
+    private final File sourceFile = mock(File.class);
+
+    private final File tempFile = mock(File.class);
+
+    private final CifsClient cifsClient = new CifsClient();
+
+    @Before
+    public void setUp() {
+        CifsConfig config = new CifsConfig();
+        config.setPassword("secret");
+        SmbMetrics metrics = new SmbMetrics();
+        ReflectionTestUtils.setField(metrics, "registry", new SimpleMeterRegistry());
+        ReflectionTestUtils.setField(cifsClient, "config", config);
+        ReflectionTestUtils.setField(cifsClient, "metrics", metrics);
+        when(sourceShare.getSmbPath()).thenReturn(new SmbPath("localhost", "in"));
+        when(destinationShare.getSmbPath()).thenReturn(new SmbPath("localhost", "archive"));
+        when(sourceShare.openFile(eq("a.xml"), any(), any(), any(), any(), any())).thenReturn(sourceFile);
+        when(destinationShare.openFile(anyString(), any(), any(), any(), any(), any())).thenReturn(tempFile);
+    }
+
+    @Test
+    public void movesByCopyingDeletingSourceAndRenaming() throws IOException {
+        assertEquals(CifsClient.TransferMethod.SERVER_SIDE_COPY,
+                cifsClient.moveFile(sourceShare, "a.xml", destinationShare, "done/a.xml", true));
+        verify(sourceShare).rm("a.xml");
+        verify(tempFile).rename("done\\a.xml", true);
+        verify(tempFile, never()).deleteOnClose();
+    }
+
+    @Test
+    public void keepsDestinationWhenSourceCanNotBeDeleted() throws IOException {
+        doThrow(new SMBApiException(0xC0000043L, null, null, null)).when(sourceShare).rm("a.xml");
+        try {
+            cifsClient.moveFile(sourceShare, "a.xml", destinationShare, "done/a.xml", true);
+            fail("move should fail");
+        } catch (SMBApiException exc) {
+            // sharing violation on source
+        }
+        verify(tempFile, never()).rename(anyString(), anyBoolean());
+        verify(tempFile).deleteOnClose();
+        verify(destinationShare, never()).rm(anyString());
+    }
+
+    @Test
+    public void keepsTemporaryCopyWhenRenameFailsAfterSourceIsDeleted() throws IOException {
+        doThrow(new SMBApiException(0xC0000035L, null, null, null)).when(tempFile).rename("done\\a.xml", false);
+        try {
+            cifsClient.moveFile(sourceShare, "a.xml", destinationShare, "done/a.xml", false);
+            fail("move should fail");
+        } catch (IOException exc) {
+            assertTrue(exc.getMessage().contains("couldn't be renamed to done/a.xml"));
+        }
+        verify(tempFile, never()).deleteOnClose();
+    }
+}
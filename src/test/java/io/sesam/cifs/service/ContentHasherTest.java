@@ -0,0 +1,172 @@
+package io.sesam.cifs.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.hierynomus.msdtyp.FileTime;
+import com.hierynomus.msfscc.fileinformation.FileAllInformation;
+import com.hierynomus.msfscc.fileinformation.FileBasicInformation;
+import com.hierynomus.msfscc.fileinformation.FileStandardInformation;
+import com.hierynomus.smbj.share.DiskShare;
+import com.hierynomus.smbj.share.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+/**
+ * Hash cache keyed by file version and ordered hashing of listing entries
+ *
+ * @author Timur Samkharadze
+ */
+public class ContentHasherTest {
+
+    private static final String ABC_SHA256 = "ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad";
+
+    private final CifsClient cifsClient = mock(CifsClient.class);
+
+    private final DiskShare diskShare = mock(DiskShare.class);
+
+    private final CifsConfig config = new CifsConfig();
+
+    private final ContentHasher hasher = new ContentHasher();
+
+    private long changeTime = 1;
+
+    @Before
+    public void setUp() throws IOException {
+        config.setPassword("secret");
+        config.setHashAlgorithm("sha-256");
+        config.setHashParallelism(2);
+        config.setHashCacheMaxEntries(2);
+        ReflectionTestUtils.setField(hasher, "config", config);
+        ReflectionTestUtils.setField(hasher, "cifsClient", cifsClient);
+        hasher.initHasher();
+        SmbSessionPool sessionPool = mock(SmbSessionPool.class);
+        when(cifsClient.borrowShare("docs")).thenAnswer(invocation -> new PooledShare(sessionPool, "docs", diskShare));
+        when(cifsClient.openFile(eq(diskShare), any(String.class))).thenAnswer(invocation -> {
+            if (invocation.getArgument(1).toString().contains("broken")) {
+                throw new IOException("access denied");
+            }
+            return file();
+        });
+        when(cifsClient.transferFile(any(File.class), eq(0L), anyLong(), any(OutputStream.class)))
+                .thenAnswer(invocation -> {
+                    invocation.<OutputStream>getArgument(3).write("abc".getBytes(StandardCharsets.UTF_8));
+                    return 3L;
+                });
+    }
+
+    @After
+    public void tearDown() {
+        hasher.shutdown();
+    }
+
+    @Test
+    public void hashesFileVersionOnce() throws IOException {
+        String algorithm = hasher.algorithm(null);
+        assertEquals("SHA-256", algorithm);
+        assertEquals(ABC_SHA256, hasher.hash("docs", "in/a.xml", algorithm).getHash());
+        assertEquals(ABC_SHA256, hasher.hash("docs", "in/a.xml", algorithm).getHash());
+        verify(cifsClient, times(1)).transferFile(any(File.class), eq(0L), eq(3L), any(OutputStream.class));
+
+        changeTime = 2;
+        hasher.hash("docs", "in/a.xml", algorithm);
+        verify(cifsClient, times(2)).transferFile(any(File.class), eq(0L), eq(3L), any(OutputStream.class));
+        assertEquals(Long.valueOf(1), hasher.getStats().get("hits"));
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedHashes() throws IOException {
+        String algorithm = hasher.algorithm("SHA-256");
+        hasher.hash("docs", "a.xml", algorithm);
+        hasher.hash("docs", "b.xml", algorithm);
+        hasher.hash("docs", "c.xml", algorithm);
+        assertEquals(Long.valueOf(2), hasher.getStats().get("size"));
+        assertEquals(Long.valueOf(1), hasher.getStats().get("evictions"));
+    }
+
+    @Test
+    public void keepsListingOrderAndReportsHashErrors() throws IOException {
+        List<FileOrDirectoryInfo> received = new ArrayList<>();
+        try ( ContentHasher.HashingSink sink = hasher.hashingSink(sink(received), "docs", "/in/", "SHA-256",
+                true)) {
+            sink.start(null);
+            sink.entry(entry("a.xml", false));
+            sink.entry(entry("sub", true));
+            sink.entry(entry("broken.xml", false));
+            sink.entry(entry("b.xml", false));
+            sink.drain();
+        }
+        assertEquals(3, received.size());
+        assertEquals("a.xml", received.get(0).getName());
+        assertEquals(ABC_SHA256, received.get(0).getHash());
+        assertNull(received.get(1).getHash());
+        assertEquals("access denied", received.get(1).getHashError());
+        assertEquals(ABC_SHA256, received.get(2).getHash());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsUnknownAlgorithm() {
+        hasher.algorithm("md17");
+    }
+
+    @Test
+    public void cachedEntriesAreNotModified() throws IOException {
+        FileOrDirectoryInfo entry = entry("a.xml", false);
+        List<FileOrDirectoryInfo> received = new ArrayList<>();
+        try ( ContentHasher.HashingSink sink = hasher.hashingSink(sink(received), "docs", "in", "SHA-256", false)) {
+            sink.entry(entry);
+            sink.drain();
+        }
+        assertNull(entry.getHash());
+        assertNotSame(entry, received.get(0));
+    }
+
+    private File file() {
+        File file = mock(File.class);
+        FileAllInformation info = mock(FileAllInformation.class);
+        FileStandardInformation standard = mock(FileStandardInformation.class);
+        when(standard.getEndOfFile()).thenReturn(3L);
+        FileTime time = new FileTime(changeTime);
+        when(info.getStandardInformation()).thenReturn(standard);
+        when(info.getBasicInformation()).thenReturn(new FileBasicInformation(time, time, time, time, 0));
+        when(file.getFileInformation()).thenReturn(info);
+        return file;
+    }
+
+    private FileOrDirectoryInfo entry(String name, boolean directory) {
+        FileOrDirectoryInfo entry = new FileOrDirectoryInfo();
+        entry.setName(name);
+        entry.setIsDirectory(directory);
+        entry.setEndOfFile(3);
+        entry.setChangeTimeWindowsTs(changeTime);
+        return entry;
+    }
+
+    private static DirectoryListing.ListingSink sink(List<FileOrDirectoryInfo> received) {
+        return new DirectoryListing.ListingSink() {
+            @Override
+            public void start(String continuationToken) {
+            }
+
+            @Override
+            public void entry(FileOrDirectoryInfo entry) {
+                received.add(entry);
+            }
+        };
+    }
+}
@@ -0,0 +1,56 @@
+package io.sesam.cifs.service;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import org.junit.Test;
+
+/**
+ * Encoding and decoding of listing continuation tokens
+ *
+ * @author Timur Samkharadze
+ */
+public class DirectoryListingTest {
+
+    @Test
+    public void decodesEncodedOffsetToken() {
+        String token = DirectoryListing.encodeToken("o", "200");
+        assertArrayEquals(new String[]{"200"}, DirectoryListing.decodeToken(token, "o", 1));
+    }
+
+    @Test
+    public void decodesKeyTokenWhoseNameContainsSeparator() {
+        String token = DirectoryListing.encodeToken("k", "132101010000000000", "report:2019:08.xml");
+        assertArrayEquals(new String[]{"132101010000000000", "report:2019:08.xml"},
+                DirectoryListing.decodeToken(token, "k", 2));
+    }
+
+    @Test
+    public void encodesUrlSafeTokenWithoutPadding() {
+        String token = DirectoryListing.encodeToken("k", "1", "æøå?>>");
+        assertFalse(token.contains("=") || token.contains("+") || token.contains("/"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsTokenOfOtherSortOrder() {
+        DirectoryListing.decodeToken(DirectoryListing.encodeToken("o", "200"), "k", 2);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsTokenWithMissingValues() {
+        DirectoryListing.decodeToken(DirectoryListing.encodeToken("k", "132101010000000000"), "k", 2);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsTokenWithoutType() {
+        String token = Base64.getUrlEncoder().encodeToString("200".getBytes(StandardCharsets.UTF_8));
+        DirectoryListing.decodeToken(token, "o", 1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsTokenWhichIsNotBase64() {
+        DirectoryListing.decodeToken("not a token!", "o", 1);
+    }
+}
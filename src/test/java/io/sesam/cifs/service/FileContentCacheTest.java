@@ -0,0 +1,85 @@
+package io.sesam.cifs.service;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.test.util.ReflectionTestUtils;
+
+/**
+ * Pinning of file cache entries against eviction and visibility of cache fills
+ *
+ * @author Timur Samkharadze
+ */
+public class FileContentCacheTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final FileContentCache cache = new FileContentCache();
+
+    @Before
+    public void setUp() throws IOException {
+        CifsConfig config = new CifsConfig();
+        config.setPassword("secret");
+        config.setFileCacheDir(folder.getRoot().getAbsolutePath());
+        config.setFileCacheMaxBytes(10);
+        config.setFileCacheMaxFileBytes(10);
+        ReflectionTestUtils.setField(cache, "config", config);
+        cache.initCache();
+    }
+
+    @Test
+    public void servesOnlySameFileVersion() throws IOException {
+        cache.put("docs", "a.xml", 1, new byte[]{1, 2, 3});
+        try ( FileContentCache.Entry entry = cache.get("docs", "a.xml", 1, 3)) {
+            assertArrayEquals(new byte[]{1, 2, 3}, entry.readAllBytes());
+        }
+        assertNull(cache.get("docs", "a.xml", 2, 3));
+        assertNull(cache.get("docs", "a.xml", 1, 4));
+    }
+
+    @Test
+    public void keepsPinnedEntryUntilReaderClosesIt() {
+        cache.put("docs", "a.xml", 1, new byte[6]);
+        FileContentCache.Entry reader = cache.get("docs", "a.xml", 1, 6);
+        cache.put("docs", "b.xml", 1, new byte[6]);
+        assertNull(cache.get("docs", "b.xml", 1, 6));
+        FileContentCache.Entry second = cache.get("docs", "a.xml", 1, 6);
+        assertNotNull(second);
+        second.close();
+
+        reader.close();
+        cache.put("docs", "b.xml", 1, new byte[6]);
+        assertEquals(Long.valueOf(6), cache.getStats().get("bytes"));
+        assertNull(cache.get("docs", "a.xml", 1, 6));
+    }
+
+    @Test
+    public void keepsEntryPinnedForSendfileAfterClose() {
+        cache.put("docs", "a.xml", 1, new byte[6]);
+        FileContentCache.Entry reader = cache.get("docs", "a.xml", 1, 6);
+        reader.pinForSendfile();
+        reader.close();
+        cache.put("docs", "b.xml", 1, new byte[6]);
+        FileContentCache.Entry pinned = cache.get("docs", "a.xml", 1, 6);
+        assertNotNull(pinned);
+        pinned.close();
+    }
+
+    @Test
+    public void discardsIncompleteFill() {
+        try ( FileContentCache.Fill fill = cache.startFill("docs", "a.xml", 1, 4)) {
+            fill.write(new byte[3], 0, 3);
+            fill.commit();
+        }
+        assertNull(cache.get("docs", "a.xml", 1, 4));
+        assertNull(cache.startFill("docs", "big.xml", 1, 11));
+    }
+}
@@ -0,0 +1,65 @@
+package io.sesam.cifs.service;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+/**
+ * Non blocking reservations of per request in-flight byte budget
+ *
+ * @author Timur Samkharadze
+ */
+public class InFlightBudgetTest {
+
+    private MemoryBudget memoryBudget;
+
+    @Before
+    public void setUp() {
+        CifsConfig config = new CifsConfig();
+        config.setPassword("secret");
+        config.setMemoryBudgetBytes(1000);
+        memoryBudget = new MemoryBudget();
+        ReflectionTestUtils.setField(memoryBudget, "config", config);
+        ReflectionTestUtils.setField(memoryBudget, "registry", new SimpleMeterRegistry());
+        memoryBudget.initBudget();
+    }
+
+    @Test
+    public void refusesBytesOverRequestBudgetWithoutWaiting() {
+        InFlightBudget budget = new InFlightBudget(100, memoryBudget, "test", 1);
+        assertTrue(budget.tryAcquire(60));
+        assertTrue(budget.hasRoom());
+        assertFalse(budget.tryAcquire(60));
+        assertTrue(budget.tryAcquire(40));
+        assertFalse(budget.hasRoom());
+        budget.release(60);
+        assertTrue(budget.hasRoom());
+        assertTrue(budget.tryAcquire(50));
+    }
+
+    @Test
+    public void admitsSingleFileLargerThanBudgetWhenNothingInFlight() {
+        InFlightBudget budget = new InFlightBudget(100, memoryBudget, "test", 1);
+        assertTrue(budget.tryAcquire(300));
+        assertFalse(budget.tryAcquire(1));
+    }
+
+    @Test
+    public void refusesBytesOverProcessMemoryBudget() {
+        InFlightBudget budget = new InFlightBudget(1000, memoryBudget, "test", 3);
+        assertFalse(budget.tryAcquire(400));
+        assertTrue(budget.hasRoom());
+        assertTrue(budget.tryAcquire(300));
+    }
+
+    @Test
+    public void refusesAfterAbort() {
+        InFlightBudget budget = new InFlightBudget(100, memoryBudget, "test", 1);
+        budget.abort();
+        assertFalse(budget.tryAcquire(10));
+    }
+}
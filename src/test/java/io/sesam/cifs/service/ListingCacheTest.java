@@ -0,0 +1,109 @@
+package io.sesam.cifs.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.hierynomus.smbj.share.DiskShare;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+/**
+ * Single pass loading, revalidation and too large directories of listing cache
+ *
+ * @author Timur Samkharadze
+ */
+public class ListingCacheTest {
+
+    private final CifsClient cifsClient = mock(CifsClient.class);
+
+    private final SmbSessionPool sessionPool = mock(SmbSessionPool.class);
+
+    private final DiskShare diskShare = mock(DiskShare.class);
+
+    private final CifsConfig config = new CifsConfig();
+
+    private final ListingCache cache = new ListingCache();
+
+    private int entryCount = 3;
+
+    @Before
+    public void setUp() throws IOException {
+        config.setPassword("secret");
+        config.setListCacheEnabled(true);
+        config.setListCacheTtlSeconds(0);
+        config.setListCacheMaxAgeSeconds(300);
+        config.setListCacheMaxDirectories(16);
+        config.setListCacheMaxDirectoryEntries(5);
+        ReflectionTestUtils.setField(cache, "config", config);
+        ReflectionTestUtils.setField(cache, "cifsClient", cifsClient);
+        ReflectionTestUtils.setField(cache, "sessionPool", sessionPool);
+        when(sessionPool.borrowShare("docs")).thenAnswer(invocation -> new PooledShare(sessionPool, "docs", diskShare));
+        when(cifsClient.getChangeTime(diskShare, "in")).thenReturn(1L);
+        doAnswer(invocation -> {
+            ListingVisitor visitor = invocation.getArgument(2);
+            for (int i = 0; i < entryCount; i++) {
+                FileOrDirectoryInfo entry = new FileOrDirectoryInfo();
+                entry.setName("f" + i);
+                if (!visitor.visit(entry)) {
+                    break;
+                }
+            }
+            return null;
+        }).when(cifsClient).listShareContent(eq(diskShare), eq("in"), any(ListingVisitor.class));
+    }
+
+    @Test
+    public void passesEntriesWhileLoadingAndServesRevalidatedListing() throws IOException {
+        assertEquals(3, collect().size());
+        assertEquals(3, collect().size());
+        verify(cifsClient, times(1)).listShareContent(eq(diskShare), eq("in"), any(ListingVisitor.class));
+        assertEquals(Long.valueOf(1), cache.getStats().get("revalidations"));
+    }
+
+    @Test
+    public void relistsChangedDirectory() throws IOException {
+        collect();
+        when(cifsClient.getChangeTime(diskShare, "in")).thenReturn(2L);
+        collect();
+        verify(cifsClient, times(2)).listShareContent(eq(diskShare), eq("in"), any(ListingVisitor.class));
+    }
+
+    @Test
+    public void cachesWholeListingWhenVisitorStopsEarly() throws IOException {
+        List<String> names = new ArrayList<>();
+        cache.enumerate("docs", "in", entry -> names.add(entry.getName()) && names.size() < 1);
+        assertEquals(1, names.size());
+        assertEquals(3, collect().size());
+        verify(cifsClient, times(1)).listShareContent(eq(diskShare), eq("in"), any(ListingVisitor.class));
+    }
+
+    @Test
+    public void enumeratesTooLargeDirectoryOnceAndListsItStraightAfterwards() throws IOException {
+        entryCount = 8;
+        assertEquals(8, collect().size());
+        verify(cifsClient, times(1)).listShareContent(eq(diskShare), eq("in"), any(ListingVisitor.class));
+        verify(cifsClient, never()).listShareContent(anyString(), anyString(), any(ListingVisitor.class));
+
+        collect();
+        verify(cifsClient, times(1)).listShareContent(eq("docs"), eq("in"), any(ListingVisitor.class));
+        verify(cifsClient, times(1)).getChangeTime(diskShare, "in");
+    }
+
+    private List<FileOrDirectoryInfo> collect() throws IOException {
+        List<FileOrDirectoryInfo> entries = new ArrayList<>();
+        cache.enumerate("docs", "in", entries::add);
+        return entries;
+    }
+}
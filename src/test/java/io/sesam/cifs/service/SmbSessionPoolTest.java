@@ -0,0 +1,174 @@
+package io.sesam.cifs.service;
+
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.hierynomus.smbj.SMBClient;
+import com.hierynomus.smbj.auth.AuthenticationContext;
+import com.hierynomus.smbj.common.SmbPath;
+import com.hierynomus.smbj.connection.Connection;
+import com.hierynomus.smbj.session.Session;
+import com.hierynomus.smbj.share.DiskShare;
+import com.hierynomus.smbj.share.TreeConnect;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.springframework.mock.env.MockEnvironment;
+import org.springframework.test.util.ReflectionTestUtils;
+
+/**
+ * Pooled shares are connected in separate sessions, so disconnecting one doesn't affect other leases
+ *
+ * @author Timur Samkharadze
+ */
+public class SmbSessionPoolTest {
+
+    private final SMBClient client = mock(SMBClient.class);
+
+    private final Connection connection = mock(Connection.class);
+
+    private SmbSessionPool pool;
+
+    @Before
+    public void setUp() throws IOException {
+        when(client.connect(anyString(), anyInt())).thenReturn(connection);
+        when(connection.isConnected()).thenReturn(true);
+        when(connection.authenticate(any(AuthenticationContext.class))).thenAnswer(invocation -> newSession());
+
+        CifsConfig config = new CifsConfig();
+        config.setCifsHostname("fileserver");
+        config.setPassword("secret");
+        config.setPoolMaxPerShare(2);
+        config.setPoolBorrowTimeoutSeconds(1);
+        config.setPoolIdleTimeoutSeconds(60);
+        config.setPoolEvictionIntervalSeconds(60);
+        SmbMetrics metrics = new SmbMetrics();
+        ReflectionTestUtils.setField(metrics, "registry", new SimpleMeterRegistry());
+        pool = new SmbSessionPool() {
+            @Override
+            SMBClient newClient(SmbBackend settings) {
+                return client;
+            }
+        };
+        ReflectionTestUtils.setField(pool, "config", config);
+        ReflectionTestUtils.setField(pool, "metrics", metrics);
+        ReflectionTestUtils.setField(pool, "environment", new MockEnvironment());
+        pool.initPool();
+    }
+
+    @After
+    public void tearDown() {
+        pool.shutdown();
+    }
+
+    @Test
+    public void connectsConcurrentLeasesInSeparateSessions() throws IOException {
+        try ( PooledShare first = pool.borrowShare("docs");  PooledShare second = pool.borrowShare("docs")) {
+            assertNotSame(first.getShare(), second.getShare());
+            assertNotSame(session(first), session(second));
+        }
+    }
+
+    @Test
+    public void disconnectsOnlySessionOfInvalidatedLease() throws IOException {
+        try ( PooledShare first = pool.borrowShare("docs");  PooledShare second = pool.borrowShare("docs")) {
+            first.invalidate();
+            first.close();
+            verify(session(first)).close();
+            verify(session(second), never()).close();
+            assertTrue(second.getShare().isConnected());
+        }
+    }
+
+    @Test
+    public void reusesReturnedShare() throws IOException {
+        DiskShare share;
+        try ( PooledShare lease = pool.borrowShare("docs")) {
+            share = lease.getShare();
+        }
+        try ( PooledShare lease = pool.borrowShare("docs")) {
+            assertSame(share, lease.getShare());
+        }
+        verify(connection, times(1)).authenticate(any(AuthenticationContext.class));
+    }
+
+    @Test
+    public void triesToBorrowShareOnlyForGivenTime() throws IOException {
+        try ( PooledShare first = pool.tryBorrowShare("docs", 0);  PooledShare second = pool.tryBorrowShare("docs", 0)) {
+            assertNull(pool.tryBorrowShare("docs", 50));
+        }
+        try ( PooledShare lease = pool.tryBorrowShare("docs", 0)) {
+            assertNotNull(lease);
+        }
+    }
+
+    @Test
+    public void waitsForShareReturnedMeanwhile() throws IOException, InterruptedException {
+        PooledShare first = pool.borrowShare("docs");
+        try ( PooledShare second = pool.borrowShare("docs")) {
+            Thread returning = new Thread(() -> {
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException exc) {
+                    Thread.currentThread().interrupt();
+                }
+                first.close();
+            });
+            returning.start();
+            try ( PooledShare lease = pool.tryBorrowShare("docs", 5000)) {
+                assertSame(first.getShare(), lease.getShare());
+            }
+            returning.join();
+        }
+    }
+
+    @Test
+    public void disconnectsWatchShareWithoutTouchingPooledShares() throws IOException {
+        try ( PooledShare lease = pool.borrowShare("docs")) {
+            DiskShare watched = pool.connectShare("docs");
+            pool.disconnect(watched);
+            verify(watched.getTreeConnect().getSession()).close();
+            verify(session(lease), never()).close();
+        }
+    }
+
+    private static Session session(PooledShare lease) {
+        return lease.getShare().getTreeConnect().getSession();
+    }
+
+    /**
+     * session whose single share is connected until session is closed, like smbj logoff does
+     */
+    private Session newSession() throws IOException {
+        AtomicBoolean closed = new AtomicBoolean();
+        Session session = mock(Session.class);
+        TreeConnect treeConnect = mock(TreeConnect.class);
+        DiskShare share = mock(DiskShare.class);
+        when(session.getConnection()).thenReturn(connection);
+        when(session.connectShare(anyString())).thenReturn(share);
+        Mockito.doAnswer(invocation -> {
+            closed.set(true);
+            return null;
+        }).when(session).close();
+        when(treeConnect.getSession()).thenReturn(session);
+        when(share.getTreeConnect()).thenReturn(treeConnect);
+        when(share.getSmbPath()).thenReturn(new SmbPath("fileserver", "docs"));
+        when(share.isConnected()).thenAnswer(invocation -> !closed.get());
+        return session;
+    }
+}
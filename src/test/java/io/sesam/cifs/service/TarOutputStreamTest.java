@@ -0,0 +1,140 @@
+package io.sesam.cifs.service;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import org.junit.Test;
+
+/**
+ * Layout of ustar headers and PAX extended headers written by {@link TarOutputStream}
+ *
+ * @author Timur Samkharadze
+ */
+public class TarOutputStreamTest {
+
+    private static final long MODIFIED = 1565605530000L;
+
+    @Test
+    public void writesShortNameInUstarHeader() throws IOException {
+        byte[] tar = archive("dir/file.xml", "content");
+        assertHeader(tar, 0, "dir/file.xml", "", 7, '0');
+        assertEquals("content", text(tar, 512, 7));
+        assertEquals(512 * 2 + 1024, tar.length);
+    }
+
+    @Test
+    public void splitsLongNameIntoPrefixAndName() throws IOException {
+        String dir = repeat('d', 120);
+        String name = dir + "/" + repeat('f', 90);
+        byte[] tar = archive(name, "x");
+        assertHeader(tar, 0, repeat('f', 90), dir, 1, '0');
+        assertEquals(512 * 2 + 1024, tar.length);
+    }
+
+    @Test
+    public void describesTooLongNameByPaxHeader() throws IOException {
+        String name = repeat('d', 160) + "/" + repeat('f', 120);
+        byte[] tar = archive(name, "x");
+        String record = paxRecord(name);
+        assertHeader(tar, 0, null, "", record.length(), 'x');
+        assertEquals(record, text(tar, 512, record.length()));
+        assertHeader(tar, 1024, repeat('f', 100), "", 1, '0');
+        assertEquals(512 * 4 + 1024, tar.length);
+    }
+
+    @Test
+    public void describesNonAsciiNameByPaxHeader() throws IOException {
+        String name = "ordrer/blåbær.xml";
+        byte[] tar = archive(name, "x");
+        String record = paxRecord(name);
+        int recordLength = record.getBytes(StandardCharsets.UTF_8).length;
+        assertHeader(tar, 0, null, "", recordLength, 'x');
+        assertEquals(record, new String(tar, 512, recordLength, StandardCharsets.UTF_8));
+        assertHeader(tar, 1024, "ordrer/bl_b_r.xml", "", 1, '0');
+    }
+
+    @Test
+    public void computesPaxRecordLengthAcrossDigitBoundary() throws IOException {
+        // " path=" + 91 byte name + "\n" is 98 bytes, so length prefix grows to three digits
+        String name = "\u00e6" + repeat('f', 89);
+        String record = paxRecord(name);
+        byte[] tar = archive(name, "");
+        assertEquals(101, record.getBytes(StandardCharsets.UTF_8).length);
+        assertEquals(record, text(tar, 512, 101));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsEntryShorterThanDeclared() throws IOException {
+        try ( TarOutputStream tar = new TarOutputStream(new ByteArrayOutputStream())) {
+            tar.putEntry("file.xml", 10, MODIFIED);
+            tar.write(new byte[5]);
+            tar.closeEntry();
+        }
+    }
+
+    private static byte[] archive(String name, String content) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try ( TarOutputStream tar = new TarOutputStream(bytes)) {
+            byte[] data = content.getBytes(StandardCharsets.UTF_8);
+            tar.putEntry(name, data.length, MODIFIED);
+            tar.write(data);
+            tar.closeEntry();
+            tar.finish();
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @param name expected name field or null to skip check
+     */
+    private static void assertHeader(byte[] tar, int offset, String name, String prefix, long size, char type) {
+        byte[] header = Arrays.copyOfRange(tar, offset, offset + 512);
+        if (name != null) {
+            assertEquals(name, field(header, 0, 100));
+        }
+        assertEquals(prefix, field(header, 345, 155));
+        assertEquals(size, Long.parseLong(field(header, 124, 12), 8));
+        assertEquals(MODIFIED / 1000, Long.parseLong(field(header, 136, 12), 8));
+        assertEquals(type, (char) header[156]);
+        assertEquals("ustar", field(header, 257, 6));
+        long checksum = 0;
+        for (int i = 0; i < header.length; i++) {
+            checksum += i >= 148 && i < 156 ? ' ' : header[i] & 0xff;
+        }
+        assertEquals(checksum, Long.parseLong(field(header, 148, 8).trim(), 8));
+    }
+
+    private static String field(byte[] header, int offset, int length) {
+        int end = offset;
+        while (end < offset + length && header[end] != 0) {
+            end++;
+        }
+        return new String(header, offset, end - offset, StandardCharsets.US_ASCII);
+    }
+
+    private static String text(byte[] tar, int offset, int length) {
+        return new String(tar, offset, length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return PAX path record built independently of writer, length counts whole record including itself
+     */
+    private static String paxRecord(String name) {
+        String rest = " path=" + name + "\n";
+        int length = rest.getBytes(StandardCharsets.UTF_8).length;
+        int digits = 1;
+        while (Integer.toString(length + digits).length() != digits) {
+            digits++;
+        }
+        return (length + digits) + rest;
+    }
+
+    private static String repeat(char c, int count) {
+        char[] chars = new char[count];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+}
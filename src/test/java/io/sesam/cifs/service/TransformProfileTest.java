@@ -0,0 +1,97 @@
+package io.sesam.cifs.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+
+/**
+ * Array rules of transform profiles in streamed and buffered conversion
+ *
+ * @author Timur Samkharadze
+ */
+public class TransformProfileTest {
+
+    private final XmlToJsonConverter converter = new XmlToJsonConverter();
+
+    @Test
+    public void declaredArrayIsArrayEvenWithSingleElement() throws IOException {
+        JSONObject json = convert("{\"arrays\": [\"ROOT/ITEM\"]}", "<ROOT><ITEM>1</ITEM><OTHER>x</OTHER></ROOT>");
+        assertEquals(1, json.getJSONArray("ITEM").length());
+        assertEquals("x", json.getString("OTHER"));
+    }
+
+    @Test
+    public void repeatedElementNotDeclaredAsArrayIsRejected() {
+        try {
+            convert("{\"arrays\": [\"ROOT/ITEM\"]}", "<ROOT><OTHER>1</OTHER><OTHER>2</OTHER></ROOT>");
+            fail("repeated element not declared as array must be rejected");
+        } catch (IOException exc) {
+            assertTrue(exc.getMessage(), exc.getMessage().contains("ROOT/OTHER is repeated but not declared"));
+        }
+    }
+
+    @Test
+    public void wildcardRuleAppliesToNamedSiblings() throws IOException {
+        JSONObject json = convert("{\"arrays\": [\"ROOT/*/LINE\"], \"types\": {\"ROOT/HEAD/LINE\": \"integer\"}}",
+                "<ROOT><HEAD><LINE>7</LINE></HEAD><BODY><LINE>a</LINE><LINE>b</LINE></BODY></ROOT>");
+        JSONArray head = json.getJSONObject("HEAD").getJSONArray("LINE");
+        assertEquals(7, head.getInt(0));
+        assertFalse(head.get(0) instanceof String);
+        assertEquals(2, json.getJSONObject("BODY").getJSONArray("LINE").length());
+    }
+
+    @Test
+    public void declaredAttributeIsArray() throws IOException {
+        JSONObject json = convert("{\"arrays\": [\"ROOT/ITEM/id\"]}", "<ROOT><ITEM id=\"1\">x</ITEM></ROOT>");
+        JSONObject item = json.getJSONObject("ITEM");
+        assertEquals("1", item.getJSONArray("id").getString(0));
+        assertEquals("x", item.getString("content"));
+    }
+
+    @Test
+    public void interleavedArrayIsRejectedWhenStreamedAndCollectedWhenBuffered() throws IOException {
+        String profile = "{\"arrays\": [\"ROOT/A\", \"ROOT/B\"]}";
+        String xml = "<ROOT><A>1</A><B>2</B><A>3</A></ROOT>";
+        try {
+            converter.convert(() -> new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)), "ROOT",
+                    profile(profile), "f.xml", new StringWriter());
+            fail("interleaved array can't be streamed");
+        } catch (TransformProfile.NonContiguousException exc) {
+            assertTrue(exc.getMessage(), exc.getMessage().contains("ROOT/A is repeated after other elements"));
+        }
+        JSONObject json = convert(profile, xml);
+        assertEquals(2, json.getJSONArray("A").length());
+        assertEquals(3, json.getJSONArray("A").getInt(1));
+
+        JSONObject declared = convert("{\"arrays\": [\"ROOT/A\", \"ROOT/B\"], \"buffer\": [\"ROOT\"]}", xml);
+        assertTrue(declared.similar(json));
+    }
+
+    @Test
+    public void renamedAndDroppedElementsFollowArrayRules() throws IOException {
+        JSONObject json = convert("{\"arrays\": [\"ROOT/ITEM\"], \"rename\": {\"ROOT/ITEM\": \"items\"},"
+                + " \"drop\": [\"ROOT/SKIP\"]}", "<ROOT><ITEM>1</ITEM><SKIP>x</SKIP><ITEM>2</ITEM></ROOT>");
+        assertEquals(2, json.getJSONArray("items").length());
+        assertFalse(json.has("SKIP"));
+        assertFalse(json.has("ITEM"));
+    }
+
+    private JSONObject convert(String profile, String xml) throws IOException {
+        return new JSONObject(converter.convert(xml.getBytes(StandardCharsets.UTF_8), "ROOT", profile(profile),
+                "f.xml"));
+    }
+
+    private static TransformProfile profile(String definition) throws IOException {
+        return TransformProfile.compile("test", new ObjectMapper().readTree(definition));
+    }
+}
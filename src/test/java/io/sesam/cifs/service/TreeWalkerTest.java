@@ -0,0 +1,102 @@
+package io.sesam.cifs.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+/**
+ * Spilling, depth limit, early stop and failures of tree walk
+ *
+ * @author Timur Samkharadze
+ */
+public class TreeWalkerTest {
+
+    private final CifsClient cifsClient = mock(CifsClient.class);
+
+    private final CifsConfig config = new CifsConfig();
+
+    private final TreeWalker walker = new TreeWalker();
+
+    @Before
+    public void setUp() throws IOException {
+        config.setPassword("secret");
+        config.setWalkParallelism(2);
+        config.setWalkQueueSize(4);
+        ReflectionTestUtils.setField(walker, "config", config);
+        ReflectionTestUtils.setField(walker, "cifsClient", cifsClient);
+        walker.initWalker();
+        // every directory holds 10 files and, above third level, 2 subdirectories
+        doAnswer(invocation -> {
+            String dir = invocation.getArgument(1);
+            ListingVisitor visitor = invocation.getArgument(2);
+            int level = dir.split("/").length;
+            for (int i = 0; i < 12; i++) {
+                FileOrDirectoryInfo entry = new FileOrDirectoryInfo();
+                entry.setIsDirectory(i >= 10);
+                if (entry.isIsDirectory() && level >= 3) {
+                    continue;
+                }
+                entry.setName((entry.isIsDirectory() ? "d" : "f") + i + ".xml");
+                if (!visitor.visit(entry)) {
+                    break;
+                }
+            }
+            return null;
+        }).when(cifsClient).listShareContent(eq("docs"), anyString(), any(ListingVisitor.class));
+    }
+
+    @After
+    public void tearDown() {
+        walker.shutdown();
+    }
+
+    @Test
+    public void walksWholeTreeSpillingLargeDirectories() throws IOException {
+        List<String> paths = new ArrayList<>();
+        walker.walk("docs", "/root/", 0, null, entry -> paths.add(entry.getPath()));
+        // 1 + 2 + 4 directories, each with 10 files, plus 6 subdirectories
+        assertEquals(76, paths.size());
+        assertTrue(paths.contains("root/d10.xml/d11.xml/f9.xml"));
+    }
+
+    @Test
+    public void honoursDepthAndGlob() throws IOException {
+        List<String> paths = new ArrayList<>();
+        walker.walk("docs", "root", 2, "d10.xml/f*", entry -> paths.add(entry.getPath()));
+        assertEquals(10, paths.size());
+        assertTrue(paths.contains("root/d10.xml/f0.xml"));
+    }
+
+    @Test
+    public void stopsWhenVisitorStops() throws IOException {
+        List<String> paths = new ArrayList<>();
+        walker.walk("docs", "root", 0, null, entry -> paths.add(entry.getPath()) && paths.size() < 15);
+        assertEquals(15, paths.size());
+    }
+
+    @Test
+    public void failsWalkWhenDirectoryCanNotBeListed() throws IOException {
+        doAnswer(invocation -> {
+            throw new IOException("access denied");
+        }).when(cifsClient).listShareContent(eq("docs"), eq("root/d11.xml"), any(ListingVisitor.class));
+        try {
+            walker.walk("docs", "root", 0, null, entry -> true);
+            fail("walk should fail");
+        } catch (IOException exc) {
+            assertEquals("access denied", exc.getMessage());
+        }
+    }
+}
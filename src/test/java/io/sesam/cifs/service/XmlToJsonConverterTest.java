@@ -0,0 +1,66 @@
+package io.sesam.cifs.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import org.apache.commons.io.IOUtils;
+import org.json.JSONObject;
+import org.json.XML;
+import org.junit.Test;
+
+/**
+ * Parity of streaming converter with org.json {@link XML#toJSONObject(java.lang.String)} it replaced
+ *
+ * @author Timur Samkharadze
+ */
+public class XmlToJsonConverterTest {
+
+    private final XmlToJsonConverter converter = new XmlToJsonConverter();
+
+    @Test
+    public void convertsOrdersIdocSameAsOrgJson() throws IOException {
+        assertParity(resource("orders05.xml"), "ORDERS05");
+    }
+
+    @Test
+    public void convertsIdocWithInterleavedSegmentsSameAsOrgJson() throws IOException {
+        assertParity(resource("matmas05.xml"), "MATMAS05");
+    }
+
+    @Test
+    public void convertsSingleSegmentAsObjectAndRepeatedAsArray() throws IOException {
+        JSONObject json = new JSONObject(converter.convert(resource("orders05.xml"), "ORDERS05"));
+        JSONObject idoc = json.getJSONObject("IDOC");
+        assertTrue(idoc.get("E1EDK01") instanceof JSONObject);
+        assertEquals(3, idoc.getJSONArray("E1EDK14").length());
+        assertEquals(2, idoc.getJSONArray("E1EDP01").length());
+    }
+
+    @Test
+    public void convertsAttributesAndEmptyElementsSameAsOrgJson() throws IOException {
+        assertParity("<ROOT a=\"1\" b=\"x\"><EMPTY/><EMPTY c=\"007\"/><TEXT d=\"2\">value</TEXT></ROOT>"
+                .getBytes(StandardCharsets.UTF_8), "ROOT");
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsOtherRootElement() throws IOException {
+        converter.convert(resource("orders05.xml"), "MATMAS05");
+    }
+
+    private void assertParity(byte[] xml, String root) throws IOException {
+        // compare JSON as written to clients, org.json keeps e.g. 1.00000 as double while both write it as 1
+        JSONObject expected = new JSONObject(XML.toJSONObject(new String(xml, StandardCharsets.UTF_8))
+                .getJSONObject(root).toString());
+        JSONObject actual = new JSONObject(converter.convert(xml, root));
+        assertTrue(String.format("expected %s but was %s", expected, actual), expected.similar(actual));
+    }
+
+    private static byte[] resource(String name) throws IOException {
+        try ( InputStream in = XmlToJsonConverterTest.class.getResourceAsStream("/idoc/" + name)) {
+            return IOUtils.toByteArray(in);
+        }
+    }
+}